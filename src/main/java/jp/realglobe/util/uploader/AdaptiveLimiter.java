@@ -0,0 +1,295 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * 応答時間に合わせて同時実行数を増減させる制限。
+ * TCP の輻輳制御と同じく、問題が無ければ少しずつ増やし（加算）、問題があれば大きく減らす（乗算）。
+ * 応答時間の短期平均が長期平均より大きく伸びたら混み始めたとみなして減らす。
+ * 応答時間はデータを送り終えてから応答が返るまでの時間で、データの大きさに左右されない（{@link Timer}）。
+ * 過負荷の応答（429, 503）やタイムアウトならさらに大きく減らす。
+ * 最初の減少までは 1 回の完了ごとに 1 つ増やし、素早く上限を探る
+ */
+final class AdaptiveLimiter {
+
+    private static final Logger LOG = Logger.getLogger(AdaptiveLimiter.class.getName());
+
+    /**
+     * 1 回の処理の結果
+     */
+    enum Outcome {
+        /**
+         * 成功。応答時間を使う
+         */
+        SUCCESS,
+        /**
+         * 過負荷やタイムアウト
+         */
+        OVERLOAD,
+        /**
+         * 混み具合と関係無い失敗。応答時間は使わない
+         */
+        IGNORE,
+    }
+
+    // HttpURLConnection に無い
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    // 短期平均の重み
+    private static final double SHORT_WEIGHT = 0.5;
+    // 長期平均の重み
+    private static final double LONG_WEIGHT = 0.05;
+    // 短期平均が長期平均のこの倍を超えたら減らす
+    private static final double TOLERANCE = 1.5;
+    // 応答時間が伸びたときの減少率
+    private static final double LATENCY_BACKOFF = 0.9;
+    // 過負荷のときの減少率
+    private static final double OVERLOAD_BACKOFF = 0.5;
+
+    private final int maxLimit;
+
+    // 以下、this で排他する
+    private double limit;
+    private int inFlight;
+    private boolean slowStart;
+    // 応答時間の平均（ナノ秒）。0 なら未計測
+    private double shortRtt;
+    private double longRtt;
+
+    /**
+     * 作成する
+     * @param initialLimit 最初の同時実行数
+     * @param maxLimit 同時実行数の上限
+     */
+    AdaptiveLimiter(final int initialLimit, final int maxLimit) {
+        if (maxLimit <= 0 || initialLimit <= 0 || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits " + initialLimit + ", " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.slowStart = true;
+    }
+
+    /**
+     * 同時実行数に空きができるまで待って、1 つ使う
+     * @throws InterruptedException 待機中に割り込まれた
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (this.inFlight >= getLimit()) {
+            wait();
+        }
+        this.inFlight++;
+    }
+
+    /**
+     * 同時実行数に空きがあれば 1 つ使う
+     * @return 使えたら true
+     */
+    synchronized boolean tryAcquire() {
+        if (this.inFlight >= getLimit()) {
+            return false;
+        }
+        this.inFlight++;
+        return true;
+    }
+
+    /**
+     * 1 回の送信の応答時間を測る。
+     * 大きなデータを送るのに掛かった時間で混み具合を見誤らないよう、
+     * データを読み終えてから応答が返るまでを測る。
+     * 読み終えたことが分からなければ送り始めからを測る
+     */
+    static final class Timer {
+
+        private final long start;
+        // データを読み終えた時刻。0 なら読み終えていない
+        private volatile long sent;
+
+        /**
+         * 作成して測り始める
+         */
+        Timer() {
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * 読み終えた時刻を記録するデータにする
+         * @param payload 送るデータ
+         * @return 送るデータ
+         */
+        Payload wrap(final Payload payload) {
+            return new Payload(payload.getName(), payload.getContentType()) {
+
+                @Override
+                public long getLength() {
+                    return payload.getLength();
+                }
+
+                @Override
+                public boolean isRepeatable() {
+                    return payload.isRepeatable();
+                }
+
+                @Override
+                Path getPath() {
+                    return payload.getPath();
+                }
+
+                @Override
+                public InputStream openStream() throws IOException {
+                    // 送り直しなら読み終えた時刻を取り直す
+                    Timer.this.sent = 0;
+                    return new FilterInputStream(payload.openStream()) {
+
+                        @Override
+                        public int read() throws IOException {
+                            final int b = super.read();
+                            if (b < 0) {
+                                markSent();
+                            }
+                            return b;
+                        }
+
+                        @Override
+                        public int read(final byte[] b, final int off, final int len) throws IOException {
+                            final int length = super.read(b, off, len);
+                            if (length < 0) {
+                                markSent();
+                            }
+                            return length;
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            markSent();
+                        }
+
+                    };
+                }
+
+                @Override
+                public void writeTo(final OutputStream output) throws IOException {
+                    Timer.this.sent = 0;
+                    payload.writeTo(output);
+                    markSent();
+                }
+
+            };
+        }
+
+        private void markSent() {
+            if (this.sent == 0) {
+                this.sent = System.nanoTime();
+            }
+        }
+
+        /**
+         * @return 応答時間（ナノ秒）
+         */
+        long elapsed() {
+            final long sent1 = this.sent;
+            return System.nanoTime() - (sent1 != 0 ? sent1 : this.start);
+        }
+
+    }
+
+    /**
+     * 応答を結果に分ける
+     * @param statusCode HTTP ステータスコード
+     * @return 結果
+     */
+    static Outcome classify(final int statusCode) {
+        if (statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+            return Outcome.OVERLOAD;
+        } else if (statusCode == HttpURLConnection.HTTP_CREATED) {
+            return Outcome.SUCCESS;
+        }
+        return Outcome.IGNORE;
+    }
+
+    /**
+     * 使っていた 1 つを返し、結果に合わせて同時実行数を変える
+     * @param rtt 応答時間（ナノ秒）。{@link Timer#elapsed()} で測る
+     * @param outcome 結果
+     */
+    synchronized void release(final long rtt, final Outcome outcome) {
+        // 半分も使っていないときに増やしても意味が無い
+        final boolean saturated = (2 * this.inFlight >= getLimit());
+        this.inFlight--;
+
+        switch (outcome) {
+            case OVERLOAD: {
+                decrease(OVERLOAD_BACKOFF);
+                break;
+            }
+            case SUCCESS: {
+                if (this.longRtt == 0) {
+                    this.shortRtt = rtt;
+                    this.longRtt = rtt;
+                } else {
+                    this.shortRtt += SHORT_WEIGHT * (rtt - this.shortRtt);
+                    this.longRtt += LONG_WEIGHT * (rtt - this.longRtt);
+                }
+                if (this.shortRtt > TOLERANCE * this.longRtt) {
+                    decrease(LATENCY_BACKOFF);
+                    // 減らした後の応答時間で比べ直す
+                    this.shortRtt = this.longRtt;
+                } else if (saturated) {
+                    this.limit = Math.min(this.maxLimit, this.limit + (this.slowStart ? 1 : 1 / this.limit));
+                }
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+        notifyAll();
+    }
+
+    private void decrease(final double factor) {
+        this.slowStart = false;
+        final int before = getLimit();
+        this.limit = Math.max(1, this.limit * factor);
+        if (getLimit() < before) {
+            LOG.fine("Concurrency limit decreased to " + getLimit());
+        }
+    }
+
+    /**
+     * @return 今の同時実行数の上限
+     */
+    synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    /**
+     * @return 実行中の数
+     */
+    synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+}
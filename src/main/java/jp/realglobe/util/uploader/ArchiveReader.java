@@ -0,0 +1,301 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * zip や tar の中のファイルを、展開せずに 1 つずつデータとして読む。
+ * zip は ZipFile で、tar は中身の位置を覚えてファイルから直接読むので、どちらも何度でも読め、同時に読める。
+ * 別のディレクトリにある同じ名前のファイルを区別できるように、データの名前には中でのパスを区切りを置き換えて使う
+ */
+final class ArchiveReader implements Closeable {
+
+    private static final int TAR_BLOCK_SIZE = 512;
+    // データの名前でディレクトリの区切りの代わりに使う文字列
+    static final String SEPARATOR = "__";
+
+    private final ZipFile zip;
+    private final List<Payload> entries;
+
+    private ArchiveReader(final ZipFile zip, final List<Payload> entries) {
+        this.zip = zip;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * 展開できる形式か調べる
+     * @param name ファイル名
+     * @return zip か tar なら true
+     */
+    static boolean isArchive(final String name) {
+        final String extension = FilenameUtils.getExtension(name).toLowerCase(Locale.ROOT);
+        return extension.equals("zip") || extension.equals("tar");
+    }
+
+    /**
+     * 開く
+     * @param path zip か tar のファイル
+     * @return 開いたもの
+     * @throws IOException 読み込みエラーか、壊れている
+     */
+    static ArchiveReader open(final Path path) throws IOException {
+        final String extension = FilenameUtils.getExtension(path.getFileName().toString()).toLowerCase(Locale.ROOT);
+        if (extension.equals("zip")) {
+            final ZipFile zip = new ZipFile(path.toFile());
+            final List<Payload> entries = new ArrayList<>();
+            for (final Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                final ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory()) {
+                    entries.add(zipEntry(path, zip, entry));
+                }
+            }
+            return new ArchiveReader(zip, entries);
+        } else if (extension.equals("tar")) {
+            return new ArchiveReader(null, readTar(path));
+        }
+        throw new IOException("Not archive " + path);
+    }
+
+    /**
+     * @return 中のファイル。ディレクトリなどは含まない
+     */
+    List<Payload> getEntries() {
+        return this.entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.zip != null) {
+            this.zip.close();
+        }
+    }
+
+    /**
+     * 中のファイルのパスからデータの名前を作る
+     * @param entryName 中でのパス
+     * @return 区切りを置き換えた名前
+     */
+    static String toName(final String entryName) {
+        String name = entryName.replace('\\', '/');
+        while (name.startsWith("/") || name.startsWith("./")) {
+            name = name.substring(name.indexOf('/') + 1);
+        }
+        return name.replace("/", SEPARATOR);
+    }
+
+    private static Payload zipEntry(final Path path, final ZipFile zip, final ZipEntry entry) {
+        return new Payload(toName(entry.getName()), null) {
+
+            @Override
+            public long getLength() {
+                return entry.getSize();
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return zip.getInputStream(entry);
+            }
+
+            @Override
+            public String toString() {
+                return path + "!/" + entry.getName();
+            }
+
+        };
+    }
+
+    private static Payload tarEntry(final Path path, final String entryName, final long offset, final long length) {
+        return new Payload(toName(entryName), null) {
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    channel.position(offset);
+                } catch (final IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                return new BoundedInputStream(Channels.newInputStream(channel), length);
+            }
+
+            @Override
+            public String toString() {
+                return path + "!/" + entryName;
+            }
+
+        };
+    }
+
+    /**
+     * tar のヘッダを辿って中のファイルの位置を集める。
+     * ustar と GNU の長い名前、pax の path に対応する
+     */
+    private static List<Payload> readTar(final Path path) throws IOException {
+        final List<Payload> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(TAR_BLOCK_SIZE);
+            String longName = null;
+            long position = 0;
+            while (true) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, position + header.position()) < 0) {
+                        throw new EOFException("Truncated tar " + path);
+                    }
+                }
+                final byte[] block = header.array();
+                if (isZero(block)) {
+                    // 終わり
+                    break;
+                }
+                final long size = parseNumber(block, 124, 12);
+                final byte type = block[156];
+                final long dataOffset = position + TAR_BLOCK_SIZE;
+                position = dataOffset + (size + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE;
+
+                if (type == 'L') {
+                    longName = trim(readString(channel, dataOffset, size));
+                    continue;
+                } else if (type == 'x') {
+                    final String paxName = parsePaxPath(readString(channel, dataOffset, size));
+                    if (paxName != null) {
+                        longName = paxName;
+                    }
+                    continue;
+                }
+                String entryName = longName;
+                longName = null;
+                if (entryName == null) {
+                    entryName = parseString(block, 0, 100);
+                    if (new String(block, 257, 5, StandardCharsets.US_ASCII).equals("ustar")) {
+                        final String prefix = parseString(block, 345, 155);
+                        if (!prefix.isEmpty()) {
+                            entryName = prefix + "/" + entryName;
+                        }
+                    }
+                }
+                // 普通のファイルだけ
+                if (type == '0' || type == 0) {
+                    entries.add(tarEntry(path, entryName, dataOffset, size));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static boolean isZero(final byte[] block) {
+        for (final byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readString(final FileChannel channel, final long offset, final long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too large tar header " + size);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Truncated tar header");
+            }
+        }
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    private static String trim(final String value) {
+        final int end = value.indexOf('\0');
+        return (end < 0 ? value : value.substring(0, end));
+    }
+
+    private static String parseString(final byte[] block, final int offset, final int length) {
+        int end = offset;
+        while (end < offset + length && block[end] != 0) {
+            end++;
+        }
+        return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 8 進数か、先頭ビットが立っていれば 256 進数
+     */
+    static long parseNumber(final byte[] block, final int offset, final int length) throws IOException {
+        if ((block[offset] & 0x80) != 0) {
+            long value = block[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (block[i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = block[i];
+            if (b == 0 || b == ' ') {
+                if (value == 0 && b == ' ') {
+                    continue;
+                }
+                break;
+            } else if (b < '0' || b > '7') {
+                throw new IOException("Invalid tar number");
+            }
+            value = (value << 3) | (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * pax の拡張ヘッダから path を取り出す。
+     * 各行は "長さ キー=値\n"
+     */
+    private static String parsePaxPath(final String records) {
+        for (final String record : records.split("\n")) {
+            final int space = record.indexOf(' ');
+            if (space >= 0 && record.startsWith("path=", space + 1)) {
+                return record.substring(space + 1 + "path=".length());
+            }
+        }
+        return null;
+    }
+
+}
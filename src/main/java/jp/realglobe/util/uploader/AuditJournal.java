@@ -0,0 +1,486 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import jp.realglobe.lib.util.StackTraces;
+
+/**
+ * ファイルごとのアップロード結果の記録。
+ * 記録は別スレッドでまとめて書き込むので、アップロードする側は待たない。
+ * ファイルが決まった大きさを超えたら次のファイルに移り、決まった数を超えた古いファイルは消す。
+ * ファイルの形式は、先頭に識別子と版、以降は固定長の記録が並ぶ。
+ * 記録は パスのハッシュ値、終了日時（ミリ秒）、待ち時間（ミリ秒）、アップロードにかかった時間（ミリ秒）、
+ * 元の大きさ、送った大きさ、結果の種類、HTTP ステータスコード
+ */
+public final class AuditJournal implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(AuditJournal.class.getName());
+
+    private static final int MAGIC = 0x52474a4c; // "RGJL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int RECORD_SIZE = 8 + 8 + 4 + 4 + 8 + 8 + 1 + 2;
+
+    private static final String PREFIX = "audit-";
+    private static final String SUFFIX = ".journal";
+
+    // 1 度に書き込む最大の記録数
+    private static final int BATCH_SIZE = 256;
+    // 書き込み待ちにできる記録数。超えたら捨てる
+    private static final int QUEUE_CAPACITY = 65536;
+
+    /**
+     * 1 つのアップロード結果の記録
+     */
+    public static final class Entry {
+
+        private final long pathHash;
+        private final long date;
+        private final int wait;
+        private final int elapsed;
+        private final long size;
+        private final long sentBytes;
+        private final UploadResult.Status status;
+        private final int statusCode;
+
+        /**
+         * @param pathHash パスのハッシュ値
+         * @param date 終了日時（ミリ秒）
+         * @param wait 受け付けてからアップロードを始めるまでの時間（ミリ秒）
+         * @param elapsed アップロードにかかった時間（ミリ秒）
+         * @param size 元の大きさ。不明なら -1
+         * @param sentBytes 送った大きさ。送らなかったり不明だったりすれば -1
+         * @param status 結果の種類
+         * @param statusCode HTTP ステータスコード。通信しなかったら -1
+         */
+        Entry(final long pathHash, final long date, final int wait, final int elapsed, final long size, final long sentBytes, final UploadResult.Status status,
+                final int statusCode) {
+            this.pathHash = pathHash;
+            this.date = date;
+            this.wait = wait;
+            this.elapsed = elapsed;
+            this.size = size;
+            this.sentBytes = sentBytes;
+            this.status = status;
+            this.statusCode = statusCode;
+        }
+
+        /**
+         * @return パスのハッシュ値
+         */
+        public long getPathHash() {
+            return this.pathHash;
+        }
+
+        /**
+         * @return 終了日時（ミリ秒）
+         */
+        public long getDate() {
+            return this.date;
+        }
+
+        /**
+         * @return 受け付けてからアップロードを始めるまでの時間（ミリ秒）
+         */
+        public int getWait() {
+            return this.wait;
+        }
+
+        /**
+         * @return アップロードにかかった時間（ミリ秒）
+         */
+        public int getElapsed() {
+            return this.elapsed;
+        }
+
+        /**
+         * @return 元の大きさ。不明なら -1
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        /**
+         * @return 送った大きさ。送らなかったり不明だったりすれば -1
+         */
+        public long getSentBytes() {
+            return this.sentBytes;
+        }
+
+        /**
+         * @return 結果の種類。例外で終わった場合は FAILED
+         */
+        public UploadResult.Status getStatus() {
+            return this.status;
+        }
+
+        /**
+         * @return HTTP ステータスコード。通信しなかったら -1
+         */
+        public int getStatusCode() {
+            return this.statusCode;
+        }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(this.date) + " " + String.format("%016x", this.pathHash) + " " + this.status + " " + this.statusCode
+                    + " wait=" + this.wait + "ms elapsed=" + this.elapsed + "ms size=" + this.size + " sent=" + this.sentBytes;
+        }
+
+    }
+
+    // 書き込みスレッドを止める印
+    private static final Entry CLOSE = new Entry(0, 0, 0, 0, 0, 0, UploadResult.Status.SKIPPED, 0);
+
+    private final Path directory;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final BlockingQueue<Entry> queue;
+    private final AtomicLong dropped;
+    private final Thread writer;
+
+    // 以下、書き込みスレッドだけが触る
+    private FileChannel channel;
+    private Path currentPath;
+    // 最後に作った記録ファイルの名前の日時
+    private long currentDate = Long.MIN_VALUE;
+
+    /**
+     * 作成する
+     * @param directory 記録ファイルを置くディレクトリ
+     * @param maxFileSize 1 つの記録ファイルの最大の大きさ（バイト）
+     * @param maxFiles 残しておく記録ファイルの数。0 以下なら消さない
+     * @throws IOException ディレクトリを作れなかった
+     */
+    public AuditJournal(final Path directory, final long maxFileSize, final int maxFiles) throws IOException {
+        if (maxFileSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("Too small file size " + maxFileSize);
+        }
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        this.dropped = new AtomicLong();
+
+        Files.createDirectories(directory);
+
+        this.writer = new Thread(this::drain, AuditJournal.class.getSimpleName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * パスのハッシュ値を計算する。
+     * 64 ビットの FNV-1a
+     * @param path パス
+     * @return ハッシュ値
+     */
+    public static long hash(final String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : path.getBytes(Constants.UTF8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 記録を書き込み待ちにする。
+     * 書き込み待ちが溢れていたら捨てる
+     * @param entry 記録
+     */
+    void append(final Entry entry) {
+        if (!this.queue.offer(entry)) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return 書き込み待ちが溢れて捨てた記録の数
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * 書き込みスレッドの処理
+     */
+    private void drain() {
+        final List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        final ByteBuffer buffer = ByteBuffer.allocate(BATCH_SIZE * RECORD_SIZE);
+        try {
+            boolean closing = false;
+            while (!closing) {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch, BATCH_SIZE - 1);
+                final int end = batch.indexOf(CLOSE);
+                if (end >= 0) {
+                    // 止める印より後に来たものは捨てる
+                    closing = true;
+                    batch.subList(end, batch.size()).clear();
+                }
+                write(batch, buffer);
+                batch.clear();
+            }
+        } catch (final InterruptedException e) {
+            LOG.warning("Audit journal interrupted");
+        } catch (final IOException e) {
+            LOG.warning("Stop audit journal: " + e);
+            LOG.finest(StackTraces.getString(e));
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private void write(final List<Entry> batch, final ByteBuffer buffer) throws IOException {
+        int offset = 0;
+        while (offset < batch.size()) {
+            if (this.channel == null || this.channel.size() + RECORD_SIZE > this.maxFileSize) {
+                rotate();
+            }
+            // ファイルに収まる分だけ書く
+            final int count = (int) Math.min(batch.size() - offset, (this.maxFileSize - this.channel.size()) / RECORD_SIZE);
+            writeRecords(batch.subList(offset, offset + count), buffer);
+            offset += count;
+        }
+    }
+
+    private void writeRecords(final List<Entry> entries, final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        for (final Entry entry : entries) {
+            buffer.putLong(entry.pathHash);
+            buffer.putLong(entry.date);
+            buffer.putInt(entry.wait);
+            buffer.putInt(entry.elapsed);
+            buffer.putLong(entry.size);
+            buffer.putLong(entry.sentBytes);
+            buffer.put((byte) entry.status.ordinal());
+            buffer.putShort((short) entry.statusCode);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+    }
+
+    /**
+     * 新しい記録ファイルに移る
+     * @throws IOException 書き込みエラー
+     */
+    private void rotate() throws IOException {
+        closeChannel();
+
+        // 名前順が作成順になるようにする。
+        // 同じミリ秒に何度も移ると名前の日時が先に進むので、消えた古い名前を使い回さない
+        long date = Math.max(System.currentTimeMillis(), this.currentDate + 1);
+        Path path;
+        while (Files.exists(path = this.directory.resolve(String.format("%s%016x%s", PREFIX, date, SUFFIX)))) {
+            date++;
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.currentPath = path;
+        this.currentDate = date;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION).flip();
+        while (header.hasRemaining()) {
+            this.channel.write(header);
+        }
+
+        if (this.maxFiles > 0) {
+            final List<Path> paths = list(this.directory);
+            for (int i = 0; i < paths.size() - this.maxFiles; i++) {
+                if (!paths.get(i).equals(this.currentPath)) {
+                    Files.deleteIfExists(paths.get(i));
+                }
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (final IOException e) {
+            LOG.warning("Cannot close " + this.currentPath + ": " + e);
+        }
+        this.channel = null;
+    }
+
+    /**
+     * 書き込み待ちの記録を全て書いて閉じる
+     * @throws IOException 待機中に割り込まれた
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // 書き込みスレッドが異常終了していたら溢れたまま
+            while (this.writer.isAlive() && !this.queue.offer(CLOSE, 100, TimeUnit.MILLISECONDS)) {
+                // 空くまで待つ
+            }
+            this.writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 記録ファイルを古い順に返す
+     * @param directory 記録ファイルを置いたディレクトリ
+     * @return 記録ファイル
+     * @throws IOException 読み込みエラー
+     */
+    private static List<Path> list(final Path directory) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (final Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * 記録を探す
+     * @param directory 記録ファイルを置いたディレクトリ
+     * @param pathHash パスのハッシュ値。null なら全て
+     * @param from この日時（ミリ秒）以降に終わったものを探す
+     * @param to この日時（ミリ秒）より前に終わったものを探す
+     * @return 記録
+     * @throws IOException 読み込みエラー
+     */
+    public static List<Entry> query(final Path directory, final Long pathHash, final long from, final long to) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        final List<Path> paths = list(directory);
+        for (int i = 0; i < paths.size(); i++) {
+            // 次のファイルを作る前に終わったものしか入っていない。
+            // 作る前に終わったものが後から書き込まれることはあるので、逆は言えない
+            if (i + 1 < paths.size() && getCreationDate(paths.get(i + 1)) < from) {
+                continue;
+            }
+            read(paths.get(i), pathHash, from, to, entries);
+        }
+        return entries;
+    }
+
+    private static long getCreationDate(final Path path) {
+        final String name = path.getFileName().toString();
+        return Long.parseUnsignedLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+    }
+
+    private static void read(final Path path, final Long pathHash, final long from, final long to, final List<Entry> entries) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not audit journal " + path);
+        }
+        final int version = buffer.get() & 0xff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported audit journal version " + version);
+        }
+        final UploadResult.Status[] statuses = UploadResult.Status.values();
+        // 書きかけの記録は読まない
+        while (buffer.remaining() >= RECORD_SIZE) {
+            final long hash = buffer.getLong();
+            final long date = buffer.getLong();
+            final int wait = buffer.getInt();
+            final int elapsed = buffer.getInt();
+            final long size = buffer.getLong();
+            final long sentBytes = buffer.getLong();
+            final int status = buffer.get() & 0xff;
+            final int statusCode = buffer.getShort();
+            if ((pathHash != null && hash != pathHash) || date < from || date >= to || status >= statuses.length) {
+                continue;
+            }
+            entries.add(new Entry(hash, date, wait, elapsed, size, sentBytes, statuses[status], statusCode));
+        }
+    }
+
+    private static long parseDate(final String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            return Instant.parse(value).toEpochMilli();
+        }
+    }
+
+    /**
+     * 記録ファイルを置いたディレクトリを指定して記録を表示する。
+     * -path でパス、-from と -to で終了日時の範囲（ミリ秒か ISO 8601 形式）を絞り込める
+     * @param args 引数
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1 || args.length % 2 != 1) {
+            System.err.println("Usage: " + AuditJournal.class.getName() + " DIRECTORY [-path PATH] [-from DATE] [-to DATE]");
+            System.exit(1);
+        }
+        final List<Long> hashes = new ArrayList<>();
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for (int i = 1; i < args.length; i += 2) {
+            switch (args[i]) {
+            case "-path": {
+                // 監視で検知したファイルは絶対パスで記録している
+                hashes.add(hash(args[i + 1]));
+                hashes.add(hash(Paths.get(args[i + 1]).toAbsolutePath().normalize().toString()));
+                break;
+            }
+            case "-from": {
+                from = parseDate(args[i + 1]);
+                break;
+            }
+            case "-to": {
+                to = parseDate(args[i + 1]);
+                break;
+            }
+            default: {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+            }
+        }
+
+        for (final Entry entry : query(Paths.get(args[0]), null, from, to)) {
+            if (hashes.isEmpty() || hashes.contains(entry.getPathHash())) {
+                System.out.println(entry);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 読み込んだデータをメモリに覚えておく保管庫。
+ * 書き込みはそのまま元の保管庫に通す
+ */
+public class CachingStore implements Store {
+
+    // データが無いことを覚えておくための印
+    private static final String ABSENT = new String();
+
+    private final Store base;
+    private final Map<String, String> cache;
+    // キーごとの排他。元の保管庫から読んでいる間に書き込まれた値を古い値で上書きしないため
+    private final Map<String, Object> locks;
+
+    /**
+     * 作成する
+     * @param base 元の保管庫
+     */
+    public CachingStore(final Store base) {
+        this.base = base;
+        this.cache = new ConcurrentHashMap<>();
+        this.locks = new ConcurrentHashMap<>();
+    }
+
+    private Object lock(final String key) {
+        return this.locks.computeIfAbsent(key, key1 -> new Object());
+    }
+
+    @Override
+    public String load(final String key) throws Exception {
+        final String cached = this.cache.get(key);
+        if (cached != null) {
+            return (cached == ABSENT ? null : cached);
+        }
+        synchronized (lock(key)) {
+            // 待っている間に読み込まれたか、書き込まれたかもしれない
+            final String cached1 = this.cache.get(key);
+            if (cached1 != null) {
+                return (cached1 == ABSENT ? null : cached1);
+            }
+            final String value = this.base.load(key);
+            this.cache.put(key, value == null ? ABSENT : value);
+            return value;
+        }
+    }
+
+    @Override
+    public void clear(final String key) throws Exception {
+        synchronized (lock(key)) {
+            // 失敗したときに古い値が残らないよう先に忘れる
+            this.cache.remove(key);
+            this.base.clear(key);
+            this.cache.put(key, ABSENT);
+        }
+    }
+
+    @Override
+    public void store(final String key, final String value) throws Exception {
+        synchronized (lock(key)) {
+            this.cache.remove(key);
+            this.base.store(key, value);
+            this.cache.put(key, value);
+        }
+    }
+
+}
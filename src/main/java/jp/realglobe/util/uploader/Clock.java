@@ -0,0 +1,35 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+/**
+ * 時計。
+ * 監視の猶予期間を仮想の時間で進めて試せるようにする
+ */
+@FunctionalInterface
+interface Clock {
+
+    /**
+     * 本物の時計
+     */
+    static final Clock SYSTEM = System::currentTimeMillis;
+
+    /**
+     * @return 現在日時（ミリ秒）
+     */
+    long currentTimeMillis();
+
+}
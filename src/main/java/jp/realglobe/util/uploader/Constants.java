@@ -30,6 +30,8 @@ final class Constants {
 
     static final String STORE_KEY_ID = "id";
     static final String STORE_KEY_TOKEN = "token";
+    static final String STORE_KEY_ENCRYPTION_KEY = "encryptionKey";
+    static final String STORE_KEY_IDEMPOTENCY_SECRET = "idempotencySecret";
 
     static final String URL_PATH_TOKEN = "/cameras";
     static final String URL_PATH_UPLOAD_PREFIX = "/cameras";
@@ -40,5 +42,15 @@ final class Constants {
 
     static final String UPLOAD_REQUEST_PART_TOKEN = "token";
     static final String UPLOAD_REQUEST_PART_DATA = "image";
+    static final String UPLOAD_REQUEST_PART_INFO = "info";
+    static final String UPLOAD_REQUEST_PART_CHECKSUM = "checksum";
+    static final String UPLOAD_REQUEST_INFO_KEY_CHECKSUM = "checksum";
+    static final String UPLOAD_REQUEST_INFO_KEY_DELTA_BASE = "deltaBase";
+    static final String UPLOAD_REQUEST_INFO_KEY_ENCRYPTION = "encryption";
+    static final String UPLOAD_REQUEST_INFO_KEY_IDEMPOTENCY_KEY = "idempotencyKey";
+    static final String UPLOAD_REQUEST_HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    static final String UPLOAD_RESPONSE_HEADER_CHECKSUM = "X-Checksum";
+    static final String UPLOAD_RESPONSE_KEY_CHECKSUM = "checksum";
 
 }
@@ -0,0 +1,152 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ファイルを間引く。
+ * カメラごとに、決まった時間あたり決まった数までのファイルだけを、なるべく等間隔に選ぶ。
+ * latestOnly と違い、処理が追いついているかに関わらず帯域の使い方が一定になる
+ */
+public final class Decimator {
+
+    private static final Logger LOG = Logger.getLogger(Decimator.class.getName());
+
+    /**
+     * 間引いたファイルの扱い
+     */
+    public static enum DropAction {
+        /**
+         * そのまま残す
+         */
+        KEEP,
+        /**
+         * 消す
+         */
+        DELETE,
+        /**
+         * 別のディレクトリに移す
+         */
+        ARCHIVE,
+    }
+
+    // 選ぶ間隔（ミリ秒）
+    private final double interval;
+    // カメラの見分け方。null なら全体で 1 つ
+    private final Pattern sourcePattern;
+    private final DropAction dropAction;
+    // 間引いたファイルを移すディレクトリ
+    private final Path archiveDirectory;
+
+    // カメラから最後に選んだファイルの日時。this で排他する
+    private final Map<String, Long> lastDates = new HashMap<>();
+
+    /**
+     * 作成する
+     * @param maxFiles window あたりに選ぶ最大数
+     * @param window 時間（ミリ秒）
+     * @param sourcePattern ファイル名からカメラを見分ける正規表現。最初のグループか、グループが無ければ一致した部分をカメラとみなす。
+     *            null か一致しなければ全体で 1 つとみなす
+     * @param dropAction 間引いたファイルの扱い
+     * @param archiveDirectory dropAction が ARCHIVE のときに間引いたファイルを移すディレクトリ
+     */
+    public Decimator(final int maxFiles, final long window, final Pattern sourcePattern, final DropAction dropAction, final Path archiveDirectory) {
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("Invalid max files " + maxFiles);
+        } else if (window <= 0) {
+            throw new IllegalArgumentException("Invalid window " + window);
+        } else if (dropAction == DropAction.ARCHIVE && archiveDirectory == null) {
+            throw new IllegalArgumentException("No archive directory");
+        }
+        this.interval = (double) window / maxFiles;
+        this.sourcePattern = sourcePattern;
+        this.dropAction = dropAction;
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * カメラを見分ける
+     * @param name ファイル名
+     * @return カメラ
+     */
+    String getSource(final String name) {
+        if (this.sourcePattern == null) {
+            return "";
+        }
+        final Matcher matcher = this.sourcePattern.matcher(name);
+        if (!matcher.find()) {
+            return "";
+        }
+        return (matcher.groupCount() > 0 ? matcher.group(1) : matcher.group());
+    }
+
+    /**
+     * 選ぶか決める。
+     * 同じカメラで最後に選んだファイルから間隔が空いていれば選ぶ
+     * @param name ファイル名
+     * @param date 最後のイベントの日時（ミリ秒）
+     * @return 選ぶなら true
+     */
+    synchronized boolean accept(final String name, final long date) {
+        final String source = getSource(name);
+        final Long lastDate = this.lastDates.get(source);
+        // 遅れて届いた古いファイルも、選んだものの近くなら間引く
+        if (lastDate != null && Math.abs(date - lastDate) < this.interval) {
+            return false;
+        }
+        if (lastDate == null || date > lastDate) {
+            this.lastDates.put(source, date);
+        }
+        return true;
+    }
+
+    /**
+     * 間引いたファイルを片付ける
+     * @param path ファイルのパス
+     */
+    void drop(final Path path) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Drop " + path);
+        }
+        try {
+            switch (this.dropAction) {
+            case DELETE:
+                Files.deleteIfExists(path);
+                break;
+            case ARCHIVE:
+                Files.createDirectories(this.archiveDirectory);
+                Files.move(path, this.archiveDirectory.resolve(path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                break;
+            default:
+                break;
+            }
+        } catch (final IOException e) {
+            LOG.warning("Cannot " + this.dropAction.name().toLowerCase(Locale.ROOT) + " dropped " + path + ": " + e);
+        }
+    }
+
+}
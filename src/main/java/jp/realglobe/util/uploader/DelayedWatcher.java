@@ -17,22 +17,30 @@
 package jp.realglobe.util.uploader;
 
 import java.io.IOException;
-import java.nio.file.FileSystems;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FilenameUtils;
 
 import jp.realglobe.lib.container.Pair;
 import jp.realglobe.lib.util.StackTraces;
@@ -45,6 +53,12 @@ final class DelayedWatcher implements Runnable {
 
     private static final Logger LOG = Logger.getLogger(DelayedWatcher.class.getName());
 
+    // 書き込み中の一時ファイルの名前。
+    // ダウンロード中のファイル、エディタのスワップファイルやバックアップ、
+    // rsync の .名前.XXXXXX、Office や LibreOffice のロックファイル
+    private static final Pattern TEMPORARY_NAME = Pattern.compile(
+            "(?i).*\\.(tmp|temp|part|partial|crdownload|download|swp|swo|swx)|.*~|\\.#.*|#.*#|\\..+\\.[A-Za-z0-9]{6}|~\\$.*|\\.~lock\\..*#");
+
     private final Path target;
     private final long delay;
     private final boolean latestOnly;
@@ -52,6 +66,33 @@ final class DelayedWatcher implements Runnable {
 
     private final History history;
 
+    // 生のイベントの記録先。null なら記録しない
+    private WatchTrace.Writer traceWriter;
+    // 報告するパスの絞り込み。null なら絞り込まない
+    private Predicate<Path> filter;
+    // 一時ファイルからの名前変更を書き込み完了の合図にするか
+    private boolean renameSignal;
+    // 書き込み完了の合図にする印ファイルの接尾辞。null なら使わない
+    private String markerSuffix;
+    // 大きさと更新日時がこの時間（ミリ秒）変わらず、書き込み中でなさそうなら完了とみなす。0 以下ならみなさない
+    private long stableTime;
+    // 間引き。null なら間引かない
+    private Decimator decimator;
+    // 時計
+    private Clock clock = Clock.SYSTEM;
+    // イベントの出どころ。null なら run で監視ディレクトリを監視する
+    private EventSource eventSource;
+    // 以下、this で排他する
+    // 動作中のイベントの出どころ
+    private EventSource activeSource;
+    private boolean closed;
+
+    // 以下、run の中だけで使う
+    // 最近消えたパスと日時。名前変更の元を探すため
+    private final Map<Path, Long> recentDeletes = new HashMap<>();
+    // 大きさと更新日時を調べた結果。大きさ、更新日時、調べた日時
+    private final Map<Path, long[]> probes = new HashMap<>();
+
     /**
      * 作成する
      * @param target 監視するディレクトリ
@@ -68,60 +109,197 @@ final class DelayedWatcher implements Runnable {
         this.history = new History();
     }
 
+    /**
+     * 生のイベントを記録させる。
+     * run の前に呼ぶこと
+     * @param traceWriter 記録先。null なら記録しない
+     */
+    void setTraceWriter(final WatchTrace.Writer traceWriter) {
+        this.traceWriter = traceWriter;
+    }
+
+    /**
+     * 報告するパスを絞り込ませる。
+     * 猶予期間を待つ前に、検知したときに絞り込むので、対象外のパスは溜めない。
+     * run の前に呼ぶこと
+     * @param filter 監視ディレクトリからの相対パスを受け取り、報告するなら true を返す関数。null なら絞り込まない
+     */
+    void setFilter(final Predicate<Path> filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * 書き込み完了の合図を受け取ったファイルを猶予期間を待たずに報告させる。
+     * 合図が無いファイルは今まで通り猶予期間を待ってから報告する。
+     * run の前に呼ぶこと
+     * @param rename foo.jpg.part や .foo.jpg.XXXXXX から foo.jpg への名前変更を合図にするなら true
+     * @param markerSuffix 印ファイルの接尾辞。例えば .done なら foo.done か foo.jpg.done ができたら foo.jpg を報告する。
+     *            印ファイル自体は報告しない。null なら使わない
+     * @param stableTime 最後のイベントから大きさと更新日時がこの時間（ミリ秒）変わらず、
+     *            書き込み中のロックも無ければ完了とみなす。0 以下ならみなさない
+     */
+    void setCompletionSignals(final boolean rename, final String markerSuffix, final long stableTime) {
+        this.renameSignal = rename;
+        this.markerSuffix = (markerSuffix == null || markerSuffix.isEmpty() ? null : markerSuffix);
+        this.stableTime = stableTime;
+    }
+
+    /**
+     * 報告するファイルを間引かせる。
+     * 最後のイベントの日時で選ぶので、まとめて報告するときも等間隔に選ぶ。
+     * latestOnly はその後に効く。
+     * run の前に呼ぶこと
+     * @param decimator 間引き。null なら間引かない
+     */
+    void setDecimator(final Decimator decimator) {
+        this.decimator = decimator;
+    }
+
+    /**
+     * 時計を差し替える。
+     * run の前に呼ぶこと
+     * @param clock 時計
+     */
+    void setClock(final Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * イベントの出どころを差し替える。
+     * 出どころがもうイベントが来ないと返したら run を終える。
+     * 書き込み完了の合図や記録はファイルの有無や大きさを調べるので、本物のファイルが無ければ働かない。
+     * run の前に呼ぶこと
+     * @param eventSource イベントの出どころ。null なら監視ディレクトリを監視する
+     */
+    void setEventSource(final EventSource eventSource) {
+        this.eventSource = eventSource;
+    }
+
+    /**
+     * 書き込み中の一時ファイルらしい名前か調べる
+     * @param name ファイル名
+     * @return 一時ファイルらしいなら true
+     */
+    static boolean isTemporary(final String name) {
+        return TEMPORARY_NAME.matcher(name).matches();
+    }
+
     @Override
     public void run() {
-        try (final WatchService watcher = FileSystems.getDefault().newWatchService()) {
-            this.target.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
-
+        // 名前変更は元の名前の削除と新しい名前の作成として届く
+        try (final EventSource source = (this.eventSource != null ? this.eventSource : new WatchServiceEventSource(this.target, this.renameSignal))) {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.activeSource = source;
+            }
             while (true) {
                 final long waitTime;
                 if (this.history.isEmpty()) {
                     waitTime = Long.MAX_VALUE;
+                } else if (this.stableTime > 0) {
+                    // 書き込みが終わったか調べに起きる
+                    waitTime = Math.min(this.history.getOldestDate() + this.delay - this.clock.currentTimeMillis(), this.stableTime);
                 } else {
-                    waitTime = this.history.getOldestDate() + this.delay - System.currentTimeMillis();
+                    waitTime = this.history.getOldestDate() + this.delay - this.clock.currentTimeMillis();
                 }
 
-                final WatchKey key;
+                final List<EventSource.Event> events;
                 try {
-                    key = watcher.poll(waitTime, TimeUnit.MILLISECONDS);
+                    events = source.poll(waitTime);
                 } catch (final InterruptedException e) {
                     // 終了
                     break;
                 }
+                if (events == null) {
+                    // もうイベントが来ない
+                    break;
+                }
+
+                final long current = this.clock.currentTimeMillis();
 
-                final long current = System.currentTimeMillis();
+                // 完了の合図があったもの
+                final Set<Path> completed = new LinkedHashSet<>();
 
                 // できたてほやほやのイベントを登録
-                if (key != null) {
+                if (!events.isEmpty()) {
 
                     final Set<Path> names = new HashSet<>();
-                    for (final WatchEvent<?> event : key.pollEvents()) {
-                        final WatchEvent.Kind<?> kind = event.kind();
+                    final List<Path> created = new ArrayList<>();
+                    final List<Path> markers = new ArrayList<>();
+                    for (final EventSource.Event event : events) {
+                        final WatchTrace.Kind kind = event.getKind();
+                        final Path name = event.getName();
 
-                        if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        if (kind == WatchTrace.Kind.OVERFLOW) {
                             LOG.info("Event overflowed");
+                            record(WatchTrace.Kind.OVERFLOW, null, current);
                             continue;
                         }
 
-                        final Object context = event.context();
-                        if (!(context instanceof Path)) {
-                            LOG.warning("Not path");
+                        record(kind, name, current);
+                        if (kind == WatchTrace.Kind.DELETE) {
+                            if (this.renameSignal) {
+                                this.recentDeletes.put(name, current);
+                                this.probes.remove(name);
+                            }
                             continue;
                         }
-
-                        names.add((Path) context);
-                    }
-                    if (!key.reset()) {
-                        throw new RuntimeException("Reset error");
+                        if (this.markerSuffix != null && name.toString().endsWith(this.markerSuffix)) {
+                            markers.add(name);
+                            continue;
+                        }
+                        if (this.filter != null && !this.filter.test(name)) {
+                            continue;
+                        }
+                        names.add(name);
+                        if (kind == WatchTrace.Kind.CREATE) {
+                            created.add(name);
+                        }
                     }
+                    flushTrace();
 
                     for (final Path name : names) {
                         this.history.add(name, current);
                     }
+
+                    if (this.renameSignal) {
+                        for (final Path name : created) {
+                            if (isRenamed(name)) {
+                                completed.add(name);
+                            }
+                        }
+                    }
+                    for (final Path marker : markers) {
+                        completed.addAll(getMarked(marker));
+                    }
+                }
+                if (this.stableTime > 0) {
+                    completed.addAll(getStables(current));
+                }
+                if (!this.recentDeletes.isEmpty()) {
+                    this.recentDeletes.values().removeIf(date -> date < current - this.delay);
                 }
 
-                // 時期の来たイベントを処理
-                final List<Path> names = this.history.popOlders(current - this.delay);
+                // 完了の合図があったものと時期の来たイベントを処理
+                for (final Path name : completed) {
+                    this.history.remove(name);
+                }
+                final List<Path> names = new ArrayList<>(completed);
+                final List<Long> dates = new ArrayList<>(Collections.nCopies(completed.size(), current));
+                for (final Pair<Long, Path> entry : this.history.popOlders(current - this.delay)) {
+                    dates.add(entry.getFirst());
+                    names.add(entry.getSecond());
+                }
+                if (this.decimator != null) {
+                    decimate(names, dates);
+                }
+                if (!this.probes.isEmpty()) {
+                    for (final Path name : names) {
+                        this.probes.remove(name);
+                    }
+                }
                 if (this.latestOnly && !names.isEmpty()) {
                     final Path latest = names.get(names.size() - 1);
                     names.clear();
@@ -129,9 +307,14 @@ final class DelayedWatcher implements Runnable {
                 }
                 for (final Path name : names) {
                     final Path path = this.target.resolve(name);
-                    LOG.fine("Call callback for " + path);
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Call callback for " + path);
+                    }
                     try {
                         this.callback.call(path);
+                    } catch (final InterruptedException e) {
+                        // 終了
+                        return;
                     } catch (final Exception e) {
                         LOG.warning("Callback failed: " + e);
                         LOG.finest(StackTraces.getString(e));
@@ -143,6 +326,181 @@ final class DelayedWatcher implements Runnable {
         }
     }
 
+    /**
+     * 監視を止める。
+     * 別のスレッドから呼んで、イベントを待っている run を終わらせる
+     */
+    void close() {
+        final EventSource source;
+        synchronized (this) {
+            this.closed = true;
+            source = this.activeSource;
+        }
+        if (source == null) {
+            return;
+        }
+        try {
+            source.close();
+        } catch (final IOException e) {
+            LOG.warning("Cannot close " + source + ": " + e);
+        }
+    }
+
+    /**
+     * 間引く
+     * @param names 報告するパス。間引いたものを除く
+     * @param dates 最後のイベントの日時
+     */
+    private void decimate(final List<Path> names, final List<Long> dates) {
+        final Iterator<Path> nameIterator = names.iterator();
+        for (final Long date : dates) {
+            final Path name = nameIterator.next();
+            if (!this.decimator.accept(name.getFileName().toString(), date)) {
+                nameIterator.remove();
+                this.decimator.drop(this.target.resolve(name));
+            }
+        }
+    }
+
+    /**
+     * 一時ファイルからの名前変更でできたか調べる。
+     * 一時ファイルは同じディレクトリの foo.jpg.* か .foo.jpg.* に限る。
+     * foo.png の削除と foo.jpg の作成のように、名前が似ているだけの別のファイルは合図にしない
+     * @param name 作成されたパス
+     * @return 名前変更でできたなら true
+     */
+    private boolean isRenamed(final Path name) {
+        final Path parent = name.getParent();
+        final String newName = name.getFileName().toString();
+        for (final Iterator<Path> iterator = this.recentDeletes.keySet().iterator(); iterator.hasNext();) {
+            final Path deleted = iterator.next();
+            // foo.jpg.part, .foo.jpg.XXXXXX など
+            final String deletedName = deleted.getFileName().toString();
+            if (Objects.equals(deleted.getParent(), parent) && (deletedName.startsWith(newName + ".") || deletedName.startsWith("." + newName + "."))
+                    && Files.isRegularFile(this.target.resolve(name))) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 印ファイルが示す報告待ちのパスを返す
+     * @param marker 印ファイル
+     * @return 印ファイルが示す報告待ちのパス
+     */
+    private List<Path> getMarked(final Path marker) {
+        final String markerName = marker.toString();
+        final String stem = markerName.substring(0, markerName.length() - this.markerSuffix.length());
+        final List<Path> marked = new ArrayList<>();
+        if (stem.isEmpty()) {
+            return marked;
+        }
+        for (final Path name : this.history.getPaths()) {
+            // foo.jpg.done でも foo.done でもよい
+            if (name.toString().equals(stem) || FilenameUtils.removeExtension(name.toString()).equals(stem)) {
+                marked.add(name);
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * 書き込みが終わったとみなせる報告待ちのパスを返す。
+     * 最後のイベントから stableTime 経ったら大きさと更新日時を調べ、
+     * さらに stableTime 経っても変わらず、ロックも取れれば終わったとみなす
+     * @param current 現在日時
+     * @return 書き込みが終わったとみなせるパス
+     */
+    private List<Path> getStables(final long current) {
+        final List<Path> stables = new ArrayList<>();
+        for (final Path name : this.history.getPaths()) {
+            final long lastDate = this.history.getDate(name);
+            if (current - lastDate < this.stableTime) {
+                continue;
+            }
+            final Path path = this.target.resolve(name);
+            final long size;
+            final long modified;
+            try {
+                size = Files.size(path);
+                modified = Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis();
+            } catch (final IOException e) {
+                // もう無い。猶予期間を待つ
+                continue;
+            }
+            final long[] probe = this.probes.get(name);
+            if (probe == null || probe[2] < lastDate || probe[0] != size || probe[1] != modified) {
+                this.probes.put(name, new long[] { size, modified, current });
+            } else if (current - probe[2] >= this.stableTime && !isLocked(path)) {
+                stables.add(name);
+            }
+        }
+        return stables;
+    }
+
+    /**
+     * 他から書き込み用にロックされているか調べる。
+     * 書き込み中のファイルを開けない環境やロックを使う書き手向け
+     * @param path パス
+     * @return ロックされていそうなら true
+     */
+    private static boolean isLocked(final Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (final IOException e) {
+            // 書き込めるはずなのに開けないなら、他が書き込み用に開いている
+            return Files.isWritable(path);
+        } catch (final RuntimeException e) {
+            // 同じ JVM がロックしている
+            return true;
+        }
+    }
+
+    /**
+     * 生のイベントを記録する
+     * @param kind 種類
+     * @param name 監視ディレクトリからの相対パス
+     * @param date 日時
+     */
+    private void record(final WatchTrace.Kind kind, final Path name, final long date) {
+        if (this.traceWriter == null) {
+            return;
+        }
+        long size = -1;
+        if (name != null) {
+            try {
+                size = Files.size(this.target.resolve(name));
+            } catch (final IOException e) {
+                // もう無い
+            }
+        }
+        try {
+            this.traceWriter.write(new WatchTrace.Event(kind, (name == null ? "" : name.toString()), date, size));
+        } catch (final IOException e) {
+            LOG.warning("Stop recording events: " + e);
+            this.traceWriter = null;
+        }
+    }
+
+    private void flushTrace() {
+        if (this.traceWriter == null) {
+            return;
+        }
+        try {
+            this.traceWriter.flush();
+        } catch (final IOException e) {
+            LOG.warning("Stop recording events: " + e);
+            this.traceWriter = null;
+        }
+    }
+
     private static class History {
 
         private final PriorityQueue<Pair<Long, Path>> dateToPathQueue;
@@ -185,23 +543,24 @@ final class DelayedWatcher implements Runnable {
         }
 
         /**
-         * より古いパスを返す
+         * 基準日時までのパスを返す。
+         * 基準日時ちょうどのものも返すので、ちょうど起きたときに空回りしない
          * @param date 基準日時
-         * @return 基準日時より古いパス
+         * @return 基準日時以前のパスと最後のイベントの日時。古い順
          */
-        public List<Path> popOlders(final long date) {
-            final List<Path> paths = new ArrayList<>();
+        public List<Pair<Long, Path>> popOlders(final long date) {
+            final List<Pair<Long, Path>> paths = new ArrayList<>();
             while (true) {
                 trim();
                 final Pair<Long, Path> oldest = this.dateToPathQueue.peek();
                 if (oldest == null) {
                     break;
-                } else if (oldest.getFirst() >= date) {
+                } else if (oldest.getFirst() > date) {
                     break;
                 }
                 this.dateToPathQueue.poll();
                 this.pathToLastDate.remove(oldest.getSecond());
-                paths.add(oldest.getSecond());
+                paths.add(oldest);
             }
             return paths;
         }
@@ -218,6 +577,29 @@ final class DelayedWatcher implements Runnable {
             this.pathToLastDate.put(path, date);
         }
 
+        /**
+         * パスを除く
+         * @param path パス
+         */
+        public void remove(final Path path) {
+            this.pathToLastDate.remove(path);
+        }
+
+        /**
+         * @return 報告待ちのパス
+         */
+        public List<Path> getPaths() {
+            return new ArrayList<>(this.pathToLastDate.keySet());
+        }
+
+        /**
+         * @param path パス
+         * @return 最後のイベントの日時
+         */
+        public long getDate(final Path path) {
+            return this.pathToLastDate.get(path);
+        }
+
         /**
          * 紐付かないエントリを消す
          */
@@ -0,0 +1,141 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * 差分アップロードで送られた差分を元の内容に当てる。
+ * サーバー側で使う
+ */
+public final class DeltaPatcher {
+
+    private DeltaPatcher() {
+    }
+
+    /**
+     * 差分を当てる
+     * @param base 前回の内容
+     * @param delta 差分
+     * @param output 今回の内容の書き出し先
+     * @throws IOException 読み書きエラーか、前回の内容や今回の内容が差分と合わない
+     */
+    public static void patch(final Path base, final InputStream delta, final OutputStream output) throws IOException {
+        final DataInputStream input = new DataInputStream(delta);
+        if (input.readInt() != DeltaSync.MAGIC) {
+            throw new IOException("Not delta");
+        }
+        final int version = input.readUnsignedByte();
+        if (version != DeltaSync.VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        final long blockSize = DeltaSync.readVarLong(input);
+        final long baseLength = DeltaSync.readVarLong(input);
+        final byte[] baseDigest = new byte[DeltaSync.DIGEST_SIZE];
+        input.readFully(baseDigest);
+
+        try (FileChannel channel = FileChannel.open(base)) {
+            if (channel.size() != baseLength || !Arrays.equals(baseDigest, digest(channel))) {
+                throw new IOException("Base " + base + " differs from delta base");
+            }
+
+            final MessageDigest digest = DeltaSync.newDigest("SHA-256");
+            final byte[] buff = new byte[DirectoryUploader.BUFFER_SIZE];
+            while (true) {
+                final int op = input.readUnsignedByte();
+                if (op == DeltaSync.OP_END) {
+                    break;
+                } else if (op == DeltaSync.OP_COPY) {
+                    final long position = DeltaSync.readVarLong(input) * blockSize;
+                    final long length = Math.min(DeltaSync.readVarLong(input) * blockSize, baseLength - position);
+                    if (position < 0 || length < 0) {
+                        throw new IOException("Invalid copy at " + position);
+                    }
+                    for (long done = 0; done < length;) {
+                        final ByteBuffer buffer = ByteBuffer.wrap(buff, 0, (int) Math.min(buff.length, length - done));
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, position + done + buffer.position()) < 0) {
+                                throw new IOException("Base " + base + " is too short");
+                            }
+                        }
+                        digest.update(buff, 0, buffer.position());
+                        output.write(buff, 0, buffer.position());
+                        done += buffer.position();
+                    }
+                } else if (op == DeltaSync.OP_DATA) {
+                    long rest = DeltaSync.readVarLong(input);
+                    while (rest > 0) {
+                        final int length = (int) Math.min(buff.length, rest);
+                        input.readFully(buff, 0, length);
+                        digest.update(buff, 0, length);
+                        output.write(buff, 0, length);
+                        rest -= length;
+                    }
+                } else {
+                    throw new IOException("Unknown operation " + op);
+                }
+            }
+
+            final byte[] targetDigest = new byte[DeltaSync.DIGEST_SIZE];
+            input.readFully(targetDigest);
+            if (!Arrays.equals(targetDigest, digest.digest())) {
+                throw new IOException("Patched content differs from sender's");
+            }
+        }
+    }
+
+    private static byte[] digest(final FileChannel channel) throws IOException {
+        final MessageDigest digest = DeltaSync.newDigest("SHA-256");
+        final ByteBuffer buffer = ByteBuffer.allocate(DirectoryUploader.BUFFER_SIZE);
+        for (long position = 0; channel.read(buffer, position) >= 0;) {
+            buffer.flip();
+            position += buffer.remaining();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * 差分を当てたファイルを作る
+     * @param args 前回の内容のファイル、差分のファイル、書き出すファイル
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: " + DeltaPatcher.class.getName() + " BASE DELTA OUTPUT");
+            System.exit(1);
+        }
+        try (InputStream delta = new BufferedInputStream(Files.newInputStream(Paths.get(args[1])));
+                OutputStream output = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[2])))) {
+            patch(Paths.get(args[0]), delta, output);
+        }
+    }
+
+}
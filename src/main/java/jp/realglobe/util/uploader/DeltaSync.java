@@ -0,0 +1,814 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * rsync と同じ方法で、前回アップロードした内容との差分を作る。
+ * 前回の内容はブロックごとの弱いハッシュ値（転がせる）と強いハッシュ値だけを保管庫に残す。
+ * 保管庫が膨らみ続けないよう、小さなファイルのものは残さず、
+ * 長く使われなかったものや数が上限を超えた分は古い方から消す。
+ * 差分は、先頭に識別子と版、ブロックの大きさ、元の大きさ、元の SHA-256、
+ * 以降は 元のブロックの写し（開始ブロック番号、ブロック数）か新しいデータ（長さ、中身）を並べ、
+ * 最後に終わりの印と、できあがりの SHA-256 を置く。
+ * 数値は 7 ビットずつの可変長。
+ * 差分の適用は DeltaPatcher で行う
+ */
+final class DeltaSync {
+
+    private static final Logger LOG = Logger.getLogger(DeltaSync.class.getName());
+
+    static final String CONTENT_TYPE = "application/x-rgdelta";
+
+    static final int MAGIC = 0x5247444c; // "RGDL"
+    static final int VERSION = 1;
+    static final int OP_END = 0;
+    static final int OP_COPY = 1;
+    static final int OP_DATA = 2;
+    static final int DIGEST_SIZE = 32;
+
+    private static final String STORE_KEY_PREFIX = "delta-";
+    // 残しているハッシュ値のキーと最後に使った日時の一覧のキー
+    private static final String STORE_KEY_INDEX = STORE_KEY_PREFIX + "index";
+
+    // これより小さなファイルのハッシュ値は残さない
+    static final long MIN_LENGTH = 64 * 1024;
+    // 残すハッシュ値の数の上限
+    private static final int MAX_ENTRIES = 1024;
+    // これより長く使われなかったハッシュ値は消す
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
+    private static final int MIN_BLOCK_SIZE = 4096;
+    // ブロック数がこれを超えないようにブロックを大きくする
+    private static final int MAX_BLOCKS = 16384;
+    // 新しいデータがこの割合を超えたら差分を送らない
+    private static final double MAX_LITERAL_RATIO = 0.5;
+    // 1 つの新しいデータの最大長
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private final Store store;
+    private final int maxEntries;
+    private final long maxAge;
+
+    // 残しているハッシュ値のキーと最後に使った日時（ミリ秒）。this で排他する。null なら未読み込み
+    private Map<String, Long> index;
+
+    /**
+     * 作成する
+     * @param store 前回の内容のハッシュ値の保管庫
+     */
+    DeltaSync(final Store store) {
+        this(store, MAX_ENTRIES, MAX_AGE);
+    }
+
+    /**
+     * 作成する
+     * @param store 前回の内容のハッシュ値の保管庫
+     * @param maxEntries 残すハッシュ値の数の上限
+     * @param maxAge これより長く（ミリ秒）使われなかったハッシュ値は消す
+     */
+    DeltaSync(final Store store, final int maxEntries, final long maxAge) {
+        this.store = store;
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param length ファイルの大きさ
+     * @return 差分を送る対象になる大きさなら true
+     */
+    static boolean isTarget(final long length) {
+        return length >= MIN_LENGTH;
+    }
+
+    /**
+     * ファイルの大きさに合ったブロックの大きさを返す
+     * @param length ファイルの大きさ
+     * @return ブロックの大きさ
+     */
+    static int blockSize(final long length) {
+        long size = MIN_BLOCK_SIZE;
+        while (size * MAX_BLOCKS < length && size < (1 << 30)) {
+            size *= 2;
+        }
+        return (int) size;
+    }
+
+    /**
+     * 前回の内容のハッシュ値を取り出す
+     * @param path ファイルパス
+     * @return 前回の内容のハッシュ値。無ければ null
+     */
+    Signature load(final Path path) {
+        try {
+            final String value = this.store.load(toKey(path));
+            return (value == null ? null : Signature.decode(value));
+        } catch (final Exception e) {
+            LOG.warning("Cannot load signature of " + path + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * 今回の内容のハッシュ値を保存する
+     * @param path ファイルパス
+     * @param signature ハッシュ値
+     */
+    void save(final Path path, final Signature signature) {
+        if (!isTarget(signature.getLength())) {
+            forget(path);
+            return;
+        }
+        final String key = toKey(path);
+        try {
+            this.store.store(key, signature.encode());
+            touch(key);
+        } catch (final Exception e) {
+            LOG.warning("Cannot save signature of " + path + ": " + e);
+        }
+    }
+
+    /**
+     * 前回の内容のハッシュ値を残していれば消す
+     * @param path ファイルパス
+     */
+    void forget(final Path path) {
+        final String key = toKey(path);
+        try {
+            synchronized (this) {
+                if (loadIndex().remove(key) == null) {
+                    return;
+                }
+                this.store.clear(key);
+                saveIndex();
+            }
+        } catch (final Exception e) {
+            LOG.warning("Cannot forget signature of " + path + ": " + e);
+        }
+    }
+
+    /**
+     * ハッシュ値を使ったことを記録し、古いものや上限を超えた分を消す
+     * @param key 使ったハッシュ値のキー
+     * @throws Exception 保管庫のエラー
+     */
+    private synchronized void touch(final String key) throws Exception {
+        final Map<String, Long> index1 = loadIndex();
+        final long now = System.currentTimeMillis();
+        final Long last = index1.put(key, now);
+        // 使った日時の更新だけなら、ときどきしか書き込まない
+        boolean changed = (last == null || now - last > this.maxAge / 30);
+
+        final List<Map.Entry<String, Long>> entries = new ArrayList<>(index1.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        final int excess = entries.size() - this.maxEntries;
+        for (int i = 0; i < entries.size(); i++) {
+            final Map.Entry<String, Long> entry = entries.get(i);
+            if (i >= excess && now - entry.getValue() <= this.maxAge) {
+                break;
+            }
+            this.store.clear(entry.getKey());
+            index1.remove(entry.getKey());
+            changed = true;
+        }
+        if (changed) {
+            saveIndex();
+        }
+    }
+
+    private Map<String, Long> loadIndex() throws Exception {
+        if (this.index == null) {
+            this.index = new HashMap<>();
+            final String value = this.store.load(STORE_KEY_INDEX);
+            if (value != null) {
+                try {
+                    final JSONObject object = new JSONObject(value);
+                    for (final Iterator<String> iterator = object.keys(); iterator.hasNext();) {
+                        final String key = iterator.next();
+                        this.index.put(key, object.getLong(key));
+                    }
+                } catch (final JSONException e) {
+                    LOG.warning("Ignore broken signature index: " + e);
+                }
+            }
+        }
+        return this.index;
+    }
+
+    private void saveIndex() throws Exception {
+        this.store.store(STORE_KEY_INDEX, (new JSONObject(this.index)).toString());
+    }
+
+    private static String toKey(final Path path) {
+        // ファイル名にもできるキーにする
+        return STORE_KEY_PREFIX + Utils.toHex(newDigest("SHA-1").digest(path.toString().getBytes(Constants.UTF8)));
+    }
+
+    static MessageDigest newDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (final NoSuchAlgorithmException e) {
+            // 必ずある
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 弱いハッシュ値を計算する
+     * @param a 値の和
+     * @param s 値の和の和
+     * @return 弱いハッシュ値
+     */
+    private static int weak(final int a, final int s) {
+        return (s << 16) | (a & 0xffff);
+    }
+
+    private static long strong(final MessageDigest md5, final byte[] b, final int off, final int len) {
+        md5.update(b, off, len);
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+
+    /**
+     * ある内容のブロックごとのハッシュ値
+     */
+    static final class Signature {
+
+        private final int blockSize;
+        private final long length;
+        private final byte[] digest;
+        private final int[] weaks;
+        private final long[] strongs;
+
+        Signature(final int blockSize, final long length, final byte[] digest, final int[] weaks, final long[] strongs) {
+            this.blockSize = blockSize;
+            this.length = length;
+            this.digest = digest;
+            this.weaks = weaks;
+            this.strongs = strongs;
+        }
+
+        int getBlockSize() {
+            return this.blockSize;
+        }
+
+        long getLength() {
+            return this.length;
+        }
+
+        /**
+         * @return 内容全体の SHA-256
+         */
+        byte[] getDigest() {
+            return this.digest;
+        }
+
+        String encode() {
+            final ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + DIGEST_SIZE + 4 + this.weaks.length * (4 + 8));
+            buffer.putInt(this.blockSize).putLong(this.length).put(this.digest).putInt(this.weaks.length);
+            for (int i = 0; i < this.weaks.length; i++) {
+                buffer.putInt(this.weaks[i]).putLong(this.strongs[i]);
+            }
+            return Base64.getEncoder().encodeToString(buffer.array());
+        }
+
+        static Signature decode(final String value) {
+            final ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(value));
+            final int blockSize = buffer.getInt();
+            final long length = buffer.getLong();
+            final byte[] digest = new byte[DIGEST_SIZE];
+            buffer.get(digest);
+            final int count = buffer.getInt();
+            final int[] weaks = new int[count];
+            final long[] strongs = new long[count];
+            for (int i = 0; i < count; i++) {
+                weaks[i] = buffer.getInt();
+                strongs[i] = buffer.getLong();
+            }
+            return new Signature(blockSize, length, digest, weaks, strongs);
+        }
+
+    }
+
+    /**
+     * 書き込まれた内容のハッシュ値を計算する
+     */
+    static final class SignatureBuilder extends OutputStream {
+
+        private final int blockSize;
+        private final byte[] block;
+        private final MessageDigest sha256;
+        private final MessageDigest md5;
+
+        private int fill;
+        private long length;
+        private int[] weaks;
+        private long[] strongs;
+        private int count;
+
+        /**
+         * @param blockSize ブロックの大きさ
+         */
+        SignatureBuilder(final int blockSize) {
+            this.blockSize = blockSize;
+            this.block = new byte[blockSize];
+            this.sha256 = newDigest("SHA-256");
+            this.md5 = newDigest("MD5");
+            reset();
+        }
+
+        /**
+         * 最初から計算し直す
+         */
+        void reset() {
+            this.sha256.reset();
+            this.fill = 0;
+            this.length = 0;
+            this.weaks = new int[16];
+            this.strongs = new long[16];
+            this.count = 0;
+        }
+
+        @Override
+        public void write(final int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            this.sha256.update(b, off, len);
+            this.length += len;
+            int offset = off;
+            final int end = off + len;
+            while (offset < end) {
+                final int length1 = Math.min(end - offset, this.blockSize - this.fill);
+                System.arraycopy(b, offset, this.block, this.fill, length1);
+                this.fill += length1;
+                offset += length1;
+                if (this.fill == this.blockSize) {
+                    addBlock();
+                }
+            }
+        }
+
+        private void addBlock() {
+            int a = 0;
+            int s = 0;
+            for (int i = 0; i < this.fill; i++) {
+                a += this.block[i] & 0xff;
+                s += a;
+            }
+            if (this.count == this.weaks.length) {
+                this.weaks = Arrays.copyOf(this.weaks, 2 * this.count);
+                this.strongs = Arrays.copyOf(this.strongs, 2 * this.count);
+            }
+            this.weaks[this.count] = weak(a, s);
+            this.strongs[this.count] = strong(this.md5, this.block, 0, this.fill);
+            this.count++;
+            this.fill = 0;
+        }
+
+        /**
+         * 計算を終える
+         * @return 書き込まれた内容のハッシュ値
+         */
+        Signature finish() {
+            if (this.fill > 0) {
+                addBlock();
+            }
+            return new Signature(this.blockSize, this.length, this.sha256.digest(), Arrays.copyOf(this.weaks, this.count), Arrays.copyOf(this.strongs, this.count));
+        }
+
+    }
+
+    /**
+     * 書き出しながらハッシュ値を計算するデータにする
+     * @param payload データ
+     * @param builder 計算先
+     * @return データ
+     */
+    static Payload teed(final Payload payload, final SignatureBuilder builder) {
+        return new Payload(payload.getName(), payload.getContentType()) {
+
+            @Override
+            public long getLength() {
+                return payload.getLength();
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return payload.isRepeatable();
+            }
+
+            @Override
+            Path getPath() {
+                return payload.getPath();
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return payload.openStream();
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws IOException {
+                // 送り直しに備える
+                builder.reset();
+                payload.writeTo(new FilterOutputStream(output) {
+
+                    @Override
+                    public void write(final int b) throws IOException {
+                        builder.write(b);
+                        this.out.write(b);
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) throws IOException {
+                        builder.write(b, off, len);
+                        this.out.write(b, off, len);
+                    }
+
+                });
+            }
+
+        };
+    }
+
+    /**
+     * 作った差分
+     */
+    static final class Delta implements Closeable {
+
+        private final Path file;
+        private final Signature signature;
+        private final Signature base;
+
+        Delta(final Path file, final Signature signature, final Signature base) {
+            this.file = file;
+            this.signature = signature;
+            this.base = base;
+        }
+
+        /**
+         * @return 今回の内容のハッシュ値
+         */
+        Signature getSignature() {
+            return this.signature;
+        }
+
+        /**
+         * @return 元にした内容の SHA-256
+         */
+        String getBaseDigest() {
+            return Utils.toHex(this.base.getDigest());
+        }
+
+        /**
+         * @param name 名前
+         * @return 差分のデータ
+         */
+        Payload toPayload(final String name) {
+            final Payload base1 = Payload.of(this.file);
+            return new Payload(name, CONTENT_TYPE) {
+
+                @Override
+                public long getLength() {
+                    return base1.getLength();
+                }
+
+                @Override
+                public InputStream openStream() throws IOException {
+                    return base1.openStream();
+                }
+
+                @Override
+                public void writeTo(final OutputStream output) throws IOException {
+                    base1.writeTo(output);
+                }
+
+            };
+        }
+
+        @Override
+        public void close() {
+            try {
+                Files.deleteIfExists(this.file);
+            } catch (final IOException e) {
+                LOG.warning("Cannot delete " + this.file + ": " + e);
+            }
+        }
+
+    }
+
+    /**
+     * 差分を作る
+     * @param payload 今回の内容
+     * @param base 前回の内容のハッシュ値
+     * @return 差分。変わった部分が多すぎて差分を送る意味が無ければ null
+     * @throws IOException 読み書きエラー
+     */
+    static Delta encode(final Payload payload, final Signature base) throws IOException {
+        final long length = payload.getLength();
+        if (length < 0) {
+            return null;
+        }
+        final Path file = Files.createTempFile("rgdelta", null);
+        boolean done = false;
+        try {
+            final Signature signature;
+            try (InputStream input = payload.openStream();
+                    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                signature = (new Encoder(input, output, base, new SignatureBuilder(blockSize(length)), (long) (MAX_LITERAL_RATIO * length))).encode();
+            }
+            if (signature == null) {
+                return null;
+            }
+            done = true;
+            return new Delta(file, signature, base);
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * 差分を作る処理
+     */
+    private static final class Encoder {
+
+        private final InputStream input;
+        private final DataOutputStream output;
+        private final Signature base;
+        private final SignatureBuilder next;
+        private final long maxLiteral;
+        private final MessageDigest md5;
+        // 弱いハッシュ値からブロック番号
+        private final Map<Integer, List<Integer>> index;
+
+        private final byte[] buff;
+        // 未出力の新しいデータの始まり
+        private int start;
+        // 見ているブロックの始まり
+        private int pos;
+        // 読み込んだ終わり
+        private int end;
+        private boolean eof;
+
+        private long literal;
+        private int copyStart;
+        private int copyCount;
+
+        Encoder(final InputStream input, final DataOutputStream output, final Signature base, final SignatureBuilder next, final long maxLiteral) {
+            this.input = input;
+            this.output = output;
+            this.base = base;
+            this.next = next;
+            this.maxLiteral = maxLiteral;
+            this.md5 = newDigest("MD5");
+
+            // 端数のブロックは最後にしか合わないので除く
+            final int fullBlocks = (int) (base.length / base.blockSize);
+            this.index = new HashMap<>();
+            for (int i = 0; i < fullBlocks; i++) {
+                this.index.computeIfAbsent(base.weaks[i], k -> new ArrayList<>(1)).add(i);
+            }
+            this.buff = new byte[MAX_LITERAL + 2 * base.blockSize];
+        }
+
+        /**
+         * @return 今回の内容のハッシュ値。差分を送る意味が無ければ null
+         * @throws IOException 読み書きエラー
+         */
+        Signature encode() throws IOException {
+            final int blockSize = this.base.blockSize;
+            this.output.writeInt(MAGIC);
+            this.output.writeByte(VERSION);
+            writeVarLong(this.output, blockSize);
+            writeVarLong(this.output, this.base.length);
+            this.output.write(this.base.digest);
+
+            int a = 0;
+            int s = 0;
+            boolean rolling = false;
+            while (true) {
+                if (this.pos - this.start >= MAX_LITERAL && !flushLiteral(this.pos)) {
+                    return null;
+                }
+
+                final byte out = (rolling ? this.buff[this.pos - 1] : 0);
+                if (!fill(blockSize)) {
+                    break;
+                }
+                if (rolling) {
+                    // 1 バイトずらす
+                    final int in = this.buff[this.pos + blockSize - 1] & 0xff;
+                    a += in - (out & 0xff);
+                    s += a - blockSize * (out & 0xff);
+                } else {
+                    a = 0;
+                    s = 0;
+                    for (int i = this.pos; i < this.pos + blockSize; i++) {
+                        a += this.buff[i] & 0xff;
+                        s += a;
+                    }
+                }
+
+                final int block = find(weak(a, s), this.pos, blockSize);
+                if (block >= 0) {
+                    if (!flushLiteral(this.pos)) {
+                        return null;
+                    }
+                    addCopy(block);
+                    this.pos += blockSize;
+                    this.start = this.pos;
+                    rolling = false;
+                } else {
+                    this.pos++;
+                    rolling = true;
+                }
+            }
+
+            // 端数は元の最後の端数のブロックと同じときだけ写す
+            final int rest = this.end - this.pos;
+            final int lastBlock = this.base.weaks.length - 1;
+            if (rest > 0 && lastBlock >= 0 && this.base.length % blockSize == rest && isLastBlock(lastBlock, this.pos, rest)) {
+                if (!flushLiteral(this.pos)) {
+                    return null;
+                }
+                addCopy(lastBlock);
+                this.start = this.end;
+            } else if (!flushLiteral(this.end)) {
+                return null;
+            }
+            flushCopy();
+            this.output.writeByte(OP_END);
+            final Signature signature = this.next.finish();
+            this.output.write(signature.getDigest());
+            return signature;
+        }
+
+        /**
+         * 見ているブロックの終わりまで読み込む
+         * @param blockSize ブロックの大きさ
+         * @return 1 ブロック分あれば true
+         * @throws IOException 読み込みエラー
+         */
+        private boolean fill(final int blockSize) throws IOException {
+            while (!this.eof && this.end - this.pos < blockSize) {
+                if (this.end == this.buff.length) {
+                    // 未出力の分を詰める
+                    System.arraycopy(this.buff, this.start, this.buff, 0, this.end - this.start);
+                    this.pos -= this.start;
+                    this.end -= this.start;
+                    this.start = 0;
+                }
+                final int length = this.input.read(this.buff, this.end, this.buff.length - this.end);
+                if (length < 0) {
+                    this.eof = true;
+                } else {
+                    this.next.write(this.buff, this.end, length);
+                    this.end += length;
+                }
+            }
+            return this.end - this.pos >= blockSize;
+        }
+
+        private int find(final int weak, final int off, final int len) {
+            final List<Integer> candidates = this.index.get(weak);
+            if (candidates == null) {
+                return -1;
+            }
+            final long strong = strong(this.md5, this.buff, off, len);
+            // 続きのブロックを優先してまとめられるようにする
+            final int following = this.copyStart + this.copyCount;
+            if (this.copyCount > 0 && following < this.base.strongs.length && this.base.weaks[following] == weak && this.base.strongs[following] == strong) {
+                return following;
+            }
+            for (final int candidate : candidates) {
+                if (this.base.strongs[candidate] == strong) {
+                    return candidate;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isLastBlock(final int block, final int off, final int len) {
+            int a = 0;
+            int s = 0;
+            for (int i = off; i < off + len; i++) {
+                a += this.buff[i] & 0xff;
+                s += a;
+            }
+            return this.base.weaks[block] == weak(a, s) && this.base.strongs[block] == strong(this.md5, this.buff, off, len);
+        }
+
+        private void addCopy(final int block) throws IOException {
+            if (this.copyCount > 0 && this.copyStart + this.copyCount == block) {
+                this.copyCount++;
+                return;
+            }
+            flushCopy();
+            this.copyStart = block;
+            this.copyCount = 1;
+        }
+
+        private void flushCopy() throws IOException {
+            if (this.copyCount == 0) {
+                return;
+            }
+            this.output.writeByte(OP_COPY);
+            writeVarLong(this.output, this.copyStart);
+            writeVarLong(this.output, this.copyCount);
+            this.copyCount = 0;
+        }
+
+        /**
+         * 未出力の新しいデータを書き出す
+         * @param to 書き出す終わり
+         * @return 新しいデータが多すぎなければ true
+         * @throws IOException 書き込みエラー
+         */
+        private boolean flushLiteral(final int to) throws IOException {
+            final int length = to - this.start;
+            if (length <= 0) {
+                return true;
+            }
+            this.literal += length;
+            if (this.literal > this.maxLiteral) {
+                return false;
+            }
+            flushCopy();
+            this.output.writeByte(OP_DATA);
+            writeVarLong(this.output, length);
+            this.output.write(this.buff, this.start, length);
+            this.start = to;
+            return true;
+        }
+
+    }
+
+    static void writeVarLong(final DataOutputStream output, final long value) throws IOException {
+        long rest = value;
+        while ((rest & ~0x7fL) != 0) {
+            output.writeByte((int) (rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        output.writeByte((int) rest);
+    }
+
+    static long readVarLong(final DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = input.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Too long number");
+    }
+
+}
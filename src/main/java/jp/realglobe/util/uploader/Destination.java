@@ -0,0 +1,170 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.logging.Logger;
+
+/**
+ * 元の送り先とは別の送り先。
+ * 認証トークンと、その取得のやり直しの状態を送り先ごとに持つ
+ */
+final class Destination {
+
+    private static final Logger LOG = Logger.getLogger(Destination.class.getName());
+
+    // 1 つのデータを送る回数の上限
+    static final int SEND_ATTEMPTS = 3;
+    // 送信に失敗してから送り直すまでの最短の時間（ミリ秒）
+    private static final long SEND_RETRY_MIN = 250L;
+    // 送り直すまでにこれより長く待つことになるなら送り直さない
+    private static final long SEND_RETRY_MAX = 1_000L;
+
+    // 認証トークンを取得するための URL。認証トークンが決まっているなら null
+    private final URI tokenUrl;
+    // データを投稿するための URL
+    private final URI uploadUrl;
+    // 運用データの保管庫
+    private final Store store;
+    private final String userId;
+    private final String id;
+    private final String name;
+
+    // 以下、this で排他する
+    // 使用中の認証トークン。取得前は null
+    private String activeToken;
+    // 次に認証トークンの取得を試せる日時（ミリ秒）
+    private long retryAt;
+    // 認証トークンの取得に失敗したとき、次に試すまでの時間（ミリ秒）
+    private long retryWait = DirectoryUploader.TOKEN_RETRY_MIN;
+    // 続けて送信に失敗した回数
+    private int sendFailures;
+    // 送り方。DirectoryUploader が start で作る
+    private volatile Transport transport;
+
+    /**
+     * 認証トークンを取得する送り先を作成する
+     * @param urlBase 送り先サーバーの URL
+     * @param userId 紐付くユーザーの ID
+     * @param name 表示名
+     * @param store この送り先用の運用データの保管庫
+     * @throws Exception データ読み書きエラー
+     */
+    Destination(final String urlBase, final String userId, final String name, final Store store) throws Exception {
+        this.userId = userId;
+        this.id = DirectoryUploader.getId(store);
+        this.name = name;
+        this.tokenUrl = (new URL(urlBase + Constants.URL_PATH_TOKEN)).toURI();
+        this.uploadUrl = (new URL(urlBase + Constants.URL_PATH_UPLOAD_PREFIX + "/" + this.id + Constants.URL_PATH_UPLOAD_SUFFIX)).toURI();
+        this.store = store;
+    }
+
+    /**
+     * 認証トークンが決まっている送り先を作成する
+     * @param urlBase 送り先サーバーの URL
+     * @param id この送り先での ID
+     * @param token 認証トークン
+     * @throws URISyntaxException URL がおかしい
+     * @throws MalformedURLException URL があやしい
+     */
+    Destination(final String urlBase, final String id, final String token) throws MalformedURLException, URISyntaxException {
+        this.userId = null;
+        this.id = id;
+        this.name = null;
+        this.tokenUrl = null;
+        this.uploadUrl = (new URL(urlBase + Constants.URL_PATH_UPLOAD_PREFIX + "/" + this.id + Constants.URL_PATH_UPLOAD_SUFFIX)).toURI();
+        this.store = null;
+        this.activeToken = token;
+    }
+
+    /**
+     * @return データを投稿するための URL
+     */
+    URI getUploadUrl() {
+        return this.uploadUrl;
+    }
+
+    /**
+     * @return 送り方
+     */
+    Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * @param transport 送り方
+     */
+    void setTransport(final Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * 認証トークンを返す。
+     * 無ければ取得する。
+     * 取得に失敗したら、しばらくは取得を試さずに失敗する
+     * @return 認証トークン
+     * @throws Exception 取得できなかった
+     */
+    synchronized String getToken() throws Exception {
+        if (this.activeToken != null) {
+            return this.activeToken;
+        }
+        final long now = System.currentTimeMillis();
+        if (now < this.retryAt) {
+            throw new IOException("Wait " + (this.retryAt - now) + " ms to retry getting token from " + this.tokenUrl);
+        }
+        try {
+            this.activeToken = DirectoryUploader.getToken(this.store, this.tokenUrl, this.userId, this.id, this.name);
+        } catch (final Exception e) {
+            LOG.warning("Cannot get token from " + this.tokenUrl + ", retry in " + this.retryWait + " ms: " + e);
+            this.retryAt = now + this.retryWait;
+            this.retryWait = Math.min(2 * this.retryWait, DirectoryUploader.TOKEN_RETRY_MAX);
+            throw e;
+        }
+        this.retryWait = DirectoryUploader.TOKEN_RETRY_MIN;
+        LOG.info("Use token " + this.activeToken + " for " + this.uploadUrl);
+        return this.activeToken;
+    }
+
+    /**
+     * 送信に失敗したことを記録し、送り直すまで待つ時間を返す。
+     * 続けて失敗するほど長く待ち、長くなりすぎたら、成功するまでは送り直さずに諦めさせる
+     * @return 送り直すまで待つ時間（ミリ秒）。送り直さないなら負
+     */
+    synchronized long sendFailed() {
+        final long wait = SEND_RETRY_MIN << Math.min(this.sendFailures, 30);
+        this.sendFailures++;
+        return (wait > SEND_RETRY_MAX ? -1 : wait);
+    }
+
+    /**
+     * 送信に成功したことを記録する
+     */
+    synchronized void sendSucceeded() {
+        this.sendFailures = 0;
+    }
+
+    @Override
+    public String toString() {
+        return this.uploadUrl.toString();
+    }
+
+}
@@ -16,32 +16,53 @@
 
 package jp.realglobe.util.uploader;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FilenameUtils;
-import org.apache.http.HttpException;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 
+import jp.realglobe.lib.container.Pair;
+
 /**
  * ディレクトリの中身をアップロードする
  */
@@ -51,6 +72,18 @@ public class DirectoryUploader implements Runnable {
 
     static final int BUFFER_SIZE = 4096;
 
+    // 認証トークンを取得できるまでに検知したファイルを溜めておける数
+    private static final int TOKEN_BACKLOG = 1024;
+    // 認証トークンの取得をやり直すまでの最短時間（ミリ秒）
+    static final long TOKEN_RETRY_MIN = 1_000L;
+    // 認証トークンの取得をやり直すまでの最長時間（ミリ秒）
+    static final long TOKEN_RETRY_MAX = 60_000L;
+    // 認証トークン取得のタイムアウト（ミリ秒）
+    private static final int TOKEN_TIMEOUT = 10_000;
+
+    // 画像を縮小するとき、検知したファイルをアップロード待ちにできる数
+    private static final int PIPELINE_DEPTH = 8;
+
     // 監視するディレクトリ
     private final Path watchDirectoryPath;
     // 検知の猶予期間
@@ -77,6 +110,104 @@ public class DirectoryUploader implements Runnable {
     private final Store store;
     // 認証トークン
     private final String token;
+    // アップロード前の画像縮小。null なら縮小しない
+    private ImageResizer imageResizer;
+    // ほとんど同じ画像を飛ばす。null なら飛ばさない
+    private FrameDeduplicator frameDeduplicator;
+    // 検知したファイルを間引く。null なら間引かない
+    private Decimator decimator;
+    // 同時にアップロードする数
+    private int concurrency = 1;
+    // 同時にアップロードする数を増減させるか
+    private boolean adaptiveConcurrency;
+    // 仮想スレッドを使うか
+    private boolean virtualThreads;
+    // 監視イベントの記録先。null なら記録しない
+    private Path tracePath;
+    // アップロード前にファイルの写しを取るか
+    private boolean snapshot;
+    // メモリに写すファイルの最大サイズ
+    private long snapshotMemoryLimit;
+    // ハードリンクを作るディレクトリ
+    private Path snapshotDirectory;
+    // アップロード結果の記録先。null なら記録しない
+    private Path auditDirectory;
+    // 1 つの記録ファイルの最大の大きさ
+    private long auditMaxFileSize;
+    // 残しておく記録ファイルの数
+    private int auditMaxFiles;
+    // 送るデータのチェックサムの種類。null なら付けない
+    private IntegrityCheck.Algorithm checksumAlgorithm;
+    // チェックサムが合わなかったときに送り直す回数を含めた最大の試行回数
+    private int checksumAttempts = 1;
+    // 貸し出しファイルを置くディレクトリ。null なら他の uploader と分担しない
+    private Path leaseDirectory;
+    // 貸し出しを受ける名義
+    private String leaseNodeId;
+    // 貸し出しの期限
+    private long leaseTtl;
+    // 変更されたファイルの差分だけを送るか
+    private boolean deltaUpload;
+    // 元の送り先とは別の送り先
+    private final List<Destination> destinations = new ArrayList<>();
+    // 送り方。null なら start で HTTP にする
+    private Transport transport;
+    // HTTP で送るときの接続の時間切れ（ミリ秒）。0 なら待ち続ける
+    private int connectTimeout = HttpTransport.DEFAULT_CONNECT_TIMEOUT;
+    // HTTP で送るときの読み書きが止まったときの時間切れ（ミリ秒）。0 なら待ち続ける
+    private int socketTimeout = HttpTransport.DEFAULT_SOCKET_TIMEOUT;
+    // 書き込み中の一時ファイルらしい名前のファイルを無視するか
+    private boolean ignoreTemporaryFiles = true;
+    // 名前変更を書き込み完了の合図にするか
+    private boolean completionRename;
+    // 書き込み完了の合図にする印ファイルの接尾辞。null なら使わない
+    private String completionMarkerSuffix;
+    // 変化が無ければ書き込み完了とみなす時間。0 以下ならみなさない
+    private long completionStableTime;
+    // 送る前に暗号化するか
+    private boolean encryption;
+    // 暗号化の前に圧縮するか
+    private boolean encryptionCompress;
+    // アップロードの車線。どれにも当てはまらなければ元の設定でアップロードする
+    private final List<UploadLane> lanes = new ArrayList<>();
+    // zip や tar を展開して中のファイルをアップロードするか
+    private boolean archiveExpansion;
+    // 遅れたアップロードを追いかける最大ファイルサイズ（バイト）。負なら追いかけない
+    private long hedgeMaxSize = -1;
+
+    // 以下、動作中の状態。this で排他する
+    // 使用中の認証トークン。取得中は null
+    private String activeToken;
+    // 認証トークンを取得できるまでに検知したファイル
+    private final Set<Path> tokenBacklog = new LinkedHashSet<>();
+    // 認証トークンを取得するスレッド
+    private ExecutorService tokenExecutor;
+    // 監視するスレッド
+    private ExecutorService watchExecutor;
+    private Future<?> watchFuture;
+    private DelayedWatcher watcher;
+    // アップロードするスレッド
+    private ExecutorService uploadExecutor;
+    // 処理中のアップロード数
+    private int inFlight;
+    // アップロード中のファイル
+    private final InFlightTracker<Path, UploadResult> inFlightPaths = new InFlightTracker<>();
+    private boolean stopped;
+    private WatchTrace.Writer traceWriter;
+    private LeaseManager leaseManager;
+    private AuditJournal auditJournal;
+    // 同時にアップロードする数の制限。null なら concurrency で固定
+    private AdaptiveLimiter limiter;
+    // 差分を作る。null なら作らない
+    private DeltaSync deltaSync;
+    // 別の送り先にアップロードするスレッド。別の送り先が無ければ null
+    private ExecutorService fanOutExecutor;
+    // 暗号化の鍵。null なら暗号化しない
+    private byte[] encryptionKey;
+    // 遅れたアップロードを追いかける。null なら追いかけない
+    private Hedger hedger;
+    // start で作った HTTP の送り方。stop で閉じる
+    private final List<HttpTransport> httpTransports = new ArrayList<>();
 
     /**
      * 作成する
@@ -152,13 +283,362 @@ public class DirectoryUploader implements Runnable {
         return this.id;
     }
 
+    /**
+     * アップロード前に画像を縮小させる。
+     * run や start の前に呼ぶこと
+     * @param imageResizer 画像の縮小処理。null なら縮小しない
+     */
+    public void setImageResizer(final ImageResizer imageResizer) {
+        this.imageResizer = imageResizer;
+    }
+
+    /**
+     * 定点カメラの、前回アップロードしたものとほとんど同じ画像をアップロードしないようにする。
+     * 飛ばした画像の結果は SKIPPED になる。
+     * run や start の前に呼ぶこと
+     * @param frameDeduplicator 似た画像の判定。null なら飛ばさない
+     */
+    public void setFrameDeduplicator(final FrameDeduplicator frameDeduplicator) {
+        this.frameDeduplicator = frameDeduplicator;
+    }
+
+    /**
+     * 検知したファイルをカメラごとの決まった割合まで間引かせる。
+     * latestOnly と違い、処理が追いついているかに関わらず、決まった時間あたりの数を等間隔に選ぶ。
+     * 監視で検知したファイルにだけ効き、submit で渡したファイルは間引かない。
+     * run や start の前に呼ぶこと
+     * @param decimator 間引き。null なら間引かない
+     */
+    public void setDecimator(final Decimator decimator) {
+        this.decimator = decimator;
+    }
+
+    /**
+     * 同時にアップロードする数を設定する。
+     * 1 より大きいとアップロードの順番は検知順にならない。
+     * run や start の前に呼ぶこと
+     * @param concurrency 同時にアップロードする数
+     */
+    public void setConcurrency(final int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * 同時にアップロードする数を応答時間に合わせて増減させる。
+     * 応答時間が変わらなければ増やし、応答時間が伸びたり、429, 503 が返ったり、タイムアウトしたりしたら減らす。
+     * setConcurrency の数が上限になる。
+     * run や start の前に呼ぶこと
+     * @param adaptiveConcurrency 増減させるなら true
+     */
+    public void setAdaptiveConcurrency(final boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    /**
+     * @return 今の同時にアップロードする数の上限
+     */
+    public synchronized int getConcurrencyLimit() {
+        return (this.limiter != null ? this.limiter.getLimit() : this.concurrency);
+    }
+
+    /**
+     * 監視とアップロードを仮想スレッドで行わせる。
+     * 仮想スレッドが使えない Java では普通のスレッドを使う。
+     * run や start の前に呼ぶこと
+     * @param virtualThreads 仮想スレッドを使うなら true
+     */
+    public void setVirtualThreads(final boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * 監視で受け取った生のイベントをファイルに記録させる。
+     * 記録は TraceReplayer で再生できる。
+     * run や start の前に呼ぶこと
+     * @param tracePath 記録ファイルのパス。null なら記録しない
+     */
+    public void setTracePath(final Path tracePath) {
+        this.tracePath = tracePath;
+    }
+
+    /**
+     * アップロード前にファイルの写しを取らせる。
+     * 小さいファイルはメモリに読み込み、大きいファイルはハードリンクを作ってから読む。
+     * 写しを取っている最中やアップロード中にファイルが書き換えられたら、もう 1 度アップロードする。
+     * run や start の前に呼ぶこと
+     * @param memoryLimit これ以下の大きさ（バイト）のファイルはメモリに読み込む
+     * @param linkDirectory ハードリンクを作るディレクトリ。
+     *            監視ディレクトリと同じファイルシステムで、監視ディレクトリの外にあること。
+     *            null ならリンクを作らず、アップロード後に書き換えられていないか調べるだけにする
+     */
+    public void setSnapshot(final long memoryLimit, final Path linkDirectory) {
+        this.snapshot = true;
+        this.snapshotMemoryLimit = memoryLimit;
+        this.snapshotDirectory = linkDirectory;
+    }
+
+    /**
+     * 送るデータにチェックサムを付けさせる。
+     * チェックサムはデータを送りながら計算し、データの後ろのパートで送る。
+     * サーバーが受け取ったデータのチェックサムを X-Checksum ヘッダか応答 JSON の checksum で返したら比べ、
+     * 違ったら送り直す。
+     * run や start の前に呼ぶこと
+     * @param algorithm チェックサムの種類。null なら付けない
+     * @param maxAttempts 送り直しを含めた最大の試行回数
+     */
+    public void setChecksum(final IntegrityCheck.Algorithm algorithm, final int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Invalid attempts " + maxAttempts);
+        }
+        this.checksumAlgorithm = algorithm;
+        this.checksumAttempts = maxAttempts;
+    }
+
+    /**
+     * ファイルごとのアップロード結果をバイナリ形式で記録させる。
+     * 記録は AuditJournal の main で検索できる。
+     * run や start の前に呼ぶこと
+     * @param directory 記録ファイルを置くディレクトリ。null なら記録しない
+     * @param maxFileSize 1 つの記録ファイルの最大の大きさ（バイト）。超えたら次のファイルに移る
+     * @param maxFiles 残しておく記録ファイルの数。0 以下なら消さない
+     */
+    public void setAuditJournal(final Path directory, final long maxFileSize, final int maxFiles) {
+        this.auditDirectory = directory;
+        this.auditMaxFileSize = maxFileSize;
+        this.auditMaxFiles = maxFiles;
+    }
+
+    /**
+     * 同じディレクトリを監視する他の uploader とアップロードを分担させる。
+     * ファイルごとに貸し出しファイルを排他的に作れた uploader だけがアップロードし、
+     * 他の uploader はスキップする。
+     * スキップしたファイルは見張っておき、止まった uploader の貸し出しの期限が切れたり、
+     * アップロードに失敗して返されたりしたら、引き継いでアップロードする。
+     * run や start の前に呼ぶこと
+     * @param leaseDirectory 貸し出しファイルを置くディレクトリ。
+     *            全ての uploader から見える場所で、監視ディレクトリの外にあること
+     * @param nodeId この uploader の名義。uploader ごとに変えること
+     * @param ttl 貸し出しの期限（ミリ秒）。アップロード中はこの 3 分の 1 ごとに延長する
+     */
+    public void setLeaseDirectory(final Path leaseDirectory, final String nodeId, final long ttl) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Invalid ttl " + ttl);
+        }
+        this.leaseDirectory = leaseDirectory;
+        this.leaseNodeId = nodeId;
+        this.leaseTtl = ttl;
+    }
+
+    /**
+     * 変更されたファイルは、前回アップロードした内容とブロック単位で比べ、変わった部分だけを送らせる。
+     * 差分は application/x-rgdelta 形式で送り、info の deltaBase に前回の内容の SHA-256 を付ける。
+     * サーバーでは DeltaPatcher で元に戻せる。
+     * サーバーが差分を受け付けなかったり、変わった部分が多すぎたりしたら全体を送る。
+     * 前回の内容のハッシュ値を保管庫に残すので、保管庫を使わない作成方法では使えない。
+     * 64 KiB 未満のファイルは比べずに全体を送る。
+     * 30 日使われなかったハッシュ値と、1024 件を超えた古い方のハッシュ値は保管庫から消す。
+     * 縮小した画像には使わない。
+     * run や start の前に呼ぶこと
+     * @param enabled 差分だけを送るなら true
+     */
+    public void setDeltaUpload(final boolean enabled) {
+        if (enabled && this.store == null) {
+            throw new IllegalStateException("No store to keep signatures");
+        }
+        this.deltaUpload = enabled;
+    }
+
+    /**
+     * 送るデータを AES-256-GCM で暗号化させる。
+     * 64 KiB ごとに暗号化しながら送るので、大きなファイルでもメモリを食わない。
+     * 暗号化したデータは application/x-rgenc 形式で送り、info の encryption に方式を付ける。
+     * サーバーでは PayloadCipher で元に戻せる。
+     * 鍵は保管庫に残すので、保管庫を使わない作成方法では使えない。
+     * 暗号化したデータは前回と比べられないので、差分アップロードはしない。
+     * run や start の前に呼ぶこと
+     * @param enabled 暗号化するなら true
+     * @param compress 暗号化の前に圧縮するなら true。送る大きさは分からなくなる
+     */
+    public void setEncryption(final boolean enabled, final boolean compress) {
+        if (enabled && this.store == null) {
+            throw new IllegalStateException("No store to keep encryption key");
+        }
+        this.encryption = enabled;
+        this.encryptionCompress = compress;
+    }
+
+    /**
+     * zip や tar のファイルを展開し、中のファイルを 1 つずつアップロードさせる。
+     * 展開したファイルはディスクに書かず、アーカイブから直接読みながら送る。
+     * 中のファイルも拡張子と大きさで絞り込み、アーカイブ自体はアップロードしない。
+     * 中のファイルは、アーカイブの中でのパスの区切りを __ に置き換えた名前で送る。
+     * アーカイブの結果は中のファイルの結果をまとめたもので、通信エラーがあれば例外で完了する。
+     * run や start の前に呼ぶこと
+     * @param enabled 展開するなら true
+     */
+    public void setArchiveExpansion(final boolean enabled) {
+        this.archiveExpansion = enabled;
+    }
+
+    /**
+     * 小さなファイルのアップロードが遅れたら、別の接続でもう 1 度送らせる。
+     * 最近の応答時間の 95 パーセンタイルを過ぎても終わらなければ送り始め、先に受け付けられた方を使う。
+     * 追いかけるのは送信数の数パーセントまでで、同時実行数を増減させるときは枠が空いていなければ追いかけない。
+     * どちらにもファイルの ID と中身から作った冪等キーを info の idempotencyKey と Idempotency-Key ヘッダで付けるので、
+     * サーバーはそれで重複を捨てること。
+     * 冪等キーは保管庫に残す鍵による HMAC なので、キーから中身は確かめられない。
+     * 別の送り先があるときと差分アップロードでは追いかけない。
+     * run や start の前に呼ぶこと
+     * @param enabled 追いかけるなら true
+     * @param maxSize 追いかける最大ファイルサイズ（バイト）
+     */
+    public void setHedging(final boolean enabled, final long maxSize) {
+        this.hedgeMaxSize = (enabled ? maxSize : -1);
+    }
+
+    /**
+     * アップロードの車線を加える。
+     * 車線ごとに待ち行列、同時アップロード数、帯域、送り先を持つので、
+     * 大きな動画を送っている間も小さな画像は待たされない。
+     * ファイルは加えた順で最初に当てはまる車線で、どれにも当てはまらなければ元の設定でアップロードする。
+     * 車線があるときは、監視で検知したファイルを車線ごとに溜めて、空いたものから渡す。
+     * latestOnly なら溜まったものは車線ごとに最新だけを残す。
+     * 同時にアップロードする数の増減は元の設定のアップロードにだけ効く。
+     * run や start の前に呼ぶこと
+     * @param laneName 車線の名前。スレッド名に使う
+     * @param extensions 対象の拡張子。null や空なら全て
+     * @param minSize1 対象の最小ファイルサイズ（バイト）。0 以下なら下限無し
+     * @param maxSize1 対象の最大ファイルサイズ（バイト）。0 以下なら上限無し
+     * @param laneConcurrency 同時にアップロードする数
+     * @param bandwidth 帯域（バイト/秒）。0 以下なら制限しない
+     * @param urlBase 送り先サーバーの URL。null なら元の送り先。認証トークンは元の送り先のものを使う
+     * @throws URISyntaxException URL がおかしい
+     * @throws MalformedURLException URL があやしい
+     */
+    public void addLane(final String laneName, final Collection<String> extensions, final long minSize1, final long maxSize1, final int laneConcurrency,
+            final long bandwidth, final String urlBase) throws MalformedURLException, URISyntaxException {
+        final URI laneUrl = (urlBase == null ? null
+                : (new URL(urlBase + Constants.URL_PATH_UPLOAD_PREFIX + "/" + this.id + Constants.URL_PATH_UPLOAD_SUFFIX)).toURI());
+        this.lanes.add(new UploadLane(laneName, extensions, minSize1, maxSize1, laneConcurrency, bandwidth, laneUrl));
+    }
+
+    /**
+     * 別の送り先を加える。
+     * ファイルは 1 度だけ読み、元の送り先と全ての別の送り先に同時に送る。
+     * 別の送り先の結果は UploadResult の getDestinationResults で受け取れ、
+     * 別の送り先で失敗しても元の送り先の結果には影響しない。
+     * 別の送り先で通信異常やサーバーの異常により失敗したら、ファイルのように何度でも読めるデータなら
+     * 送り先ごとに 250 ミリ秒から倍々に間を空けて 2 回まで送り直す。
+     * 続けて失敗している送り先には、成功するまで送り直さない。
+     * 別の送り先があるときは差分アップロードもチェックサムが合わなかったときの送り直しもしない。
+     * run や start の前に呼ぶこと
+     * @param urlBase 送り先サーバーの URL
+     * @param userId1 紐付くユーザーの ID
+     * @param name1 表示名
+     * @param store1 この送り先用の運用データの保管庫。他の送り先と共有しないこと
+     * @throws Exception データ読み書きエラー
+     */
+    public void addDestination(final String urlBase, final String userId1, final String name1, final Store store1) throws Exception {
+        this.destinations.add(new Destination(urlBase, userId1, name1, store1));
+    }
+
+    /**
+     * 認証トークンが決まっている別の送り先を加える。
+     * run や start の前に呼ぶこと
+     * @param urlBase 送り先サーバーの URL
+     * @param id1 この送り先での ID
+     * @param token1 認証トークン
+     * @throws URISyntaxException URL がおかしい
+     * @throws MalformedURLException URL があやしい
+     * @see #addDestination(String, String, String, Store)
+     */
+    public void addDestination(final String urlBase, final String id1, final String token1) throws MalformedURLException, URISyntaxException {
+        this.destinations.add(new Destination(urlBase, id1, token1));
+    }
+
+    /**
+     * 書き込み中の一時ファイルらしい名前のファイルを無視させるかどうか設定する。
+     * .tmp や .part、.crdownload などのダウンロード中のファイル、エディタのスワップファイルやバックアップ、
+     * rsync の一時ファイル、Office のロックファイルなどを無視する。
+     * 監視では検知した時点で捨てるので、猶予期間の間も溜めない。
+     * 初期値は無視する。
+     * run や start の前に呼ぶこと
+     * @param ignore 無視するなら true
+     */
+    public void setIgnoreTemporaryFiles(final boolean ignore) {
+        this.ignoreTemporaryFiles = ignore;
+    }
+
+    /**
+     * 書き込み完了の合図を受け取ったファイルを猶予期間を待たずにアップロードさせる。
+     * 合図が無いファイルは今まで通り猶予期間を待つ。
+     * run や start の前に呼ぶこと
+     * @param rename foo.jpg.part や .foo.jpg.XXXXXX から foo.jpg への名前変更を合図にするなら true
+     * @param markerSuffix 印ファイルの接尾辞。例えば .done なら foo.done か foo.jpg.done ができたら foo.jpg をアップロードする。
+     *            印ファイル自体はアップロードしない。null なら使わない
+     * @param stableTime 最後の変更からこの時間（ミリ秒）大きさと更新日時が変わらず、
+     *            書き込み用のロックも無ければ書き込み完了とみなす。delay より十分短くすること。0 以下ならみなさない
+     */
+    public void setCompletionSignals(final boolean rename, final String markerSuffix, final long stableTime) {
+        this.completionRename = rename;
+        this.completionMarkerSuffix = markerSuffix;
+        this.completionStableTime = stableTime;
+    }
+
+    /**
+     * 送り方を変える。
+     * 標準では HTTP のマルチパートで送る。
+     * ローカルのディレクトリに置く LocalDirectoryTransport や、
+     * 通信抜きで処理の速さを測るための InMemoryTransport が使える。
+     * 認証トークンは送り方によらず取得するので、通信させたくなければ認証トークンを指定する作成方法を使うこと。
+     * 別の送り先には常に HTTP で送る。
+     * run や start の前に呼ぶこと
+     * @param transport 送り方。null なら HTTP
+     */
+    public void setTransport(final Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * HTTP で送るときの時間切れを変える。
+     * 元の送り先、車線の送り先、別の送り先の全てに効く。
+     * 時間切れは混雑とみなし、同時アップロード数を自動で調整するなら減らす。
+     * 別の送り先が読み書きの時間切れより長くデータを受け取らなければ、他の送り先を待たせないように切り離し、
+     * その送り先には元のデータから送り直させる。
+     * run や start の前に呼ぶこと
+     * @param connectTimeout 接続の時間切れ（ミリ秒）。0 なら待ち続ける
+     * @param socketTimeout 読み書きが止まったときの時間切れ（ミリ秒）。0 なら待ち続ける
+     */
+    public void setTimeouts(final long connectTimeout, final long socketTimeout) {
+        if (connectTimeout < 0 || socketTimeout < 0) {
+            throw new IllegalArgumentException("Invalid timeouts " + connectTimeout + ", " + socketTimeout);
+        }
+        this.connectTimeout = toInt(connectTimeout);
+        this.socketTimeout = toInt(socketTimeout);
+    }
+
+    /**
+     * HTTP の送り方を作り、stop で閉じるために覚えておく。
+     * this で排他した中で呼ぶこと
+     * @param url データを投稿するための URL
+     * @return 送り方
+     */
+    private Transport newHttpTransport(final URI url) {
+        final HttpTransport transport1 = new HttpTransport(url, this.checksumAlgorithm, this.connectTimeout, this.socketTimeout);
+        this.httpTransports.add(transport1);
+        return transport1;
+    }
+
     /**
      * ID を返す
      * @param store 運用データの保管庫
      * @return ID
      * @throws Exception データ読み書きエラー
      */
-    private static String getId(final Store store) throws Exception {
+    static String getId(final Store store) throws Exception {
         final String loadedId = store.load(Constants.STORE_KEY_ID);
         if (loadedId != null) {
             return loadedId;
@@ -168,42 +648,874 @@ public class DirectoryUploader implements Runnable {
         return newId;
     }
 
-    @Override
-    public void run() {
-        final String token1;
-        if (this.token != null) {
-            token1 = this.token;
-        } else {
+    /**
+     * 監視とアップロードを始める。
+     * 認証トークンの取得は待たずに返り、取得できるまでやり直し続ける。
+     * それまでに検知したファイルは溜めておき、取得できてからアップロードする
+     * @throws Exception 監視の開始に失敗した
+     */
+    public void start() throws Exception {
+        synchronized (this) {
+            if (this.watchExecutor != null) {
+                throw new IllegalStateException("Already started");
+            }
+            if (this.leaseDirectory != null) {
+                this.leaseManager = new LeaseManager(this.leaseDirectory, this.leaseNodeId, this.leaseTtl);
+            }
+            if (this.auditDirectory != null) {
+                this.auditJournal = new AuditJournal(this.auditDirectory, this.auditMaxFileSize, this.auditMaxFiles);
+            }
+            if (this.tracePath != null) {
+                this.traceWriter = new WatchTrace.Writer(this.tracePath);
+            }
+            if (this.adaptiveConcurrency) {
+                this.limiter = new AdaptiveLimiter(1, this.concurrency);
+            }
+            if (this.transport == null) {
+                this.transport = newHttpTransport(this.uploadUrl);
+            }
+            for (final Destination destination : this.destinations) {
+                destination.setTransport(newHttpTransport(destination.getUploadUrl()));
+            }
+            if (this.encryption) {
+                this.encryptionKey = PayloadCipher.loadKey(this.store);
+                LOG.info("Encrypt with key " + Utils.toHex(PayloadCipher.keyId(this.encryptionKey)));
+            } else if (this.deltaUpload) {
+                this.deltaSync = new DeltaSync(this.store);
+            }
+            if (!this.destinations.isEmpty()) {
+                this.fanOutExecutor = Executors.newCachedThreadPool(Threads.newFactory("fanout", this.virtualThreads));
+            }
+            if (this.hedgeMaxSize >= 0) {
+                this.hedger = new Hedger(this.hedgeMaxSize, Hedger.loadSecret(this.store), (this.socketTimeout > 0 ? this.connectTimeout + this.socketTimeout : 0), this.virtualThreads);
+            }
+            this.uploadExecutor = Threads.newExecutor("uploader", this.concurrency, this.virtualThreads);
+            for (final UploadLane lane : this.lanes) {
+                lane.start(this.virtualThreads, (this.imageResizer == null ? 0 : PIPELINE_DEPTH), this.transport, this::newHttpTransport);
+            }
+            this.watchExecutor = Executors.newSingleThreadExecutor(Threads.newFactory("watcher", this.virtualThreads));
+
+            // 画像を縮小するときは先回りさせる。
+            // そうでなければアップロード中の数までしか受け付けず、処理落ちしたら latestOnly が効くようにする
+            final Semaphore pipelineSlots = new Semaphore(this.concurrency + (this.imageResizer == null ? 0 : PIPELINE_DEPTH));
+            final Function<Path, CompletableFuture<?>> submitter = path -> submit(path).whenComplete((result, e) -> {
+                if (e != null) {
+                    LOG.warning("Upload failed: " + e);
+                } else if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Uploaded " + result);
+                }
+            });
+            final DelayedWatcher.Callback callback;
+            if (this.lanes.isEmpty()) {
+                callback = path -> {
+                    pipelineSlots.acquire();
+                    submitter.apply(path).whenComplete((result, e) -> pipelineSlots.release());
+                };
+            } else {
+                // 車線ごとに溜めて監視スレッドを止めないので、大きなファイルが詰まっても他の車線は待たされない
+                final LaneQueue defaultQueue = new LaneQueue(pipelineSlots, this.latestOnly, submitter);
+                final Map<UploadLane, LaneQueue> laneQueues = new HashMap<>();
+                for (final UploadLane lane : this.lanes) {
+                    laneQueues.put(lane, new LaneQueue(lane.getSlots(), this.latestOnly, submitter));
+                }
+                callback = path -> {
+                    final UploadLane lane = getLane(path.getFileName().toString(), path.toFile().length());
+                    (lane == null ? defaultQueue : laneQueues.get(lane)).offer(path);
+                };
+            }
+            final DelayedWatcher.Callback accept = path -> {
+                if (!deferUntilToken(path)) {
+                    callback.call(path);
+                }
+            };
+            if (this.leaseManager != null) {
+                // 他の uploader から引き継いだファイルも、検知したファイルと同じように送る
+                this.leaseManager.setReclaimListener(accept);
+            }
+            final DelayedWatcher watcher = new DelayedWatcher(this.watchDirectoryPath, this.delay, this.latestOnly, accept);
+            if (this.traceWriter != null) {
+                watcher.setTraceWriter(this.traceWriter);
+            }
+            // 書き込み中は大きさが定まらないので、名前だけで絞り込む
+            watcher.setFilter(name -> isTargetName(name.getFileName().toString()) || isExpanded(name.getFileName().toString()));
+            watcher.setCompletionSignals(this.completionRename, this.completionMarkerSuffix, this.completionStableTime);
+            watcher.setDecimator(this.decimator);
+            this.watcher = watcher;
+            this.watchFuture = this.watchExecutor.submit(watcher);
+
+            if (this.token != null) {
+                this.activeToken = this.token;
+                LOG.info("Use token " + this.token);
+            } else {
+                this.tokenExecutor = Executors.newSingleThreadExecutor(Threads.newFactory("token", this.virtualThreads));
+                this.tokenExecutor.execute(() -> acquireToken(callback));
+            }
+        }
+    }
+
+    /**
+     * 車線を選ぶ
+     * @param fileName ファイル名
+     * @param length 大きさ（バイト）。不明なら -1
+     * @return 当てはまる車線。無ければ null
+     */
+    private UploadLane getLane(final String fileName, final long length) {
+        for (final UploadLane lane : this.lanes) {
+            if (lane.matches(fileName, length)) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 認証トークンがまだ無ければ、検知したファイルを溜めておく
+     * @param path 検知したファイル
+     * @return 溜めたなら true
+     */
+    private synchronized boolean deferUntilToken(final Path path) {
+        if (this.activeToken != null) {
+            return false;
+        }
+        this.tokenBacklog.remove(path);
+        if (this.latestOnly) {
+            // 処理落ち中と同じく最新のものだけ残す
+            this.tokenBacklog.clear();
+        } else if (this.tokenBacklog.size() >= TOKEN_BACKLOG) {
+            final Iterator<Path> iterator = this.tokenBacklog.iterator();
+            LOG.warning("Drop " + iterator.next() + " detected before getting token");
+            iterator.remove();
+        }
+        this.tokenBacklog.add(path);
+        return true;
+    }
+
+    /**
+     * 認証トークンを取得できるまでやり直し、溜めておいたファイルをアップロードさせる
+     * @param callback 溜めておいたファイルを渡す先
+     */
+    private void acquireToken(final DelayedWatcher.Callback callback) {
+        long wait = TOKEN_RETRY_MIN;
+        String token1;
+        while (true) {
             try {
                 token1 = getToken();
+                break;
+            } catch (final Exception e) {
+                LOG.warning("Cannot get token, retry in " + wait + " ms: " + e);
+            }
+            try {
+                Thread.sleep(wait);
             } catch (final InterruptedException e) {
                 // 終了
                 return;
-            } catch (final Exception e) {
-                throw new RuntimeException(e);
             }
+            wait = Math.min(2 * wait, TOKEN_RETRY_MAX);
         }
-
         LOG.info("Use token " + token1);
 
-        (new DelayedWatcher(this.watchDirectoryPath, this.delay, this.latestOnly, path -> {
-            if (!Files.isReadable(path)) {
-                LOG.info("Cannot read " + path);
+        final List<Path> backlog;
+        synchronized (this) {
+            this.activeToken = token1;
+            notifyAll();
+            backlog = new ArrayList<>(this.tokenBacklog);
+            this.tokenBacklog.clear();
+        }
+        for (final Path path : backlog) {
+            try {
+                callback.call(path);
+            } catch (final InterruptedException e) {
+                // 終了
                 return;
+            } catch (final Exception e) {
+                LOG.warning("Upload failed: " + e);
             }
-            final File file = path.toFile();
-            if (!this.targetExtensions.isEmpty() && !this.targetExtensions.contains(FilenameUtils.getExtension(file.getName()))) {
-                LOG.info("Skip non target file " + path);
-                return;
-            } else if (this.minSize > 0 && file.length() < this.minSize) {
-                LOG.info("Skip too small file " + path);
-                return;
-            } else if (this.maxSize > 0 && file.length() > this.maxSize) {
-                LOG.info("Skip too large file " + path);
-                return;
+        }
+    }
+
+    /**
+     * 認証トークンを取得できるまで待つ
+     * @return 認証トークン
+     * @throws InterruptedException 待機中に割り込まれた
+     */
+    private synchronized String awaitToken() throws InterruptedException {
+        while (this.activeToken == null) {
+            if (this.stopped) {
+                throw new IllegalStateException("Stopped before getting token");
             }
-            upload(token1, path);
-        })).run();
+            wait();
+        }
+        return this.activeToken;
+    }
+
+    /**
+     * 止める。
+     * 新しいファイルの受け付けをやめ、処理中のアップロードの完了を待つ
+     * @param timeout 処理中のアップロードを待つ時間
+     * @param unit timeout の単位
+     * @return 時間内に全てのアップロードが終わったら true。
+     *         終わらなかったアップロードは中断される
+     * @throws InterruptedException 待機中に割り込まれた
+     */
+    public boolean stop(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final ExecutorService watchExecutor1;
+        final DelayedWatcher watcher1;
+        final List<ExecutorService> uploadExecutors1;
+        final WatchTrace.Writer traceWriter1;
+        final LeaseManager leaseManager1;
+        final AuditJournal auditJournal1;
+        final ExecutorService fanOutExecutor1;
+        final Hedger hedger1;
+        final List<HttpTransport> httpTransports1;
+        synchronized (this) {
+            if (this.watchExecutor == null || this.stopped) {
+                return true;
+            }
+            this.stopped = true;
+            // 認証トークンを待っているアップロードを諦めさせる
+            notifyAll();
+            if (this.tokenExecutor != null) {
+                this.tokenExecutor.shutdownNow();
+            }
+            if (!this.tokenBacklog.isEmpty()) {
+                LOG.warning("Drop " + this.tokenBacklog.size() + " files detected before getting token");
+                this.tokenBacklog.clear();
+            }
+            watchExecutor1 = this.watchExecutor;
+            watcher1 = this.watcher;
+            uploadExecutors1 = new ArrayList<>();
+            uploadExecutors1.add(this.uploadExecutor);
+            for (final UploadLane lane : this.lanes) {
+                uploadExecutors1.add(lane.getExecutor());
+            }
+            traceWriter1 = this.traceWriter;
+            leaseManager1 = this.leaseManager;
+            auditJournal1 = this.auditJournal;
+            fanOutExecutor1 = this.fanOutExecutor;
+            hedger1 = this.hedger;
+            httpTransports1 = new ArrayList<>(this.httpTransports);
+        }
+
+        watchExecutor1.shutdownNow();
+        // 割り込みを取りこぼしても監視を終わらせる
+        watcher1.close();
+        if (traceWriter1 != null) {
+            try {
+                traceWriter1.close();
+            } catch (final IOException e) {
+                LOG.warning("Cannot close trace: " + e);
+            }
+        }
+        for (final ExecutorService uploadExecutor1 : uploadExecutors1) {
+            uploadExecutor1.shutdown();
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            boolean terminated = true;
+            for (final ExecutorService uploadExecutor1 : uploadExecutors1) {
+                terminated &= uploadExecutor1.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            if (terminated) {
+                return true;
+            }
+        } finally {
+            boolean aborted = false;
+            for (final ExecutorService uploadExecutor1 : uploadExecutors1) {
+                if (!uploadExecutor1.isTerminated()) {
+                    aborted = true;
+                    uploadExecutor1.shutdownNow();
+                }
+            }
+            if (aborted) {
+                LOG.warning("Abort remaining uploads");
+            }
+            if (fanOutExecutor1 != null) {
+                fanOutExecutor1.shutdownNow();
+            }
+            if (hedger1 != null) {
+                hedger1.close();
+            }
+            for (final HttpTransport transport1 : httpTransports1) {
+                try {
+                    transport1.close();
+                } catch (final IOException e) {
+                    LOG.warning("Cannot close " + transport1 + ": " + e);
+                }
+            }
+            if (leaseManager1 != null) {
+                // 返しそびれた貸し出しも返す
+                leaseManager1.close();
+            }
+            if (auditJournal1 != null) {
+                try {
+                    auditJournal1.close();
+                } catch (final IOException e) {
+                    LOG.warning("Cannot close audit journal: " + e);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 受け付けたアップロードが全て終わるのを待つ
+     * @param timeout 待つ時間
+     * @param unit timeout の単位
+     * @return 時間内に全て終わったら true
+     * @throws InterruptedException 待機中に割り込まれた
+     */
+    public synchronized boolean awaitIdle(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (this.inFlight > 0) {
+            final long rest = deadline - System.nanoTime();
+            if (rest <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, rest);
+        }
+        return true;
+    }
+
+    /**
+     * ファイルのアップロードを予約する。
+     * 監視で検知したファイルと同じ条件で対象かどうか判定する
+     * @param path アップロードするファイルのパス
+     * @return アップロード結果。通信エラーの場合は例外で完了する
+     */
+    public CompletableFuture<UploadResult> submit(final Path path) {
+        return submit(Payload.of(path));
+    }
+
+    /**
+     * メモリ上のデータのアップロードを予約する。
+     * ファイルを介さずに、監視で検知したファイルと同じ条件で対象かどうか判定してアップロードする
+     * @param name 名前。拡張子での判定にも使う
+     * @param data 中身。アップロードが終わるまで変更しないこと
+     * @param contentType データの種類。null なら不明
+     * @return アップロード結果。通信エラーの場合は例外で完了する
+     */
+    public CompletableFuture<UploadResult> submit(final String name, final byte[] data, final String contentType) {
+        return submit(Payload.of(name, data, contentType));
+    }
+
+    /**
+     * メモリ上のデータのアップロードを予約する。
+     * ヒープ外やファイルを割り当てたバッファもヒープに写さずに送る
+     * @param name 名前。拡張子での判定にも使う
+     * @param data 中身。position から limit までを送る。アップロードが終わるまで中身を変更しないこと
+     * @param contentType データの種類。null なら不明
+     * @return アップロード結果。通信エラーの場合は例外で完了する
+     */
+    public CompletableFuture<UploadResult> submit(final String name, final ByteBuffer data, final String contentType) {
+        return submit(Payload.of(name, data, contentType));
+    }
+
+    /**
+     * 読み込み中のデータのアップロードを予約する。
+     * 大きさが分からないので、大きさでの判定はしない
+     * @param name 名前。拡張子での判定にも使う
+     * @param input 中身。アップロードが終わったら閉じる
+     * @param contentType データの種類。null なら不明
+     * @return アップロード結果。通信エラーの場合は例外で完了する
+     */
+    public CompletableFuture<UploadResult> submit(final String name, final InputStream input, final String contentType) {
+        return submit(Payload.of(name, input, contentType));
+    }
+
+    private CompletableFuture<UploadResult> submit(final Payload payload) {
+        final Path path = payload.getPath();
+        if (path == null) {
+            return submit(payload, null, new CompletableFuture<>());
+        }
+
+        // 同じファイルを同時にアップロードしない。
+        // アップロード中に変更されたら、終わってからもう 1 度だけアップロードする
+        final Path key = path.toAbsolutePath().normalize();
+        final CompletableFuture<UploadResult> followUp = this.inFlightPaths.begin(key);
+        if (followUp != null) {
+            LOG.fine("Defer " + path + " until current upload finishes");
+            return followUp;
+        }
+        return submit(payload, key, new CompletableFuture<>());
+    }
+
+    /**
+     * アップロードを予約する
+     * @param payload データ
+     * @param key アップロード中として記録したファイルのパス。ファイルでなければ null
+     * @param future 結果の受け取り先
+     * @return future
+     */
+    private CompletableFuture<UploadResult> submit(final Payload payload, final Path key, final CompletableFuture<UploadResult> future) {
+        if (key != null && isExpanded(payload.getName())) {
+            return expand(key, future);
+        }
+        final long submitted = System.currentTimeMillis();
+        final LeaseManager leaseManager1;
+        final AdaptiveLimiter limiter1;
+        final Transport transport1;
+        final ExecutorService uploadExecutor1;
+        final AuditJournal journal1;
+        final DeltaSync deltaSync1;
+        final ExecutorService fanOutExecutor1;
+        final byte[] encryptionKey1;
+        final Hedger hedger1;
+        // 大きさを調べるのでロックの外で選ぶ
+        final UploadLane lane = getLane(payload.getName(), payload.getLength());
+        synchronized (this) {
+            if (this.uploadExecutor == null || this.stopped) {
+                payload.discard();
+                future.completeExceptionally(new IllegalStateException("Not running"));
+                release(key);
+                return future;
+            }
+            leaseManager1 = this.leaseManager;
+            journal1 = this.auditJournal;
+            deltaSync1 = this.deltaSync;
+            fanOutExecutor1 = this.fanOutExecutor;
+            encryptionKey1 = this.encryptionKey;
+            hedger1 = this.hedger;
+            if (lane == null) {
+                limiter1 = this.limiter;
+                transport1 = this.transport;
+                uploadExecutor1 = this.uploadExecutor;
+            } else {
+                limiter1 = null;
+                transport1 = lane.getTransport();
+                uploadExecutor1 = lane.getExecutor();
+            }
+            this.inFlight++;
+        }
+
+        LeaseManager.Lease lease = null;
+        FileSnapshot snapshot = null;
+        try {
+            if (!isTarget(payload)) {
+                finish(key);
+                complete(future, journal1, payload, submitted, UploadResult.skipped(payload.toString()));
+                return future;
+            }
+
+            if (leaseManager1 != null && key != null) {
+                try {
+                    lease = leaseManager1.claim(key);
+                } catch (final IOException e) {
+                    finish(key);
+                    fail(future, journal1, payload, submitted, 0, e);
+                    return future;
+                }
+                if (lease == null) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Skip " + key + " handled by another uploader");
+                    }
+                    finish(key);
+                    complete(future, journal1, payload, submitted, UploadResult.skipped(payload.toString()));
+                    return future;
+                }
+            }
+
+            if (this.snapshot && key != null) {
+                try {
+                    snapshot = FileSnapshot.take(key, this.snapshotMemoryLimit, this.snapshotDirectory);
+                } catch (final FileSnapshot.ChangedException e) {
+                    LOG.info("Reschedule " + key + " changed while copying");
+                    release(lease, false);
+                    reschedule(key, future);
+                    finish(key);
+                    return future;
+                } catch (final IOException e) {
+                    release(lease, false);
+                    finish(key);
+                    fail(future, journal1, payload, submitted, 0, e);
+                    return future;
+                }
+            }
+            final LeaseManager.Lease lease1 = lease;
+            final FileSnapshot snapshot1 = snapshot;
+            final Payload source = (snapshot1 == null ? payload : snapshot1.getPayload());
+
+            // 縮小は先に始めておく
+            final CompletableFuture<byte[]> resized = (this.imageResizer != null && source.isRepeatable() && this.imageResizer.isTarget(source.getName())
+                    ? this.imageResizer.resize(source)
+                    : CompletableFuture.completedFuture(null));
+            uploadExecutor1.execute(() -> {
+                boolean uploaded = false;
+                long start = 0;
+                try {
+                    final FrameDeduplicator.Check frameCheck = (this.frameDeduplicator != null && source.isRepeatable() && this.frameDeduplicator.isTarget(source.getName())
+                            ? this.frameDeduplicator.check(source)
+                            : null);
+                    if (frameCheck != null && frameCheck.isDuplicate()) {
+                        resized.cancel(false);
+                        // 片付いたものとして、他の uploader にも送らせない
+                        uploaded = true;
+                        complete(future, journal1, payload, submitted, UploadResult.skipped(payload.toString()));
+                        return;
+                    }
+                    final String token1 = awaitToken();
+                    start = System.currentTimeMillis();
+                    final byte[] data = resized.join();
+                    final Payload plain;
+                    if (data == null) {
+                        plain = source;
+                    } else {
+                        if (LOG.isLoggable(Level.FINE)) {
+                            LOG.fine("Resized " + payload + " to " + data.length + " bytes");
+                        }
+                        plain = Payload.of(source.getName(), data, source.getContentType());
+                    }
+                    // 他の uploader に奪われたら送るのを止める
+                    final Payload guarded = (lease1 == null ? plain : lease1.guard(plain));
+                    final Payload sent;
+                    final Map<String, String> info;
+                    if (encryptionKey1 == null) {
+                        sent = guarded;
+                        info = Collections.emptyMap();
+                    } else {
+                        sent = PayloadCipher.encrypt(guarded, encryptionKey1, this.encryptionCompress);
+                        info = Collections.singletonMap(Constants.UPLOAD_REQUEST_INFO_KEY_ENCRYPTION, PayloadCipher.NAME);
+                    }
+                    long sentBytes = sent.getLength();
+                    int statusCode;
+                    Map<String, UploadResult> destinationResults = null;
+                    for (int attempt = 1;; attempt++) {
+                        try {
+                            if (fanOutExecutor1 != null) {
+                                final Pair<Integer, Map<String, UploadResult>> response = uploadFanOut(limiter1, transport1, token1, fanOutExecutor1, sent, info);
+                                statusCode = response.getFirst();
+                                destinationResults = response.getSecond();
+                            } else if (deltaSync1 != null && key != null && data == null) {
+                                final Pair<Integer, Long> response = uploadDelta(limiter1, transport1, token1, deltaSync1, key, sent);
+                                statusCode = response.getFirst();
+                                sentBytes = response.getSecond();
+                            } else if (hedger1 != null && hedger1.isTarget(sent)) {
+                                // 暗号化すると毎回中身が変わるので、元の中身で作る
+                                final Map<String, String> info1 = new HashMap<>(info);
+                                info1.put(Constants.UPLOAD_REQUEST_INFO_KEY_IDEMPOTENCY_KEY, hedger1.idempotencyKey(payload.toString(), plain));
+                                // 追いかける送信も同時実行数の枠を使うので、制限は任せる
+                                statusCode = hedger1.send(limiter1, transport1, token1, sent, info1);
+                            } else {
+                                statusCode = upload(limiter1, transport1, token1, sent, info);
+                            }
+                            break;
+                        } catch (final IntegrityCheck.MismatchException e) {
+                            // 別の送り先があると、そちらにも重ねて送ってしまう
+                            if (attempt >= this.checksumAttempts || !sent.isRepeatable() || fanOutExecutor1 != null) {
+                                throw e;
+                            }
+                            LOG.warning("Retry " + payload + ": " + e.getMessage());
+                        }
+                    }
+                    if (lease1 != null) {
+                        // 送り終えてから奪われたら、他の uploader が送り直すので印を残さない
+                        lease1.checkLost();
+                    }
+                    if (snapshot1 != null) {
+                        snapshot1.verify();
+                    }
+                    uploaded = (statusCode == HttpURLConnection.HTTP_CREATED);
+                    if (uploaded && frameCheck != null) {
+                        this.frameDeduplicator.commit(frameCheck);
+                    }
+                    final UploadResult.Status status = (uploaded ? UploadResult.Status.UPLOADED : UploadResult.Status.FAILED);
+                    final UploadResult result = new UploadResult(payload.toString(), status, statusCode, System.currentTimeMillis() - start, sentBytes);
+                    complete(future, journal1, payload, submitted, (destinationResults == null ? result : result.withDestinations(destinationResults)));
+                } catch (final FileSnapshot.ChangedException e) {
+                    LOG.info("Reschedule " + key + " changed while uploading");
+                    reschedule(key, future);
+                } catch (final Throwable e) {
+                    fail(future, journal1, payload, submitted, (start == 0 ? 0 : System.currentTimeMillis() - start), e);
+                } finally {
+                    if (snapshot1 != null) {
+                        snapshot1.close();
+                    }
+                    // アップロードし直す前に返す
+                    release(lease1, uploaded);
+                    finish(key);
+                }
+            });
+        } catch (final RuntimeException e) {
+            // 止めている最中だった
+            if (snapshot != null) {
+                snapshot.close();
+            }
+            release(lease, false);
+            finish(key);
+            fail(future, journal1, payload, submitted, 0, e);
+        }
+        return future;
+    }
+
+    /**
+     * アーカイブの中のファイルをそれぞれアップロードする
+     * @param key アップロード中として記録したアーカイブのパス
+     * @param future 結果の受け取り先
+     * @return future
+     */
+    private CompletableFuture<UploadResult> expand(final Path key, final CompletableFuture<UploadResult> future) {
+        final long start = System.currentTimeMillis();
+        final LeaseManager leaseManager1;
+        synchronized (this) {
+            if (this.uploadExecutor == null || this.stopped) {
+                future.completeExceptionally(new IllegalStateException("Not running"));
+                release(key);
+                return future;
+            }
+            leaseManager1 = this.leaseManager;
+        }
+
+        LeaseManager.Lease lease = null;
+        final ArchiveReader archive;
+        try {
+            if (leaseManager1 != null) {
+                lease = leaseManager1.claim(key);
+                if (lease == null) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Skip " + key + " handled by another uploader");
+                    }
+                    release(key);
+                    future.complete(UploadResult.skipped(key.toString()));
+                    return future;
+                }
+            }
+            archive = ArchiveReader.open(key);
+        } catch (final IOException e) {
+            release(lease, false);
+            release(key);
+            future.completeExceptionally(e);
+            return future;
+        }
+        LOG.info("Expand " + archive.getEntries().size() + " entries in " + key);
+
+        final List<CompletableFuture<UploadResult>> results = new ArrayList<>();
+        for (final Payload entry : archive.getEntries()) {
+            results.add(submit(entry, null, new CompletableFuture<>()));
+        }
+        final LeaseManager.Lease lease1 = lease;
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, e) -> {
+            try {
+                archive.close();
+            } catch (final IOException e1) {
+                LOG.warning("Cannot close " + key + ": " + e1);
+            }
+            UploadResult.Status status = UploadResult.Status.SKIPPED;
+            int statusCode = -1;
+            long sentBytes = 0;
+            for (final CompletableFuture<UploadResult> result : results) {
+                // 例外で終わったものは e に入っている
+                final UploadResult entryResult = result.getNow(null);
+                if (entryResult == null || result.isCompletedExceptionally()) {
+                    continue;
+                }
+                if (entryResult.getStatus() == UploadResult.Status.FAILED) {
+                    status = UploadResult.Status.FAILED;
+                    statusCode = entryResult.getStatusCode();
+                } else if (entryResult.getStatus() == UploadResult.Status.UPLOADED) {
+                    if (status == UploadResult.Status.SKIPPED) {
+                        status = UploadResult.Status.UPLOADED;
+                        statusCode = entryResult.getStatusCode();
+                    }
+                    sentBytes += Math.max(0, entryResult.getSentBytes());
+                }
+            }
+            release(lease1, e == null && status != UploadResult.Status.FAILED);
+            release(key);
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(new UploadResult(key.toString(), status, statusCode, System.currentTimeMillis() - start, sentBytes));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * アップロード結果を記録して返す。データは片付ける
+     * @param future 結果の受け取り先
+     * @param journal 記録先。null なら記録しない
+     * @param payload データ
+     * @param submitted 受け付けた日時（ミリ秒）
+     * @param result 結果
+     */
+    private static void complete(final CompletableFuture<UploadResult> future, final AuditJournal journal, final Payload payload, final long submitted,
+            final UploadResult result) {
+        if (journal != null) {
+            final long now = System.currentTimeMillis();
+            journal.append(new AuditJournal.Entry(AuditJournal.hash(payload.toString()), now, toInt(now - submitted - result.getElapsed()), toInt(result.getElapsed()),
+                    payload.getLength(), result.getSentBytes(), result.getStatus(), result.getStatusCode()));
+        }
+        payload.discard();
+        future.complete(result);
+    }
+
+    /**
+     * 失敗を記録して返す。データは片付ける
+     * @param future 結果の受け取り先
+     * @param journal 記録先。null なら記録しない
+     * @param payload データ
+     * @param submitted 受け付けた日時（ミリ秒）
+     * @param elapsed アップロードを始めてからの時間（ミリ秒）
+     * @param e 失敗の原因
+     */
+    private static void fail(final CompletableFuture<UploadResult> future, final AuditJournal journal, final Payload payload, final long submitted, final long elapsed,
+            final Throwable e) {
+        if (journal != null) {
+            final long now = System.currentTimeMillis();
+            journal.append(new AuditJournal.Entry(AuditJournal.hash(payload.toString()), now, toInt(now - submitted - elapsed), toInt(elapsed), payload.getLength(), -1,
+                    UploadResult.Status.FAILED, -1));
+        }
+        payload.discard();
+        future.completeExceptionally(e);
+    }
+
+    private static int toInt(final long value) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    /**
+     * アップロード中のファイルを、今のアップロードが終わった後にアップロードし直させる
+     * @param key アップロード中として記録したファイルのパス
+     * @param future アップロードし直した結果の受け取り先
+     */
+    private void reschedule(final Path key, final CompletableFuture<UploadResult> future) {
+        this.inFlightPaths.begin(key).whenComplete((result, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(result);
+            }
+        });
+    }
+
+    /**
+     * 貸し出しを返す
+     * @param lease 貸し出し。null なら何もしない
+     * @param uploaded アップロードできたなら true
+     */
+    private static void release(final LeaseManager.Lease lease, final boolean uploaded) {
+        if (lease != null) {
+            lease.release(uploaded);
+        }
+    }
+
+    /**
+     * アップロードを終える
+     * @param key アップロード中として記録したファイルのパス。ファイルでなければ null
+     */
+    private void finish(final Path key) {
+        release(key);
+        finish();
+    }
+
+    /**
+     * ファイルをアップロード中でなくする。
+     * アップロード中に変更されていたらアップロードし直す
+     * @param key アップロード中として記録したファイルのパス。ファイルでなければ null
+     */
+    private void release(final Path key) {
+        if (key == null) {
+            return;
+        }
+        final CompletableFuture<UploadResult> followUp = this.inFlightPaths.end(key);
+        if (followUp != null) {
+            submit(Payload.of(key), key, followUp);
+        }
+    }
+
+    /**
+     * 処理中のアップロードを 1 つ減らす
+     */
+    private synchronized void finish() {
+        this.inFlight--;
+        if (this.inFlight == 0) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            start();
+        } catch (final InterruptedException e) {
+            // 終了
+            return;
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        final Future<?> watchFuture1;
+        synchronized (this) {
+            watchFuture1 = this.watchFuture;
+        }
+        try {
+            watchFuture1.get();
+        } catch (final InterruptedException | CancellationException e) {
+            // 終了
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            try {
+                stop(0, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * アップロード対象かどうか調べる
+     * @param payload データ
+     * @return アップロード対象なら true
+     */
+    private boolean isTarget(final Payload payload) {
+        final Path path = payload.getPath();
+        // 件数が多いので、詳細を出すときだけ文字列を作る
+        final boolean verbose = LOG.isLoggable(Level.FINE);
+        if (path != null && !Files.isReadable(path)) {
+            if (verbose) {
+                LOG.fine("Cannot read " + path);
+            }
+            return false;
+        }
+        final long length = payload.getLength();
+        if (!isTargetName(payload.getName())) {
+            if (verbose) {
+                LOG.fine("Skip non target file " + payload);
+            }
+            return false;
+        } else if (this.minSize > 0 && length >= 0 && length < this.minSize) {
+            if (verbose) {
+                LOG.fine("Skip too small file " + payload);
+            }
+            return false;
+        } else if (this.maxSize > 0 && length > this.maxSize) {
+            if (verbose) {
+                LOG.fine("Skip too large file " + payload);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 展開するアーカイブか調べる
+     * @param name1 ファイル名
+     * @return 展開するなら true
+     */
+    private boolean isExpanded(final String name1) {
+        return this.archiveExpansion && !(this.ignoreTemporaryFiles && DelayedWatcher.isTemporary(name1)) && ArchiveReader.isArchive(name1);
+    }
+
+    /**
+     * 名前だけでアップロード対象かどうか調べる
+     * @param name1 名前
+     * @return 対象なら true
+     */
+    private boolean isTargetName(final String name1) {
+        if (this.ignoreTemporaryFiles && DelayedWatcher.isTemporary(name1)) {
+            return false;
+        }
+        return this.targetExtensions.isEmpty() || this.targetExtensions.contains(FilenameUtils.getExtension(name1));
     }
 
     /**
@@ -213,18 +1525,33 @@ public class DirectoryUploader implements Runnable {
      * @throws Exception データ読み書きエラー
      */
     private String getToken() throws Exception {
-        final String localToken = this.store.load(Constants.STORE_KEY_TOKEN);
+        return getToken(this.store, this.tokenUrl, this.userId, this.id, this.name);
+    }
+
+    /**
+     * 認証トークンを返す
+     * 認証トークンのキャッシュ管理も行う
+     * @param store1 運用データの保管庫
+     * @param tokenUrl1 認証トークンを取得するための URL
+     * @param userId1 紐付くユーザーの ID
+     * @param id1 自身の ID
+     * @param name1 自身の表示名
+     * @return 認証トークン
+     * @throws Exception データ読み書きエラー
+     */
+    static String getToken(final Store store1, final URI tokenUrl1, final String userId1, final String id1, final String name1) throws Exception {
+        final String localToken = store1.load(Constants.STORE_KEY_TOKEN);
         if (localToken != null) {
             if (isValidToken(localToken)) {
                 return localToken;
             }
-            this.store.clear(Constants.STORE_KEY_TOKEN);
+            store1.clear(Constants.STORE_KEY_TOKEN);
         }
-        final String token1 = getRemoteToken();
+        final String token1 = getRemoteToken(tokenUrl1, userId1, id1, name1);
         if (token1 == null) {
             throw new RuntimeException("Cannot get token");
         }
-        this.store.store(Constants.STORE_KEY_TOKEN, token1);
+        store1.store(Constants.STORE_KEY_TOKEN, token1);
         return token1;
     }
 
@@ -233,7 +1560,7 @@ public class DirectoryUploader implements Runnable {
      * @param token 調べる認証トークン
      * @return 有効なら true
      */
-    private boolean isValidToken(final String token1) {
+    private static boolean isValidToken(final String token1) {
         // TODO 実際にサーバーにつなげて検査
         LOG.info("Token check is not implemented");
         return true;
@@ -241,14 +1568,23 @@ public class DirectoryUploader implements Runnable {
 
     /**
      * サーバーからトークンを取得する
+     * @param tokenUrl1 認証トークンを取得するための URL
+     * @param userId1 紐付くユーザーの ID
+     * @param id1 自身の ID
+     * @param name1 自身の表示名
      * @return トークン
      * @throws IOException ネットワークエラー
      */
-    private String getRemoteToken() throws IOException {
+    private static String getRemoteToken(final URI tokenUrl1, final String userId1, final String id1, final String name1) throws IOException {
         try (CloseableHttpClient client = HttpClients.createDefault()) {
 
-            final HttpPost post = new HttpPost(this.tokenUrl);
-            post.setEntity(new StringEntity((new TokenRequestBody(this.userId, this.id, this.name)).toJson(), ContentType.APPLICATION_JSON));
+            final HttpPost post = new HttpPost(tokenUrl1);
+            // 取得できるまでやり直すので、応答の無いサーバーを待ち続けない
+            post.setConfig(RequestConfig.custom()
+                    .setConnectTimeout(TOKEN_TIMEOUT)
+                    .setSocketTimeout(TOKEN_TIMEOUT)
+                    .build());
+            post.setEntity(new StringEntity((new TokenRequestBody(userId1, id1, name1)).toJson(), ContentType.APPLICATION_JSON));
 
             try (CloseableHttpResponse response = client.execute(post)) {
                 if (response.getStatusLine().getStatusCode() == HttpURLConnection.HTTP_CREATED) {
@@ -256,38 +1592,183 @@ public class DirectoryUploader implements Runnable {
                 }
 
                 LOG.warning(response.toString());
-                LOG.info("Retrying request is not implemented");
                 return null;
             }
         }
     }
 
     /**
-     * ファイルをアップロードする
+     * 前回アップロードした内容があれば差分を、無ければ全体をアップロードする
+     * @param limiter1 制限。null なら制限しない
+     * @param transport1 送り方
      * @param token1 認証トークン
-     * @param path アップロードするファイルのパス
+     * @param deltaSync1 差分を作るもの
+     * @param key ファイルのパス
+     * @param payload アップロードするデータ
+     * @return HTTP ステータスコードと送ったバイト数
      * @throws IOException ファイルが無かったり、通信異常だったり
-     * @throws HttpException HTTP エラー
+     * @throws InterruptedException 空きを待っている間に割り込まれた
      */
-    private void upload(final String token1, final Path path) throws HttpException, IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
+    private Pair<Integer, Long> uploadDelta(final AdaptiveLimiter limiter1, final Transport transport1, final String token1, final DeltaSync deltaSync1, final Path key,
+            final Payload payload) throws IOException, InterruptedException {
+        if (!DeltaSync.isTarget(payload.getLength())) {
+            // 小さくなったなら前回のハッシュ値はもう使わない
+            final int statusCode = upload(limiter1, transport1, token1, payload, Collections.emptyMap());
+            if (statusCode == HttpURLConnection.HTTP_CREATED) {
+                deltaSync1.forget(key);
+            }
+            return new Pair<>(statusCode, payload.getLength());
+        }
 
-            final HttpPost post = new HttpPost(this.uploadUrl);
-            post.setEntity(MultipartEntityBuilder.create()
-                    .addTextBody("info", "{}")
-                    .addTextBody(Constants.UPLOAD_REQUEST_PART_TOKEN, token1)
-                    .addBinaryBody(Constants.UPLOAD_REQUEST_PART_DATA, path.toFile())
-                    .build());
+        final DeltaSync.Signature base = deltaSync1.load(key);
+        if (base != null) {
+            try (DeltaSync.Delta delta = DeltaSync.encode(payload, base)) {
+                if (delta == null) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Send whole " + key + " changed too much");
+                    }
+                } else {
+                    final Payload deltaPayload = delta.toPayload(payload.getName());
+                    final Map<String, String> info = Collections.singletonMap(Constants.UPLOAD_REQUEST_INFO_KEY_DELTA_BASE, delta.getBaseDigest());
+                    final int statusCode = upload(limiter1, transport1, token1, deltaPayload, info);
+                    if (statusCode == HttpURLConnection.HTTP_CREATED) {
+                        deltaSync1.save(key, delta.getSignature());
+                        return new Pair<>(statusCode, deltaPayload.getLength());
+                    }
+                    // サーバーが前回の内容を持っていないかもしれない
+                    LOG.info("Send whole " + key + " because server refused delta with " + statusCode);
+                }
+            }
+        }
 
-            LOG.info("Upload " + path);
+        final DeltaSync.SignatureBuilder signature = new DeltaSync.SignatureBuilder(DeltaSync.blockSize(payload.getLength()));
+        final int statusCode = upload(limiter1, transport1, token1, DeltaSync.teed(payload, signature), Collections.emptyMap());
+        if (statusCode == HttpURLConnection.HTTP_CREATED) {
+            deltaSync1.save(key, signature.finish());
+        }
+        return new Pair<>(statusCode, payload.getLength());
+    }
 
-            try (CloseableHttpResponse response = client.execute(post)) {
-                if (response.getStatusLine().getStatusCode() == HttpURLConnection.HTTP_CREATED) {
-                    return;
+    /**
+     * 1 度だけ読んだデータを元の送り先と全ての別の送り先に同時にアップロードする
+     * @param limiter1 元の送り先への制限。null なら制限しない
+     * @param transport1 元の送り先への送り方
+     * @param token1 元の送り先の認証トークン
+     * @param fanOutExecutor1 別の送り先にアップロードするスレッド
+     * @param payload アップロードするデータ
+     * @param info データと一緒に送る情報
+     * @return 元の送り先の HTTP ステータスコードと、別の送り先ごとの結果
+     * @throws IOException ファイルが無かったり、通信異常だったり
+     * @throws InterruptedException 空きを待っている間に割り込まれた
+     */
+    private Pair<Integer, Map<String, UploadResult>> uploadFanOut(final AdaptiveLimiter limiter1, final Transport transport1, final String token1,
+            final ExecutorService fanOutExecutor1, final Payload payload, final Map<String, String> info) throws IOException, InterruptedException {
+        final FanOut fanOut = new FanOut(payload, 1 + this.destinations.size(), this.socketTimeout);
+        fanOutExecutor1.execute(fanOut);
+
+        final List<CompletableFuture<UploadResult>> futures = new ArrayList<>();
+        for (int i = 0; i < this.destinations.size(); i++) {
+            final Destination destination = this.destinations.get(i);
+            final FanOut.Branch branch = fanOut.getBranch(1 + i);
+            try {
+                futures.add(CompletableFuture.supplyAsync(() -> upload(destination, branch, payload, info), fanOutExecutor1));
+            } catch (final RejectedExecutionException e) {
+                // 止めている最中だった
+                branch.close();
+                futures.add(CompletableFuture.completedFuture(new UploadResult(payload.toString(), UploadResult.Status.FAILED, -1, 0)));
+            }
+        }
+
+        final FanOut.Branch branch = fanOut.getBranch(0);
+        final int statusCode;
+        try {
+            statusCode = upload(limiter1, transport1, token1, branch, info);
+        } finally {
+            branch.close();
+        }
+
+        final Map<String, UploadResult> results = new LinkedHashMap<>();
+        for (int i = 0; i < this.destinations.size(); i++) {
+            results.put(this.destinations.get(i).toString(), futures.get(i).join());
+        }
+        return new Pair<>(statusCode, results);
+    }
+
+    /**
+     * 別の送り先にアップロードする。
+     * 通信異常やサーバーの異常で失敗したら、元のデータが何度でも読めれば、送り先ごとに間を空けて送り直す
+     * @param destination 送り先
+     * @param branch アップロードするデータ
+     * @param source 送り直すときに読む元のデータ
+     * @param info データと一緒に送る情報
+     * @return 結果
+     */
+    private UploadResult upload(final Destination destination, final FanOut.Branch branch, final Payload source, final Map<String, String> info) {
+        final long start = System.currentTimeMillis();
+        Payload payload = branch;
+        for (int attempt = 1;; attempt++) {
+            int statusCode = -1;
+            try {
+                statusCode = destination.getTransport().send(destination.getToken(), payload, info);
+                if (statusCode == HttpURLConnection.HTTP_CREATED) {
+                    destination.sendSucceeded();
+                    return new UploadResult(branch.toString(), UploadResult.Status.UPLOADED, statusCode, System.currentTimeMillis() - start, branch.getLength());
                 }
+            } catch (final Exception e) {
+                LOG.warning("Upload " + branch + " to " + destination + " failed: " + e);
+            } finally {
+                // 読み込みを止めない
+                branch.close();
+            }
 
-                LOG.warning(response.toString());
+            // 受け付けられなかったものは送り直しても無駄
+            final boolean retryable = (statusCode < 0 || statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                    || AdaptiveLimiter.classify(statusCode) == AdaptiveLimiter.Outcome.OVERLOAD);
+            final long wait = (retryable ? destination.sendFailed() : -1);
+            if (wait < 0 || attempt >= Destination.SEND_ATTEMPTS || !source.isRepeatable()) {
+                return new UploadResult(branch.toString(), UploadResult.Status.FAILED, statusCode, System.currentTimeMillis() - start);
             }
+            LOG.info("Retry uploading " + branch + " to " + destination + " in " + wait + " ms");
+            try {
+                Thread.sleep(wait);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new UploadResult(branch.toString(), UploadResult.Status.FAILED, statusCode, System.currentTimeMillis() - start);
+            }
+            payload = source;
+        }
+    }
+
+    /**
+     * 同時にアップロードする数の制限に従ってデータをアップロードする
+     * @param limiter1 制限。null なら制限しない
+     * @param transport1 送り方
+     * @param token1 認証トークン
+     * @param payload アップロードするデータ
+     * @param info 送り先に伝える付加情報
+     * @return HTTP ステータスコード
+     * @throws IOException ファイルが無かったり、通信異常だったり
+     * @throws InterruptedException 空きを待っている間に割り込まれた
+     */
+    private int upload(final AdaptiveLimiter limiter1, final Transport transport1, final String token1, final Payload payload, final Map<String, String> info)
+            throws IOException, InterruptedException {
+        if (limiter1 == null) {
+            return transport1.send(token1, payload, info);
+        }
+
+        limiter1.acquire();
+        final AdaptiveLimiter.Timer timer = new AdaptiveLimiter.Timer();
+        AdaptiveLimiter.Outcome outcome = AdaptiveLimiter.Outcome.IGNORE;
+        try {
+            final int statusCode = transport1.send(token1, timer.wrap(payload), info);
+            outcome = AdaptiveLimiter.classify(statusCode);
+            return statusCode;
+        } catch (final InterruptedIOException e) {
+            // 接続や読み込みのタイムアウト
+            outcome = AdaptiveLimiter.Outcome.OVERLOAD;
+            throw e;
+        } finally {
+            limiter1.release(timer.elapsed(), outcome);
         }
     }
 
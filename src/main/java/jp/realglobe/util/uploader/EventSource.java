@@ -0,0 +1,70 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 監視イベントの出どころ。
+ * 本物のディレクトリ監視の代わりに、筋書き通りのイベントを流して試せるようにする
+ */
+interface EventSource extends Closeable {
+
+    /**
+     * 1 つのイベント
+     */
+    static final class Event {
+
+        private final WatchTrace.Kind kind;
+        private final Path name;
+
+        /**
+         * @param kind 種類
+         * @param name 監視ディレクトリからの相対パス。あふれの場合は null
+         */
+        Event(final WatchTrace.Kind kind, final Path name) {
+            this.kind = kind;
+            this.name = name;
+        }
+
+        WatchTrace.Kind getKind() {
+            return this.kind;
+        }
+
+        Path getName() {
+            return this.name;
+        }
+
+        @Override
+        public String toString() {
+            return this.kind + " " + this.name;
+        }
+
+    }
+
+    /**
+     * イベントを待つ
+     * @param timeout 待つ時間（ミリ秒）。Long.MAX_VALUE なら来るまで待つ
+     * @return 届いたイベント。時間切れなら空。もうイベントが来ないなら null
+     * @throws InterruptedException 待機中に割り込まれた
+     * @throws IOException 監視エラー
+     */
+    List<Event> poll(long timeout) throws InterruptedException, IOException;
+
+}
@@ -0,0 +1,256 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 1 度だけ読んだデータを複数の読み手に配る。
+ * run で読み込み、読んだ分を各読み手の待ち行列に入れる。
+ * 遅い読み手がいると、待ち行列が空くまで読み込みを待つ。
+ * ただし、待ち行列が詰まったまま時間切れになった読み手は切り離し、その読み手には読み込みエラーを返す。
+ * 読み終えた、または諦めた読み手は close すること
+ */
+final class FanOut implements Runnable {
+
+    // 読み手ごとに溜める塊の数
+    private static final int QUEUE_CAPACITY = 64;
+    // 待ち行列や読み込みの終わりを確かめる間隔
+    private static final long POLL_INTERVAL = 100L;
+
+    private final Payload source;
+    private final List<Branch> branches;
+    // 読み手の待ち行列が詰まったままでいられる時間（ミリ秒）。0 以下なら待ち続ける
+    private final long stallTimeout;
+
+    // 読み込みを終えたか
+    private volatile boolean done;
+    // 読み込みエラー
+    private volatile IOException error;
+
+    /**
+     * 作成する
+     * @param source 元のデータ
+     * @param count 読み手の数
+     * @param stallTimeout 読み手の待ち行列が詰まったままでいられる時間（ミリ秒）。0 以下なら待ち続ける
+     */
+    FanOut(final Payload source, final int count, final long stallTimeout) {
+        this.source = source;
+        this.stallTimeout = stallTimeout;
+        this.branches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            this.branches.add(new Branch());
+        }
+    }
+
+    /**
+     * @param index 読み手の番号
+     * @return 読み手に渡すデータ
+     */
+    Branch getBranch(final int index) {
+        return this.branches.get(index);
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.source.writeTo(new OutputStream() {
+
+                @Override
+                public void write(final int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    if (len <= 0) {
+                        return;
+                    }
+                    // 読み手の間では共有する
+                    final byte[] chunk = Arrays.copyOfRange(b, off, off + len);
+                    boolean open = false;
+                    for (final Branch branch : FanOut.this.branches) {
+                        open |= branch.offer(chunk);
+                    }
+                    if (!open) {
+                        throw new IOException("No one reads " + FanOut.this.source);
+                    }
+                }
+
+            });
+        } catch (final IOException e) {
+            this.error = e;
+        } catch (final RuntimeException e) {
+            this.error = new IOException(e);
+        } finally {
+            this.done = true;
+        }
+    }
+
+    /**
+     * 1 つの読み手に渡すデータ。
+     * 1 度しか読めない
+     */
+    final class Branch extends Payload {
+
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final AtomicBoolean opened = new AtomicBoolean();
+        private volatile boolean closed;
+        // 読むのが遅すぎて切り離されたか
+        private volatile boolean stalled;
+
+        private Branch() {
+            super(FanOut.this.source.getName(), FanOut.this.source.getContentType());
+        }
+
+        @Override
+        public long getLength() {
+            return FanOut.this.source.getLength();
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        Path getPath() {
+            return FanOut.this.source.getPath();
+        }
+
+        /**
+         * 読んだ塊を渡す。
+         * 待ち行列が詰まったまま時間切れになったら切り離す
+         * @param chunk 塊
+         * @return まだ読み手が読んでいれば true
+         * @throws InterruptedIOException 待機中に割り込まれた
+         */
+        private boolean offer(final byte[] chunk) throws InterruptedIOException {
+            try {
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FanOut.this.stallTimeout);
+                while (!this.closed) {
+                    if (this.queue.offer(chunk, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    } else if (FanOut.this.stallTimeout > 0 && System.nanoTime() - deadline > 0) {
+                        this.stalled = true;
+                        close();
+                        return false;
+                    }
+                }
+                return false;
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while fanning out " + FanOut.this.source);
+            }
+        }
+
+        /**
+         * 次の塊を受け取る
+         * @return 塊。終わりなら null
+         * @throws IOException 読み込みエラー
+         */
+        private byte[] take() throws IOException {
+            try {
+                while (true) {
+                    if (this.stalled) {
+                        // 途中が抜けているので続きは渡さない
+                        throw new IOException("Fell behind reading " + FanOut.this.source);
+                    }
+                    final byte[] chunk = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (chunk != null) {
+                        return chunk;
+                    } else if (FanOut.this.done) {
+                        // 終わる前に入れられた分を受け取る
+                        final byte[] rest = this.queue.poll();
+                        if (rest != null) {
+                            return rest;
+                        } else if (this.stalled) {
+                            throw new IOException("Fell behind reading " + FanOut.this.source);
+                        } else if (FanOut.this.error != null) {
+                            throw new IOException("Cannot read " + FanOut.this.source, FanOut.this.error);
+                        }
+                        return null;
+                    }
+                }
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while reading " + FanOut.this.source);
+            }
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            if (this.opened.getAndSet(true)) {
+                throw new IOException("Already read " + this);
+            }
+            return new InputStream() {
+
+                private byte[] chunk;
+                private int position;
+
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (this.chunk == null || this.position == this.chunk.length) {
+                        this.chunk = take();
+                        this.position = 0;
+                        if (this.chunk == null) {
+                            return -1;
+                        }
+                    }
+                    final int length = Math.min(len, this.chunk.length - this.position);
+                    System.arraycopy(this.chunk, this.position, b, off, length);
+                    this.position += length;
+                    return length;
+                }
+
+                @Override
+                public void close() {
+                    Branch.this.close();
+                }
+
+            };
+        }
+
+        /**
+         * 読むのをやめる
+         */
+        void close() {
+            this.closed = true;
+            this.queue.clear();
+        }
+
+    }
+
+}
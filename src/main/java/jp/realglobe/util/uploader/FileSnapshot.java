@@ -0,0 +1,170 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * アップロード中に変わらないファイルの写し。
+ * 小さいファイルはメモリに読み込む。
+ * 大きいファイルはハードリンクを作り、書き手がファイルを置き換えても元の中身を読めるようにする。
+ * どちらの場合も前後で大きさと更新日時を比べ、その場で書き換えられたことを検知する。
+ * Java からは copy-on-write な複製（reflink）を作れないので、それは使わない
+ */
+final class FileSnapshot implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(FileSnapshot.class.getName());
+
+    /**
+     * 写しを取っている最中やアップロード中にファイルが変わった
+     */
+    static final class ChangedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        ChangedException(final Path path) {
+            super("Changed during upload " + path);
+        }
+
+    }
+
+    private final Path path;
+    private final BasicFileAttributes before;
+    private final Payload payload;
+    // ハードリンク。無ければ null
+    private final Path link;
+
+    private FileSnapshot(final Path path, final BasicFileAttributes before, final Payload payload, final Path link) {
+        this.path = path;
+        this.before = before;
+        this.payload = payload;
+        this.link = link;
+    }
+
+    /**
+     * 写しを取る
+     * @param path ファイルパス
+     * @param memoryLimit これ以下の大きさのファイルはメモリに読み込む
+     * @param linkDirectory ハードリンクを作るディレクトリ。監視ディレクトリと同じファイルシステムにあること。
+     *            null やリンクを作れない場合は元のファイルを直接読み、アップロード後に変化を調べる
+     * @return 写し
+     * @throws ChangedException 読み込み中にファイルが変わった
+     * @throws IOException 読み込みエラー
+     */
+    static FileSnapshot take(final Path path, final long memoryLimit, final Path linkDirectory) throws IOException {
+        final BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+        final String name = path.getFileName().toString();
+
+        if (before.size() <= memoryLimit) {
+            final byte[] data = Files.readAllBytes(path);
+            if (data.length != before.size() || !isSame(before, Files.readAttributes(path, BasicFileAttributes.class))) {
+                throw new ChangedException(path);
+            }
+            return new FileSnapshot(path, before, Payload.of(name, data, null), null);
+        }
+
+        if (linkDirectory != null) {
+            final Path link = linkDirectory.resolve(UUID.randomUUID().toString());
+            try {
+                Files.createDirectories(linkDirectory);
+                Files.createLink(link, path);
+                return new FileSnapshot(path, before, linked(name, link), link);
+            } catch (final IOException | UnsupportedOperationException e) {
+                LOG.fine("Cannot link " + path + ": " + e);
+            }
+        }
+        return new FileSnapshot(path, before, Payload.of(path), null);
+    }
+
+    /**
+     * @return アップロードするデータ
+     */
+    Payload getPayload() {
+        return this.payload;
+    }
+
+    /**
+     * 写しを取ってから中身が変わっていないか調べる
+     * @throws ChangedException 変わった
+     * @throws IOException 読み込みエラー
+     */
+    void verify() throws IOException {
+        if (this.payload.getPath() == null && this.link == null) {
+            // メモリ上の写しは変わらない
+            return;
+        }
+        // リンクの場合も同じ実体を見ている
+        final BasicFileAttributes after = Files.readAttributes(this.link != null ? this.link : this.path, BasicFileAttributes.class);
+        if (!isSame(this.before, after)) {
+            throw new ChangedException(this.path);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.link == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(this.link);
+        } catch (final IOException e) {
+            LOG.warning("Cannot delete snapshot " + this.link + ": " + e);
+        }
+    }
+
+    private static boolean isSame(final BasicFileAttributes attributes1, final BasicFileAttributes attributes2) {
+        return attributes1.size() == attributes2.size() && attributes1.lastModifiedTime().equals(attributes2.lastModifiedTime())
+                && Objects.equals(attributes1.fileKey(), attributes2.fileKey());
+    }
+
+    /**
+     * 元のファイル名を名乗るハードリンクのデータ
+     * @param name 元のファイル名
+     * @param link ハードリンク
+     * @return データ
+     */
+    private static Payload linked(final String name, final Path link) {
+        final Payload base = Payload.of(link);
+        return new Payload(name, null) {
+
+            @Override
+            public long getLength() {
+                return base.getLength();
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return base.openStream();
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws IOException {
+                base.writeTo(output);
+            }
+
+        };
+    }
+
+}
@@ -17,8 +17,12 @@
 package jp.realglobe.util.uploader;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * ファイルに保存
@@ -66,7 +70,7 @@ public class FileStore implements Store {
     public void store(final String key, final String value) throws IOException {
         final Path path = makePath(key);
         try {
-            Files.write(path, value.getBytes(Constants.UTF8));
+            write(path, value);
         } catch (final IOException e) {
             // ディレクトリが無かったのかもしれない
             final Path parent = path.getParent();
@@ -76,8 +80,33 @@ public class FileStore implements Store {
                 throw e;
             }
             Files.createDirectories(parent);
-            Files.write(path, value.getBytes(Constants.UTF8));
+            write(path, value);
         }
     }
 
+    /**
+     * 一時ファイルに書いてディスクに落としてから置き換え、置き換えもディスクに落とす。
+     * 途中で落ちても書きかけの値が残らないようにするため
+     * @param path 書き込み先
+     * @param value 書き込む値
+     * @throws IOException 書き込みエラー
+     */
+    private static void write(final Path path, final String value) throws IOException {
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(value.getBytes(Constants.UTF8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Utils.syncDirectory(path.getParent());
+    }
+
 }
@@ -0,0 +1,318 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * 定点カメラの、前回アップロードしたものとほとんど同じ画像を飛ばす。
+ * 画像を 9x8 の輝度に縮めて隣り合う画素の大小を並べた 64 ビットの差分ハッシュで比べるので、
+ * センサーのノイズや再圧縮の違いは無視できる。
+ * 比べる相手はカメラごとの最後にアップロードした画像で、カメラはファイル名から見分ける
+ */
+public class FrameDeduplicator {
+
+    private static final Logger LOG = Logger.getLogger(FrameDeduplicator.class.getName());
+
+    private static final Set<String> EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("jpg", "jpeg", "png")));
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    // 縮めるときに 1 マスあたりこれくらいの画素は読む
+    private static final int SAMPLES_PER_CELL = 8;
+
+    /**
+     * 標準のカメラの見分け方。
+     * 最初の区切り文字（- か _）までをカメラとみなす。cam1-0001.jpg と cam1_20170101.jpg はどちらも cam1。
+     * 20170101120000.jpg のように区切り文字が無ければ一致せず、親ディレクトリをカメラとみなす
+     */
+    public static final Pattern DEFAULT_SOURCE_PATTERN = Pattern.compile("^([^-_.]+)[-_]");
+
+    // 覚えておくカメラの数。超えたら長く使っていないものから忘れる
+    private static final int MAX_SOURCES = 1024;
+
+    // 同じとみなす最大のハミング距離
+    private final int threshold;
+    // 似ていてもこの枚数ごとに 1 枚はアップロードする。0 以下なら強制しない
+    private final int keyframeInterval;
+    // カメラの見分け方
+    private final Pattern sourcePattern;
+
+    // カメラから最後にアップロードした画像の状態。使った順。this で排他する
+    private final Map<String, Frame> frames = new LinkedHashMap<String, Frame>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Frame> eldest) {
+            return size() > MAX_SOURCES;
+        }
+
+    };
+
+    /**
+     * カメラごとの状態
+     */
+    private static final class Frame {
+        // 最後にアップロードした画像のハッシュ
+        private long hash;
+        // それから飛ばした枚数
+        private int skipped;
+
+        Frame(final long hash) {
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * 作成する
+     * @param threshold 同じとみなす最大のハミング距離（0 から 64）。5 前後ならノイズだけの違いを同じとみなせる
+     * @param keyframeInterval 似ていてもこの枚数ごとに 1 枚はアップロードする。0 以下なら強制しない
+     */
+    public FrameDeduplicator(final int threshold, final int keyframeInterval) {
+        this(threshold, keyframeInterval, DEFAULT_SOURCE_PATTERN);
+    }
+
+    /**
+     * 作成する
+     * @param threshold 同じとみなす最大のハミング距離（0 から 64）。5 前後ならノイズだけの違いを同じとみなせる
+     * @param keyframeInterval 似ていてもこの枚数ごとに 1 枚はアップロードする。0 以下なら強制しない
+     * @param sourcePattern ファイル名からカメラを見分ける正規表現。最初のグループか、グループが無ければ一致した部分をカメラとみなす。
+     *            一致しなければ親ディレクトリをカメラとみなす
+     */
+    public FrameDeduplicator(final int threshold, final int keyframeInterval, final Pattern sourcePattern) {
+        if (threshold < 0 || threshold > Long.SIZE) {
+            throw new IllegalArgumentException("Invalid threshold " + threshold);
+        }
+        this.threshold = threshold;
+        this.keyframeInterval = keyframeInterval;
+        this.sourcePattern = sourcePattern;
+    }
+
+    /**
+     * 比べる対象の画像かどうか
+     * @param name ファイル名
+     * @return 対象なら true
+     */
+    boolean isTarget(final String name) {
+        return EXTENSIONS.contains(FilenameUtils.getExtension(name).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * カメラを見分ける
+     * @param payload 画像データ
+     * @return カメラ
+     */
+    String getSource(final Payload payload) {
+        final Matcher matcher = this.sourcePattern.matcher(payload.getName());
+        if (matcher.find()) {
+            return (matcher.groupCount() > 0 ? matcher.group(1) : matcher.group());
+        }
+        final Path path = payload.getPath();
+        final Path parent = (path == null ? null : path.getParent());
+        return (parent == null ? "" : parent.toString());
+    }
+
+    /**
+     * 前回アップロードした画像とほとんど同じか調べる。
+     * 同じでなければ、この画像をアップロードできたものとして次の比べる相手にする
+     * @param payload 画像データ
+     * @return 飛ばしてよいなら true。画像でなかったり読めなかったりすれば false
+     */
+    boolean isDuplicate(final Payload payload) {
+        final Check check = check(payload);
+        if (!check.isDuplicate()) {
+            commit(check);
+        }
+        return check.isDuplicate();
+    }
+
+    /**
+     * 前回アップロードした画像とほとんど同じか調べる。
+     * 比べる相手は変えないので、アップロードできたら commit すること。
+     * 壊れていて読めない画像は、アップロードを止めないように、画像でないものとして扱う
+     * @param payload 画像データ
+     * @return 結果
+     */
+    Check check(final Payload payload) {
+        final Long hash;
+        try {
+            hash = hash(payload);
+        } catch (final IOException | RuntimeException e) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Cannot decode " + payload + ": " + e);
+            }
+            return new Check(null, null, false);
+        }
+        if (hash == null) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Not image " + payload);
+            }
+            return new Check(null, null, false);
+        }
+        final String source = getSource(payload);
+        synchronized (this) {
+            final Frame frame = this.frames.get(source);
+            if (frame == null) {
+                return new Check(source, hash, false);
+            }
+            final int distance = Long.bitCount(frame.hash ^ hash);
+            if (distance <= this.threshold && (this.keyframeInterval <= 0 || frame.skipped + 1 < this.keyframeInterval)) {
+                frame.skipped++;
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Skip " + payload + " similar to last frame of " + source + " (distance " + distance + ")");
+                }
+                return new Check(source, hash, true);
+            }
+        }
+        return new Check(source, hash, false);
+    }
+
+    /**
+     * アップロードできた画像を次の比べる相手にする。
+     * 送れなかった画像と比べて、サーバーに無い画像を飛ばさないように、受け付けられてから呼ぶこと
+     * @param check 飛ばさなかった画像を調べた結果
+     */
+    synchronized void commit(final Check check) {
+        if (check.hash == null || check.duplicate) {
+            return;
+        }
+        final Frame frame = this.frames.get(check.source);
+        if (frame == null) {
+            this.frames.put(check.source, new Frame(check.hash));
+        } else {
+            frame.hash = check.hash;
+            frame.skipped = 0;
+        }
+    }
+
+    /**
+     * 調べた結果
+     */
+    static final class Check {
+
+        private final String source;
+        // 画像でなければ null
+        private final Long hash;
+        private final boolean duplicate;
+
+        Check(final String source, final Long hash, final boolean duplicate) {
+            this.source = source;
+            this.hash = hash;
+            this.duplicate = duplicate;
+        }
+
+        /**
+         * @return 飛ばしてよいなら true
+         */
+        boolean isDuplicate() {
+            return this.duplicate;
+        }
+
+    }
+
+    /**
+     * 差分ハッシュを計算する
+     * @param payload 画像データ
+     * @return 差分ハッシュ。画像でなければ null
+     * @throws IOException 読み込みエラー
+     */
+    static Long hash(final Payload payload) throws IOException {
+        final BufferedImage image;
+        try (InputStream input = payload.openStream();
+                ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            if (imageInput == null) {
+                return null;
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                // 必要な分だけ間引いて読むので、大きな画像でも軽い
+                final ImageReadParam param = reader.getDefaultReadParam();
+                final int xStep = Math.max(1, reader.getWidth(0) / (HASH_WIDTH * SAMPLES_PER_CELL));
+                final int yStep = Math.max(1, reader.getHeight(0) / (HASH_HEIGHT * SAMPLES_PER_CELL));
+                param.setSourceSubsampling(xStep, yStep, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        return hash(image);
+    }
+
+    /**
+     * 差分ハッシュを計算する。
+     * 9x8 のマスごとに輝度を平均し、各行で左のマスが右より明るければ 1 を立てる
+     * @param image 画像
+     * @return 差分ハッシュ
+     */
+    static long hash(final BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final long[] sums = new long[HASH_WIDTH * HASH_HEIGHT];
+        final int[] counts = new int[HASH_WIDTH * HASH_HEIGHT];
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            final int cellY = (int) ((long) y * HASH_HEIGHT / height);
+            for (int x = 0; x < width; x++) {
+                final int rgb = row[x];
+                // ITU-R BT.601 の輝度を整数で
+                final int luma = (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114);
+                final int cell = cellY * HASH_WIDTH + (int) ((long) x * HASH_WIDTH / width);
+                sums[cell] += luma;
+                counts[cell]++;
+            }
+        }
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                final int left = y * HASH_WIDTH + x;
+                // 平均同士を比べる。割り算を避けて掛け合わせる
+                final boolean brighter = sums[left] * Math.max(1, counts[left + 1]) > sums[left + 1] * Math.max(1, counts[left]);
+                hash = (hash << 1) | (brighter ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+}
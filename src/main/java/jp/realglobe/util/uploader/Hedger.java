@@ -0,0 +1,541 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 遅れているアップロードをもう 1 本の接続で追いかける。
+ * 最近の応答時間の 95 パーセンタイルを過ぎても終わらなければ同じデータをもう 1 度送り始め、先に受け付けられた方を使い、もう一方は止める。
+ * どちらも返らなければ、送り方の時間切れか応答時間の数十倍で諦める。
+ * 詰まった接続が 1 本あるだけで待ち時間の裾が伸びるのを防ぐ。
+ * 2 重に送ることになるので、小さなファイルにだけ使い、追いかけるのは送信数の数パーセントまでにする。
+ * 同時実行数の制限があれば、追いかける送信にも枠を使い、空いていなければ追いかけない。
+ * どちらにも同じ冪等キーを付けるので、サーバーは重複を捨てられる
+ */
+final class Hedger implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(Hedger.class.getName());
+
+    // 覚えておく応答時間の数
+    private static final int SAMPLES = 256;
+    // 追いかけ始めるのに要る応答時間の数。それまでは追いかけない
+    private static final int MIN_SAMPLES = 20;
+    // 追いかけ始める応答時間のパーセンタイル
+    private static final double PERCENTILE = 0.95;
+    // 送信 1 回ごとに増える追いかけられる数
+    private static final double BUDGET_RATIO = 0.05;
+    // 追いかけられる数の上限。サーバーが遅くなってもこれ以上は続けて追いかけない
+    private static final double MAX_BUDGET = 10;
+    // 結果を待つ時間の、追いかけ始めるまでの時間に対する倍率
+    private static final long WAIT_FACTOR = 20;
+    // 送り方の時間切れが無いときに、結果を待つ最短の時間（ナノ秒）
+    private static final long MIN_WAIT = TimeUnit.SECONDS.toNanos(10);
+
+    private static final int SECRET_SIZE = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // 追いかける最大ファイルサイズ（バイト）
+    private final long maxSize;
+    // 冪等キーを作る HMAC の鍵
+    private final byte[] secret;
+    // 送り方の時間切れ（ナノ秒）。0 以下なら無し
+    private final long timeout;
+    // 送るスレッド
+    private final ExecutorService executor;
+
+    // 以下、this で排他する
+    // 最近受け付けられた送信の応答時間（ナノ秒）。循環して使う
+    private final long[] latencies = new long[SAMPLES];
+    private long count;
+    // 追いかけられる数
+    private double budget;
+    // 追いかけた数
+    private long hedges;
+
+    /**
+     * 作成する
+     * @param maxSize 追いかける最大ファイルサイズ（バイト）
+     * @param secret 冪等キーを作る HMAC の鍵
+     * @param timeout 送り方の時間切れ（ミリ秒）。結果はこれか最近の応答時間の数十倍の長い方まで待つ。0 以下なら無し
+     * @param virtual 仮想スレッドで送るか
+     */
+    Hedger(final long maxSize, final byte[] secret, final long timeout, final boolean virtual) {
+        this.maxSize = maxSize;
+        this.secret = secret.clone();
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.executor = Executors.newCachedThreadPool(Threads.newFactory("hedge", virtual));
+    }
+
+    /**
+     * 保管庫から冪等キーを作る鍵を読む。
+     * 無ければ作って保存する。保管庫が無ければ使い捨ての鍵を作る
+     * @param store 保管庫。null なら使わない
+     * @return 鍵
+     * @throws Exception 保管庫の読み書きエラー
+     */
+    static byte[] loadSecret(final Store store) throws Exception {
+        final String value = (store == null ? null : store.load(Constants.STORE_KEY_IDEMPOTENCY_SECRET));
+        if (value != null) {
+            return Base64.getDecoder().decode(value);
+        }
+        final byte[] secret = new byte[SECRET_SIZE];
+        RANDOM.nextBytes(secret);
+        if (store != null) {
+            store.store(Constants.STORE_KEY_IDEMPOTENCY_SECRET, Base64.getEncoder().encodeToString(secret));
+        }
+        return secret;
+    }
+
+    /**
+     * 追いかけるデータか調べる
+     * @param payload データ
+     * @return 何度でも読めて、十分に小さければ true
+     */
+    boolean isTarget(final Payload payload) {
+        final long length = payload.getLength();
+        return payload.isRepeatable() && 0 <= length && length <= this.maxSize;
+    }
+
+    /**
+     * 遅れたらもう 1 度送る。
+     * どちらの送信も、終わったら結果を同時実行数の制限に伝える。
+     * 結果を決めたら残りの送信は割り込んで止める
+     * @param limiter 同時実行数の制限。null なら制限しない
+     * @param transport 送り方
+     * @param token 認証トークン
+     * @param payload データ。何度でも読めること
+     * @param info 送り先に伝える付加情報。冪等キーを入れておくこと
+     * @return 先に受け付けられた方の結果。どちらも受け付けられなければ後の方の結果
+     * @throws IOException 送れなかった。待つ時間を過ぎたら InterruptedIOException
+     * @throws InterruptedException 空きを待っている間に割り込まれた
+     */
+    int send(final AdaptiveLimiter limiter, final Transport transport, final String token, final Payload payload, final Map<String, String> info)
+            throws IOException, InterruptedException {
+        final long delay = getDelay();
+        final long timeout = getTimeout(delay);
+        final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+        final List<Attempt> attempts = new ArrayList<>(2);
+        if (limiter != null) {
+            limiter.acquire();
+        }
+        final long deadline = System.nanoTime() + timeout;
+        if (!start(limiter, transport, token, payload, info, results, attempts)) {
+            // 止めている最中だった
+            if (limiter != null) {
+                limiter.release(0, AdaptiveLimiter.Outcome.IGNORE);
+            }
+            throw new InterruptedIOException("Stopped before sending " + payload);
+        }
+        AdaptiveLimiter.Outcome cancelOutcome = AdaptiveLimiter.Outcome.IGNORE;
+        try {
+            Result result = (delay < 0 ? poll(results, timeout, deadline) : results.poll(delay, TimeUnit.NANOSECONDS));
+            if (result == null && delay >= 0) {
+                if (tryHedge(limiter, transport, token, payload, info, results, attempts)) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Hedge " + payload + " after " + TimeUnit.NANOSECONDS.toMillis(delay) + " ms");
+                    }
+                    result = poll(results, timeout, deadline);
+                    if (result != null && result.statusCode != HttpURLConnection.HTTP_CREATED) {
+                        // もう一方に賭ける
+                        final Result other = poll(results, timeout, deadline);
+                        if (other != null) {
+                            result = other;
+                        }
+                    }
+                } else {
+                    result = poll(results, timeout, deadline);
+                }
+            }
+            if (result == null) {
+                cancelOutcome = AdaptiveLimiter.Outcome.OVERLOAD;
+                throw new InterruptedIOException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms sending " + payload);
+            }
+            return result.get();
+        } finally {
+            for (final Attempt attempt : attempts) {
+                attempt.cancel(cancelOutcome);
+            }
+        }
+    }
+
+    /**
+     * 期限まで結果を待つ
+     * @param results 結果の受け取り口
+     * @param timeout 待つ時間（ナノ秒）。負なら期限無し
+     * @param deadline 期限（System.nanoTime）
+     * @return 結果。期限を過ぎたら null
+     * @throws InterruptedException 割り込まれた
+     */
+    private static Result poll(final BlockingQueue<Result> results, final long timeout, final long deadline) throws InterruptedException {
+        if (timeout < 0) {
+            return results.take();
+        }
+        return results.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 余裕があれば追いかける
+     * @return 追いかけたら true
+     */
+    private boolean tryHedge(final AdaptiveLimiter limiter, final Transport transport, final String token, final Payload payload, final Map<String, String> info,
+            final BlockingQueue<Result> results, final List<Attempt> attempts) {
+        synchronized (this) {
+            if (this.budget < 1) {
+                return false;
+            }
+            this.budget--;
+        }
+        if (limiter != null && !limiter.tryAcquire()) {
+            // 混んでいるときに送信を増やさない
+            synchronized (this) {
+                this.budget++;
+            }
+            return false;
+        }
+        if (!start(limiter, transport, token, payload, info, results, attempts)) {
+            if (limiter != null) {
+                limiter.release(0, AdaptiveLimiter.Outcome.IGNORE);
+            }
+            return false;
+        }
+        synchronized (this) {
+            this.hedges++;
+        }
+        return true;
+    }
+
+    /**
+     * 別のスレッドで送り始める
+     * @param limiter 枠を使った同時実行数の制限。null なら制限しない
+     * @param results 結果の受け取り口
+     * @param attempts 始めた送信を加える
+     * @return 始められたら true
+     */
+    private boolean start(final AdaptiveLimiter limiter, final Transport transport, final String token, final Payload payload, final Map<String, String> info,
+            final BlockingQueue<Result> results, final List<Attempt> attempts) {
+        final Attempt attempt = new Attempt(limiter, transport, token, payload, info, results);
+        try {
+            this.executor.execute(attempt);
+        } catch (final RejectedExecutionException e) {
+            return false;
+        }
+        attempts.add(attempt);
+        return true;
+    }
+
+    /**
+     * 受け付けられた送信の応答時間を記録する
+     * @param latency 応答時間（ナノ秒）
+     */
+    synchronized void record(final long latency) {
+        this.latencies[(int) (this.count % SAMPLES)] = latency;
+        this.count++;
+        this.budget = Math.min(MAX_BUDGET, this.budget + BUDGET_RATIO);
+    }
+
+    /**
+     * @return 追いかけ始めるまでの時間（ナノ秒）。まだ決められなければ -1
+     */
+    synchronized long getDelay() {
+        if (this.count < MIN_SAMPLES) {
+            return -1;
+        }
+        final long[] sorted = Arrays.copyOf(this.latencies, (int) Math.min(this.count, SAMPLES));
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(PERCENTILE * sorted.length) - 1];
+    }
+
+    /**
+     * @param delay 追いかけ始めるまでの時間（ナノ秒）。まだ決められなければ負
+     * @return 結果を待つ時間（ナノ秒）。決められなければ負
+     */
+    private long getTimeout(final long delay) {
+        if (this.timeout > 0) {
+            return Math.max(this.timeout, WAIT_FACTOR * delay);
+        }
+        return (delay < 0 ? -1 : Math.max(MIN_WAIT, WAIT_FACTOR * delay));
+    }
+
+    /**
+     * @return 追いかけた数
+     */
+    synchronized long getHedgeCount() {
+        return this.hedges;
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+        LOG.info("Hedged " + getHedgeCount() + " uploads");
+    }
+
+    /**
+     * 冪等キーを作る。
+     * ファイルの ID と中身から鍵付きの HMAC-SHA256 で作るので、同じファイルの同じ中身なら同じになるが、
+     * 鍵を知らなければキーから中身を確かめられない
+     * @param id ファイルの ID
+     * @param payload 中身
+     * @return 冪等キー
+     * @throws IOException 読み込みエラー
+     */
+    String idempotencyKey(final String id, final Payload payload) throws IOException {
+        final Mac mac;
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(this.secret, "HmacSHA256"));
+        } catch (final GeneralSecurityException e) {
+            // 必ずある
+            throw new RuntimeException(e);
+        }
+        mac.update(id.getBytes(Constants.UTF8));
+        mac.update((byte) 0);
+        try (InputStream input = payload.openStream()) {
+            final byte[] buff = new byte[DirectoryUploader.BUFFER_SIZE];
+            while (true) {
+                final int length = input.read(buff);
+                if (length < 0) {
+                    break;
+                }
+                mac.update(buff, 0, length);
+            }
+        }
+        return Utils.toHex(mac.doFinal());
+    }
+
+    /**
+     * 1 回の送信。
+     * 終わったら応答時間と結果を記録し、枠を返してから結果を渡す。
+     * 止められたら割り込み、送っている途中のデータの読み込みを失敗させる
+     */
+    private final class Attempt implements Runnable {
+
+        private final AdaptiveLimiter limiter;
+        private final Transport transport;
+        private final String token;
+        private final Payload payload;
+        private final Map<String, String> info;
+        private final BlockingQueue<Result> results;
+
+        // 以下、this で排他する
+        // 送っているスレッド。送っていなければ null
+        private Thread thread;
+        // 止められたときに制限に伝える結果。止められていなければ null
+        private AdaptiveLimiter.Outcome cancelled;
+
+        Attempt(final AdaptiveLimiter limiter, final Transport transport, final String token, final Payload payload, final Map<String, String> info,
+                final BlockingQueue<Result> results) {
+            this.limiter = limiter;
+            this.transport = transport;
+            this.token = token;
+            this.payload = payload;
+            this.info = info;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (this.cancelled != null) {
+                    if (this.limiter != null) {
+                        this.limiter.release(0, AdaptiveLimiter.Outcome.IGNORE);
+                    }
+                    return;
+                }
+                this.thread = Thread.currentThread();
+            }
+            final long start = System.nanoTime();
+            final AdaptiveLimiter.Timer timer = (this.limiter != null ? new AdaptiveLimiter.Timer() : null);
+            AdaptiveLimiter.Outcome outcome = AdaptiveLimiter.Outcome.IGNORE;
+            Result result = null;
+            try {
+                final Payload sent = interruptible(this.payload);
+                final int statusCode = this.transport.send(this.token, (timer != null ? timer.wrap(sent) : sent), this.info);
+                outcome = AdaptiveLimiter.classify(statusCode);
+                if (outcome == AdaptiveLimiter.Outcome.SUCCESS) {
+                    record(System.nanoTime() - start);
+                }
+                result = new Result(statusCode, null);
+            } catch (final InterruptedIOException e) {
+                // 接続や読み込みのタイムアウト
+                outcome = AdaptiveLimiter.Outcome.OVERLOAD;
+                result = new Result(-1, e);
+            } catch (final IOException e) {
+                result = new Result(-1, e);
+            } catch (final RuntimeException e) {
+                result = new Result(-1, new IOException(e));
+            } finally {
+                synchronized (this) {
+                    this.thread = null;
+                    // 止められたなら、止めた理由で伝える。割り込みは次の仕事に持ち越さない
+                    if (this.cancelled != null) {
+                        outcome = this.cancelled;
+                    }
+                    Thread.interrupted();
+                }
+                // 結果を渡す前に枠を返す
+                if (this.limiter != null) {
+                    this.limiter.release(timer.elapsed(), outcome);
+                }
+                if (result == null) {
+                    result = new Result(-1, new IOException("Failed to send " + this.payload));
+                }
+                this.results.add(result);
+            }
+        }
+
+        /**
+         * 止める。
+         * 終わっていれば何もしない
+         * @param outcome 制限に伝える結果
+         */
+        synchronized void cancel(final AdaptiveLimiter.Outcome outcome) {
+            if (this.cancelled != null) {
+                return;
+            }
+            this.cancelled = outcome;
+            if (this.thread != null) {
+                this.thread.interrupt();
+            }
+        }
+
+    }
+
+    /**
+     * 割り込まれたら読み込みを失敗させるデータにする
+     * @param payload データ
+     * @return データ
+     */
+    private static Payload interruptible(final Payload payload) {
+        return new Payload(payload.getName(), payload.getContentType()) {
+
+            @Override
+            public long getLength() {
+                return payload.getLength();
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return payload.isRepeatable();
+            }
+
+            @Override
+            Path getPath() {
+                return payload.getPath();
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FilterInputStream(payload.openStream()) {
+
+                    @Override
+                    public int read() throws IOException {
+                        checkInterrupted();
+                        return super.read();
+                    }
+
+                    @Override
+                    public int read(final byte[] b, final int off, final int len) throws IOException {
+                        checkInterrupted();
+                        return super.read(b, off, len);
+                    }
+
+                };
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws IOException {
+                // 元の書き出し方を活かす
+                payload.writeTo(new FilterOutputStream(output) {
+
+                    @Override
+                    public void write(final int b) throws IOException {
+                        checkInterrupted();
+                        this.out.write(b);
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) throws IOException {
+                        checkInterrupted();
+                        this.out.write(b, off, len);
+                    }
+
+                });
+            }
+
+            private void checkInterrupted() throws InterruptedIOException {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Cancelled sending " + payload);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return payload.toString();
+            }
+
+        };
+    }
+
+    /**
+     * 1 回の送信の結果
+     */
+    private static final class Result {
+
+        private final int statusCode;
+        private final IOException error;
+
+        Result(final int statusCode, final IOException error) {
+            this.statusCode = statusCode;
+            this.error = error;
+        }
+
+        int get() throws IOException {
+            if (this.error != null) {
+                throw this.error;
+            }
+            return this.statusCode;
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * HTTP のマルチパートで送る。
+ * 接続は使い回し、つながらなかったり応答が止まったりしたら時間切れで諦める
+ */
+final class HttpTransport implements Transport, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(HttpTransport.class.getName());
+
+    // 標準の接続の時間切れ（ミリ秒）
+    static final int DEFAULT_CONNECT_TIMEOUT = 10_000;
+    // 標準の読み書きが止まったときの時間切れ（ミリ秒）
+    static final int DEFAULT_SOCKET_TIMEOUT = 60_000;
+    // 使い回す接続の数の上限。同時に送る数は呼び出し側で絞る
+    private static final int MAX_CONNECTIONS = 256;
+
+    // データを投稿するための URL
+    private final URI uploadUrl;
+    // 送るデータのチェックサムの種類。null なら付けない
+    private final IntegrityCheck.Algorithm checksumAlgorithm;
+    private final CloseableHttpClient client;
+
+    /**
+     * 標準の時間切れで作成する
+     * @param uploadUrl データを投稿するための URL
+     * @param checksumAlgorithm 送るデータのチェックサムの種類。null なら付けない
+     */
+    HttpTransport(final URI uploadUrl, final IntegrityCheck.Algorithm checksumAlgorithm) {
+        this(uploadUrl, checksumAlgorithm, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+    }
+
+    /**
+     * 作成する
+     * @param uploadUrl データを投稿するための URL
+     * @param checksumAlgorithm 送るデータのチェックサムの種類。null なら付けない
+     * @param connectTimeout 接続の時間切れ（ミリ秒）。0 なら待ち続ける
+     * @param socketTimeout 読み書きが止まったときの時間切れ（ミリ秒）。0 なら待ち続ける
+     */
+    HttpTransport(final URI uploadUrl, final IntegrityCheck.Algorithm checksumAlgorithm, final int connectTimeout, final int socketTimeout) {
+        this.uploadUrl = uploadUrl;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.client = HttpClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setSocketTimeout(socketTimeout)
+                        .build())
+                .setMaxConnTotal(MAX_CONNECTIONS)
+                .setMaxConnPerRoute(MAX_CONNECTIONS)
+                .build();
+    }
+
+    @Override
+    public int send(final String token, final Payload payload, final Map<String, String> info) throws IOException {
+        final HttpPost post = new HttpPost(this.uploadUrl);
+        final String idempotencyKey = info.get(Constants.UPLOAD_REQUEST_INFO_KEY_IDEMPOTENCY_KEY);
+        if (idempotencyKey != null) {
+            // 中身を読まなくても重複を捨てられるようにヘッダにも付ける
+            post.setHeader(Constants.UPLOAD_REQUEST_HEADER_IDEMPOTENCY_KEY, idempotencyKey);
+        }
+        final IntegrityCheck check = (this.checksumAlgorithm == null ? null : new IntegrityCheck(this.checksumAlgorithm));
+        final JSONObject info1 = new JSONObject(info);
+        if (check != null) {
+            info1.put(Constants.UPLOAD_REQUEST_INFO_KEY_CHECKSUM, check.getAlgorithm().getName());
+        }
+        final MultipartEntityBuilder builder = MultipartEntityBuilder.create()
+                .addTextBody(Constants.UPLOAD_REQUEST_PART_INFO, info1.toString())
+                .addTextBody(Constants.UPLOAD_REQUEST_PART_TOKEN, token)
+                .addPart(Constants.UPLOAD_REQUEST_PART_DATA, payload.toBody(check));
+        if (check != null) {
+            // 送り終えたデータのチェックサムを最後に付ける
+            builder.addPart(Constants.UPLOAD_REQUEST_PART_CHECKSUM, check.toTrailer());
+        }
+        post.setEntity(builder.build());
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Upload " + payload + " to " + this.uploadUrl);
+        }
+
+        try (CloseableHttpResponse response = this.client.execute(post)) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpURLConnection.HTTP_CREATED) {
+                LOG.warning(response.toString());
+            } else if (check != null) {
+                verify(check, response);
+            }
+            return statusCode;
+        }
+    }
+
+    /**
+     * サーバーが受け取ったデータのチェックサムと比べる。
+     * サーバーが返さなければ比べない
+     * @param check 送ったデータのチェックサム
+     * @param response サーバーの応答
+     * @throws IntegrityCheck.MismatchException 違った
+     * @throws IOException 読み込みエラー
+     */
+    private static void verify(final IntegrityCheck check, final CloseableHttpResponse response) throws IOException {
+        String echoed = null;
+        final Header header = response.getFirstHeader(Constants.UPLOAD_RESPONSE_HEADER_CHECKSUM);
+        if (header != null) {
+            echoed = header.getValue();
+        } else if (response.getEntity() != null) {
+            try {
+                echoed = (new JSONObject(new String(Utils.readAll(response.getEntity().getContent()), Constants.UTF8))).optString(Constants.UPLOAD_RESPONSE_KEY_CHECKSUM, null);
+            } catch (final JSONException e) {
+                // JSON でない
+            }
+        }
+        if (echoed == null) {
+            LOG.fine("Server did not return checksum");
+        } else if (!echoed.trim().equalsIgnoreCase(check.getValue())) {
+            throw new IntegrityCheck.MismatchException(check.getValue(), echoed);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.client.close();
+    }
+
+    @Override
+    public String toString() {
+        return this.uploadUrl.toString();
+    }
+
+}
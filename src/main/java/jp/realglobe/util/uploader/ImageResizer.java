@@ -0,0 +1,402 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.w3c.dom.Node;
+
+/**
+ * アップロード前に画像を縮小・再圧縮する。
+ * 元の画像は必要な分だけ間引いて読み、JPEG の EXIF の向きは縮小した画像に反映する。
+ * 縮小した方が大きくなってしまったら元の画像をそのまま送らせる。
+ * 処理は専用のスレッドで行うので、通信と並行して進む
+ */
+public class ImageResizer implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(ImageResizer.class.getName());
+
+    private static final Set<String> JPEG_EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("jpg", "jpeg")));
+    private static final Set<String> PNG_EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("png")));
+
+    // 間引いて読むときも、縮小後のこの倍の画素は読む
+    private static final int OVERSAMPLING = 2;
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    // EXIF が入る APP1 マーカー
+    private static final int APP1 = 0xe1;
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+
+    // 長辺の最大画素数
+    private final int maxDimension;
+    // JPEG の圧縮品質
+    private final float quality;
+    // 縮小処理をするスレッド
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * 作成する
+     * @param maxDimension 長辺の最大画素数。これより小さい画像はそのままアップロードする
+     * @param quality JPEG の圧縮品質（0 から 1）
+     * @param threads 縮小処理に使うスレッド数
+     */
+    public ImageResizer(final int maxDimension, final float quality, final int threads) {
+        if (maxDimension <= 0) {
+            throw new IllegalArgumentException("Invalid max dimension " + maxDimension);
+        } else if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("Invalid quality " + quality);
+        } else if (threads <= 0) {
+            throw new IllegalArgumentException("Invalid thread count " + threads);
+        }
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+
+        final AtomicInteger count = new AtomicInteger();
+        // 処理待ちが溜まりすぎたら呼び出し側で処理させて、検知側を減速させる
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * 2), runnable -> {
+            final Thread thread = new Thread(runnable, ImageResizer.class.getSimpleName() + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * 縮小対象の画像かどうか
+     * @param path ファイルパス
+     * @return 縮小対象なら true
+     */
+    public boolean isTarget(final Path path) {
+        return isTarget(path.getFileName().toString());
+    }
+
+    /**
+     * 縮小対象の画像かどうか
+     * @param name ファイル名
+     * @return 縮小対象なら true
+     */
+    boolean isTarget(final String name) {
+        final String extension = FilenameUtils.getExtension(name).toLowerCase(Locale.ROOT);
+        return JPEG_EXTENSIONS.contains(extension) || PNG_EXTENSIONS.contains(extension);
+    }
+
+    /**
+     * 縮小処理を予約する
+     * @param path 画像ファイルのパス
+     * @return 縮小後の画像データ。縮小の必要が無い場合や読めない画像の場合は null
+     */
+    public CompletableFuture<byte[]> resize(final Path path) {
+        return resize(Payload.of(path));
+    }
+
+    /**
+     * 縮小処理を予約する
+     * @param payload 画像データ。何度でも読めること
+     * @return 縮小後の画像データ。縮小の必要が無い場合や読めない画像の場合は null
+     */
+    CompletableFuture<byte[]> resize(final Payload payload) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return resizeNow(payload);
+            } catch (final IOException e) {
+                LOG.warning("Cannot resize " + payload + ": " + e);
+                return null;
+            }
+        }, this.executor);
+    }
+
+    /**
+     * その場で縮小する
+     * @param payload 画像データ
+     * @return 縮小後の画像データ。縮小の必要が無い場合や読めない画像の場合、縮小した方が大きい場合は null
+     * @throws IOException 読み書きエラー
+     */
+    byte[] resizeNow(final Payload payload) throws IOException {
+        final String extension = FilenameUtils.getExtension(payload.getName()).toLowerCase(Locale.ROOT);
+        final boolean jpeg = JPEG_EXTENSIONS.contains(extension);
+
+        final BufferedImage source;
+        final int width;
+        final int height;
+        final int orientation;
+        try (InputStream input = payload.openStream();
+                ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            final Iterator<ImageReader> readers = (imageInput == null ? Collections.emptyIterator() : ImageIO.getImageReaders(imageInput));
+            if (!readers.hasNext()) {
+                LOG.info("Not image " + payload);
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                // EXIF を見るので JPEG ではメタデータも読む
+                reader.setInput(imageInput, true, !jpeg);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+                if (width <= this.maxDimension && height <= this.maxDimension) {
+                    return null;
+                }
+                orientation = (jpeg ? readOrientation(reader) : 1);
+                // 必要な分だけ間引いて読むので、大きな画像でも軽い
+                final ImageReadParam param = reader.getDefaultReadParam();
+                final int step = Math.max(1, Math.max(width, height) / (OVERSAMPLING * this.maxDimension));
+                param.setSourceSubsampling(step, step, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        final double scale = (double) this.maxDimension / Math.max(width, height);
+        final int newWidth = Math.max(1, (int) Math.round(width * scale));
+        final int newHeight = Math.max(1, (int) Math.round(height * scale));
+
+        // JPEG はアルファを持てない
+        final int type = (jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        final BufferedImage resized = orient(scale(source, newWidth, newHeight, type), orientation, type);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (jpeg) {
+            writeJpeg(resized, output);
+        } else if (!ImageIO.write(resized, "png", output)) {
+            throw new IOException("No PNG writer");
+        }
+        final long length = payload.getLength();
+        if (length >= 0 && output.size() >= length) {
+            LOG.info("Send original " + payload + " because resized one is not smaller");
+            return null;
+        }
+        return output.toByteArray();
+    }
+
+    private static int readOrientation(final ImageReader reader) {
+        try {
+            return readOrientation(reader.getImageMetadata(0));
+        } catch (final IOException e) {
+            // メタデータが壊れていても画素は読めるかもしれない
+            LOG.fine("Ignore broken metadata: " + e);
+            return 1;
+        }
+    }
+
+    /**
+     * JPEG のメタデータから EXIF の向きを取り出す
+     * @param metadata JPEG のメタデータ
+     * @return EXIF の向き（1 から 8）。無ければ 1
+     */
+    static int readOrientation(final IIOMetadata metadata) {
+        if (metadata == null || !JPEG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return 1;
+        }
+        final Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (!"markerSequence".equals(child.getNodeName())) {
+                continue;
+            }
+            for (Node marker = child.getFirstChild(); marker != null; marker = marker.getNextSibling()) {
+                if (!"unknown".equals(marker.getNodeName()) || !(marker instanceof IIOMetadataNode)) {
+                    continue;
+                }
+                final Node tag = marker.getAttributes().getNamedItem("MarkerTag");
+                final Object data = ((IIOMetadataNode) marker).getUserObject();
+                if (tag != null && Integer.toString(APP1).equals(tag.getNodeValue()) && data instanceof byte[]) {
+                    final int orientation = readOrientation((byte[]) data);
+                    if (orientation != 0) {
+                        return orientation;
+                    }
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * APP1 マーカーの中身から EXIF の向きを取り出す
+     * @param app1 APP1 マーカーの中身
+     * @return EXIF の向き（1 から 8）。無ければ 0
+     */
+    static int readOrientation(final byte[] app1) {
+        // "Exif\0\0" の後に TIFF 形式で続く
+        final int base = 6;
+        if (app1.length < base + 8 || app1[0] != 'E' || app1[1] != 'x' || app1[2] != 'i' || app1[3] != 'f') {
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(app1);
+        if (app1[base] == 'I' && app1[base + 1] == 'I') {
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (app1[base] != 'M' || app1[base + 1] != 'M') {
+            return 0;
+        }
+        final long ifd = base + (buffer.getInt(base + 4) & 0xffffffffL);
+        if (ifd + 2 > app1.length) {
+            return 0;
+        }
+        final int count = buffer.getShort((int) ifd) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            final long entry = ifd + 2 + 12L * i;
+            if (entry + 12 > app1.length) {
+                break;
+            }
+            if ((buffer.getShort((int) entry) & 0xffff) == EXIF_TAG_ORIENTATION) {
+                final int orientation = buffer.getShort((int) entry + 8) & 0xffff;
+                return (orientation >= 1 && orientation <= 8 ? orientation : 0);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * EXIF の向きに合わせて回転・反転する
+     * @param image 画像
+     * @param orientation EXIF の向き（1 から 8）
+     * @param type 回転後の画像の種類
+     * @return 回転・反転した画像
+     */
+    private static BufferedImage orient(final BufferedImage image, final int orientation, final int type) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final AffineTransform transform;
+        switch (orientation) {
+            case 2: {
+                transform = new AffineTransform(-1, 0, 0, 1, width, 0);
+                break;
+            }
+            case 3: {
+                transform = new AffineTransform(-1, 0, 0, -1, width, height);
+                break;
+            }
+            case 4: {
+                transform = new AffineTransform(1, 0, 0, -1, 0, height);
+                break;
+            }
+            case 5: {
+                transform = new AffineTransform(0, 1, 1, 0, 0, 0);
+                break;
+            }
+            case 6: {
+                transform = new AffineTransform(0, 1, -1, 0, height, 0);
+                break;
+            }
+            case 7: {
+                transform = new AffineTransform(0, -1, -1, 0, height, width);
+                break;
+            }
+            case 8: {
+                transform = new AffineTransform(0, -1, 1, 0, 0, width);
+                break;
+            }
+            default: {
+                return image;
+            }
+        }
+        final boolean swap = (orientation >= 5);
+        final BufferedImage oriented = new BufferedImage(swap ? height : width, swap ? width : height, type);
+        final Graphics2D graphics = oriented.createGraphics();
+        try {
+            graphics.drawImage(image, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        return oriented;
+    }
+
+    /**
+     * 縮小する。
+     * 一度に縮めると荒れるので、半分ずつ縮める
+     * @param source 元画像
+     * @param width 縮小後の幅
+     * @param height 縮小後の高さ
+     * @param type 縮小後の画像の種類
+     * @return 縮小した画像
+     */
+    private static BufferedImage scale(final BufferedImage source, final int width, final int height, final int type) {
+        BufferedImage current = source;
+        int currentWidth = source.getWidth();
+        int currentHeight = source.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = Math.max(height, currentHeight / 2);
+
+            final BufferedImage next = new BufferedImage(currentWidth, currentHeight, type);
+            final Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
+
+    private void writeJpeg(final BufferedImage image, final ByteArrayOutputStream output) throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG writer");
+        }
+        final ImageWriter writer = writers.next();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(this.quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,91 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 処理中の対象を覚えておき、同じ対象を同時に処理しないようにする。
+ * 処理中に再度依頼された対象は、今の処理が終わった後に 1 度だけ処理し直す。
+ * 状態は 待機（記録無し）、処理中、処理中に変更あり の 3 つ
+ * @param <K> 対象
+ * @param <V> 処理結果
+ */
+final class InFlightTracker<K, V> {
+
+    /**
+     * 処理中の対象の状態
+     */
+    private static final class State<V> {
+        // 処理し直しの結果。null なら処理し直す必要は無い
+        CompletableFuture<V> followUp;
+    }
+
+    private final Map<K, State<V>> states;
+
+    InFlightTracker() {
+        this.states = new HashMap<>();
+    }
+
+    /**
+     * 処理を始める
+     * @param key 対象
+     * @return 今すぐ処理してよいなら null。
+     *         処理中だった場合は、処理し直しの結果
+     */
+    synchronized CompletableFuture<V> begin(final K key) {
+        final State<V> state = this.states.get(key);
+        if (state == null) {
+            this.states.put(key, new State<>());
+            return null;
+        }
+        if (state.followUp == null) {
+            state.followUp = new CompletableFuture<>();
+        }
+        return state.followUp;
+    }
+
+    /**
+     * 処理を終える
+     * @param key 対象
+     * @return 処理し直す必要があるならその結果。
+     *         このとき対象は処理中のままなので、呼び出し側で処理し直してから再度 end を呼ぶこと。
+     *         処理し直す必要が無いなら null
+     */
+    synchronized CompletableFuture<V> end(final K key) {
+        final State<V> state = this.states.get(key);
+        if (state == null) {
+            return null;
+        } else if (state.followUp == null) {
+            this.states.remove(key);
+            return null;
+        }
+        final CompletableFuture<V> followUp = state.followUp;
+        state.followUp = null;
+        return followUp;
+    }
+
+    /**
+     * @return 処理中の対象の数
+     */
+    synchronized int size() {
+        return this.states.size();
+    }
+
+}
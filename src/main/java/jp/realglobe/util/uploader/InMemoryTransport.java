@@ -0,0 +1,98 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * メモリ上で受け取る。
+ * 通信を除いた監視からアップロードまでの処理の速さを測るため
+ */
+public final class InMemoryTransport implements Transport {
+
+    private final boolean keep;
+    private final Map<String, byte[]> received = new ConcurrentHashMap<>();
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * 作成する
+     * @param keep 受け取った中身を取っておくなら true。false なら読み捨てる
+     */
+    public InMemoryTransport(final boolean keep) {
+        this.keep = keep;
+    }
+
+    @Override
+    public int send(final String token, final Payload payload, final Map<String, String> info) throws IOException {
+        final long length;
+        if (this.keep) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            payload.writeTo(output);
+            this.received.put(payload.getName(), output.toByteArray());
+            length = output.size();
+        } else {
+            final long[] written = new long[1];
+            payload.writeTo(new OutputStream() {
+
+                @Override
+                public void write(final int b) {
+                    written[0]++;
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) {
+                    written[0] += len;
+                }
+
+            });
+            length = written[0];
+        }
+        this.bytes.addAndGet(length);
+        this.count.incrementAndGet();
+        return HttpURLConnection.HTTP_CREATED;
+    }
+
+    /**
+     * @return 受け取った数
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return 受け取った合計の大きさ（バイト）
+     */
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * 受け取った中身を返す
+     * @param name 名前
+     * @return 最後に受け取った中身。取っておいていなければ null
+     */
+    public byte[] get(final String name) {
+        return this.received.get(name);
+    }
+
+}
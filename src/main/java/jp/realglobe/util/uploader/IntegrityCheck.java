@@ -0,0 +1,265 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+
+/**
+ * アップロードするデータのチェックサム。
+ * データを送りながら計算し、データの後ろのパートで送る。
+ * そのため、ファイルを 2 度読まずに済む
+ */
+public final class IntegrityCheck {
+
+    /**
+     * チェックサムの種類
+     */
+    public static enum Algorithm {
+        /**
+         * CRC32C。速い
+         */
+        CRC32C("crc32c", 8),
+        /**
+         * SHA-256。改ざんも検知できる
+         */
+        SHA256("sha-256", 64);
+
+        private final String name;
+        private final int length;
+
+        private Algorithm(final String name, final int length) {
+            this.name = name;
+            this.length = length;
+        }
+
+        /**
+         * @return サーバーに伝える名前
+         */
+        public String getName() {
+            return this.name;
+        }
+
+    }
+
+    /**
+     * サーバーが受け取ったデータのチェックサムが違った
+     */
+    static final class MismatchException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        MismatchException(final String expected, final String actual) {
+            super("Checksum mismatch: sent " + expected + " but server got " + actual);
+        }
+
+    }
+
+    private final Algorithm algorithm;
+    private final Checksum crc;
+    private final MessageDigest digest;
+    // 計算し終えた値
+    private String value;
+
+    /**
+     * 作成する
+     * @param algorithm 種類
+     */
+    IntegrityCheck(final Algorithm algorithm) {
+        this.algorithm = algorithm;
+        if (algorithm == Algorithm.SHA256) {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                // 必ずある
+                throw new RuntimeException(e);
+            }
+            this.crc = null;
+        } else {
+            this.digest = null;
+            this.crc = newCrc32c();
+        }
+    }
+
+    /**
+     * @return 種類
+     */
+    Algorithm getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * 計算をやり直す
+     */
+    void reset() {
+        if (this.digest != null) {
+            this.digest.reset();
+        } else {
+            this.crc.reset();
+        }
+        this.value = null;
+    }
+
+    /**
+     * 書き込みながらチェックサムを計算させる
+     * @param output 書き込み先
+     * @return 書き込み先
+     */
+    OutputStream wrap(final OutputStream output) {
+        return new FilterOutputStream(output) {
+
+            @Override
+            public void write(final int b) throws IOException {
+                update(new byte[] { (byte) b }, 0, 1);
+                this.out.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                update(b, off, len);
+                this.out.write(b, off, len);
+            }
+
+        };
+    }
+
+    private void update(final byte[] b, final int off, final int len) {
+        if (this.digest != null) {
+            this.digest.update(b, off, len);
+        } else {
+            this.crc.update(b, off, len);
+        }
+    }
+
+    /**
+     * 書き込み終えたデータのチェックサムを返す
+     * @return 16 進数表記
+     */
+    String getValue() {
+        if (this.value == null) {
+            if (this.digest != null) {
+                final StringBuilder builder = new StringBuilder();
+                for (final byte b : this.digest.digest()) {
+                    builder.append(String.format("%02x", b & 0xff));
+                }
+                this.value = builder.toString();
+            } else {
+                this.value = String.format("%08x", this.crc.getValue());
+            }
+        }
+        return this.value;
+    }
+
+    /**
+     * チェックサムを送るパートにする。
+     * データのパートより後ろに置くこと
+     * @return パートの中身
+     */
+    ContentBody toTrailer() {
+        return new AbstractContentBody(ContentType.TEXT_PLAIN) {
+
+            @Override
+            public String getFilename() {
+                return null;
+            }
+
+            @Override
+            public String getTransferEncoding() {
+                return MIME.ENC_8BIT;
+            }
+
+            @Override
+            public long getContentLength() {
+                return IntegrityCheck.this.algorithm.length;
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws IOException {
+                output.write(getValue().getBytes(Constants.UTF8));
+            }
+
+        };
+    }
+
+    /**
+     * CRC32C の計算器を作る。
+     * Java 9 以降なら標準のものを使う
+     * @return 計算器
+     */
+    static Checksum newCrc32c() {
+        try {
+            return (Checksum) Class.forName("java.util.zip.CRC32C").getConstructor().newInstance();
+        } catch (final ReflectiveOperationException e) {
+            return new Crc32c();
+        }
+    }
+
+    /**
+     * Java 8 用の CRC32C
+     */
+    static final class Crc32c implements Checksum {
+
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < TABLE.length; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = ((crc & 1) != 0 ? (crc >>> 1) ^ 0x82f63b78 : crc >>> 1);
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xffffffff;
+
+        @Override
+        public void update(final int b) {
+            this.crc = (this.crc >>> 8) ^ TABLE[(this.crc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(final byte[] b, final int off, final int len) {
+            int crc1 = this.crc;
+            for (int i = off; i < off + len; i++) {
+                crc1 = (crc1 >>> 8) ^ TABLE[(crc1 ^ b[i]) & 0xff];
+            }
+            this.crc = crc1;
+        }
+
+        @Override
+        public long getValue() {
+            return ~this.crc & 0xffffffffL;
+        }
+
+        @Override
+        public void reset() {
+            this.crc = 0xffffffff;
+        }
+
+    }
+
+}
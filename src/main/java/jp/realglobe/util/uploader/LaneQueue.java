@@ -0,0 +1,117 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * 車線ごとの受け付け待ち。
+ * 受け付け枠が空くまで待っているファイルを溜めておき、空いたら渡す。
+ * 監視スレッドを止めないので、1 つの車線が詰まっても他の車線のファイルは待たされない
+ */
+final class LaneQueue {
+
+    // 受け付け枠
+    private final Semaphore slots;
+    // 処理落ち中に溜まったファイルは最新のものだけ残すか
+    private final boolean latestOnly;
+    // アップロードを予約する関数
+    private final Function<Path, CompletableFuture<?>> submitter;
+
+    // 以下、this で排他する
+    // 受け付け待ちのファイル。古い順
+    private final Set<Path> pending = new LinkedHashSet<>();
+    // 渡している最中か
+    private boolean draining;
+    // 渡している最中に枠が空いたか、ファイルが増えた
+    private boolean again;
+
+    /**
+     * 作成する
+     * @param slots 受け付け枠
+     * @param latestOnly 処理落ち中に溜まったファイルは最新のものだけ残すか
+     * @param submitter アップロードを予約する関数
+     */
+    LaneQueue(final Semaphore slots, final boolean latestOnly, final Function<Path, CompletableFuture<?>> submitter) {
+        this.slots = slots;
+        this.latestOnly = latestOnly;
+        this.submitter = submitter;
+    }
+
+    /**
+     * ファイルを受け付ける。
+     * 枠が空いていなければ溜めておき、待たずに返る
+     * @param path ファイルのパス
+     */
+    void offer(final Path path) {
+        synchronized (this) {
+            if (this.latestOnly) {
+                this.pending.clear();
+            } else {
+                // 溜まっている間に変更されたら、後ろに回す
+                this.pending.remove(path);
+            }
+            this.pending.add(path);
+        }
+        drain();
+    }
+
+    /**
+     * @return 受け付け待ちの数
+     */
+    synchronized int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * 空いている枠に溜まっているファイルを渡す。
+     * すぐに完了したアップロードから呼ばれても深く再帰しないように、渡すのは 1 つのスレッドだけにする
+     */
+    private void drain() {
+        synchronized (this) {
+            if (this.draining) {
+                this.again = true;
+                return;
+            }
+            this.draining = true;
+        }
+        while (true) {
+            final Path path;
+            synchronized (this) {
+                if (this.pending.isEmpty() || !this.slots.tryAcquire()) {
+                    if (!this.again) {
+                        this.draining = false;
+                        return;
+                    }
+                    this.again = false;
+                    continue;
+                }
+                path = this.pending.iterator().next();
+                this.pending.remove(path);
+            }
+            this.submitter.apply(path).whenComplete((result, e) -> {
+                this.slots.release();
+                drain();
+            });
+        }
+    }
+
+}
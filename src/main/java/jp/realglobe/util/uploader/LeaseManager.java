@@ -0,0 +1,616 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import jp.realglobe.lib.util.StackTraces;
+
+/**
+ * 同じディレクトリを複数の uploader で分担するための貸し出し管理。
+ * ファイルごとに貸し出しファイルを排他的に作れた uploader だけがアップロードする。
+ * 貸し出し中は定期的に貸し出しファイルの更新日時を進め、進まなくなった貸し出しは期限切れとして他の uploader が奪う。
+ * アップロードし終えたら、そのときのファイルの大きさと更新日時を書いておき、同じ内容を他の uploader がアップロードしないようにする。
+ * 他の uploader が貸し出し中で受けられなかったファイルは見張っておき、
+ * 期限が切れるか、アップロードされずに返されたら、引き継ぎを知らせる。
+ * 貸し出しファイルの内容は 持ち主、状態、ファイルの大きさ、ファイルの更新日時（ミリ秒）を 1 行ずつ
+ */
+final class LeaseManager implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(LeaseManager.class.getName());
+
+    private static final String SUFFIX = ".lease";
+    private static final String STATE_ACTIVE = "active";
+    private static final String STATE_DONE = "done";
+    // 名前を変えられた貸し出しが戻るのを待つ時間（ミリ秒）
+    private static final long RESTORE_WAIT = 100L;
+
+    /**
+     * 既にある貸し出しファイルの状態
+     */
+    private enum State {
+        /**
+         * 無効。消して貸し出せる
+         */
+        STALE,
+        /**
+         * 他の uploader が処理中
+         */
+        ACTIVE,
+        /**
+         * 同じ内容をアップロード済み
+         */
+        DONE,
+    }
+
+    private final Path directory;
+    private final String nodeId;
+    private final long ttl;
+    // アップロード済みの印を残しておく期間
+    private final long retention;
+
+    // 貸し出し中のファイル
+    private final Map<Path, Lease> leases;
+    // 他の uploader が貸し出し中で受けられなかったファイル
+    private final Set<Path> waiting;
+    private final ScheduledExecutorService heartbeat;
+    // 引き継ぎを知らせるスレッド。知らせる先が詰まっても期限の延長を遅らせない
+    private final ExecutorService notifier;
+    // 引き継ぎの知らせ先。null なら見張らない
+    private volatile DelayedWatcher.Callback reclaimListener;
+
+    /**
+     * 作成する
+     * @param directory 貸し出しファイルを置くディレクトリ。全ての uploader で共有する
+     * @param nodeId この uploader の識別子。uploader ごとに変えること
+     * @param ttl 貸し出しの期限（ミリ秒）。この間に更新されなかった貸し出しは奪われる
+     * @throws IOException ディレクトリを作れなかった
+     */
+    LeaseManager(final Path directory, final String nodeId, final long ttl) throws IOException {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Invalid ttl " + ttl);
+        }
+        this.directory = directory;
+        this.nodeId = nodeId;
+        this.ttl = ttl;
+        this.retention = Math.max(TimeUnit.HOURS.toMillis(1), 10 * ttl);
+        this.leases = new ConcurrentHashMap<>();
+        this.waiting = ConcurrentHashMap.newKeySet();
+
+        Files.createDirectories(directory);
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, LeaseManager.class.getSimpleName() + "-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.notifier = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, LeaseManager.class.getSimpleName() + "-notifier-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long interval = Math.max(1, ttl / 3);
+        this.heartbeat.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+        this.heartbeat.scheduleWithFixedDelay(this::recheck, interval, interval, TimeUnit.MILLISECONDS);
+        this.heartbeat.scheduleWithFixedDelay(this::sweep, this.retention, this.retention, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 他の uploader が貸し出し中で受けられなかったファイルを見張らせる。
+     * 貸し出しの期限が切れるか、アップロードされずに返されたら、そのファイルのパスを知らせる。
+     * 知らされた側は改めて貸し出しを受けること
+     * @param listener 引き継ぎの知らせ先
+     */
+    void setReclaimListener(final DelayedWatcher.Callback listener) {
+        this.reclaimListener = listener;
+    }
+
+    /**
+     * 貸し出しを受ける
+     * @param path アップロードするファイルのパス
+     * @return 貸し出し。他の uploader が処理中か、同じ内容をアップロード済みなら null
+     * @throws IOException 読み書きエラー
+     */
+    Lease claim(final Path path) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        final long size = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+        final Path leasePath = getLeasePath(path);
+        final Lease lease = new Lease(path, leasePath, size, modified);
+
+        // 古い貸し出しを消したら、もう 1 度だけ作ってみる
+        for (int i = 0; i < 2; i++) {
+            try {
+                Files.write(leasePath, format(STATE_ACTIVE, size, modified), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                this.leases.put(leasePath, lease);
+                this.waiting.remove(path);
+                return lease;
+            } catch (final FileAlreadyExistsException e) {
+                // 既に有る
+            }
+
+            final State state = removeIfStale(leasePath, size, modified);
+            if (state == State.DONE) {
+                this.waiting.remove(path);
+                return null;
+            } else if (state == State.ACTIVE) {
+                break;
+            }
+        }
+        // 持ち主が落ちたり失敗したりしたら引き継ぐ
+        if (this.reclaimListener != null) {
+            this.waiting.add(path);
+        }
+        return null;
+    }
+
+    /**
+     * @param path アップロードするファイルのパス
+     * @return 貸し出しファイルのパス
+     */
+    Path getLeasePath(final Path path) {
+        return this.directory.resolve(hash(path.getFileName().toString()) + SUFFIX);
+    }
+
+    /**
+     * 既存の貸し出しが無効なら消す
+     * @param leasePath 貸し出しファイル
+     * @param size ファイルの今の大きさ
+     * @param modified ファイルの今の更新日時
+     * @return 消したか、もう無いなら STALE。消せなかったらその理由
+     * @throws IOException 読み書きエラー
+     */
+    private State removeIfStale(final Path leasePath, final long size, final long modified) throws IOException {
+        final Snapshot snapshot = Snapshot.read(leasePath);
+        if (snapshot == null) {
+            return State.STALE;
+        }
+        final State state = examine(leasePath, snapshot, size, modified);
+        if (state != State.STALE) {
+            return state;
+        }
+        return (remove(leasePath, snapshot) ? State.STALE : State.ACTIVE);
+    }
+
+    /**
+     * 読んだ貸し出しの状態を調べる
+     * @param leasePath 貸し出しファイル
+     * @param snapshot 読んだ貸し出し
+     * @param size ファイルの今の大きさ
+     * @param modified ファイルの今の更新日時
+     * @return 状態
+     */
+    private State examine(final Path leasePath, final Snapshot snapshot, final long size, final long modified) {
+        final String[] fields = new String(snapshot.content, Constants.UTF8).split("\n");
+        final long leaseModified = snapshot.modified;
+        if (fields.length >= 4 && fields[1].equals(STATE_DONE)) {
+            if (Long.parseLong(fields[2]) == size && Long.parseLong(fields[3]) == modified) {
+                LOG.fine("Already uploaded by " + fields[0] + ": " + leasePath);
+                return State.DONE;
+            }
+            // アップロード後に変更された
+        } else if (System.currentTimeMillis() - leaseModified < this.ttl) {
+            // 書きかけも含めて、期限内なら処理中とみなす
+            LOG.fine("Leased by " + (fields.length > 0 ? fields[0] : "unknown") + ": " + leasePath);
+            return State.ACTIVE;
+        } else {
+            LOG.info("Reclaim expired lease of " + (fields.length > 0 ? fields[0] : "unknown") + ": " + leasePath);
+        }
+        return State.STALE;
+    }
+
+    /**
+     * 見張っているファイルの貸し出しを調べ、期限が切れたか返されたものの引き継ぎを知らせる
+     */
+    void recheck() {
+        final DelayedWatcher.Callback listener = this.reclaimListener;
+        if (listener == null) {
+            return;
+        }
+        for (final Path path : this.waiting) {
+            try {
+                final BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (final NoSuchFileException e) {
+                    // もうアップロードするものが無い
+                    this.waiting.remove(path);
+                    continue;
+                }
+                final Path leasePath = getLeasePath(path);
+                final Snapshot snapshot = Snapshot.read(leasePath);
+                final State state = (snapshot == null ? State.STALE : examine(leasePath, snapshot, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                if (state == State.ACTIVE) {
+                    continue;
+                }
+                this.waiting.remove(path);
+                if (state == State.STALE) {
+                    LOG.info("Take over " + path);
+                    this.notifier.execute(() -> {
+                        try {
+                            listener.call(path);
+                        } catch (final InterruptedException e) {
+                            // 終了
+                        } catch (final Exception e) {
+                            LOG.warning("Reclaim listener failed: " + e);
+                            LOG.finest(StackTraces.getString(e));
+                        }
+                    });
+                }
+            } catch (final RejectedExecutionException e) {
+                // 止めている最中だった
+                return;
+            } catch (final Exception e) {
+                LOG.warning("Cannot recheck lease of " + path + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * 無効と判断した貸し出しを消す。
+     * 判断してから消すまでの間に他の uploader が作り直していたら、それは消さずに戻す
+     * @param leasePath 貸し出しファイル
+     * @param snapshot 無効と判断した貸し出し
+     * @return 消したか、もう無いなら true
+     * @throws IOException 読み書きエラー
+     */
+    boolean remove(final Path leasePath, final Snapshot snapshot) throws IOException {
+        // 名前を変えられた 1 つだけが消せる
+        final Path tombstone = leasePath.resolveSibling(leasePath.getFileName() + "." + this.nodeId + ".stale");
+        try {
+            Files.move(leasePath, tombstone, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final NoSuchFileException e) {
+            // 他の uploader が先に消した
+            return true;
+        }
+
+        // 名前を変えたのが判断したものか確かめる
+        final Snapshot moved = Snapshot.read(tombstone);
+        if (moved != null && !moved.equals(snapshot)) {
+            LOG.fine("Restore lease renewed by another uploader: " + leasePath);
+            try {
+                // 既にある貸し出しは上書きしない
+                Files.createLink(leasePath, tombstone);
+            } catch (final FileAlreadyExistsException e) {
+                // さらに他の uploader が作った
+            } catch (final UnsupportedOperationException e) {
+                try {
+                    Files.move(tombstone, leasePath);
+                } catch (final FileAlreadyExistsException e1) {
+                    // さらに他の uploader が作った
+                }
+            }
+            Files.deleteIfExists(tombstone);
+            return false;
+        }
+        Files.deleteIfExists(tombstone);
+        return true;
+    }
+
+    /**
+     * 貸し出し中の期限を延ばす。
+     * 失った貸し出しは、そのアップロードを止めさせる
+     */
+    void renew() {
+        final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (final Lease lease : this.leases.values()) {
+            try {
+                if (!isOwner(lease.leasePath) && !isOwnerAfterRestore(lease.leasePath)) {
+                    LOG.warning("Lost lease of " + lease.path);
+                    lease.lost = true;
+                    this.leases.remove(lease.leasePath);
+                    continue;
+                }
+                Files.setLastModifiedTime(lease.leasePath, now);
+            } catch (final IOException e) {
+                LOG.warning("Cannot renew lease of " + lease.path + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * 古いアップロード済みの印を消す
+     */
+    private void sweep() {
+        final long limit = System.currentTimeMillis() - this.retention;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + SUFFIX)) {
+            for (final Path leasePath : stream) {
+                try {
+                    final String[] fields = new String(Files.readAllBytes(leasePath), Constants.UTF8).split("\n");
+                    if (fields.length >= 2 && fields[1].equals(STATE_DONE) && Files.getLastModifiedTime(leasePath).toMillis() < limit) {
+                        Files.deleteIfExists(leasePath);
+                    }
+                } catch (final NoSuchFileException e) {
+                    // 他の uploader が消した
+                }
+            }
+        } catch (final Exception e) {
+            LOG.warning("Cannot sweep leases: " + e);
+            LOG.finest(StackTraces.getString(e));
+        }
+    }
+
+    /**
+     * 他の uploader が判断を誤って名前を変えた貸し出しは少し後に戻るので、待ってから調べ直す
+     * @param leasePath 貸し出しファイル
+     * @return 自分のものなら true
+     * @throws IOException 読み込みエラー
+     */
+    private boolean isOwnerAfterRestore(final Path leasePath) throws IOException {
+        try {
+            Thread.sleep(RESTORE_WAIT);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        return isOwner(leasePath);
+    }
+
+    private boolean isOwner(final Path leasePath) throws IOException {
+        try {
+            final String content = new String(Files.readAllBytes(leasePath), Constants.UTF8);
+            return content.startsWith(this.nodeId + "\n");
+        } catch (final NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private byte[] format(final String state, final long size, final long modified) {
+        return (this.nodeId + "\n" + state + "\n" + size + "\n" + modified + "\n").getBytes(Constants.UTF8);
+    }
+
+    private static String hash(final String name) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(name.getBytes(Constants.UTF8));
+            final StringBuilder builder = new StringBuilder();
+            for (final byte b : digest) {
+                builder.append(String.format("%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // 必ずある
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 貸し出し中のものを全て返して止める
+     */
+    @Override
+    public void close() {
+        this.heartbeat.shutdownNow();
+        this.notifier.shutdownNow();
+        for (final Lease lease : this.leases.values()) {
+            lease.release(false);
+        }
+    }
+
+    /**
+     * 貸し出しを失ったのにアップロードしようとした
+     */
+    static final class LostException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LostException(final Path path) {
+            super("Lost lease of " + path);
+        }
+
+    }
+
+    /**
+     * 読み込んだ貸し出しファイル
+     */
+    static final class Snapshot {
+
+        private final byte[] content;
+        private final long modified;
+
+        private Snapshot(final byte[] content, final long modified) {
+            this.content = content;
+            this.modified = modified;
+        }
+
+        /**
+         * 読み込む
+         * @param leasePath 貸し出しファイル
+         * @return 読み込んだもの。無ければ null
+         * @throws IOException 読み込みエラー
+         */
+        static Snapshot read(final Path leasePath) throws IOException {
+            try {
+                final byte[] content = Files.readAllBytes(leasePath);
+                return new Snapshot(content, Files.getLastModifiedTime(leasePath).toMillis());
+            } catch (final NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Snapshot)) {
+                return false;
+            }
+            final Snapshot other = (Snapshot) obj;
+            return this.modified == other.modified && Arrays.equals(this.content, other.content);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(this.content) + Long.hashCode(this.modified);
+        }
+
+    }
+
+    /**
+     * 1 つのファイルの貸し出し
+     */
+    final class Lease {
+
+        private final Path path;
+        private final Path leasePath;
+        private final long size;
+        private final long modified;
+        // 他の uploader に奪われた
+        private volatile boolean lost;
+
+        Lease(final Path path, final Path leasePath, final long size, final long modified) {
+            this.path = path;
+            this.leasePath = leasePath;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * @return 他の uploader に奪われていたら true
+         */
+        boolean isLost() {
+            return this.lost;
+        }
+
+        /**
+         * 貸し出しを失ったら読み書きを止めるデータにする。
+         * 送っている途中で奪われたら、他の uploader と 2 重に送り続けない
+         * @param payload データ
+         * @return データ
+         */
+        Payload guard(final Payload payload) {
+            return new Payload(payload.getName(), payload.getContentType()) {
+
+                @Override
+                public long getLength() {
+                    return payload.getLength();
+                }
+
+                @Override
+                public boolean isRepeatable() {
+                    return payload.isRepeatable();
+                }
+
+                @Override
+                Path getPath() {
+                    return payload.getPath();
+                }
+
+                @Override
+                public InputStream openStream() throws IOException {
+                    checkLost();
+                    return new FilterInputStream(payload.openStream()) {
+
+                        @Override
+                        public int read() throws IOException {
+                            checkLost();
+                            return super.read();
+                        }
+
+                        @Override
+                        public int read(final byte[] b, final int off, final int len) throws IOException {
+                            checkLost();
+                            return super.read(b, off, len);
+                        }
+
+                    };
+                }
+
+                @Override
+                public void writeTo(final OutputStream output) throws IOException {
+                    checkLost();
+                    payload.writeTo(new FilterOutputStream(output) {
+
+                        @Override
+                        public void write(final int b) throws IOException {
+                            checkLost();
+                            this.out.write(b);
+                        }
+
+                        @Override
+                        public void write(final byte[] b, final int off, final int len) throws IOException {
+                            checkLost();
+                            this.out.write(b, off, len);
+                        }
+
+                    });
+                }
+
+            };
+        }
+
+        /**
+         * 奪われていたら止める
+         * @throws LostException 奪われていた
+         */
+        void checkLost() throws LostException {
+            if (this.lost) {
+                throw new LostException(this.path);
+            }
+        }
+
+        /**
+         * 返す
+         * @param uploaded アップロードできたなら true。
+         *            その場合は、同じ内容を他の uploader がアップロードしないように印を残す
+         */
+        void release(final boolean uploaded) {
+            if (LeaseManager.this.leases.remove(this.leasePath) == null) {
+                return;
+            }
+            try {
+                if (!isOwner(this.leasePath)) {
+                    LOG.warning("Lost lease of " + this.path);
+                    return;
+                }
+                if (uploaded) {
+                    final Path tmp = this.leasePath.resolveSibling(this.leasePath.getFileName() + "." + LeaseManager.this.nodeId + ".tmp");
+                    Files.write(tmp, format(STATE_DONE, this.size, this.modified));
+                    Files.move(tmp, this.leasePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.deleteIfExists(this.leasePath);
+                }
+            } catch (final IOException e) {
+                LOG.warning("Cannot release lease of " + this.path + ": " + e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,93 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ローカルのディレクトリに置く。
+ * 隠しの一時ファイルに書いてから名前を変えるので、置き場所を監視している側は書きかけを見ない。
+ * 差分アップロードの差分は置いてあるファイルに当てる
+ */
+public final class LocalDirectoryTransport implements Transport {
+
+    private static final Logger LOG = Logger.getLogger(LocalDirectoryTransport.class.getName());
+
+    // HttpURLConnection に無い
+    private static final int HTTP_CONFLICT = 409;
+
+    private final Path directory;
+
+    /**
+     * 作成する
+     * @param directory 置き場所。無ければ作る
+     */
+    public LocalDirectoryTransport(final Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public int send(final String token, final Payload payload, final Map<String, String> info) throws IOException {
+        // 置き場所の外に出さない
+        final String name = Paths.get(payload.getName()).getFileName().toString();
+        Files.createDirectories(this.directory);
+        final Path target = this.directory.resolve(name);
+        final Path temporary = Files.createTempFile(this.directory, "." + name + ".", ".part");
+        try {
+            final String deltaBase = info.get(Constants.UPLOAD_REQUEST_INFO_KEY_DELTA_BASE);
+            try (InputStream input = (deltaBase == null ? null : payload.openStream());
+                    OutputStream output = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                if (input == null) {
+                    payload.writeTo(output);
+                } else if (!Files.isRegularFile(target)) {
+                    return HTTP_CONFLICT;
+                } else {
+                    try {
+                        DeltaPatcher.patch(target, input, output);
+                    } catch (final IOException e) {
+                        // 置いてあるものが差分の元と違う
+                        LOG.warning("Cannot patch " + target + ": " + e);
+                        return HTTP_CONFLICT;
+                    }
+                }
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Put " + payload + " to " + target);
+            }
+            return HttpURLConnection.HTTP_CREATED;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.directory.toString();
+    }
+
+}
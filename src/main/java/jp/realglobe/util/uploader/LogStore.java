@@ -0,0 +1,454 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jp.realglobe.lib.util.StackTraces;
+
+/**
+ * 1 つのファイルに追記していく保管庫。
+ * 全データをメモリに持ち、ファイルは変更記録として追記するだけなので読み込みでディスクを触らない。
+ * 各記録にはチェックサムを付け、書きかけの記録は開くときに捨てる。
+ * 同時に書き込んだ記録はまとめて同期する。
+ * 無効な記録が増えたら裏で詰め直す
+ */
+public class LogStore implements Store, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(LogStore.class.getName());
+
+    private static final int MAGIC = 0x52474c53; // "RGLS"
+    private static final int HEADER_SIZE = 4;
+
+    private static final byte TYPE_STORE = 1;
+    private static final byte TYPE_CLEAR = 2;
+
+    // 長さ、チェックサム、種別、キー長、値長
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + 4 + 4;
+
+    // これより小さいファイルは詰め直さない
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private final Path path;
+    // 同期せずに済ませるか
+    private final boolean noSync;
+
+    private final Map<String, String> index;
+    private final ExecutorService compactor;
+
+    private FileChannel channel;
+    // 書き込み済みの位置
+    private long writtenSize;
+    // 同期済みの位置
+    private long syncedSize;
+    // 同期中か
+    private boolean syncing;
+    // 有効な記録の大きさ
+    private long liveSize;
+    private boolean compacting;
+    private boolean closed;
+
+    /**
+     * 作成する。
+     * 書き込みは同期が終わってから返る
+     * @param path 保存するファイルのパス
+     * @throws IOException 読み書きエラー
+     */
+    public LogStore(final Path path) throws IOException {
+        this(path, false);
+    }
+
+    /**
+     * 作成する
+     * @param path 保存するファイルのパス
+     * @param noSync 書き込みの同期を待たないなら true。
+     *            OS が落ちると最後の方の書き込みが失われることがある
+     * @throws IOException 読み書きエラー
+     */
+    public LogStore(final Path path, final boolean noSync) throws IOException {
+        this.path = path;
+        this.noSync = noSync;
+        this.index = new HashMap<>();
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, LogStore.class.getSimpleName() + "-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            recover();
+        } catch (final IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * ファイルを読み込んで状態を復元する。
+     * 壊れた記録以降は捨てる
+     * @throws IOException 読み書きエラー
+     */
+    private void recover() throws IOException {
+        final long size = this.channel.size();
+        if (size < HEADER_SIZE) {
+            this.channel.truncate(0);
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).flip();
+            writeFully(this.channel, header, 0);
+            this.channel.force(true);
+            this.writtenSize = HEADER_SIZE;
+            this.syncedSize = HEADER_SIZE;
+            return;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(this.channel, header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not store file " + this.path);
+        }
+
+        long position = HEADER_SIZE;
+        final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            readFully(this.channel, recordHeader, position);
+            final int length = recordHeader.getInt(0);
+            if (length < RECORD_HEADER_SIZE || position + length > size) {
+                break;
+            }
+            final ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(this.channel, record, position);
+            final Entry entry = decode(record);
+            if (entry == null) {
+                break;
+            }
+            apply(entry, length);
+            position += length;
+        }
+        if (position < size) {
+            LOG.warning("Discard broken records in " + this.path + " (" + (size - position) + " bytes)");
+            this.channel.truncate(position);
+            this.channel.force(true);
+        }
+        this.writtenSize = position;
+        this.syncedSize = position;
+    }
+
+    private void apply(final Entry entry, final int length) {
+        final String old = this.index.remove(entry.key);
+        if (old != null) {
+            this.liveSize -= encodedSize(entry.key, old);
+        }
+        if (entry.value != null) {
+            this.index.put(entry.key, entry.value);
+            this.liveSize += length;
+        }
+    }
+
+    @Override
+    public synchronized String load(final String key) throws IOException {
+        ensureOpen();
+        return this.index.get(key);
+    }
+
+    @Override
+    public void clear(final String key) throws IOException {
+        final long end;
+        synchronized (this) {
+            ensureOpen();
+            if (!this.index.containsKey(key)) {
+                return;
+            }
+            end = append(new Entry(key, null));
+        }
+        sync(end);
+        maybeCompact();
+    }
+
+    @Override
+    public void store(final String key, final String value) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("Null value");
+        }
+        final long end;
+        synchronized (this) {
+            ensureOpen();
+            end = append(new Entry(key, value));
+        }
+        sync(end);
+        maybeCompact();
+    }
+
+    /**
+     * 記録を追記する
+     * @param entry 記録
+     * @return 書き込み後の位置
+     * @throws IOException 書き込みエラー
+     */
+    private long append(final Entry entry) throws IOException {
+        final ByteBuffer record = encode(entry);
+        final int length = record.remaining();
+        writeFully(this.channel, record, this.writtenSize);
+        this.writtenSize += length;
+        apply(entry, length);
+        return this.writtenSize;
+    }
+
+    /**
+     * 指定位置までの同期を待つ。
+     * 他のスレッドが同期中ならそれに相乗りし、そうでなければ書き込み済みの分をまとめて同期する
+     * @param end 同期を待つ位置
+     * @throws IOException 同期エラー
+     */
+    private void sync(final long end) throws IOException {
+        if (this.noSync) {
+            return;
+        }
+        final FileChannel target;
+        final long targetSize;
+        synchronized (this) {
+            while (true) {
+                if (this.syncedSize >= end) {
+                    return;
+                } else if (!this.syncing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while syncing", e);
+                }
+            }
+            ensureOpen();
+            this.syncing = true;
+            target = this.channel;
+            targetSize = this.writtenSize;
+        }
+
+        boolean success = false;
+        try {
+            target.force(false);
+            success = true;
+        } finally {
+            synchronized (this) {
+                this.syncing = false;
+                // 同期中に詰め直しで差し替わっていたら、差し替え時に同期済み
+                if (success && target == this.channel) {
+                    this.syncedSize = Math.max(this.syncedSize, targetSize);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 無効な記録が多ければ詰め直しを予約する
+     */
+    private synchronized void maybeCompact() {
+        if (this.compacting || this.closed) {
+            return;
+        } else if (this.writtenSize < MIN_COMPACTION_SIZE || this.writtenSize < 2 * (HEADER_SIZE + this.liveSize)) {
+            return;
+        }
+        this.compacting = true;
+        this.compactor.execute(() -> {
+            try {
+                compact();
+            } catch (final Exception e) {
+                LOG.warning("Compaction failed: " + e);
+                LOG.finest(StackTraces.getString(e));
+            } finally {
+                synchronized (this) {
+                    this.compacting = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * 有効な記録だけを別ファイルに書き出して差し替える
+     * @throws IOException 読み書きエラー
+     */
+    synchronized void compact() throws IOException {
+        // 同期中のファイルは閉じられない
+        while (this.syncing) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compacting", e);
+            }
+        }
+        ensureOpen();
+        final Path tmp = this.path.resolveSibling(this.path.getFileName() + ".compact");
+        long size = HEADER_SIZE;
+        try (FileChannel output = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).flip();
+            writeFully(output, header, 0);
+            for (final Map.Entry<String, String> entry : this.index.entrySet()) {
+                final ByteBuffer record = encode(new Entry(entry.getKey(), entry.getValue()));
+                final int length = record.remaining();
+                writeFully(output, record, size);
+                size += length;
+            }
+            output.force(true);
+        }
+        Files.move(tmp, this.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Utils.syncDirectory(this.path.getParent());
+
+        final FileChannel old = this.channel;
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        old.close();
+        LOG.fine("Compacted " + this.path + " from " + this.writtenSize + " to " + size + " bytes");
+        this.writtenSize = size;
+        this.syncedSize = size;
+        this.liveSize = size - HEADER_SIZE;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("Closed store " + this.path);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.compactor.shutdown();
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                if (!this.noSync) {
+                    this.channel.force(false);
+                }
+            } finally {
+                this.channel.close();
+            }
+        }
+    }
+
+    private static int encodedSize(final String key, final String value) {
+        return RECORD_HEADER_SIZE + key.getBytes(Constants.UTF8).length + (value == null ? 0 : value.getBytes(Constants.UTF8).length);
+    }
+
+    private static ByteBuffer encode(final Entry entry) {
+        final byte[] key = entry.key.getBytes(Constants.UTF8);
+        final byte[] value = (entry.value == null ? new byte[0] : entry.value.getBytes(Constants.UTF8));
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.length + value.length);
+        buffer.putInt(buffer.capacity());
+        buffer.putInt(0);
+        buffer.put(entry.value == null ? TYPE_CLEAR : TYPE_STORE);
+        buffer.putInt(key.length);
+        buffer.putInt(value.length);
+        buffer.put(key);
+        buffer.put(value);
+        buffer.putInt(4, checksum(buffer));
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 記録を読み取る
+     * @param buffer 記録全体
+     * @return 記録。壊れていたら null
+     */
+    private static Entry decode(final ByteBuffer buffer) {
+        if (buffer.getInt(4) != checksum(buffer)) {
+            return null;
+        }
+        final byte type = buffer.get(8);
+        final int keyLength = buffer.getInt(9);
+        final int valueLength = buffer.getInt(13);
+        if (keyLength < 0 || valueLength < 0 || RECORD_HEADER_SIZE + (long) keyLength + valueLength != buffer.capacity()) {
+            return null;
+        }
+        final String key = new String(buffer.array(), RECORD_HEADER_SIZE, keyLength, Constants.UTF8);
+        if (type == TYPE_STORE) {
+            return new Entry(key, new String(buffer.array(), RECORD_HEADER_SIZE + keyLength, valueLength, Constants.UTF8));
+        } else if (type == TYPE_CLEAR) {
+            return new Entry(key, null);
+        }
+        return null;
+    }
+
+    /**
+     * チェックサム欄より後ろのチェックサムを計算する
+     * @param buffer 記録全体
+     * @return チェックサム
+     */
+    private static int checksum(final ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, buffer.capacity() - 8);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            final int length = channel.read(buffer, current);
+            if (length < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            current += length;
+        }
+    }
+
+    /**
+     * 記録。値が null なら削除
+     */
+    private static final class Entry {
+
+        final String key;
+        final String value;
+
+        Entry(final String key, final String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+    }
+
+}
@@ -0,0 +1,339 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+
+/**
+ * アップロードするデータ。
+ * Transport に渡される
+ */
+public abstract class Payload {
+
+    private static final Logger LOG = Logger.getLogger(Payload.class.getName());
+
+    private final String name;
+    private final String contentType;
+
+    /**
+     * @param name 名前
+     * @param contentType データの種類。null なら不明
+     */
+    Payload(final String name, final String contentType) {
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return 名前。ファイルならファイル名
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return データの種類。不明なら null
+     */
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    /**
+     * @return 大きさ（バイト）。不明なら -1
+     */
+    public abstract long getLength();
+
+    /**
+     * @return 何度でも読めるなら true
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * @return 元になったファイルのパス。ファイルでなければ null
+     */
+    Path getPath() {
+        return null;
+    }
+
+    /**
+     * 読み込みを始める
+     * @return 中身
+     * @throws IOException 読み込みエラー
+     */
+    public abstract InputStream openStream() throws IOException;
+
+    /**
+     * 中身を書き出す
+     * @param output 書き出し先
+     * @throws IOException 読み書きエラー
+     */
+    public void writeTo(final OutputStream output) throws IOException {
+        try (InputStream input = openStream()) {
+            final byte[] buff = new byte[DirectoryUploader.BUFFER_SIZE];
+            while (true) {
+                final int length = input.read(buff);
+                if (length < 0) {
+                    break;
+                }
+                output.write(buff, 0, length);
+            }
+        }
+    }
+
+    /**
+     * 使い終わったデータを片付ける。
+     * 送らなかったり、途中で失敗したりしても、結果を返すときに必ず呼ぶ
+     */
+    void discard() {
+        // 片付けるものは無い
+    }
+
+    /**
+     * マルチパートの 1 パートにする
+     * @return パートの中身
+     */
+    ContentBody toBody() {
+        return toBody(null);
+    }
+
+    /**
+     * 送りながらチェックサムを計算するマルチパートの 1 パートにする
+     * @param check チェックサムの計算先。null なら計算しない
+     * @return パートの中身
+     */
+    ContentBody toBody(final IntegrityCheck check) {
+        final ContentType type = (this.contentType == null ? ContentType.DEFAULT_BINARY : ContentType.create(this.contentType));
+        return new AbstractContentBody(type) {
+
+            @Override
+            public String getFilename() {
+                return Payload.this.name;
+            }
+
+            @Override
+            public String getTransferEncoding() {
+                return MIME.ENC_BINARY;
+            }
+
+            @Override
+            public long getContentLength() {
+                return getLength();
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws IOException {
+                if (check == null) {
+                    Payload.this.writeTo(output);
+                    return;
+                }
+                // 送り直しに備える
+                check.reset();
+                Payload.this.writeTo(check.wrap(output));
+            }
+
+        };
+    }
+
+    @Override
+    public String toString() {
+        final Path path = getPath();
+        return (path != null ? path.toString() : this.name);
+    }
+
+    /**
+     * ファイルのデータ
+     * @param path ファイルのパス
+     * @return データ
+     */
+    static Payload of(final Path path) {
+        return new Payload(path.getFileName().toString(), null) {
+
+            @Override
+            public long getLength() {
+                return path.toFile().length();
+            }
+
+            @Override
+            Path getPath() {
+                return path;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return Files.newInputStream(path);
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws IOException {
+                Files.copy(path, output);
+            }
+
+        };
+    }
+
+    /**
+     * メモリ上のデータ
+     * @param name 名前
+     * @param data 中身。アップロードが終わるまで変更しないこと
+     * @param contentType データの種類。null なら不明
+     * @return データ
+     */
+    static Payload of(final String name, final byte[] data, final String contentType) {
+        return new Payload(name, contentType) {
+
+            @Override
+            public long getLength() {
+                return data.length;
+            }
+
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(data);
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws IOException {
+                output.write(data);
+            }
+
+        };
+    }
+
+    /**
+     * メモリ上のデータ。
+     * ヒープ上のバッファは写さずにそのまま書き出す。
+     * ヒープ外やファイルを割り当てたバッファも少しずつ写して書き出すので、全体をヒープに写すことはない
+     * @param name 名前
+     * @param data 中身。position から limit までを使う。アップロードが終わるまで中身を変更しないこと
+     * @param contentType データの種類。null なら不明
+     * @return データ
+     */
+    static Payload of(final String name, final ByteBuffer data, final String contentType) {
+        // 読み取り専用にすると配列が取れなくなるので先に調べる
+        final byte[] array = (data.hasArray() ? data.array() : null);
+        final int offset = (array == null ? 0 : data.arrayOffset() + data.position());
+        final ByteBuffer source = data.asReadOnlyBuffer();
+        return new Payload(name, contentType) {
+
+            @Override
+            public long getLength() {
+                return source.remaining();
+            }
+
+            @Override
+            public InputStream openStream() {
+                final ByteBuffer buffer = source.duplicate();
+                return new InputStream() {
+
+                    @Override
+                    public int read() {
+                        return (buffer.hasRemaining() ? buffer.get() & 0xff : -1);
+                    }
+
+                    @Override
+                    public int read(final byte[] b, final int off, final int len) {
+                        if (!buffer.hasRemaining()) {
+                            return (len == 0 ? 0 : -1);
+                        }
+                        final int length = Math.min(len, buffer.remaining());
+                        buffer.get(b, off, length);
+                        return length;
+                    }
+
+                    @Override
+                    public int available() {
+                        return buffer.remaining();
+                    }
+
+                };
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws IOException {
+                if (array != null) {
+                    output.write(array, offset, source.remaining());
+                    return;
+                }
+                final ByteBuffer buffer = source.duplicate();
+                final WritableByteChannel channel = Channels.newChannel(output);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * 1 度しか読めないデータ
+     * @param name 名前
+     * @param input 中身。読み終わるか、送らずに片付けるときに閉じる
+     * @param contentType データの種類。null なら不明
+     * @return データ
+     */
+    static Payload of(final String name, final InputStream input, final String contentType) {
+        final AtomicBoolean opened = new AtomicBoolean();
+        return new Payload(name, contentType) {
+
+            @Override
+            public long getLength() {
+                return -1;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                if (opened.getAndSet(true)) {
+                    throw new IOException("Already read " + name);
+                }
+                return input;
+            }
+
+            @Override
+            void discard() {
+                try {
+                    input.close();
+                } catch (final IOException e) {
+                    LOG.warning("Cannot close " + name + ": " + e);
+                }
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,467 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * アップロードするデータの暗号化。
+ * AES-256-GCM でチャンクごとに暗号化するので、大きなファイルでもメモリを食わない。
+ * 形式は、先頭に識別子と版、フラグ、チャンクの大きさ、鍵の識別子、ソルト、ノンスの接頭辞を置き、
+ * 以降はチャンクごとの暗号文と認証タグを並べる。
+ * 保管庫の鍵とソルトから HKDF-SHA256 でファイルごとの鍵を作るので、
+ * ファイルが増えてもランダムなノンスがぶつかる心配は無い。
+ * チャンクのノンスは 接頭辞、チャンク番号、最後のチャンクかどうか なので、
+ * 並べ替えや切り詰めは復号で検知できる。
+ * 先頭部分は全チャンクの追加認証データにする。
+ * 圧縮する場合は暗号化の前に deflate する
+ */
+public final class PayloadCipher {
+
+    /**
+     * 送り先に伝える暗号化方式の名前
+     */
+    static final String NAME = "rgenc-aes256gcm";
+    static final String CONTENT_TYPE = "application/x-rgenc";
+
+    private static final int MAGIC = 0x5247454e; // "RGEN"
+    private static final int VERSION = 2;
+    // ファイルごとの鍵を使わない古い版。復号だけできる
+    private static final int VERSION_1 = 1;
+    private static final int FLAG_DEFLATE = 1;
+
+    private static final int KEY_SIZE = 32;
+    private static final int KEY_ID_SIZE = 8;
+    private static final int SALT_SIZE = 32;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    private static final int TAG_SIZE = 16;
+    private static final int HEADER_SIZE_1 = 4 + 1 + 1 + 4 + KEY_ID_SIZE + NONCE_PREFIX_SIZE;
+    private static final int HEADER_SIZE = HEADER_SIZE_1 + SALT_SIZE;
+    // ファイルごとの鍵を作るときの HKDF の info
+    private static final byte[] HKDF_INFO = (NAME + " file key").getBytes(Constants.UTF8);
+    // 平文のチャンクの大きさ
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PayloadCipher() {
+    }
+
+    /**
+     * 保管庫から鍵を読む。
+     * 無ければ作って保存する
+     * @param store 保管庫
+     * @return 鍵
+     * @throws Exception 保管庫の読み書きエラー
+     */
+    static byte[] loadKey(final Store store) throws Exception {
+        final String value = store.load(Constants.STORE_KEY_ENCRYPTION_KEY);
+        if (value != null) {
+            return Base64.getDecoder().decode(value);
+        }
+        final byte[] key = new byte[KEY_SIZE];
+        RANDOM.nextBytes(key);
+        store.store(Constants.STORE_KEY_ENCRYPTION_KEY, Base64.getEncoder().encodeToString(key));
+        return key;
+    }
+
+    /**
+     * 鍵の識別子を返す。
+     * 鍵自体は分からない
+     * @param key 鍵
+     * @return 鍵の識別子
+     */
+    static byte[] keyId(final byte[] key) {
+        return Arrays.copyOf(DeltaSync.newDigest("SHA-256").digest(key), KEY_ID_SIZE);
+    }
+
+    /**
+     * 保管庫の鍵とソルトからファイルごとの鍵を作る。
+     * HKDF-SHA256 で、出力は 1 ブロックで足りる
+     * @param key 保管庫の鍵
+     * @param salt ソルト
+     * @return ファイルごとの鍵
+     */
+    static byte[] deriveKey(final byte[] key, final byte[] salt) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+            final byte[] prk = mac.doFinal(key);
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(HKDF_INFO);
+            mac.update((byte) 1);
+            return Arrays.copyOf(mac.doFinal(), KEY_SIZE);
+        } catch (final GeneralSecurityException e) {
+            // 必ずある
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 暗号化後の大きさを返す
+     * @param length 平文の大きさ。不明なら -1
+     * @return 暗号化後の大きさ。不明なら -1
+     */
+    static long encryptedLength(final long length) {
+        if (length < 0) {
+            return -1;
+        }
+        final long chunks = Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        return HEADER_SIZE + length + chunks * TAG_SIZE;
+    }
+
+    /**
+     * 読みながら暗号化するデータにする
+     * @param source 元のデータ
+     * @param key 鍵
+     * @param deflate 暗号化の前に圧縮するなら true。大きさは分からなくなる
+     * @return 暗号化したデータ
+     */
+    static Payload encrypt(final Payload source, final byte[] key, final boolean deflate) {
+        return new Payload(source.getName(), CONTENT_TYPE) {
+
+            @Override
+            public long getLength() {
+                return (deflate ? -1 : encryptedLength(source.getLength()));
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return source.isRepeatable();
+            }
+
+            @Override
+            Path getPath() {
+                return source.getPath();
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                final InputStream input = source.openStream();
+                return new EncryptingInputStream((deflate ? new DeflaterInputStream(input, new Deflater(Deflater.BEST_SPEED)) : input), key, deflate);
+            }
+
+        };
+    }
+
+    /**
+     * 読みながら復号する
+     * @param input 暗号化したデータ
+     * @param key 鍵
+     * @return 平文
+     * @throws IOException 読み込みエラーか、鍵が違う
+     */
+    public static InputStream decrypt(final InputStream input, final byte[] key) throws IOException {
+        final DataInputStream input1 = new DataInputStream(input);
+        final byte[] start = new byte[4 + 1];
+        input1.readFully(start);
+        final ByteBuffer startBuffer = ByteBuffer.wrap(start);
+        if (startBuffer.getInt() != MAGIC) {
+            throw new IOException("Not encrypted");
+        }
+        final int version = startBuffer.get() & 0xff;
+        if (version != VERSION && version != VERSION_1) {
+            throw new IOException("Unsupported version " + version);
+        }
+        final byte[] header = Arrays.copyOf(start, (version == VERSION ? HEADER_SIZE : HEADER_SIZE_1));
+        input1.readFully(header, start.length, header.length - start.length);
+        final ByteBuffer buffer = ByteBuffer.wrap(header, start.length, header.length - start.length);
+        final int flags = buffer.get() & 0xff;
+        final int chunkSize = buffer.getInt();
+        if (chunkSize <= 0) {
+            throw new IOException("Invalid chunk size " + chunkSize);
+        }
+        final byte[] keyId = new byte[KEY_ID_SIZE];
+        buffer.get(keyId);
+        if (!Arrays.equals(keyId, keyId(key))) {
+            throw new IOException("Encrypted with another key");
+        }
+        final byte[] fileKey;
+        if (version == VERSION) {
+            final byte[] salt = new byte[SALT_SIZE];
+            buffer.get(salt);
+            fileKey = deriveKey(key, salt);
+        } else {
+            fileKey = key;
+        }
+        final InputStream plain = new DecryptingInputStream(input1, fileKey, header, chunkSize);
+        return ((flags & FLAG_DEFLATE) != 0 ? new InflaterInputStream(plain) : plain);
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (final GeneralSecurityException e) {
+            // 必ずある
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static GCMParameterSpec nonce(final byte[] header, final int counter, final boolean last) {
+        final ByteBuffer nonce = ByteBuffer.allocate(NONCE_PREFIX_SIZE + 4 + 1);
+        nonce.put(header, header.length - NONCE_PREFIX_SIZE, NONCE_PREFIX_SIZE).putInt(counter).put((byte) (last ? 1 : 0));
+        return new GCMParameterSpec(8 * TAG_SIZE, nonce.array());
+    }
+
+    /**
+     * 足りるか終わりまで読む
+     * @return 読んだ大きさ
+     */
+    private static int readFully(final InputStream input, final byte[] buff) throws IOException {
+        int length = 0;
+        while (length < buff.length) {
+            final int read = input.read(buff, length, buff.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * 平文を読んで暗号文を返す
+     */
+    private static final class EncryptingInputStream extends InputStream {
+
+        private final InputStream source;
+        private final SecretKeySpec key;
+        private final Cipher cipher;
+        private final byte[] header;
+
+        // 次に暗号化する平文。最後のチャンクか知るため 1 つ先を読んでおく
+        private byte[] plain;
+        private int plainLength;
+        private byte[] following;
+        private int counter;
+        private boolean finished;
+
+        // 返している暗号文
+        private byte[] output;
+        private int position;
+        private int limit;
+
+        EncryptingInputStream(final InputStream source, final byte[] key, final boolean deflate) throws IOException {
+            this.source = source;
+            final byte[] salt = new byte[SALT_SIZE];
+            RANDOM.nextBytes(salt);
+            this.key = new SecretKeySpec(deriveKey(key, salt), "AES");
+            this.cipher = newCipher();
+            final ByteBuffer header1 = ByteBuffer.allocate(HEADER_SIZE);
+            header1.putInt(MAGIC).put((byte) VERSION).put((byte) (deflate ? FLAG_DEFLATE : 0)).putInt(CHUNK_SIZE).put(keyId(key)).put(salt);
+            final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+            RANDOM.nextBytes(noncePrefix);
+            header1.put(noncePrefix);
+            this.header = header1.array();
+
+            this.plain = new byte[CHUNK_SIZE];
+            this.following = new byte[CHUNK_SIZE];
+            this.plainLength = readFully(source, this.plain);
+            this.output = new byte[CHUNK_SIZE + TAG_SIZE];
+            System.arraycopy(this.header, 0, this.output, 0, HEADER_SIZE);
+            this.limit = HEADER_SIZE;
+        }
+
+        private boolean fill() throws IOException {
+            if (this.finished) {
+                return false;
+            }
+            final int followingLength = (this.plainLength < CHUNK_SIZE ? 0 : readFully(this.source, this.following));
+            final boolean last = (followingLength == 0);
+            try {
+                this.cipher.init(Cipher.ENCRYPT_MODE, this.key, nonce(this.header, this.counter, last));
+                this.cipher.updateAAD(this.header);
+                this.limit = this.cipher.doFinal(this.plain, 0, this.plainLength, this.output, 0);
+            } catch (final GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            this.position = 0;
+            this.counter++;
+            this.finished = last;
+
+            final byte[] swap = this.plain;
+            this.plain = this.following;
+            this.following = swap;
+            this.plainLength = followingLength;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.position == this.limit && !fill()) {
+                return -1;
+            }
+            final int length = Math.min(len, this.limit - this.position);
+            System.arraycopy(this.output, this.position, b, off, length);
+            this.position += length;
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.source.close();
+        }
+
+    }
+
+    /**
+     * 暗号文を読んで平文を返す
+     */
+    private static final class DecryptingInputStream extends InputStream {
+
+        private final InputStream source;
+        private final SecretKeySpec key;
+        private final Cipher cipher;
+        private final byte[] header;
+
+        // 次に復号する暗号文。最後のチャンクか知るため 1 つ先を読んでおく
+        private byte[] encrypted;
+        private int encryptedLength;
+        private byte[] following;
+        private int counter;
+        private boolean finished;
+
+        private final byte[] output;
+        private int position;
+        private int limit;
+
+        DecryptingInputStream(final InputStream source, final byte[] key, final byte[] header, final int chunkSize) throws IOException {
+            this.source = source;
+            this.key = new SecretKeySpec(key, "AES");
+            this.cipher = newCipher();
+            this.header = header;
+            this.encrypted = new byte[chunkSize + TAG_SIZE];
+            this.following = new byte[chunkSize + TAG_SIZE];
+            this.encryptedLength = readFully(source, this.encrypted);
+            this.output = new byte[chunkSize];
+        }
+
+        private boolean fill() throws IOException {
+            if (this.finished) {
+                return false;
+            }
+            if (this.encryptedLength < TAG_SIZE) {
+                throw new EOFException("Truncated");
+            }
+            final int followingLength = (this.encryptedLength < this.encrypted.length ? 0 : readFully(this.source, this.following));
+            final boolean last = (followingLength == 0);
+            try {
+                this.cipher.init(Cipher.DECRYPT_MODE, this.key, nonce(this.header, this.counter, last));
+                this.cipher.updateAAD(this.header);
+                this.limit = this.cipher.doFinal(this.encrypted, 0, this.encryptedLength, this.output, 0);
+            } catch (final AEADBadTagException e) {
+                throw new IOException("Tampered or truncated at chunk " + this.counter, e);
+            } catch (final GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            this.position = 0;
+            this.counter++;
+            this.finished = last;
+
+            final byte[] swap = this.encrypted;
+            this.encrypted = this.following;
+            this.following = swap;
+            this.encryptedLength = followingLength;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (this.position == this.limit) {
+                // 空のチャンクもある
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            final int length = Math.min(len, this.limit - this.position);
+            System.arraycopy(this.output, this.position, b, off, length);
+            this.position += length;
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.source.close();
+        }
+
+    }
+
+    /**
+     * 暗号化したファイルを復号する
+     * @param args 鍵（保管庫に入っている Base64 表記）、暗号化したファイル、書き出すファイル
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: " + PayloadCipher.class.getName() + " KEY INPUT OUTPUT");
+            System.exit(1);
+        }
+        final byte[] key = Base64.getDecoder().decode(args[0]);
+        try (InputStream input = decrypt(new BufferedInputStream(Files.newInputStream(Paths.get(args[1]))), key);
+                OutputStream output = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[2])))) {
+            final byte[] buff = new byte[DirectoryUploader.BUFFER_SIZE];
+            while (true) {
+                final int length = input.read(buff);
+                if (length < 0) {
+                    break;
+                }
+                output.write(buff, 0, length);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 筋書き通りのイベントを仮想の時間で流す。
+ * 待つ代わりに時計を進めるので、何時間分のイベントでもすぐに流し終わる。
+ * 同じ日時のイベントと、報告中などで溜まったイベントはまとめて届ける
+ */
+final class ScriptedEventSource implements EventSource {
+
+    private final VirtualClock clock;
+    private final Iterator<WatchTrace.Event> script;
+    // 読み出し済みでまだ届けていないイベント
+    private WatchTrace.Event next;
+
+    /**
+     * 作成する
+     * @param clock 進める時計
+     * @param script 日時順のイベント。日時が時計より前のものは時計の日時に届ける
+     */
+    ScriptedEventSource(final VirtualClock clock, final Iterator<WatchTrace.Event> script) {
+        this.clock = clock;
+        this.script = script;
+        this.next = (script.hasNext() ? script.next() : null);
+    }
+
+    @Override
+    public List<Event> poll(final long timeout) {
+        final long now = this.clock.currentTimeMillis();
+        if (this.next == null) {
+            if (timeout == Long.MAX_VALUE) {
+                // 流し終わった
+                return null;
+            }
+            advance(timeout);
+            return Collections.emptyList();
+        }
+        if (timeout != Long.MAX_VALUE && this.next.getDate() > now + timeout) {
+            advance(timeout);
+            return Collections.emptyList();
+        }
+
+        // 時計より前のものは溜まっていたものとしてまとめて届ける
+        final long date = Math.max(now, this.next.getDate());
+        this.clock.advanceTo(date);
+        final List<Event> events = new ArrayList<>();
+        while (this.next != null && this.next.getDate() <= date) {
+            final String name = this.next.getPath();
+            events.add(new Event(this.next.getKind(), (name.isEmpty() ? null : Paths.get(name))));
+            this.next = (this.script.hasNext() ? this.script.next() : null);
+        }
+        return events;
+    }
+
+    /**
+     * 本物の時間と同じく、待ったら少しは進める
+     */
+    private void advance(final long timeout) {
+        this.clock.advance(Math.max(1, timeout));
+    }
+
+    @Override
+    public void close() {
+        // 何もしない
+    }
+
+}
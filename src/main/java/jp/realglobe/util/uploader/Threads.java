@@ -0,0 +1,98 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * スレッドの作成。
+ * Java 21 以降では仮想スレッドも使える。
+ * Java 8 でもコンパイル・実行できるように、仮想スレッドはリフレクションで作る
+ */
+final class Threads {
+
+    private static final Logger LOG = Logger.getLogger(Threads.class.getName());
+
+    // インスタンス化防止
+    private Threads() {}
+
+    /**
+     * 仮想スレッドが使えるか
+     * @return 使えるなら true
+     */
+    static boolean isVirtualAvailable() {
+        return newVirtualFactory("probe") != null;
+    }
+
+    /**
+     * スレッドを作る関数を返す
+     * @param name スレッド名の接頭辞
+     * @param virtual 仮想スレッドにするか。使えない場合は普通のスレッドにする
+     * @return スレッドを作る関数
+     */
+    static ThreadFactory newFactory(final String name, final boolean virtual) {
+        if (virtual) {
+            final ThreadFactory factory = newVirtualFactory(name);
+            if (factory != null) {
+                return factory;
+            }
+            LOG.warning("Virtual threads are not available, use platform threads");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + count.incrementAndGet());
+    }
+
+    /**
+     * 決まった数のスレッドで処理する実行器を作る。
+     * 仮想スレッドの場合も使い回すが、待機中の仮想スレッドはほとんど資源を使わない
+     * @param name スレッド名の接頭辞
+     * @param threads スレッド数
+     * @param virtual 仮想スレッドにするか
+     * @return 実行器
+     */
+    static ExecutorService newExecutor(final String name, final int threads, final boolean virtual) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), newFactory(name, virtual));
+    }
+
+    /**
+     * 仮想スレッドを作る関数を返す
+     * @param name スレッド名の接頭辞
+     * @return スレッドを作る関数。仮想スレッドが使えなければ null
+     */
+    private static ThreadFactory newVirtualFactory(final String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (final ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        } catch (final InvocationTargetException e) {
+            // プレビュー機能が無効な Java 19, 20
+            LOG.fine("Cannot use virtual threads: " + e.getCause());
+            return null;
+        }
+    }
+
+}
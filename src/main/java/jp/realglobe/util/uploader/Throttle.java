@@ -0,0 +1,143 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 帯域の制限。
+ * トークンバケットで、1 秒分までの溜め込みを許す。
+ * 足りない分は借りて先に進み、返せるまで待つので、大きな読み込みも小分けにせずに済む
+ */
+final class Throttle {
+
+    // 帯域（バイト/秒）
+    private final long rate;
+    // 使える量（バイト）。負なら借りている
+    private double tokens;
+    // 最後に補充した時刻（ナノ秒）
+    private long refilled;
+
+    /**
+     * 作成する
+     * @param rate 帯域（バイト/秒）
+     */
+    Throttle(final long rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Invalid rate " + rate);
+        }
+        this.rate = rate;
+        this.tokens = rate;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * @return 帯域（バイト/秒）
+     */
+    long getRate() {
+        return this.rate;
+    }
+
+    /**
+     * 使った分だけ待つ
+     * @param bytes 使った量（バイト）
+     * @throws InterruptedIOException 待機中に割り込まれた
+     */
+    void acquire(final long bytes) throws InterruptedIOException {
+        final long wait;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            this.tokens = Math.min(this.rate, this.tokens + (now - this.refilled) * (double) this.rate / TimeUnit.SECONDS.toNanos(1));
+            this.refilled = now;
+            this.tokens -= bytes;
+            wait = (this.tokens >= 0 ? 0 : (long) (-this.tokens * TimeUnit.SECONDS.toNanos(1) / this.rate));
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling");
+            }
+        }
+    }
+
+    /**
+     * 読み込みを帯域で制限するデータにする
+     * @param source 元のデータ
+     * @return 制限したデータ
+     */
+    Payload wrap(final Payload source) {
+        return new Payload(source.getName(), source.getContentType()) {
+
+            @Override
+            public long getLength() {
+                return source.getLength();
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return source.isRepeatable();
+            }
+
+            @Override
+            Path getPath() {
+                return source.getPath();
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FilterInputStream(source.openStream()) {
+
+                    @Override
+                    public int read() throws IOException {
+                        final int b = super.read();
+                        if (b >= 0) {
+                            acquire(1);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(final byte[] b, final int off, final int len) throws IOException {
+                        final int length = super.read(b, off, len);
+                        if (length > 0) {
+                            acquire(length);
+                        }
+                        return length;
+                    }
+
+                    @Override
+                    public long skip(final long n) throws IOException {
+                        final long length = super.skip(n);
+                        if (length > 0) {
+                            acquire(length);
+                        }
+                        return length;
+                    }
+
+                };
+            }
+
+        };
+    }
+
+}
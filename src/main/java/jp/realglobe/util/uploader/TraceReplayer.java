@@ -0,0 +1,168 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * 記録した監視イベントを再生する。
+ * 記録どおりの時間間隔で、ディレクトリにファイルを作ったり書き足したりする。
+ * 中身は記録されていないので、大きさだけ合わせる
+ */
+public class TraceReplayer {
+
+    private static final Logger LOG = Logger.getLogger(TraceReplayer.class.getName());
+
+    private final Path tracePath;
+    private final Path directory;
+    private final double speed;
+
+    /**
+     * 作成する
+     * @param tracePath 記録ファイルのパス
+     * @param directory 再生先のディレクトリ
+     * @param speed 再生速度の倍率。1 なら記録どおり。0 以下なら待たずに再生する
+     */
+    public TraceReplayer(final Path tracePath, final Path directory, final double speed) {
+        this.tracePath = tracePath;
+        this.directory = directory;
+        this.speed = speed;
+    }
+
+    /**
+     * 再生する
+     * @return 再生したイベント数
+     * @throws IOException 読み書きエラー
+     * @throws InterruptedException 割り込まれた
+     */
+    public long replay() throws IOException, InterruptedException {
+        long count = 0;
+        try (WatchTrace.Reader reader = new WatchTrace.Reader(this.tracePath)) {
+            final long traceStart = reader.getStartDate();
+            final long start = System.currentTimeMillis();
+            while (true) {
+                final WatchTrace.Event event;
+                try {
+                    event = reader.read();
+                } catch (final EOFException e) {
+                    // 記録中に落ちた
+                    LOG.info("Trace is truncated");
+                    break;
+                }
+                if (event == null) {
+                    break;
+                }
+                if (this.speed > 0) {
+                    final long wait = start + (long) ((event.getDate() - traceStart) / this.speed) - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                apply(event);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * イベントを起こす
+     * @param event イベント
+     * @throws IOException 読み書きエラー
+     */
+    void apply(final WatchTrace.Event event) throws IOException {
+        if (event.getKind() == WatchTrace.Kind.OVERFLOW) {
+            return;
+        }
+        final Path path = this.directory.resolve(event.getPath()).normalize();
+        if (!path.startsWith(this.directory.normalize())) {
+            LOG.warning("Skip outside path " + event.getPath());
+            return;
+        }
+
+        switch (event.getKind()) {
+        case CREATE: {
+            write(path, 0, Math.max(0, event.getSize()));
+            break;
+        }
+        case MODIFY: {
+            final long current = (Files.exists(path) ? Files.size(path) : 0);
+            if (event.getSize() < 0) {
+                write(path, current, current + 1);
+            } else if (event.getSize() >= current) {
+                write(path, current, event.getSize());
+            } else {
+                write(path, 0, event.getSize());
+            }
+            break;
+        }
+        case DELETE: {
+            Files.deleteIfExists(path);
+            break;
+        }
+        default:
+            break;
+        }
+    }
+
+    /**
+     * ファイルの大きさを合わせる
+     * @param path ファイルパス
+     * @param from 書き始める位置。0 なら作り直す
+     * @param to 書き終わりの位置
+     * @throws IOException 書き込みエラー
+     */
+    private static void write(final Path path, final long from, final long to) throws IOException {
+        final Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        final StandardOpenOption mode = (from == 0 ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+        try (OutputStream output = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+            final byte[] buff = new byte[DirectoryUploader.BUFFER_SIZE];
+            for (long rest = to - from; rest > 0;) {
+                final int length = (int) Math.min(buff.length, rest);
+                output.write(buff, 0, length);
+                rest -= length;
+            }
+        }
+    }
+
+    /**
+     * 記録ファイル、再生先ディレクトリ、再生速度の倍率（省略時 1）を指定して再生する
+     * @param args 引数
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: " + TraceReplayer.class.getName() + " TRACE DIRECTORY [SPEED]");
+            System.exit(1);
+        }
+        final double speed = (args.length > 2 ? Double.parseDouble(args[2]) : 1);
+        final long start = System.currentTimeMillis();
+        final long count = (new TraceReplayer(Paths.get(args[0]), Paths.get(args[1]), speed)).replay();
+        System.out.println("Replayed " + count + " events in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+}
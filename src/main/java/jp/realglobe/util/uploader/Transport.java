@@ -0,0 +1,38 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * アップロード先への送り方。
+ * 標準では HTTP のマルチパートで送る。
+ * 複数のスレッドから同時に呼ばれる
+ */
+public interface Transport {
+
+    /**
+     * データを送る
+     * @param token 認証トークン
+     * @param payload データ
+     * @param info 送り先に伝える付加情報。空なら無し
+     * @return HTTP ステータスコードに倣った結果。受け付けられたら 201
+     * @throws IOException 送れなかった
+     */
+    int send(String token, Payload payload, Map<String, String> info) throws IOException;
+
+}
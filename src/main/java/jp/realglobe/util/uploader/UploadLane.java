@@ -0,0 +1,137 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * アップロードの車線。
+ * 拡張子と大きさで振り分けたファイルを、車線ごとの待ち行列、同時アップロード数、帯域、送り先でアップロードする。
+ * 動作中の状態は DirectoryUploader が start で作り、stop で止める
+ */
+final class UploadLane {
+
+    private final String name;
+    private final Set<String> extensions;
+    private final long minSize;
+    private final long maxSize;
+    private final int concurrency;
+    private final long bandwidth;
+    private final URI uploadUrl;
+
+    // 以下、動作中の状態
+    private ExecutorService executor;
+    private Semaphore slots;
+    private Transport transport;
+
+    /**
+     * 作成する
+     * @param name 名前
+     * @param extensions 対象の拡張子。null や空なら全て
+     * @param minSize 対象の最小ファイルサイズ（バイト）。0 以下なら下限無し
+     * @param maxSize 対象の最大ファイルサイズ（バイト）。0 以下なら上限無し
+     * @param concurrency 同時にアップロードする数
+     * @param bandwidth 帯域（バイト/秒）。0 以下なら制限しない
+     * @param uploadUrl 送り先。null なら元の送り先
+     */
+    UploadLane(final String name, final Collection<String> extensions, final long minSize, final long maxSize, final int concurrency, final long bandwidth,
+            final URI uploadUrl) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency " + concurrency);
+        }
+        this.name = name;
+        this.extensions = (extensions == null ? Collections.emptySet() : new HashSet<>(extensions));
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.concurrency = concurrency;
+        this.bandwidth = bandwidth;
+        this.uploadUrl = uploadUrl;
+    }
+
+    /**
+     * 対象か調べる。
+     * 大きさが分からなければ大きさでは絞り込まない
+     * @param fileName ファイル名
+     * @param length 大きさ（バイト）。不明なら -1
+     * @return 対象なら true
+     */
+    boolean matches(final String fileName, final long length) {
+        if (!this.extensions.isEmpty() && !this.extensions.contains(FilenameUtils.getExtension(fileName))) {
+            return false;
+        } else if (this.minSize > 0 && length >= 0 && length < this.minSize) {
+            return false;
+        } else if (this.maxSize > 0 && length > this.maxSize) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 動作を始める
+     * @param virtual 仮想スレッドにするか
+     * @param pipelineDepth 同時アップロード数より多く受け付ける数
+     * @param defaultTransport 送り先を指定していないときの送り方
+     * @param transportFactory 送り先を指定しているときに、その URL への送り方を作る
+     */
+    void start(final boolean virtual, final int pipelineDepth, final Transport defaultTransport, final Function<URI, Transport> transportFactory) {
+        this.executor = Threads.newExecutor("uploader-" + this.name, this.concurrency, virtual);
+        this.slots = new Semaphore(this.concurrency + pipelineDepth);
+        final Transport transport1 = (this.uploadUrl == null ? defaultTransport : transportFactory.apply(this.uploadUrl));
+        if (this.bandwidth > 0) {
+            // 送るときだけ制限し、差分を作るための読み込みなどは制限しない
+            final Throttle throttle = new Throttle(this.bandwidth);
+            this.transport = (token, payload, info) -> transport1.send(token, throttle.wrap(payload), info);
+        } else {
+            this.transport = transport1;
+        }
+    }
+
+    /**
+     * @return アップロードするスレッド
+     */
+    ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * @return 受け付け枠
+     */
+    Semaphore getSlots() {
+        return this.slots;
+    }
+
+    /**
+     * @return 帯域を制限した送り方
+     */
+    Transport getTransport() {
+        return this.transport;
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+
+}
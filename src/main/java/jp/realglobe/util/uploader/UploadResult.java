@@ -0,0 +1,132 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 1 つのファイルのアップロード結果
+ */
+public final class UploadResult {
+
+    /**
+     * 結果の種類
+     */
+    public static enum Status {
+        /**
+         * アップロードした
+         */
+        UPLOADED,
+        /**
+         * 対象外なのでアップロードしなかった
+         */
+        SKIPPED,
+        /**
+         * サーバーに受け付けられなかった
+         */
+        FAILED,
+    }
+
+    private final String name;
+    private final Status status;
+    private final int statusCode;
+    private final long elapsed;
+    private final long sentBytes;
+    private final Map<String, UploadResult> destinations;
+
+    UploadResult(final String name, final Status status, final int statusCode, final long elapsed) {
+        this(name, status, statusCode, elapsed, -1);
+    }
+
+    UploadResult(final String name, final Status status, final int statusCode, final long elapsed, final long sentBytes) {
+        this(name, status, statusCode, elapsed, sentBytes, Collections.emptyMap());
+    }
+
+    private UploadResult(final String name, final Status status, final int statusCode, final long elapsed, final long sentBytes, final Map<String, UploadResult> destinations) {
+        this.name = name;
+        this.status = status;
+        this.statusCode = statusCode;
+        this.elapsed = elapsed;
+        this.sentBytes = sentBytes;
+        this.destinations = destinations;
+    }
+
+    /**
+     * 他の送り先の結果を付ける
+     * @param destinations1 送り先の URL から結果
+     * @return 結果
+     */
+    UploadResult withDestinations(final Map<String, UploadResult> destinations1) {
+        return new UploadResult(this.name, this.status, this.statusCode, this.elapsed, this.sentBytes, Collections.unmodifiableMap(new LinkedHashMap<>(destinations1)));
+    }
+
+    static UploadResult skipped(final String name) {
+        return new UploadResult(name, Status.SKIPPED, -1, 0);
+    }
+
+    /**
+     * @return アップロードしたデータの名前
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return 結果の種類
+     */
+    public Status getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return HTTP ステータスコード。通信しなかった場合は -1
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * @return 処理にかかった時間（ミリ秒）
+     */
+    public long getElapsed() {
+        return this.elapsed;
+    }
+
+    /**
+     * @return 送ったデータの大きさ（バイト）。縮小した場合は縮小後の大きさ。
+     *         送らなかったり不明だったりする場合は -1
+     */
+    public long getSentBytes() {
+        return this.sentBytes;
+    }
+
+    /**
+     * @return 元の送り先とは別の送り先ごとの結果。送り先の URL から結果。
+     *         別の送り先が無ければ空
+     */
+    public Map<String, UploadResult> getDestinationResults() {
+        return this.destinations;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + ": " + this.status + (this.statusCode < 0 ? "" : " (" + this.statusCode + ")") + " in " + this.elapsed + "ms";
+    }
+
+}
@@ -19,6 +19,9 @@ package jp.realglobe.util.uploader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * ちょっとした便利関数
@@ -44,4 +47,33 @@ final class Utils {
         return output.toByteArray();
     }
 
+    /**
+     * 16 進数表記にする
+     * @param data バイト列
+     * @return 16 進数表記
+     */
+    static String toHex(final byte[] data) {
+        final StringBuilder builder = new StringBuilder(2 * data.length);
+        for (final byte b : data) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * ディレクトリの変更 (ファイルの追加や置き換え) をディスクに落とす。
+     * ディレクトリを開けない環境 (Windows など) では何もしない
+     * @param directory ディレクトリ
+     */
+    static void syncDirectory(final Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (final IOException e) {
+            // ディレクトリを開けない
+        }
+    }
+
 }
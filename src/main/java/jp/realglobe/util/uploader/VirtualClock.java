@@ -0,0 +1,60 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+/**
+ * 手で進める時計。
+ * 待たずに何時間分でも進められる
+ */
+final class VirtualClock implements Clock {
+
+    private long now;
+
+    /**
+     * 作成する
+     * @param start 始まりの日時（ミリ秒）
+     */
+    VirtualClock(final long start) {
+        this.now = start;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return this.now;
+    }
+
+    /**
+     * 進める
+     * @param millis 進める時間（ミリ秒）。負なら進めない
+     */
+    synchronized void advance(final long millis) {
+        if (millis > 0) {
+            this.now += millis;
+        }
+    }
+
+    /**
+     * 指定した日時まで進める。
+     * 戻しはしない
+     * @param date 日時（ミリ秒）
+     */
+    synchronized void advanceTo(final long date) {
+        if (date > this.now) {
+            this.now = date;
+        }
+    }
+
+}
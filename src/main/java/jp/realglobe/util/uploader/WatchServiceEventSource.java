@@ -0,0 +1,107 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * WatchService によるディレクトリ監視
+ */
+final class WatchServiceEventSource implements EventSource {
+
+    private static final Logger LOG = Logger.getLogger(WatchServiceEventSource.class.getName());
+
+    private final WatchService watcher;
+
+    /**
+     * 監視を始める
+     * @param target 監視するディレクトリ
+     * @param delete 削除も監視するなら true
+     * @throws IOException 監視できなかった
+     */
+    WatchServiceEventSource(final Path target, final boolean delete) throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        try {
+            if (delete) {
+                target.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            } else {
+                target.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        } catch (final IOException e) {
+            this.watcher.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Event> poll(final long timeout) throws InterruptedException {
+        final WatchKey key;
+        try {
+            key = this.watcher.poll(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+        } catch (final ClosedWatchServiceException e) {
+            // 閉じられた
+            return null;
+        }
+        if (key == null) {
+            return Collections.emptyList();
+        }
+
+        final List<Event> events = new ArrayList<>();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            final WatchEvent.Kind<?> kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                events.add(new Event(WatchTrace.Kind.OVERFLOW, null));
+                continue;
+            }
+            final Object context = event.context();
+            if (!(context instanceof Path)) {
+                LOG.warning("Not path");
+                continue;
+            }
+            final WatchTrace.Kind kind1;
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                kind1 = WatchTrace.Kind.CREATE;
+            } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                kind1 = WatchTrace.Kind.DELETE;
+            } else {
+                kind1 = WatchTrace.Kind.MODIFY;
+            }
+            events.add(new Event(kind1, (Path) context));
+        }
+        if (!key.reset()) {
+            throw new RuntimeException("Reset error");
+        }
+        return events;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.watcher.close();
+    }
+
+}
@@ -0,0 +1,236 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 監視イベントの記録。
+ * 形式は、先頭に識別子と版と開始日時、以降はイベントごとに
+ * 種類 (1 バイト)、前のイベントからの経過ミリ秒、大きさ + 1 (不明なら 0)、パスの長さ、パス (UTF-8)。
+ * 数値は 7 ビットずつの可変長
+ */
+final class WatchTrace {
+
+    private static final int MAGIC = 0x52475754; // "RGWT"
+    private static final int VERSION = 1;
+
+    // インスタンス化防止
+    private WatchTrace() {}
+
+    /**
+     * イベントの種類
+     */
+    static enum Kind {
+        OVERFLOW, CREATE, MODIFY, DELETE,
+    }
+
+    /**
+     * 1 つのイベント
+     */
+    static final class Event {
+
+        private final Kind kind;
+        private final String path;
+        private final long date;
+        private final long size;
+
+        /**
+         * @param kind 種類
+         * @param path 監視ディレクトリからの相対パス。あふれの場合は空
+         * @param date 日時（ミリ秒）
+         * @param size ファイルの大きさ。不明なら -1
+         */
+        Event(final Kind kind, final String path, final long date, final long size) {
+            this.kind = kind;
+            this.path = path;
+            this.date = date;
+            this.size = size;
+        }
+
+        Kind getKind() {
+            return this.kind;
+        }
+
+        String getPath() {
+            return this.path;
+        }
+
+        long getDate() {
+            return this.date;
+        }
+
+        long getSize() {
+            return this.size;
+        }
+
+        @Override
+        public String toString() {
+            return this.date + " " + this.kind + " " + this.path + " " + this.size;
+        }
+
+    }
+
+    /**
+     * 記録する
+     */
+    static final class Writer implements Closeable {
+
+        private final DataOutputStream output;
+        private long lastDate;
+
+        /**
+         * @param path 記録ファイルのパス
+         * @throws IOException 書き込みエラー
+         */
+        Writer(final Path path) throws IOException {
+            this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+            this.lastDate = System.currentTimeMillis();
+            this.output.writeInt(MAGIC);
+            this.output.writeByte(VERSION);
+            this.output.writeLong(this.lastDate);
+        }
+
+        /**
+         * イベントを書き込む
+         * @param event イベント
+         * @throws IOException 書き込みエラー
+         */
+        synchronized void write(final Event event) throws IOException {
+            this.output.writeByte(event.kind.ordinal());
+            // 時計が戻ったら 0 にする
+            writeVarLong(this.output, Math.max(0, event.date - this.lastDate));
+            writeVarLong(this.output, event.size + 1);
+            final byte[] path = event.path.getBytes(Constants.UTF8);
+            writeVarLong(this.output, path.length);
+            this.output.write(path);
+            this.lastDate = Math.max(this.lastDate, event.date);
+        }
+
+        /**
+         * バッファの中身を書き出す
+         * @throws IOException 書き込みエラー
+         */
+        synchronized void flush() throws IOException {
+            this.output.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.output.close();
+        }
+
+    }
+
+    /**
+     * 読み込む
+     */
+    static final class Reader implements Closeable {
+
+        private final DataInputStream input;
+        private final long startDate;
+        private long lastDate;
+
+        /**
+         * @param path 記録ファイルのパス
+         * @throws IOException 読み込みエラー
+         */
+        Reader(final Path path) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+            try {
+                if (this.input.readInt() != MAGIC) {
+                    throw new IOException("Not trace file " + path);
+                }
+                final int version = this.input.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported trace version " + version);
+                }
+                this.startDate = this.input.readLong();
+            } catch (final IOException e) {
+                this.input.close();
+                throw e;
+            }
+            this.lastDate = this.startDate;
+        }
+
+        /**
+         * @return 記録を始めた日時（ミリ秒）
+         */
+        long getStartDate() {
+            return this.startDate;
+        }
+
+        /**
+         * 次のイベントを読む
+         * @return イベント。終わりなら null
+         * @throws IOException 読み込みエラー
+         */
+        Event read() throws IOException {
+            final int kind = this.input.read();
+            if (kind < 0) {
+                return null;
+            } else if (kind >= Kind.values().length) {
+                throw new IOException("Unknown event kind " + kind);
+            }
+            final long date = this.lastDate + readVarLong(this.input);
+            final long size = readVarLong(this.input) - 1;
+            final byte[] path = new byte[(int) readVarLong(this.input)];
+            this.input.readFully(path);
+            this.lastDate = date;
+            return new Event(Kind.values()[kind], new String(path, Constants.UTF8), date, size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.input.close();
+        }
+
+    }
+
+    private static void writeVarLong(final DataOutputStream output, final long value) throws IOException {
+        long rest = value;
+        while ((rest & ~0x7fL) != 0) {
+            output.writeByte((int) (rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        output.writeByte((int) rest);
+    }
+
+    private static long readVarLong(final DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = input.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Too long number");
+    }
+
+}
@@ -0,0 +1,166 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class AdaptiveLimiterTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * 使い切った状態で全て返す
+     */
+    private static void round(final AdaptiveLimiter limiter, final long rtt, final AdaptiveLimiter.Outcome outcome) throws InterruptedException {
+        final int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < limit; i++) {
+            limiter.release(rtt, outcome);
+        }
+    }
+
+    /**
+     * 応答時間が変わらなければ上限まで増えるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testIncrease() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 16);
+        for (int i = 0; i < 10; i++) {
+            round(limiter, RTT, AdaptiveLimiter.Outcome.SUCCESS);
+        }
+        Assert.assertEquals(16, limiter.getLimit());
+    }
+
+    /**
+     * 過負荷で半分になり、その後はゆっくり増えるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOverload() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(8, 16);
+        limiter.acquire();
+        limiter.release(RTT, AdaptiveLimiter.Outcome.OVERLOAD);
+        Assert.assertEquals(4, limiter.getLimit());
+
+        for (int i = 0; i < 4; i++) {
+            round(limiter, RTT, AdaptiveLimiter.Outcome.SUCCESS);
+        }
+        Assert.assertTrue(limiter.getLimit() > 4);
+        Assert.assertTrue(limiter.getLimit() < 8);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.release(RTT, AdaptiveLimiter.Outcome.OVERLOAD);
+        }
+        Assert.assertEquals(1, limiter.getLimit());
+    }
+
+    /**
+     * 応答時間が伸びたら減るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLatency() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 16);
+        for (int i = 0; i < 4; i++) {
+            round(limiter, RTT, AdaptiveLimiter.Outcome.SUCCESS);
+        }
+        final int before = limiter.getLimit();
+        round(limiter, 4 * RTT, AdaptiveLimiter.Outcome.SUCCESS);
+        Assert.assertTrue(limiter.getLimit() < before);
+    }
+
+    /**
+     * 関係無い失敗では変わらないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testIgnore() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(4, 16);
+        round(limiter, 100 * RTT, AdaptiveLimiter.Outcome.IGNORE);
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    /**
+     * 上限に達したら空くまで待つか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testBlock() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1);
+        limiter.acquire();
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (final InterruptedException e) {
+                // 終了
+            }
+        });
+        thread.start();
+        Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release(RTT, AdaptiveLimiter.Outcome.SUCCESS);
+        Assert.assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, limiter.getInFlight());
+        thread.join();
+    }
+
+    /**
+     * 送るのに掛かった時間を応答時間に含めないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTimer() throws Exception {
+        final AdaptiveLimiter.Timer timer = new AdaptiveLimiter.Timer();
+        final Payload payload = timer.wrap(Payload.of("a", new byte[] { 1, 2, 3 }, null));
+        Assert.assertEquals(3, payload.getLength());
+        // 送るのに時間が掛かった
+        Thread.sleep(300);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        payload.writeTo(output);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, output.toByteArray());
+        Assert.assertTrue(timer.elapsed() < TimeUnit.MILLISECONDS.toNanos(200));
+
+        // 読み終えていなければ最初から測る
+        final AdaptiveLimiter.Timer timer2 = new AdaptiveLimiter.Timer();
+        final InputStream input = timer2.wrap(payload).openStream();
+        Thread.sleep(300);
+        Assert.assertEquals(1, input.read());
+        Assert.assertTrue(timer2.elapsed() >= TimeUnit.MILLISECONDS.toNanos(300));
+        Assert.assertEquals(2, input.read(new byte[4]));
+        Assert.assertEquals(-1, input.read());
+        Thread.sleep(10);
+        Assert.assertTrue(timer2.elapsed() < TimeUnit.MILLISECONDS.toNanos(200));
+        input.close();
+    }
+
+}
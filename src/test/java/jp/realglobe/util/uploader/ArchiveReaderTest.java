@@ -0,0 +1,233 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class ArchiveReaderTest {
+
+    private Path directory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(ArchiveReaderTest.class.getSimpleName());
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    private static void writeZip(final Path path, final String... namesAndContents) throws IOException {
+        try (ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(path))) {
+            output.putNextEntry(new ZipEntry("dir/"));
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                output.putNextEntry(new ZipEntry(namesAndContents[i]));
+                output.write(namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static void writeTarHeader(final OutputStream output, final String name, final long size, final char type) throws IOException {
+        final byte[] header = new byte[512];
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+        System.arraycopy(String.format("%011o", size).getBytes(StandardCharsets.US_ASCII), 0, header, 124, 11);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        output.write(header);
+    }
+
+    private static void writeTarData(final OutputStream output, final byte[] data) throws IOException {
+        output.write(data);
+        output.write(new byte[(512 - data.length % 512) % 512]);
+    }
+
+    private static void writeTar(final Path path, final String... namesAndContents) throws IOException {
+        try (OutputStream output = Files.newOutputStream(path)) {
+            writeTarHeader(output, "dir/", 0, '5');
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                final String name = namesAndContents[i];
+                final byte[] data = namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8);
+                if (name.length() > 100) {
+                    final byte[] nameBytes = (name + "\0").getBytes(StandardCharsets.UTF_8);
+                    writeTarHeader(output, "././@LongLink", nameBytes.length, 'L');
+                    writeTarData(output, nameBytes);
+                }
+                writeTarHeader(output, name, data.length, '0');
+                writeTarData(output, data);
+            }
+            output.write(new byte[1024]);
+        }
+    }
+
+    private static byte[] read(final Payload payload) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        payload.writeTo(output);
+        return output.toByteArray();
+    }
+
+    /**
+     * zip の中のファイルを読めるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testZip() throws Exception {
+        final Path path = this.directory.resolve("a.zip");
+        writeZip(path, "dir/b.jpg", "bbb", "c.txt", "cc");
+        try (ArchiveReader archive = ArchiveReader.open(path)) {
+            final List<Payload> entries = archive.getEntries();
+            Assert.assertEquals(2, entries.size());
+            Assert.assertEquals("dir__b.jpg", entries.get(0).getName());
+            Assert.assertEquals(3, entries.get(0).getLength());
+            Assert.assertEquals(path + "!/dir/b.jpg", entries.get(0).toString());
+            Assert.assertEquals("bbb", new String(read(entries.get(0)), StandardCharsets.UTF_8));
+            // 何度でも読める
+            Assert.assertEquals("bbb", new String(read(entries.get(0)), StandardCharsets.UTF_8));
+            Assert.assertEquals("cc", new String(read(entries.get(1)), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * tar の中のファイルを読めるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTar() throws Exception {
+        final Path path = this.directory.resolve("a.tar");
+        final char[] longName = new char[150];
+        Arrays.fill(longName, 'x');
+        final String content = new String(new char[1_000]).replace('\0', 'd');
+        writeTar(path, "dir/b.jpg", "bbb", new String(longName) + ".jpg", content);
+        try (ArchiveReader archive = ArchiveReader.open(path)) {
+            final List<Payload> entries = archive.getEntries();
+            Assert.assertEquals(2, entries.size());
+            Assert.assertEquals("dir__b.jpg", entries.get(0).getName());
+            Assert.assertEquals("bbb", new String(read(entries.get(0)), StandardCharsets.UTF_8));
+            Assert.assertEquals(new String(longName) + ".jpg", entries.get(1).getName());
+            Assert.assertEquals(1_000, entries.get(1).getLength());
+            Assert.assertEquals(content, new String(read(entries.get(1)), StandardCharsets.UTF_8));
+        }
+        Assert.assertTrue(ArchiveReader.isArchive("a.TAR"));
+        Assert.assertFalse(ArchiveReader.isArchive("a.tar.gz"));
+    }
+
+    /**
+     * 別のディレクトリにある同じ名前のファイルを別の名前にするか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSameName() throws Exception {
+        final Path zipPath = this.directory.resolve("a.zip");
+        writeZip(zipPath, "x/b.jpg", "xb", "y/b.jpg", "yb", "b.jpg", "b");
+        try (ArchiveReader archive = ArchiveReader.open(zipPath)) {
+            final List<Payload> entries = archive.getEntries();
+            Assert.assertEquals(3, entries.size());
+            Assert.assertEquals("x__b.jpg", entries.get(0).getName());
+            Assert.assertEquals("y__b.jpg", entries.get(1).getName());
+            Assert.assertEquals("b.jpg", entries.get(2).getName());
+        }
+        final Path tarPath = this.directory.resolve("a.tar");
+        writeTar(tarPath, "./x/b.jpg", "xb", "./y/b.jpg", "yb");
+        try (ArchiveReader archive = ArchiveReader.open(tarPath)) {
+            final List<Payload> entries = archive.getEntries();
+            Assert.assertEquals(2, entries.size());
+            Assert.assertEquals("x__b.jpg", entries.get(0).getName());
+            Assert.assertEquals("yb", new String(read(entries.get(1)), StandardCharsets.UTF_8));
+            Assert.assertEquals("y__b.jpg", entries.get(1).getName());
+        }
+        Assert.assertEquals("x__y__b.jpg", ArchiveReader.toName("/x\\y/b.jpg"));
+
+        // アップロードしても上書きし合わない
+        final Path watched = Files.createDirectory(this.directory.resolve("watch"));
+        final InMemoryTransport transport = new InMemoryTransport(true);
+        final DirectoryUploader uploader = new DirectoryUploader(watched, 100L, false, Arrays.asList("jpg"), 0, 0, "http://localhost:1", "user0", "test uploader", "id0",
+                "abcde");
+        uploader.setTransport(transport);
+        uploader.setArchiveExpansion(true);
+        uploader.start();
+        try {
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit(zipPath).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertEquals(3, transport.getCount());
+            Assert.assertArrayEquals("xb".getBytes(StandardCharsets.UTF_8), transport.get("x__b.jpg"));
+            Assert.assertArrayEquals("yb".getBytes(StandardCharsets.UTF_8), transport.get("y__b.jpg"));
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 監視ディレクトリに置いたアーカイブの中のファイルを、絞り込んでアップロードするか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testExpand() throws Exception {
+        final Path watched = Files.createDirectory(this.directory.resolve("watch"));
+        final InMemoryTransport transport = new InMemoryTransport(true);
+        final DirectoryUploader uploader = new DirectoryUploader(watched, 100L, false, Arrays.asList("jpg"), 0, 10, "http://localhost:1", "user0", "test uploader", "id0",
+                "abcde");
+        uploader.setTransport(transport);
+        uploader.setArchiveExpansion(true);
+        uploader.start();
+        try {
+            final Path source = this.directory.resolve("a.zip");
+            writeZip(source, "b.jpg", "bbb", "c.txt", "ccc", "d.jpg", "too large data");
+            final UploadResult result = uploader.submit(source).get(1_000L, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result.getStatus());
+            Assert.assertEquals(3, result.getSentBytes());
+            Assert.assertEquals(1, transport.getCount());
+            Assert.assertArrayEquals("bbb".getBytes(StandardCharsets.UTF_8), transport.get("b.jpg"));
+
+            // 拡張子が対象外でも監視で拾う
+            Thread.sleep(500L);
+            writeTar(this.directory.resolve("e.tar"), "e.jpg", "eee", "f.jpg", "ff");
+            Files.move(this.directory.resolve("e.tar"), watched.resolve("e.tar"));
+            for (int i = 0; i < 100 && transport.getCount() < 3; i++) {
+                Thread.sleep(20L);
+            }
+            Assert.assertEquals(3, transport.getCount());
+            Assert.assertArrayEquals("ff".getBytes(StandardCharsets.UTF_8), transport.get("f.jpg"));
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class AuditJournalTest {
+
+    private Path directory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(AuditJournalTest.class.getSimpleName());
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    private static AuditJournal.Entry entry(final String path, final long date) {
+        return new AuditJournal.Entry(AuditJournal.hash(path), date, 1, 20, 300, 200, UploadResult.Status.UPLOADED, 201);
+    }
+
+    /**
+     * 書いたものをパスと日時で探せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testQuery() throws Exception {
+        try (AuditJournal journal = new AuditJournal(this.directory, 1 << 20, 0)) {
+            for (int i = 0; i < 100; i++) {
+                journal.append(entry("/a/" + (i % 10), 1_000L + i));
+            }
+        }
+
+        final List<AuditJournal.Entry> entries = AuditJournal.query(this.directory, AuditJournal.hash("/a/3"), Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(10, entries.size());
+        final AuditJournal.Entry entry = entries.get(0);
+        Assert.assertEquals(1_003L, entry.getDate());
+        Assert.assertEquals(1, entry.getWait());
+        Assert.assertEquals(20, entry.getElapsed());
+        Assert.assertEquals(300, entry.getSize());
+        Assert.assertEquals(200, entry.getSentBytes());
+        Assert.assertEquals(UploadResult.Status.UPLOADED, entry.getStatus());
+        Assert.assertEquals(201, entry.getStatusCode());
+
+        Assert.assertEquals(20, AuditJournal.query(this.directory, null, 1_050L, 1_070L).size());
+    }
+
+    /**
+     * 大きさで次のファイルに移り、古いファイルが消えるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testRotate() throws Exception {
+        try (AuditJournal journal = new AuditJournal(this.directory, 1_000, 3)) {
+            for (int i = 0; i < 1_000; i++) {
+                journal.append(entry("/a/" + i, 1_000L + i));
+            }
+        }
+        final String[] names = this.directory.toFile().list();
+        Assert.assertEquals(3, names.length);
+        for (final String name : names) {
+            Assert.assertTrue(Files.size(this.directory.resolve(name)) <= 1_000);
+        }
+
+        // 新しいものが残る
+        final List<AuditJournal.Entry> entries = AuditJournal.query(this.directory, null, Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertFalse(entries.isEmpty());
+        Assert.assertEquals(1_999L, entries.get(entries.size() - 1).getDate());
+    }
+
+    /**
+     * 書きかけの記録を読み飛ばすか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTorn() throws Exception {
+        try (AuditJournal journal = new AuditJournal(this.directory, 1 << 20, 0)) {
+            journal.append(entry("/a", 1_000L));
+        }
+        final Path path = this.directory.resolve(this.directory.toFile().list()[0]);
+        Files.write(path, new byte[] { 1, 2, 3 }, StandardOpenOption.APPEND);
+        Assert.assertEquals(1, AuditJournal.query(this.directory, null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+}
@@ -0,0 +1,111 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class CachingStoreTest {
+
+    /**
+     * 読み込みで値を取ってから返すまで待たされる保管庫
+     */
+    private static final class SlowStore implements Store {
+
+        private final Map<String, String> store = new HashMap<>();
+        private final CountDownLatch read = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String load(final String key) throws InterruptedException {
+            final String value;
+            synchronized (this) {
+                value = this.store.get(key);
+            }
+            this.read.countDown();
+            this.release.await();
+            return value;
+        }
+
+        @Override
+        public synchronized void clear(final String key) {
+            this.store.remove(key);
+        }
+
+        @Override
+        public synchronized void store(final String key, final String value) {
+            this.store.put(key, value);
+        }
+
+    }
+
+    /**
+     * 読み書き
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCache() throws Exception {
+        final SlowStore base = new SlowStore();
+        base.release.countDown();
+        final CachingStore store = new CachingStore(base);
+        Assert.assertNull(store.load("a"));
+        store.store("a", "1");
+        Assert.assertEquals("1", store.load("a"));
+        Assert.assertEquals("1", base.load("a"));
+        store.clear("a");
+        Assert.assertNull(store.load("a"));
+        Assert.assertNull(base.load("a"));
+    }
+
+    /**
+     * 読み込み中に書き込まれても古い値を覚えない
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLoadDuringStore() throws Exception {
+        final SlowStore base = new SlowStore();
+        base.store("a", "old");
+        final CachingStore store = new CachingStore(base);
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final Future<String> loaded = executor.submit(() -> store.load("a"));
+            base.read.await();
+            final Future<?> stored = executor.submit(() -> {
+                store.store("a", "new");
+                return null;
+            });
+            Thread.sleep(100);
+            base.release.countDown();
+            Assert.assertEquals("old", loaded.get());
+            stored.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals("new", store.load("a"));
+    }
+
+}
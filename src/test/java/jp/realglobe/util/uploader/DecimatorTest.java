@@ -0,0 +1,107 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class DecimatorTest {
+
+    private Path directory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(DecimatorTest.class.getSimpleName());
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    /**
+     * 決まった間隔で選ぶか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAccept() throws Exception {
+        // 1 秒に 4 枚
+        final Decimator decimator = new Decimator(4, 1_000L, null, Decimator.DropAction.KEEP, null);
+        int accepted = 0;
+        for (int i = 0; i < 300; i++) {
+            if (decimator.accept(i + ".jpg", i * 33L)) {
+                accepted++;
+            }
+        }
+        // 約 10 秒
+        Assert.assertTrue(accepted >= 36 && accepted <= 40);
+
+        // 遅れて届いた近いものも間引く
+        Assert.assertFalse(decimator.accept("late.jpg", 299 * 33L - 10L));
+    }
+
+    /**
+     * カメラごとに選ぶか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSource() throws Exception {
+        final Decimator decimator = new Decimator(1, 1_000L, Pattern.compile("^([^-_.]*)"), Decimator.DropAction.KEEP, null);
+        Assert.assertEquals("cam1", decimator.getSource("cam1_0001.jpg"));
+        Assert.assertTrue(decimator.accept("cam1_0001.jpg", 0L));
+        Assert.assertTrue(decimator.accept("cam2_0001.jpg", 10L));
+        Assert.assertFalse(decimator.accept("cam1_0002.jpg", 500L));
+        Assert.assertTrue(decimator.accept("cam1_0003.jpg", 1_000L));
+    }
+
+    /**
+     * 間引いたファイルを消したり移したりするか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDrop() throws Exception {
+        final Path deleted = Files.write(this.directory.resolve("deleted.jpg"), new byte[] { 1 });
+        new Decimator(1, 1_000L, null, Decimator.DropAction.DELETE, null).drop(deleted);
+        Assert.assertFalse(Files.exists(deleted));
+
+        final Path archive = this.directory.resolve("archive");
+        final Path archived = Files.write(this.directory.resolve("archived.jpg"), new byte[] { 2 });
+        new Decimator(1, 1_000L, null, Decimator.DropAction.ARCHIVE, archive).drop(archived);
+        Assert.assertFalse(Files.exists(archived));
+        Assert.assertArrayEquals(new byte[] { 2 }, Files.readAllBytes(archive.resolve("archived.jpg")));
+
+        final Path kept = Files.write(this.directory.resolve("kept.jpg"), new byte[] { 3 });
+        new Decimator(1, 1_000L, null, Decimator.DropAction.KEEP, null).drop(kept);
+        Assert.assertTrue(Files.exists(kept));
+    }
+
+}
@@ -18,12 +18,21 @@ package jp.realglobe.util.uploader;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
@@ -82,6 +91,41 @@ public class DelayedWatcherTest {
         Assert.assertNull(this.detected.poll(1_000L, TimeUnit.MILLISECONDS));
     }
 
+    /**
+     * 報告先で待っている間に割り込まれたら終わるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testInterruptInCallback() throws Exception {
+        final CountDownLatch called = new CountDownLatch(1);
+        final DelayedWatcher watcher = new DelayedWatcher(this.directory, 100L, false, path -> {
+            called.countDown();
+            // 受け付け枠が空かない
+            new CountDownLatch(1).await();
+        });
+        final Future<?> future = this.executor.submit(watcher);
+        Thread.sleep(500L);
+        Files.createFile(this.directory.resolve("a"));
+        Assert.assertTrue(called.await(2_000L, TimeUnit.MILLISECONDS));
+
+        future.cancel(true);
+        this.executor.shutdown();
+        Assert.assertTrue(this.executor.awaitTermination(1_000L, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * 閉じたら終わるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testClose() throws Exception {
+        final DelayedWatcher watcher = new DelayedWatcher(this.directory, 100L, false, this.detected::offer);
+        final Future<?> future = this.executor.submit(watcher);
+        Thread.sleep(500L);
+        watcher.close();
+        future.get(1_000L, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * ファイルの作成と書き込みを検知できるか
      * @throws Exception エラー
@@ -171,4 +215,215 @@ public class DelayedWatcherTest {
         Assert.assertNull(this.detected.poll(1_000L, TimeUnit.MILLISECONDS));
     }
 
+    /**
+     * 絞り込んだパスを報告しないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testFilter() throws Exception {
+        final long delay = 1_000L;
+        final DelayedWatcher watcher = new DelayedWatcher(this.directory, delay, false, path -> {
+            this.detected.offer(path);
+        });
+        watcher.setFilter(name -> !DelayedWatcher.isTemporary(name.toString()));
+        this.executor.submit(watcher);
+        Thread.sleep(1_000L);
+
+        for (final String name : new String[] { "a.jpg.part", "a.tmp", ".a.jpg.swp", "a.jpg~", ".a.jpg.Xy12z9", "a.jpg" }) {
+            Files.write(this.directory.resolve(name), "abcdefg".getBytes());
+        }
+        Assert.assertEquals(this.directory.resolve("a.jpg"), this.detected.poll(1_000L + delay, TimeUnit.MILLISECONDS));
+        Assert.assertNull(this.detected.poll(1_000L, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * 一時ファイルらしい名前を見分けられるか
+     */
+    @Test
+    public void testIsTemporary() {
+        for (final String name : new String[] { "a.TMP", "a.crdownload", "#a.txt#", ".#a.txt", "~$a.docx", ".~lock.a.odt#" }) {
+            Assert.assertTrue(name, DelayedWatcher.isTemporary(name));
+        }
+        for (final String name : new String[] { "a.jpg", "tmp.jpg", "a.part.jpg", ".a.jpg" }) {
+            Assert.assertFalse(name, DelayedWatcher.isTemporary(name));
+        }
+    }
+
+    /**
+     * 名前変更や印ファイルがあれば猶予期間を待たずに報告するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCompletionSignals() throws Exception {
+        final long delay = 5_000L;
+        final DelayedWatcher watcher = new DelayedWatcher(this.directory, delay, false, path -> {
+            this.detected.offer(path);
+        });
+        watcher.setFilter(name -> !DelayedWatcher.isTemporary(name.toString()));
+        watcher.setCompletionSignals(true, ".done", 0);
+        this.executor.submit(watcher);
+        Thread.sleep(1_000L);
+
+        final Path part = this.directory.resolve("a.jpg.part");
+        Files.write(part, "abcdefg".getBytes());
+        Files.move(part, this.directory.resolve("a.jpg"));
+        Assert.assertEquals(this.directory.resolve("a.jpg"), this.detected.poll(1_000L, TimeUnit.MILLISECONDS));
+
+        Files.write(this.directory.resolve("b.jpg"), "abcdefg".getBytes());
+        Thread.sleep(500L);
+        Files.createFile(this.directory.resolve("b.done"));
+        Assert.assertEquals(this.directory.resolve("b.jpg"), this.detected.poll(1_000L, TimeUnit.MILLISECONDS));
+
+        // 合図が無ければ猶予期間を待つ。
+        // 名前が似ているだけのファイルの削除は名前変更の合図にしない
+        final Path other = this.directory.resolve("d.tmp");
+        Files.write(other, "abcdefg".getBytes());
+        Thread.sleep(500L);
+        Files.delete(other);
+        Files.write(this.directory.resolve("c.jpg"), "abcdefg".getBytes());
+        Files.write(this.directory.resolve("d.jpg"), "abcdefg".getBytes());
+        Assert.assertNull(this.detected.poll(2_000L, TimeUnit.MILLISECONDS));
+        final Set<Path> waited = new HashSet<>();
+        waited.add(this.detected.poll(1_000L + delay, TimeUnit.MILLISECONDS));
+        waited.add(this.detected.poll(1_000L, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(this.directory.resolve("c.jpg"), this.directory.resolve("d.jpg"))), waited);
+        Assert.assertNull(this.detected.poll(1_000L, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * 変化が止まったら猶予期間を待たずに報告するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testStable() throws Exception {
+        final long delay = 10_000L;
+        final DelayedWatcher watcher = new DelayedWatcher(this.directory, delay, false, path -> {
+            this.detected.offer(path);
+        });
+        watcher.setCompletionSignals(false, null, 300L);
+        this.executor.submit(watcher);
+        Thread.sleep(1_000L);
+
+        Files.write(this.directory.resolve("a.jpg"), "abcdefg".getBytes());
+        Assert.assertEquals(this.directory.resolve("a.jpg"), this.detected.poll(2_000L, TimeUnit.MILLISECONDS));
+        Assert.assertNull(this.detected.poll(1_000L, TimeUnit.MILLISECONDS));
+    }
+
+    private static WatchTrace.Event event(final WatchTrace.Kind kind, final String name, final long date) {
+        return new WatchTrace.Event(kind, name, date, -1);
+    }
+
+    /**
+     * 仮想の時間で、最後のイベントから猶予期間だけ待って報告するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testVirtualDelay() throws Exception {
+        final VirtualClock clock = new VirtualClock(0);
+        final List<String> reports = new ArrayList<>();
+        final DelayedWatcher watcher = new DelayedWatcher(Paths.get("/watch"), 1_000L, false, path -> {
+            reports.add(path.getFileName() + "@" + clock.currentTimeMillis());
+        });
+        watcher.setClock(clock);
+        watcher.setEventSource(new ScriptedEventSource(clock, Arrays.asList(//
+                event(WatchTrace.Kind.CREATE, "a", 0), //
+                event(WatchTrace.Kind.MODIFY, "a", 500), //
+                event(WatchTrace.Kind.MODIFY, "a", 900), //
+                event(WatchTrace.Kind.CREATE, "b", 1_000), //
+                event(WatchTrace.Kind.CREATE, "c", 10_000)).iterator()));
+        // イベントが尽きたら終わる
+        watcher.run();
+        Assert.assertEquals(Arrays.asList("a@1900", "b@2000", "c@11000"), reports);
+    }
+
+    /**
+     * 仮想の時間で、報告に時間がかかったら最新のものだけ報告するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testVirtualLatestOnly() throws Exception {
+        final VirtualClock clock = new VirtualClock(0);
+        final List<String> reports = new ArrayList<>();
+        final DelayedWatcher watcher = new DelayedWatcher(Paths.get("/watch"), 1_000L, true, path -> {
+            reports.add(path.getFileName() + "@" + clock.currentTimeMillis());
+            // 処理に 5 秒かかる
+            clock.advance(5_000L);
+        });
+        watcher.setClock(clock);
+        watcher.setEventSource(new ScriptedEventSource(clock, Arrays.asList(//
+                event(WatchTrace.Kind.CREATE, "0", 0), //
+                event(WatchTrace.Kind.CREATE, "1", 2_000), //
+                event(WatchTrace.Kind.CREATE, "2", 3_000), //
+                event(WatchTrace.Kind.CREATE, "3", 4_000)).iterator()));
+        watcher.run();
+        // 0 の報告中に溜まった 1, 2, 3 は 3 だけ報告する
+        Assert.assertEquals(Arrays.asList("0@1000", "3@7000"), reports);
+    }
+
+    /**
+     * 仮想の時間なら大量のイベントをすぐに流せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testVirtualVolume() throws Exception {
+        final VirtualClock clock = new VirtualClock(0);
+        final int files = 10_000;
+        final int writes = 100;
+        final int[] reports = new int[1];
+        final DelayedWatcher watcher = new DelayedWatcher(Paths.get("/watch"), 1_000L, false, path -> reports[0]++);
+        watcher.setClock(clock);
+        // 10 ミリ秒ごとに 1 ファイルへ 100 回書き込む
+        watcher.setEventSource(new ScriptedEventSource(clock, new Iterator<WatchTrace.Event>() {
+
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.i < files * writes;
+            }
+
+            @Override
+            public WatchTrace.Event next() {
+                final int file = this.i / writes;
+                final WatchTrace.Event event = event((this.i % writes == 0 ? WatchTrace.Kind.CREATE : WatchTrace.Kind.MODIFY), file + ".jpg", file * 10L);
+                this.i++;
+                return event;
+            }
+
+        }));
+        final long start = System.nanoTime();
+        watcher.run();
+        Assert.assertEquals(files, reports[0]);
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+        Assert.assertEquals(files * 10L - 10L + 1_000L, clock.currentTimeMillis());
+    }
+
+    /**
+     * カメラごとに等間隔に間引くか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testVirtualDecimate() throws Exception {
+        final VirtualClock clock = new VirtualClock(0);
+        final List<String> reports = new ArrayList<>();
+        final DelayedWatcher watcher = new DelayedWatcher(Paths.get("/watch"), 1_000L, false, path -> reports.add(path.getFileName().toString()));
+        watcher.setClock(clock);
+        watcher.setDecimator(new Decimator(1, 1_000L, Pattern.compile("^([^-_.]*)"), Decimator.DropAction.KEEP, null));
+        // 2 台が 10 秒間、毎秒 10 枚撮る
+        final List<WatchTrace.Event> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            events.add(event(WatchTrace.Kind.CREATE, "a-" + i + ".jpg", i * 100L));
+            events.add(event(WatchTrace.Kind.CREATE, "b-" + i + ".jpg", i * 100L + 50L));
+        }
+        watcher.setEventSource(new ScriptedEventSource(clock, events.iterator()));
+        watcher.run();
+
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i += 10) {
+            expected.add("a-" + i + ".jpg");
+            expected.add("b-" + i + ".jpg");
+        }
+        Assert.assertEquals(expected, reports);
+    }
+
 }
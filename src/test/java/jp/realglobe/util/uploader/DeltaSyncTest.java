@@ -0,0 +1,224 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class DeltaSyncTest {
+
+    private Path directory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(DeltaSyncTest.class.getSimpleName());
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] data = new byte[length];
+        (new Random(seed)).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            output.write(part, 0, part.length);
+        }
+        return output.toByteArray();
+    }
+
+    private static DeltaSync.Signature sign(final byte[] data) throws Exception {
+        final DeltaSync.SignatureBuilder builder = new DeltaSync.SignatureBuilder(DeltaSync.blockSize(data.length));
+        builder.write(data, 0, data.length);
+        return builder.finish();
+    }
+
+    /**
+     * 差分を作って当て、今回の内容に戻るか調べる
+     * @return 差分の大きさ
+     */
+    private long roundTrip(final byte[] before, final byte[] after) throws Exception {
+        final Path base = this.directory.resolve("base");
+        Files.write(base, before);
+        try (DeltaSync.Delta delta = DeltaSync.encode(Payload.of("a", after, null), sign(before))) {
+            Assert.assertNotNull(delta);
+            Assert.assertArrayEquals(sign(after).encode().getBytes(), delta.getSignature().encode().getBytes());
+
+            final Payload payload = delta.toPayload("a");
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (InputStream input = payload.openStream()) {
+                DeltaPatcher.patch(base, input, output);
+            }
+            Assert.assertArrayEquals(after, output.toByteArray());
+            return payload.getLength();
+        }
+    }
+
+    /**
+     * 一部を書き換えたら、その周りだけを送るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testModify() throws Exception {
+        final byte[] before = random(1, 1_000_000);
+        final byte[] after = before.clone();
+        Arrays.fill(after, 500_000, 500_100, (byte) 7);
+        Assert.assertTrue(roundTrip(before, after) < 10_000);
+    }
+
+    /**
+     * 途中に挿入してずれても、ずれた後ろを写すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testInsert() throws Exception {
+        final byte[] before = random(1, 1_000_000);
+        final byte[] after = concat(Arrays.copyOf(before, 300_001), random(2, 1_234), Arrays.copyOfRange(before, 300_001, before.length));
+        Assert.assertTrue(roundTrip(before, after) < 10_000);
+    }
+
+    /**
+     * 後ろに足したり、切り詰めたりしても戻るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testAppendAndTruncate() throws Exception {
+        final byte[] before = random(1, 100_001);
+        Assert.assertTrue(roundTrip(before, concat(before, random(2, 5_000))) < 10_000);
+        Assert.assertTrue(roundTrip(before, Arrays.copyOf(before, 60_000)) < 10_000);
+        roundTrip(before, new byte[0]);
+    }
+
+    /**
+     * 変わりすぎていたら差分を作らないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTooManyChanges() throws Exception {
+        Assert.assertNull(DeltaSync.encode(Payload.of("a", random(2, 100_000), null), sign(random(1, 100_000))));
+    }
+
+    /**
+     * 前回の内容と違うものに当てたら失敗するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testWrongBase() throws Exception {
+        final byte[] before = random(1, 100_000);
+        final byte[] after = before.clone();
+        after[0]++;
+        final Path base = this.directory.resolve("base");
+        final byte[] wrong = before.clone();
+        wrong[50_000]++;
+        Files.write(base, wrong);
+        try (DeltaSync.Delta delta = DeltaSync.encode(Payload.of("a", after, null), sign(before));
+                InputStream input = delta.toPayload("a").openStream()) {
+            DeltaPatcher.patch(base, input, new ByteArrayOutputStream());
+            Assert.fail();
+        } catch (final IOException e) {
+            // 成功
+        }
+    }
+
+    /**
+     * ハッシュ値を保管庫に残せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testStore() throws Exception {
+        final DeltaSync deltaSync = new DeltaSync(new FileStore(this.directory));
+        final Path path = this.directory.resolve("a.jpg");
+        Assert.assertNull(deltaSync.load(path));
+        final DeltaSync.Signature signature = sign(random(1, 100_000));
+        deltaSync.save(path, signature);
+        Assert.assertEquals(signature.encode(), deltaSync.load(path).encode());
+
+        // 作り直しても一覧が引き継がれる
+        final DeltaSync deltaSync2 = new DeltaSync(new FileStore(this.directory));
+        deltaSync2.forget(path);
+        Assert.assertNull(deltaSync2.load(path));
+    }
+
+    /**
+     * 小さなファイルのハッシュ値は残さないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSmall() throws Exception {
+        final DeltaSync deltaSync = new DeltaSync(new FileStore(this.directory));
+        final Path path = this.directory.resolve("a.jpg");
+        deltaSync.save(path, sign(random(1, 100_000)));
+        Assert.assertNotNull(deltaSync.load(path));
+        // 小さくなったら前回の分も消す
+        deltaSync.save(path, sign(random(1, 10_000)));
+        Assert.assertNull(deltaSync.load(path));
+    }
+
+    /**
+     * 上限を超えた分と古いものを消すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testExpire() throws Exception {
+        final DeltaSync deltaSync = new DeltaSync(new FileStore(this.directory), 2, 300L);
+        final DeltaSync.Signature signature = sign(random(1, 100_000));
+        final Path a = this.directory.resolve("a.jpg");
+        final Path b = this.directory.resolve("b.jpg");
+        final Path c = this.directory.resolve("c.jpg");
+        deltaSync.save(a, signature);
+        Thread.sleep(10);
+        deltaSync.save(b, signature);
+        Thread.sleep(10);
+        deltaSync.save(c, signature);
+        Assert.assertNull(deltaSync.load(a));
+        Assert.assertNotNull(deltaSync.load(b));
+        Assert.assertNotNull(deltaSync.load(c));
+
+        Thread.sleep(400);
+        deltaSync.save(a, signature);
+        Assert.assertNotNull(deltaSync.load(a));
+        Assert.assertNull(deltaSync.load(b));
+        Assert.assertNull(deltaSync.load(c));
+    }
+
+}
@@ -16,21 +16,30 @@
 
 package jp.realglobe.util.uploader;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.json.JSONObject;
@@ -89,6 +98,16 @@ public class DirectoryUploaderWithServerTest {
     }
 
     BlockingQueue<HttpRequest> requestQueue;
+    // 認証トークンの要求を断る残り回数
+    AtomicInteger tokenRefusals;
+    // 別の送り先（id1）へのアップロードを断る残り回数
+    AtomicInteger destinationRefusals;
+    // 元の送り先（id0）へのアップロードに応答しない残り回数
+    AtomicInteger uploadHangs;
+    // 別の送り先（id1）へのアップロードをしばらく読まない残り回数
+    AtomicInteger destinationHangs;
+    // アップロードの応答で返すチェックサム
+    BlockingQueue<String> echoedChecksums;
     ExecutorService executor;
     String uploaderId;
 
@@ -103,6 +122,11 @@ public class DirectoryUploaderWithServerTest {
     @Before
     public void setUp() throws IOException, InterruptedException {
         this.requestQueue = new LinkedBlockingQueue<>();
+        this.tokenRefusals = new AtomicInteger();
+        this.destinationRefusals = new AtomicInteger();
+        this.uploadHangs = new AtomicInteger();
+        this.destinationHangs = new AtomicInteger();
+        this.echoedChecksums = new LinkedBlockingQueue<>();
         this.executor = Executors.newCachedThreadPool();
         this.uploaderId = String.valueOf(Math.abs(System.nanoTime()));
 
@@ -110,6 +134,8 @@ public class DirectoryUploaderWithServerTest {
         try {
             this.server = HttpServer.create(new InetSocketAddress(0), 0);
             this.server.createContext("/", this::handle);
+            // 応答しない要求があっても他の要求には応える
+            this.server.setExecutor(this.executor);
             this.server.start();
         } catch (final IOException e) {
             FileUtils.deleteDirectory(this.targetDirectory.toFile());
@@ -122,7 +148,10 @@ public class DirectoryUploaderWithServerTest {
     private void handle(final HttpExchange exchange) throws IOException {
         final String path = exchange.getRequestURI().getPath();
 
-        if (path.equals(Constants.URL_PATH_TOKEN)) {
+        if (path.equals(Constants.URL_PATH_TOKEN) && this.tokenRefusals.getAndDecrement() > 0) {
+            Utils.readAll(exchange.getRequestBody());
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+        } else if (path.equals(Constants.URL_PATH_TOKEN)) {
             final Map<String, Object> tokenData = new HashMap<>();
             tokenData.put(Constants.TOKEN_RESPONSE_KEY_TOKEN, "abcde");
             final Map<String, Object> data = new HashMap<>();
@@ -130,8 +159,28 @@ public class DirectoryUploaderWithServerTest {
             Utils.readAll(exchange.getRequestBody());
             exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, 0);
             exchange.getResponseBody().write((new JSONObject(data)).toString().getBytes());
+        } else if (path.equals(Constants.URL_PATH_UPLOAD_PREFIX + "/id1" + Constants.URL_PATH_UPLOAD_SUFFIX) && this.destinationRefusals.getAndDecrement() > 0) {
+            Utils.readAll(exchange.getRequestBody());
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+        } else if (path.equals(Constants.URL_PATH_UPLOAD_PREFIX + "/id1" + Constants.URL_PATH_UPLOAD_SUFFIX) && this.destinationHangs.getAndDecrement() > 0) {
+            try {
+                Thread.sleep(3_000L);
+            } catch (final InterruptedException e) {
+                // 終わり
+            }
+        } else if (path.equals(Constants.URL_PATH_UPLOAD_PREFIX + "/id0" + Constants.URL_PATH_UPLOAD_SUFFIX) && this.uploadHangs.getAndDecrement() > 0) {
+            Utils.readAll(exchange.getRequestBody());
+            try {
+                Thread.sleep(60_000L);
+            } catch (final InterruptedException e) {
+                // 終わり
+            }
         } else if (path.startsWith(Constants.URL_PATH_UPLOAD_PREFIX) && path.substring(Constants.URL_PATH_UPLOAD_PREFIX.length()).endsWith(Constants.URL_PATH_UPLOAD_SUFFIX)) {
             this.requestQueue.offer(new HttpRequest(exchange));
+            final String checksum = this.echoedChecksums.poll();
+            if (checksum != null) {
+                exchange.getResponseHeaders().add(Constants.UPLOAD_RESPONSE_HEADER_CHECKSUM, checksum);
+            }
             exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, 0);
         }
         exchange.close();
@@ -259,4 +308,328 @@ public class DirectoryUploaderWithServerTest {
         Assert.assertEquals(Constants.URL_PATH_UPLOAD_PREFIX + "/" + uploader.getId() + Constants.URL_PATH_UPLOAD_SUFFIX, request.getPath());
     }
 
+    /**
+     * 直接予約したアップロードの結果を受け取れるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSubmit() throws Exception {
+        final long delay = 1_000L;
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, delay, false, Arrays.asList("jpg"), 0, 0, getBaseUrl(), "user0", "test uploader", new MemoryStore());
+        uploader.start();
+        try {
+            final Path source = Files.createTempFile("", ".jpg");
+            final Path ignored = Files.createTempFile("", ".png");
+            try {
+                final UploadResult result = uploader.submit(source).get(1_000L, TimeUnit.MILLISECONDS);
+                Assert.assertEquals(UploadResult.Status.UPLOADED, result.getStatus());
+                Assert.assertEquals(HttpURLConnection.HTTP_CREATED, result.getStatusCode());
+                Assert.assertNotNull(this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS));
+
+                Assert.assertEquals(UploadResult.Status.SKIPPED, uploader.submit(ignored).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+                Assert.assertTrue(uploader.awaitIdle(1_000L, TimeUnit.MILLISECONDS));
+            } finally {
+                Files.delete(source);
+                Files.delete(ignored);
+            }
+        } finally {
+            Assert.assertTrue(uploader.stop(1_000L, TimeUnit.MILLISECONDS));
+        }
+        Assert.assertTrue(uploader.submit(this.targetDirectory).isCompletedExceptionally());
+    }
+
+    /**
+     * メモリ上のデータを直接アップロードできるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSubmitInMemory() throws Exception {
+        final long delay = 1_000L;
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, delay, false, Arrays.asList("jpg"), 0, 4, getBaseUrl(), "user0", "test uploader", new MemoryStore());
+        uploader.start();
+        try {
+            final byte[] data = "abc".getBytes();
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit("a.jpg", data, "image/jpeg").get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertTrue(contains(this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS).getBody(), data));
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+            buffer.put("defg".getBytes()).flip();
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit("b.jpg", buffer, null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertTrue(contains(this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS).getBody(), "defg".getBytes()));
+
+            Assert.assertEquals(UploadResult.Status.UPLOADED,
+                    uploader.submit("c.jpg", new ByteArrayInputStream("hijklmn".getBytes()), null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertTrue(contains(this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS).getBody(), "hijklmn".getBytes()));
+
+            // 同じ条件で対象外になる
+            Assert.assertEquals(UploadResult.Status.SKIPPED, uploader.submit("d.png", data, null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertEquals(UploadResult.Status.SKIPPED, uploader.submit("e.jpg", new byte[5], null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertNull(this.requestQueue.poll());
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 認証トークンを取得できる前に検知したファイルも、取得後にアップロードされるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testColdStart() throws Exception {
+        this.tokenRefusals.set(1);
+        final long delay = 500L;
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, delay, false, null, 0, 0, getBaseUrl(), "user0", "test uploader", new MemoryStore());
+        uploader.start();
+        try {
+            // 監視開始待ち
+            Thread.sleep(500L);
+            Files.write(this.targetDirectory.resolve("test"), new byte[] { (byte) 0 });
+
+            // 1 回断られてからやり直す
+            final HttpRequest request = this.requestQueue.poll(3_000L + delay, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull(request);
+            Assert.assertEquals(Constants.URL_PATH_UPLOAD_PREFIX + "/" + uploader.getId() + Constants.URL_PATH_UPLOAD_SUFFIX, request.getPath());
+            Assert.assertTrue(this.tokenRefusals.get() < 0);
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * チェックサムを送り、サーバーの受け取ったものと違えば送り直すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testChecksum() throws Exception {
+        final byte[] data = "abc".getBytes();
+        final IntegrityCheck check = new IntegrityCheck(IntegrityCheck.Algorithm.CRC32C);
+        check.wrap(new ByteArrayOutputStream()).write(data);
+        this.echoedChecksums.add("00000000");
+        this.echoedChecksums.add(check.getValue());
+
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, 1_000L, false, null, 0, 0, getBaseUrl(), "user0", "test uploader", "id0", "abcde");
+        uploader.setChecksum(IntegrityCheck.Algorithm.CRC32C, 2);
+        uploader.start();
+        try {
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit("a.jpg", data, null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertTrue(contains(this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS).getBody(), check.getValue().getBytes()));
+            Assert.assertNotNull(this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS));
+
+            // 送り直しても合わなければ失敗
+            this.echoedChecksums.add("00000000");
+            this.echoedChecksums.add("00000000");
+            try {
+                uploader.submit("b.jpg", data, null).get(1_000L, TimeUnit.MILLISECONDS);
+                Assert.fail();
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IntegrityCheck.MismatchException);
+            }
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 2 回目からは差分だけを送るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDeltaUpload() throws Exception {
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, 1_000L, false, null, 0, 0, getBaseUrl(), "user0", "test uploader", new MemoryStore());
+        uploader.setDeltaUpload(true);
+        uploader.start();
+        final Path source = Files.createTempFile("", ".jpg");
+        try {
+            final byte[] data = new byte[200_000];
+            (new Random(1)).nextBytes(data);
+            Files.write(source, data);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit(source).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            final HttpRequest whole = this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(whole.getBody().length > data.length);
+            Assert.assertFalse(contains(whole.getBody(), Constants.UPLOAD_REQUEST_INFO_KEY_DELTA_BASE.getBytes()));
+
+            data[100_000]++;
+            Files.write(source, data);
+            final UploadResult result = uploader.submit(source).get(1_000L, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result.getStatus());
+            Assert.assertTrue(result.getSentBytes() < 10_000);
+            final HttpRequest delta = this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(delta.getBody().length < 10_000);
+            Assert.assertTrue(contains(delta.getBody(), Constants.UPLOAD_REQUEST_INFO_KEY_DELTA_BASE.getBytes()));
+        } finally {
+            Files.delete(source);
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 別の送り先にも送り、送り先ごとの結果を返すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testFanOut() throws Exception {
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, 1_000L, false, null, 0, 0, getBaseUrl(), "user0", "test uploader", "id0", "abcde");
+        uploader.addDestination(getBaseUrl(), "id1", "abcde");
+        // つながらない
+        uploader.addDestination("http://localhost:1", "id2", "abcde");
+        uploader.start();
+        final Path source = Files.createTempFile("", ".jpg");
+        try {
+            final byte[] data = new byte[100_000];
+            (new Random(1)).nextBytes(data);
+            Files.write(source, data);
+            final UploadResult result = uploader.submit(source).get(3_000L, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result.getStatus());
+
+            final Map<String, UploadResult> results = result.getDestinationResults();
+            Assert.assertEquals(2, results.size());
+            Assert.assertEquals(UploadResult.Status.UPLOADED, results.get(getBaseUrl() + Constants.URL_PATH_UPLOAD_PREFIX + "/id1" + Constants.URL_PATH_UPLOAD_SUFFIX).getStatus());
+            Assert.assertEquals(UploadResult.Status.FAILED, results.get("http://localhost:1" + Constants.URL_PATH_UPLOAD_PREFIX + "/id2" + Constants.URL_PATH_UPLOAD_SUFFIX).getStatus());
+
+            final Set<String> paths = new HashSet<>();
+            for (int i = 0; i < 2; i++) {
+                final HttpRequest request = this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS);
+                Assert.assertTrue(contains(request.getBody(), data));
+                paths.add(request.getPath());
+            }
+            Assert.assertEquals(new HashSet<>(Arrays.asList(Constants.URL_PATH_UPLOAD_PREFIX + "/id0" + Constants.URL_PATH_UPLOAD_SUFFIX,
+                    Constants.URL_PATH_UPLOAD_PREFIX + "/id1" + Constants.URL_PATH_UPLOAD_SUFFIX)), paths);
+        } finally {
+            Files.delete(source);
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 応答しないサーバーを時間切れで諦め、同時アップロード数を減らすか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, 1_000L, false, null, 0, 0, getBaseUrl(), "user0", "test uploader", "id0", "abcde");
+        uploader.setConcurrency(8);
+        uploader.setAdaptiveConcurrency(true);
+        uploader.setTimeouts(1_000L, 500L);
+        uploader.start();
+        final Path source = Files.createTempFile("", ".jpg");
+        try {
+            Files.write(source, new byte[100]);
+            // 応答が返れば上限が増える
+            for (int i = 0; i < 10 && uploader.getConcurrencyLimit() < 2; i++) {
+                Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit(source).get(3_000L, TimeUnit.MILLISECONDS).getStatus());
+            }
+            final int limit = uploader.getConcurrencyLimit();
+            Assert.assertTrue(limit >= 2);
+
+            this.uploadHangs.set(1);
+            final long start = System.currentTimeMillis();
+            try {
+                uploader.submit(source).get(3_000L, TimeUnit.MILLISECONDS);
+                Assert.fail();
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 2_000L);
+            Assert.assertTrue(uploader.getConcurrencyLimit() < limit);
+        } finally {
+            Files.delete(source);
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 別の送り先が止まっても元の送り先へのアップロードは進み、止まった送り先には送り直すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testFanOutStall() throws Exception {
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, 1_000L, false, null, 0, 0, getBaseUrl(), "user0", "test uploader", "id0", "abcde");
+        uploader.addDestination(getBaseUrl(), "id1", "abcde");
+        uploader.setTimeouts(1_000L, 500L);
+        uploader.start();
+        final Path source = Files.createTempFile("", ".jpg");
+        final String id1 = getBaseUrl() + Constants.URL_PATH_UPLOAD_PREFIX + "/id1" + Constants.URL_PATH_UPLOAD_SUFFIX;
+        try {
+            // 通信路と待ち行列に収まらない大きさ
+            final byte[] data = new byte[32 * 1024 * 1024];
+            (new Random(1)).nextBytes(data);
+            Files.write(source, data);
+
+            this.destinationHangs.set(1);
+            final long start = System.currentTimeMillis();
+            final Future<UploadResult> future = uploader.submit(source);
+            // 別の送り先が読まないうちに届く
+            final HttpRequest request = this.requestQueue.poll(2_500L, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull(request);
+            Assert.assertTrue(System.currentTimeMillis() - start < 2_500L);
+            Assert.assertEquals(Constants.URL_PATH_UPLOAD_PREFIX + "/id0" + Constants.URL_PATH_UPLOAD_SUFFIX, request.getPath());
+            // 先頭と大きさだけ比べる
+            Assert.assertTrue(contains(request.getBody(), Arrays.copyOfRange(data, 0, 1024)));
+            Assert.assertTrue(request.getBody().length > data.length);
+
+            final UploadResult result = future.get(10_000L, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result.getStatus());
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result.getDestinationResults().get(id1).getStatus());
+            final HttpRequest request2 = this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(Constants.URL_PATH_UPLOAD_PREFIX + "/id1" + Constants.URL_PATH_UPLOAD_SUFFIX, request2.getPath());
+            Assert.assertTrue(contains(request2.getBody(), Arrays.copyOfRange(data, 0, 1024)));
+            Assert.assertTrue(request2.getBody().length > data.length);
+        } finally {
+            Files.delete(source);
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 別の送り先で失敗したら間を空けて送り直すか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testFanOutRetry() throws Exception {
+        final DirectoryUploader uploader = new DirectoryUploader(this.targetDirectory, 1_000L, false, null, 0, 0, getBaseUrl(), "user0", "test uploader", "id0", "abcde");
+        uploader.addDestination(getBaseUrl(), "id1", "abcde");
+        uploader.start();
+        final Path source = Files.createTempFile("", ".jpg");
+        final String id1 = getBaseUrl() + Constants.URL_PATH_UPLOAD_PREFIX + "/id1" + Constants.URL_PATH_UPLOAD_SUFFIX;
+        try {
+            final byte[] data = new byte[100_000];
+            (new Random(1)).nextBytes(data);
+            Files.write(source, data);
+
+            // 1 回断られても送り直せば届く
+            this.destinationRefusals.set(1);
+            final UploadResult result = uploader.submit(source).get(3_000L, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result.getStatus());
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result.getDestinationResults().get(id1).getStatus());
+            final Set<String> paths = new HashSet<>();
+            for (int i = 0; i < 2; i++) {
+                final HttpRequest request = this.requestQueue.poll(1_000L, TimeUnit.MILLISECONDS);
+                Assert.assertTrue(contains(request.getBody(), data));
+                paths.add(request.getPath());
+            }
+            Assert.assertEquals(new HashSet<>(Arrays.asList(Constants.URL_PATH_UPLOAD_PREFIX + "/id0" + Constants.URL_PATH_UPLOAD_SUFFIX,
+                    Constants.URL_PATH_UPLOAD_PREFIX + "/id1" + Constants.URL_PATH_UPLOAD_SUFFIX)), paths);
+
+            // 送り直しは上限まで
+            this.destinationRefusals.set(Destination.SEND_ATTEMPTS + 1);
+            final UploadResult result2 = uploader.submit(source).get(3_000L, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result2.getStatus());
+            Assert.assertEquals(UploadResult.Status.FAILED, result2.getDestinationResults().get(id1).getStatus());
+            Assert.assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, result2.getDestinationResults().get(id1).getStatusCode());
+            Assert.assertEquals(1, this.destinationRefusals.get());
+        } finally {
+            Files.delete(source);
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean contains(final byte[] data, final byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 }
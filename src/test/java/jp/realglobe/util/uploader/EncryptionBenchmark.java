@@ -0,0 +1,77 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 暗号化の速さを測る。
+ * メモリ上のデータを暗号化して捨てるまでの速さを、暗号化しない場合と比べる。
+ * AES-NI が使える JVM なら AES/GCM は組み込み命令で処理される。
+ * 引数は データの大きさ（バイト）、繰り返し数
+ */
+public final class EncryptionBenchmark {
+
+    private EncryptionBenchmark() {}
+
+    /**
+     * @param args データの大きさ（バイト）、繰り返し数
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 64 * 1024 * 1024);
+        final int count = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+
+        final byte[] data = new byte[size];
+        (new Random(0)).nextBytes(data);
+        final byte[] key = new byte[32];
+        (new Random(1)).nextBytes(key);
+        final Payload payload = Payload.of("a.bin", data, null);
+
+        for (int i = 0; i < 3; i++) {
+            run("plain", payload, count);
+            run("encrypt", PayloadCipher.encrypt(payload, key, false), count);
+            run("deflate+encrypt", PayloadCipher.encrypt(payload, key, true), count);
+        }
+    }
+
+    private static void run(final String label, final Payload payload, final int count) throws IOException {
+        final long[] bytes = new long[1];
+        final OutputStream sink = new OutputStream() {
+
+            @Override
+            public void write(final int b) {
+                bytes[0]++;
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                bytes[0] += len;
+            }
+
+        };
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            payload.writeTo(sink);
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.out.println(label + ": " + bytes[0] + " bytes in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms (" + (bytes[0] * 1_000L / Math.max(1, elapsed)) + "MB/s)");
+    }
+
+}
@@ -0,0 +1,127 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class FileSnapshotTest {
+
+    private Path directory;
+    private Path linkDirectory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(FileSnapshotTest.class.getSimpleName());
+        this.linkDirectory = this.directory.resolve("links");
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    private static byte[] read(final Payload payload) throws Exception {
+        try (InputStream input = payload.openStream()) {
+            return Utils.readAll(input);
+        }
+    }
+
+    /**
+     * 小さいファイルはメモリに写されるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testMemory() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abc".getBytes());
+        try (FileSnapshot snapshot = FileSnapshot.take(path, 10, this.linkDirectory)) {
+            Files.write(path, "defgh".getBytes());
+            Assert.assertEquals("a.jpg", snapshot.getPayload().getName());
+            Assert.assertArrayEquals("abc".getBytes(), read(snapshot.getPayload()));
+            snapshot.verify();
+        }
+    }
+
+    /**
+     * 置き換えられても元の中身を読めるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLinkReplaced() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abcdefg".getBytes());
+        try (FileSnapshot snapshot = FileSnapshot.take(path, 0, this.linkDirectory)) {
+            final Path tmp = this.directory.resolve("a.tmp");
+            Files.write(tmp, "hijklmn".getBytes());
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            Assert.assertEquals("a.jpg", snapshot.getPayload().getName());
+            Assert.assertArrayEquals("abcdefg".getBytes(), read(snapshot.getPayload()));
+            snapshot.verify();
+        }
+        // リンクは消える
+        Assert.assertEquals(0, this.linkDirectory.toFile().list().length);
+    }
+
+    /**
+     * その場での書き換えを検知できるか
+     * @throws Exception エラー
+     */
+    @Test(expected = FileSnapshot.ChangedException.class)
+    public void testLinkAppended() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abcdefg".getBytes());
+        try (FileSnapshot snapshot = FileSnapshot.take(path, 0, this.linkDirectory)) {
+            Files.write(path, "hijklmn".getBytes(), StandardOpenOption.APPEND);
+            snapshot.verify();
+        }
+    }
+
+    /**
+     * リンクを作らない場合も書き換えを検知できるか
+     * @throws Exception エラー
+     */
+    @Test(expected = FileSnapshot.ChangedException.class)
+    public void testNoLinkAppended() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abcdefg".getBytes());
+        try (FileSnapshot snapshot = FileSnapshot.take(path, 0, null)) {
+            Files.write(path, "hijklmn".getBytes(), StandardOpenOption.APPEND);
+            snapshot.verify();
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class FrameDeduplicatorTest {
+
+    /**
+     * 定点カメラの画像。
+     * 横の濃淡の上に、box が真なら四角い物体が写る
+     */
+    private static Payload frame(final String name, final long noiseSeed, final boolean box) throws Exception {
+        final int width = 640;
+        final int height = 480;
+        final Random random = new Random(noiseSeed);
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = (int) (128 + 100 * Math.sin(x / 60.0) * Math.cos(y / 45.0));
+                if (box && x >= 100 && x < 300 && y >= 150 && y < 400) {
+                    v = 255 - v;
+                }
+                // センサーのノイズ
+                v = Math.max(0, Math.min(255, v + random.nextInt(21) - 10));
+                image.setRGB(x, y, v << 16 | v << 8 | v);
+            }
+        }
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", output);
+        return Payload.of(name, output.toByteArray(), "image/jpeg");
+    }
+
+    /**
+     * ノイズだけ違う画像を同じとみなし、写っているものが変わったら違うとみなすか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDuplicate() throws Exception {
+        final FrameDeduplicator deduplicator = new FrameDeduplicator(5, 0);
+        Assert.assertFalse(deduplicator.isDuplicate(frame("cam1-0.jpg", 0, false)));
+        Assert.assertTrue(deduplicator.isDuplicate(frame("cam1-1.jpg", 1, false)));
+        Assert.assertTrue(deduplicator.isDuplicate(frame("cam1-2.jpg", 2, false)));
+        // 別のカメラは別に比べる
+        Assert.assertFalse(deduplicator.isDuplicate(frame("cam2-0.jpg", 3, false)));
+        // 物体が現れた
+        Assert.assertFalse(deduplicator.isDuplicate(frame("cam1-3.jpg", 4, true)));
+        Assert.assertTrue(deduplicator.isDuplicate(frame("cam1-4.jpg", 5, true)));
+
+        final long hash1 = FrameDeduplicator.hash(frame("a.jpg", 6, false));
+        final long hash2 = FrameDeduplicator.hash(frame("a.jpg", 7, true));
+        Assert.assertTrue(Long.bitCount(hash1 ^ hash2) > 5);
+
+        // 画像でなければ飛ばさない
+        Assert.assertFalse(deduplicator.isDuplicate(Payload.of("cam1-5.jpg", "abc".getBytes(), null)));
+        Assert.assertNull(FrameDeduplicator.hash(Payload.of("a.jpg", "abc".getBytes(), null)));
+    }
+
+    /**
+     * 壊れた画像を飛ばさず、調べる処理も失敗しないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testBroken() throws Exception {
+        final FrameDeduplicator deduplicator = new FrameDeduplicator(5, 0);
+        Assert.assertFalse(deduplicator.isDuplicate(frame("cam1-0.jpg", 0, false)));
+        // 先頭だけ残して途切れさせる
+        final byte[] data = Utils.readAll(frame("cam1-1.jpg", 1, false).openStream());
+        final Payload broken = Payload.of("cam1-1.jpg", Arrays.copyOf(data, 64), "image/jpeg");
+        final FrameDeduplicator.Check check = deduplicator.check(broken);
+        Assert.assertFalse(check.isDuplicate());
+        // 比べる相手は変わらない
+        deduplicator.commit(check);
+        Assert.assertTrue(deduplicator.isDuplicate(frame("cam1-2.jpg", 2, false)));
+    }
+
+    /**
+     * 似ていてもキーフレーム間隔ごとにアップロードさせるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testKeyframe() throws Exception {
+        final FrameDeduplicator deduplicator = new FrameDeduplicator(5, 3);
+        final boolean[] expected = { false, true, true, false, true, true, false };
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals("frame " + i, expected[i], deduplicator.isDuplicate(frame("cam1-" + i + ".jpg", i, false)));
+        }
+    }
+
+    /**
+     * カメラを見分けるか
+     */
+    @Test
+    public void testSource() {
+        final FrameDeduplicator deduplicator = new FrameDeduplicator(5, 0);
+        Assert.assertEquals("cam1", deduplicator.getSource(Payload.of(Paths.get("/a/cam1-0001.jpg"))));
+        Assert.assertEquals("cam1", deduplicator.getSource(Payload.of(Paths.get("/a/cam1_20170101.jpg"))));
+        // 区切り文字が無ければ親ディレクトリ
+        Assert.assertEquals(Paths.get("/a/cam2").toString(), deduplicator.getSource(Payload.of(Paths.get("/a/cam2/20170101120000.jpg"))));
+    }
+
+    /**
+     * アップロードできた画像だけを比べる相手にするか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCommit() throws Exception {
+        final FrameDeduplicator deduplicator = new FrameDeduplicator(5, 0);
+        // 送れなかった
+        Assert.assertFalse(deduplicator.check(frame("cam1-0.jpg", 0, false)).isDuplicate());
+        final FrameDeduplicator.Check check = deduplicator.check(frame("cam1-1.jpg", 1, false));
+        Assert.assertFalse(check.isDuplicate());
+        deduplicator.commit(check);
+        Assert.assertTrue(deduplicator.check(frame("cam1-2.jpg", 2, false)).isDuplicate());
+    }
+
+    /**
+     * 覚えておくカメラの数に限りがあるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testForget() throws Exception {
+        final FrameDeduplicator deduplicator = new FrameDeduplicator(5, 0);
+        Assert.assertFalse(deduplicator.isDuplicate(frame("cam0-0.jpg", 0, false)));
+        for (int i = 1; i <= 2_000; i++) {
+            deduplicator.commit(new FrameDeduplicator.Check("cam" + i, 0L, false));
+        }
+        Assert.assertFalse(deduplicator.isDuplicate(frame("cam0-1.jpg", 1, false)));
+    }
+
+    /**
+     * アップロード時に飛ばすか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testUpload() throws Exception {
+        final Path directory = Files.createTempDirectory(FrameDeduplicatorTest.class.getSimpleName());
+        final InMemoryTransport transport = new InMemoryTransport(false);
+        final DirectoryUploader uploader = new DirectoryUploader(directory, 1_000L, false, null, 0, 0, "http://localhost:1", "user0", "test uploader", "id0", "abcde");
+        uploader.setTransport(transport);
+        uploader.setFrameDeduplicator(new FrameDeduplicator(5, 0));
+        try {
+            uploader.start();
+            final byte[] data = toBytes(frame("cam1-0.jpg", 0, false));
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit("cam1-0.jpg", data, null).get(3_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertEquals(UploadResult.Status.SKIPPED,
+                    uploader.submit("cam1-1.jpg", toBytes(frame("cam1-1.jpg", 1, false)), null).get(3_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertEquals(1, transport.getCount());
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    private static byte[] toBytes(final Payload payload) throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        payload.writeTo(output);
+        return output.toByteArray();
+    }
+
+}
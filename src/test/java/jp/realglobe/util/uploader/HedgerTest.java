@@ -0,0 +1,264 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class HedgerTest {
+
+    private static final int WARM_UP = 30;
+
+    private Hedger hedger;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.hedger = new Hedger(1 << 20, new byte[32], 0, false);
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        this.hedger.close();
+    }
+
+    /**
+     * 指定した回の送信だけ詰まる送り方
+     */
+    private static Transport stalling(final AtomicInteger calls, final List<String> keys, final CountDownLatch stalled, final int... stalls) {
+        return (token, payload, info) -> {
+            keys.add(info.get(Constants.UPLOAD_REQUEST_INFO_KEY_IDEMPOTENCY_KEY));
+            final int call = calls.getAndIncrement();
+            for (final int stall : stalls) {
+                if (call == stall) {
+                    try {
+                        stalled.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            return HttpURLConnection.HTTP_CREATED;
+        };
+    }
+
+    private Map<String, String> info(final Payload payload) throws Exception {
+        return Collections.singletonMap(Constants.UPLOAD_REQUEST_INFO_KEY_IDEMPOTENCY_KEY, this.hedger.idempotencyKey("a", payload));
+    }
+
+    /**
+     * 1 ミリ秒で受け付けられる送信が続いたことにする
+     */
+    private void warmUp() {
+        for (int i = 0; i < WARM_UP; i++) {
+            this.hedger.record(1_000_000L);
+        }
+        Assert.assertEquals(1_000_000L, this.hedger.getDelay());
+    }
+
+    /**
+     * 詰まった送信を追いかけ、先に終わった方を使うか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testHedge() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final List<String> keys = new CopyOnWriteArrayList<>();
+        final Transport transport = stalling(calls, keys, stalled, 0);
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(2, 2);
+        final Payload payload = Payload.of("a.jpg", new byte[] { 1, 2, 3 }, null);
+        final Map<String, String> info = info(payload);
+        warmUp();
+
+        final long start = System.nanoTime();
+        Assert.assertEquals(HttpURLConnection.HTTP_CREATED, this.hedger.send(limiter, transport, "token", payload, info));
+        Assert.assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        Assert.assertEquals(1, this.hedger.getHedgeCount());
+        Assert.assertEquals(2, keys.size());
+        // 同じ冪等キーで送る
+        Assert.assertEquals(1, keys.stream().distinct().count());
+        // 負けた方は止めて枠を返す
+        for (int i = 0; i < 100 && limiter.getInFlight() > 0; i++) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(0, limiter.getInFlight());
+        Assert.assertEquals(2, limiter.getLimit());
+    }
+
+    /**
+     * 応答が返らなければ時間切れで諦め、送信を止めるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final Transport transport = (token, payload, info) -> {
+            try {
+                Thread.sleep(60_000L);
+            } catch (final InterruptedException e) {
+                interrupted.countDown();
+                throw new InterruptedIOException();
+            }
+            return HttpURLConnection.HTTP_CREATED;
+        };
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(2, 2);
+        final Payload payload = Payload.of("a.jpg", new byte[] { 1, 2, 3 }, null);
+        try (Hedger hedger = new Hedger(1 << 20, new byte[32], 300L, false)) {
+            final long start = System.nanoTime();
+            try {
+                hedger.send(limiter, transport, "token", payload, info(payload));
+                Assert.fail();
+            } catch (final InterruptedIOException e) {
+                // 時間切れ
+            }
+            Assert.assertTrue(System.nanoTime() - start < 5_000_000_000L);
+            Assert.assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+            for (int i = 0; i < 100 && limiter.getInFlight() > 0; i++) {
+                Thread.sleep(10L);
+            }
+            Assert.assertEquals(0, limiter.getInFlight());
+            // 時間切れは混雑とみなす
+            Assert.assertEquals(1, limiter.getLimit());
+        }
+    }
+
+    /**
+     * 追いかけるのは送信数の数パーセントまでか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testBudget() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final List<String> keys = new CopyOnWriteArrayList<>();
+        // 1 回目は追いかけた方が、2 回目は元の方が詰まる
+        final Transport transport = stalling(calls, keys, stalled, 0, 2);
+        final Payload payload = Payload.of("a.jpg", new byte[] { 1, 2, 3 }, null);
+        final Map<String, String> info = info(payload);
+        warmUp();
+
+        Assert.assertEquals(HttpURLConnection.HTTP_CREATED, this.hedger.send(null, transport, "token", payload, info));
+        Assert.assertEquals(1, this.hedger.getHedgeCount());
+
+        // 使い切ったので追いかけず、詰まりが解けるのを待つ
+        final Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(500L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stalled.countDown();
+        });
+        releaser.start();
+        Assert.assertEquals(HttpURLConnection.HTTP_CREATED, this.hedger.send(null, transport, "token", payload, info));
+        Assert.assertEquals(1, this.hedger.getHedgeCount());
+        releaser.join();
+    }
+
+    /**
+     * 同時実行数の枠が空いていなければ追いかけないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLimiterFull() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final List<String> keys = new CopyOnWriteArrayList<>();
+        final Transport transport = stalling(calls, keys, stalled, 0);
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1);
+        final Payload payload = Payload.of("a.jpg", new byte[] { 1, 2, 3 }, null);
+        final Map<String, String> info = info(payload);
+        warmUp();
+
+        final Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(500L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stalled.countDown();
+        });
+        releaser.start();
+        Assert.assertEquals(HttpURLConnection.HTTP_CREATED, this.hedger.send(limiter, transport, "token", payload, info));
+        Assert.assertEquals(0, this.hedger.getHedgeCount());
+        Assert.assertEquals(1, calls.get());
+        releaser.join();
+    }
+
+    /**
+     * 応答時間が溜まるまでは追いかけないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testNoHedgeBeforeSamples() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final Transport transport = (token, payload, info) -> {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(100L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return HttpURLConnection.HTTP_CREATED;
+        };
+        Assert.assertEquals(HttpURLConnection.HTTP_CREATED, this.hedger.send(null, transport, "token", Payload.of("a.jpg", new byte[] { 1 }, null), Collections.emptyMap()));
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(0, this.hedger.getHedgeCount());
+    }
+
+    /**
+     * 冪等キーがファイルと中身と鍵で決まるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testIdempotencyKey() throws Exception {
+        final String key = this.hedger.idempotencyKey("/a/b.jpg", Payload.of("b.jpg", new byte[] { 1, 2 }, null));
+        Assert.assertEquals(key, this.hedger.idempotencyKey("/a/b.jpg", Payload.of("b.jpg", new byte[] { 1, 2 }, null)));
+        Assert.assertNotEquals(key, this.hedger.idempotencyKey("/a/b.jpg", Payload.of("b.jpg", new byte[] { 1, 3 }, null)));
+        Assert.assertNotEquals(key, this.hedger.idempotencyKey("/a/c.jpg", Payload.of("c.jpg", new byte[] { 1, 2 }, null)));
+        // 鍵を知らなければ同じキーを作れない
+        final byte[] secret = new byte[32];
+        secret[0] = 1;
+        try (Hedger other = new Hedger(1 << 20, secret, 0, false)) {
+            Assert.assertNotEquals(key, other.idempotencyKey("/a/b.jpg", Payload.of("b.jpg", new byte[] { 1, 2 }, null)));
+        }
+
+        Assert.assertTrue(this.hedger.isTarget(Payload.of("b.jpg", new byte[] { 1, 2 }, null)));
+        Assert.assertFalse(this.hedger.isTarget(Payload.of("b.jpg", new byte[(1 << 20) + 1], null)));
+    }
+
+}
@@ -0,0 +1,195 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class ImageResizerTest {
+
+    private Path directory;
+    private ImageResizer resizer;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(ImageResizerTest.class.getSimpleName());
+        this.resizer = new ImageResizer(100, 0.8f, 2);
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        this.resizer.close();
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    private Path writeImage(final String name, final String format, final int width, final int height) throws Exception {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+            }
+        }
+        final Path path = this.directory.resolve(name);
+        ImageIO.write(image, format, path.toFile());
+        return path;
+    }
+
+    /**
+     * JPEG を縮小できるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testResizeJpeg() throws Exception {
+        final Path path = writeImage("a.jpg", "jpeg", 400, 300);
+        final byte[] data = this.resizer.resize(path).get();
+        Assert.assertNotNull(data);
+        final BufferedImage resized = ImageIO.read(new ByteArrayInputStream(data));
+        Assert.assertEquals(100, resized.getWidth());
+        Assert.assertEquals(75, resized.getHeight());
+    }
+
+    /**
+     * PNG を縮小できるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testResizePng() throws Exception {
+        final Path path = writeImage("a.png", "png", 300, 600);
+        final byte[] data = this.resizer.resize(path).get();
+        Assert.assertNotNull(data);
+        final BufferedImage resized = ImageIO.read(new ByteArrayInputStream(data));
+        Assert.assertEquals(50, resized.getWidth());
+        Assert.assertEquals(100, resized.getHeight());
+    }
+
+    /**
+     * 小さい画像はそのままか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSmall() throws Exception {
+        final Path path = writeImage("a.jpg", "jpeg", 100, 50);
+        Assert.assertNull(this.resizer.resize(path).get());
+    }
+
+    /**
+     * EXIF の向きを反映するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testOrientation() throws Exception {
+        final Path path = writeImage("a.jpg", "jpeg", 400, 200);
+        final byte[] jpeg = Files.readAllBytes(path);
+
+        // 右に 90 度回して見る向き（6）の EXIF を JFIF の APP0 の後に差し込む
+        final int head = 2 + 2 + (((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff));
+        final ByteBuffer app1 = ByteBuffer.allocate(2 + 2 + 6 + 8 + 2 + 12 + 4);
+        app1.putShort((short) 0xffe1).putShort((short) (app1.capacity() - 2));
+        app1.put("Exif\0\0".getBytes(Constants.UTF8));
+        app1.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        app1.putShort((short) 1);
+        app1.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) 6).putShort((short) 0);
+        app1.putInt(0);
+        final ByteArrayOutputStream rotated = new ByteArrayOutputStream();
+        rotated.write(jpeg, 0, head);
+        rotated.write(app1.array(), 0, app1.capacity());
+        rotated.write(jpeg, head, jpeg.length - head);
+        Files.write(path, rotated.toByteArray());
+
+        final byte[] data = this.resizer.resize(path).get();
+        Assert.assertNotNull(data);
+        final BufferedImage resized = ImageIO.read(new ByteArrayInputStream(data));
+        Assert.assertEquals(50, resized.getWidth());
+        Assert.assertEquals(100, resized.getHeight());
+        // 元の左端（赤が弱い）が上に来る
+        Assert.assertTrue(((resized.getRGB(25, 2) >> 16) & 0xff) < 64);
+        Assert.assertTrue(((resized.getRGB(25, 97) >> 16) & 0xff) > 192);
+    }
+
+    /**
+     * 縮小した方が大きくなるなら元のままか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLarger() throws Exception {
+        final int size = 120;
+        final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(1);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        // 低画質で保存しておく
+        final Path path = this.directory.resolve("a.jpg");
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        final ImageWriter writer = writers.next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(path.toFile())) {
+            writer.setOutput(output);
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.0f);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        try (ImageResizer resizer = new ImageResizer(110, 1.0f, 1)) {
+            Assert.assertNull(resizer.resize(path).get());
+        }
+    }
+
+    /**
+     * 対象の判定
+     */
+    @Test
+    public void testIsTarget() {
+        Assert.assertTrue(this.resizer.isTarget(this.directory.resolve("a.JPG")));
+        Assert.assertTrue(this.resizer.isTarget(this.directory.resolve("a.jpeg")));
+        Assert.assertTrue(this.resizer.isTarget(this.directory.resolve("a.png")));
+        Assert.assertFalse(this.resizer.isTarget(this.directory.resolve("a.gif")));
+        Assert.assertFalse(this.resizer.isTarget(this.directory.resolve("a")));
+    }
+
+}
@@ -0,0 +1,80 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class InFlightTrackerTest {
+
+    /**
+     * 処理中でなければすぐ処理できるか
+     */
+    @Test
+    public void testIdle() {
+        final InFlightTracker<String, String> tracker = new InFlightTracker<>();
+        Assert.assertNull(tracker.begin("a"));
+        Assert.assertNull(tracker.begin("b"));
+        Assert.assertEquals(2, tracker.size());
+        Assert.assertNull(tracker.end("a"));
+        Assert.assertNull(tracker.end("b"));
+        Assert.assertEquals(0, tracker.size());
+        Assert.assertNull(tracker.begin("a"));
+    }
+
+    /**
+     * 処理中の依頼がまとめられて 1 度だけ処理し直されるか
+     */
+    @Test
+    public void testDirty() {
+        final InFlightTracker<String, String> tracker = new InFlightTracker<>();
+        Assert.assertNull(tracker.begin("a"));
+
+        final CompletableFuture<String> followUp = tracker.begin("a");
+        Assert.assertNotNull(followUp);
+        Assert.assertSame(followUp, tracker.begin("a"));
+
+        // 処理し直す分は処理中のまま
+        Assert.assertSame(followUp, tracker.end("a"));
+        Assert.assertEquals(1, tracker.size());
+
+        // 処理し直し中の依頼は、さらにその後
+        final CompletableFuture<String> followUp2 = tracker.begin("a");
+        Assert.assertNotNull(followUp2);
+        Assert.assertNotSame(followUp, followUp2);
+
+        Assert.assertSame(followUp2, tracker.end("a"));
+        Assert.assertNull(tracker.end("a"));
+        Assert.assertEquals(0, tracker.size());
+    }
+
+    /**
+     * 知らない対象を終えても何も起きないか
+     */
+    @Test
+    public void testUnknown() {
+        final InFlightTracker<String, String> tracker = new InFlightTracker<>();
+        Assert.assertNull(tracker.end("a"));
+        Assert.assertEquals(0, tracker.size());
+    }
+
+}
@@ -0,0 +1,91 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class IntegrityCheckTest {
+
+    private static String compute(final IntegrityCheck.Algorithm algorithm, final byte[] data) throws Exception {
+        final IntegrityCheck check = new IntegrityCheck(algorithm);
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (OutputStream output = check.wrap(sink)) {
+            output.write(data, 0, 3);
+            output.write(data[3]);
+            output.write(data, 4, data.length - 4);
+        }
+        // 中身はそのまま流れる
+        Assert.assertArrayEquals(data, sink.toByteArray());
+        return check.getValue();
+    }
+
+    /**
+     * CRC32C が標準の検査値になるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCrc32c() throws Exception {
+        Assert.assertEquals("e3069283", compute(IntegrityCheck.Algorithm.CRC32C, "123456789".getBytes()));
+    }
+
+    /**
+     * Java 8 用の CRC32C が標準の検査値になるか
+     */
+    @Test
+    public void testFallbackCrc32c() {
+        final Checksum crc = new IntegrityCheck.Crc32c();
+        crc.update("1234".getBytes(), 0, 4);
+        crc.update('5');
+        crc.update("6789".getBytes(), 0, 4);
+        Assert.assertEquals(0xe3069283L, crc.getValue());
+        crc.reset();
+        Assert.assertEquals(0L, crc.getValue());
+    }
+
+    /**
+     * SHA-256 が標準の検査値になるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testSha256() throws Exception {
+        Assert.assertEquals("15e2b0d3c33891ebb0f1ef609ec419420c20e320ce94c65fbc8c3312448eb225",
+                compute(IntegrityCheck.Algorithm.SHA256, "123456789".getBytes()));
+    }
+
+    /**
+     * 送り直すときに計算し直せるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testReset() throws Exception {
+        final IntegrityCheck check = new IntegrityCheck(IntegrityCheck.Algorithm.CRC32C);
+        check.wrap(new ByteArrayOutputStream()).write("abc".getBytes());
+        final String first = check.getValue();
+        check.reset();
+        check.wrap(new ByteArrayOutputStream()).write("abc".getBytes());
+        Assert.assertEquals(first, check.getValue());
+    }
+
+}
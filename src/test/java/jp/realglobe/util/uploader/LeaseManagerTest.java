@@ -0,0 +1,351 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class LeaseManagerTest {
+
+    private static final long TTL = 1_000L;
+
+    private Path directory;
+    private Path leaseDirectory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(LeaseManagerTest.class.getSimpleName());
+        this.leaseDirectory = this.directory.resolve("leases");
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    /**
+     * 貸し出し中とアップロード済みのファイルを他に貸さないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testClaim() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abc".getBytes());
+        try (LeaseManager manager1 = new LeaseManager(this.leaseDirectory, "node1", TTL);
+                LeaseManager manager2 = new LeaseManager(this.leaseDirectory, "node2", TTL)) {
+            final LeaseManager.Lease lease = manager1.claim(path);
+            Assert.assertNotNull(lease);
+            Assert.assertNull(manager2.claim(path));
+
+            lease.release(true);
+            Assert.assertNull(manager2.claim(path));
+
+            // 変更されたらアップロードし直す
+            Files.write(path, "abcdef".getBytes());
+            Assert.assertNotNull(manager2.claim(path));
+        }
+    }
+
+    /**
+     * 失敗して返した貸し出しは他が受けられるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testReleaseFailure() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abc".getBytes());
+        try (LeaseManager manager1 = new LeaseManager(this.leaseDirectory, "node1", TTL);
+                LeaseManager manager2 = new LeaseManager(this.leaseDirectory, "node2", TTL)) {
+            manager1.claim(path).release(false);
+            Assert.assertNotNull(manager2.claim(path));
+        }
+    }
+
+    /**
+     * 延長されている貸し出しは期限を過ぎても奪われないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testHeartbeat() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abc".getBytes());
+        try (LeaseManager manager1 = new LeaseManager(this.leaseDirectory, "node1", TTL);
+                LeaseManager manager2 = new LeaseManager(this.leaseDirectory, "node2", TTL)) {
+            Assert.assertNotNull(manager1.claim(path));
+            Thread.sleep(2 * TTL);
+            Assert.assertNull(manager2.claim(path));
+        }
+    }
+
+    /**
+     * 複数のプロセスで同じファイル群を取り合って、各ファイルがちょうど 1 度ずつ処理されるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testProcesses() throws Exception {
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final String name = i + ".jpg";
+            Files.write(this.directory.resolve(name), ("" + i).getBytes());
+            names.add(name);
+        }
+
+        final List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            processes.add(startClaimer("node" + i, false, names));
+        }
+        final List<String> claimed = new ArrayList<>();
+        for (final Process process : processes) {
+            claimed.addAll(readLines(process));
+            Assert.assertEquals(0, process.waitFor());
+        }
+
+        Assert.assertEquals(names.size(), claimed.size());
+        Assert.assertEquals(new HashSet<>(names), new HashSet<>(claimed));
+    }
+
+    /**
+     * 落ちたプロセスの貸し出しを期限切れ後に引き継げるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCrash() throws Exception {
+        final String name = "a.jpg";
+        final Path path = this.directory.resolve(name);
+        Files.write(path, "abc".getBytes());
+
+        final Process process = startClaimer("crasher", true, Collections.singletonList(name));
+        Assert.assertEquals(Collections.singletonList(name), readLines(process));
+        process.waitFor();
+
+        try (LeaseManager manager = new LeaseManager(this.leaseDirectory, "survivor", TTL)) {
+            Assert.assertNull(manager.claim(path));
+            Thread.sleep(TTL + TTL / 2);
+            Assert.assertNotNull(manager.claim(path));
+        }
+    }
+
+    /**
+     * 落ちたプロセスの貸し出しを、改めて検知しなくても期限切れ後に引き継いでアップロードするか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTakeOverCrashed() throws Exception {
+        final String name = "a.jpg";
+        final Path path = this.directory.resolve(name);
+        Files.write(path, "abc".getBytes());
+
+        final Process process = startClaimer("crasher", true, Collections.singletonList(name));
+        Assert.assertEquals(Collections.singletonList(name), readLines(process));
+        process.waitFor();
+
+        final InMemoryTransport transport = new InMemoryTransport(true);
+        final DirectoryUploader uploader = new DirectoryUploader(Files.createDirectory(this.directory.resolve("watch")), 1_000L, false, null, 0, 0, "http://localhost:1", "user0",
+                "test uploader", "id0", "abcde");
+        uploader.setTransport(transport);
+        uploader.setLeaseDirectory(this.leaseDirectory, "survivor", TTL);
+        uploader.start();
+        try {
+            Assert.assertEquals(UploadResult.Status.SKIPPED, uploader.submit(path).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertEquals(0, transport.getCount());
+
+            // 誰も submit し直さない
+            final long deadline = System.currentTimeMillis() + 3 * TTL;
+            while (transport.getCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertArrayEquals("abc".getBytes(), transport.get(name));
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * アップロードせずに返された貸し出しを引き継ぐか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTakeOverReleased() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abc".getBytes());
+        final BlockingQueue<Path> reclaimed = new LinkedBlockingQueue<>();
+        try (LeaseManager manager1 = new LeaseManager(this.leaseDirectory, "node1", TTL);
+                LeaseManager manager2 = new LeaseManager(this.leaseDirectory, "node2", TTL)) {
+            manager2.setReclaimListener(reclaimed::put);
+            final LeaseManager.Lease lease = manager1.claim(path);
+            Assert.assertNull(manager2.claim(path));
+            Assert.assertNull(reclaimed.poll(TTL, TimeUnit.MILLISECONDS));
+
+            lease.release(false);
+            Assert.assertEquals(path, reclaimed.poll(TTL, TimeUnit.MILLISECONDS));
+            Assert.assertNotNull(manager2.claim(path));
+
+            // アップロードされたものは知らせない
+            final Path path2 = this.directory.resolve("b.jpg");
+            Files.write(path2, "def".getBytes());
+            final LeaseManager.Lease lease2 = manager1.claim(path2);
+            Assert.assertNull(manager2.claim(path2));
+            lease2.release(true);
+            Assert.assertNull(reclaimed.poll(2 * TTL, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * 無効と判断してから消すまでの間に他が作り直した貸し出しを消さないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testInterleavedReclaim() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abc".getBytes());
+        try (LeaseManager manager1 = new LeaseManager(this.leaseDirectory, "node1", TTL);
+                LeaseManager manager2 = new LeaseManager(this.leaseDirectory, "node2", TTL)) {
+            manager1.claim(path).release(true);
+            Files.write(path, "abcdef".getBytes());
+
+            // node2 がアップロード済みの印を読んで無効と判断する
+            final Path leasePath = manager2.getLeasePath(path);
+            final LeaseManager.Snapshot snapshot = LeaseManager.Snapshot.read(leasePath);
+            Assert.assertNotNull(snapshot);
+
+            // その間に node1 が印を消して貸し出しを受ける
+            final LeaseManager.Lease lease = manager1.claim(path);
+            Assert.assertNotNull(lease);
+
+            // node2 は node1 の貸し出しを消さない
+            Assert.assertFalse(manager2.remove(leasePath, snapshot));
+            Assert.assertTrue(new String(Files.readAllBytes(leasePath), Constants.UTF8).startsWith("node1\n"));
+            Assert.assertNull(manager2.claim(path));
+            manager1.renew();
+            Assert.assertFalse(lease.isLost());
+        }
+    }
+
+    /**
+     * 奪われた貸し出しのアップロードを止めるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLost() throws Exception {
+        final Path path = this.directory.resolve("a.jpg");
+        Files.write(path, "abc".getBytes());
+        try (LeaseManager manager = new LeaseManager(this.leaseDirectory, "node1", TTL)) {
+            final LeaseManager.Lease lease = manager.claim(path);
+            final Payload payload = lease.guard(Payload.of(path));
+            payload.writeTo(new ByteArrayOutputStream());
+
+            Files.delete(manager.getLeasePath(path));
+            manager.renew();
+            Assert.assertTrue(lease.isLost());
+            try {
+                payload.writeTo(new ByteArrayOutputStream());
+                Assert.fail();
+            } catch (final LeaseManager.LostException e) {
+                // 止まる
+            }
+        }
+    }
+
+    private Process startClaimer(final String nodeId, final boolean crash, final List<String> names) throws Exception {
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Claimer.class.getName());
+        command.add(this.directory.toString());
+        command.add(this.leaseDirectory.toString());
+        command.add(nodeId);
+        command.add(String.valueOf(crash));
+        command.addAll(names);
+        return (new ProcessBuilder(command)).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    private static List<String> readLines(final Process process) throws Exception {
+        final List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Constants.UTF8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 別プロセスで貸し出しを受けて、受けたファイル名を出力する。
+     * 引数は 監視ディレクトリ、貸し出しディレクトリ、名義、返さずに落ちるか、ファイル名...
+     */
+    public static final class Claimer {
+
+        /**
+         * @param args 引数
+         * @throws Exception エラー
+         */
+        public static void main(final String[] args) throws Exception {
+            final Path directory = Paths.get(args[0]);
+            final boolean crash = Boolean.parseBoolean(args[3]);
+            final Set<LeaseManager.Lease> leases = new HashSet<>();
+            final LeaseManager manager = new LeaseManager(Paths.get(args[1]), args[2], TTL);
+            for (int i = 4; i < args.length; i++) {
+                final LeaseManager.Lease lease = manager.claim(directory.resolve(args[i]));
+                if (lease != null) {
+                    System.out.println(args[i]);
+                    leases.add(lease);
+                }
+            }
+            System.out.flush();
+            if (crash) {
+                Runtime.getRuntime().halt(0);
+            }
+            // アップロードしている間に他が取りに来る
+            TimeUnit.MILLISECONDS.sleep(100);
+            for (final LeaseManager.Lease lease : leases) {
+                lease.release(true);
+            }
+            manager.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,194 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class LogStoreTest {
+
+    private Path directory;
+    private Path path;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(LogStoreTest.class.getSimpleName());
+        this.path = this.directory.resolve("store");
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    /**
+     * 読み書きと再読み込み
+     * @throws Exception エラー
+     */
+    @Test
+    public void testReopen() throws Exception {
+        try (LogStore store = new LogStore(this.path)) {
+            Assert.assertNull(store.load("a"));
+            store.store("a", "1");
+            store.store("b", "2");
+            store.store("a", "3");
+            store.clear("b");
+            Assert.assertEquals("3", store.load("a"));
+            Assert.assertNull(store.load("b"));
+        }
+        try (LogStore store = new LogStore(this.path)) {
+            Assert.assertEquals("3", store.load("a"));
+            Assert.assertNull(store.load("b"));
+        }
+    }
+
+    /**
+     * 書きかけの記録を捨てられるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTornRecord() throws Exception {
+        try (LogStore store = new LogStore(this.path)) {
+            store.store("a", "1");
+            store.store("a", "2");
+        }
+        final byte[] data = Files.readAllBytes(this.path);
+        // 最後の記録を途中で切る
+        Files.write(this.path, Arrays.copyOf(data, data.length - 3), StandardOpenOption.TRUNCATE_EXISTING);
+        try (LogStore store = new LogStore(this.path)) {
+            Assert.assertEquals("1", store.load("a"));
+            store.store("b", "3");
+        }
+        try (LogStore store = new LogStore(this.path)) {
+            Assert.assertEquals("1", store.load("a"));
+            Assert.assertEquals("3", store.load("b"));
+        }
+    }
+
+    /**
+     * 壊れた記録を捨てられるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCorruptRecord() throws Exception {
+        try (LogStore store = new LogStore(this.path)) {
+            store.store("a", "1");
+            store.store("a", "2");
+        }
+        final byte[] data = Files.readAllBytes(this.path);
+        data[data.length - 1] ^= 1;
+        Files.write(this.path, data);
+        try (LogStore store = new LogStore(this.path)) {
+            Assert.assertEquals("1", store.load("a"));
+        }
+    }
+
+    /**
+     * 詰め直し
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCompact() throws Exception {
+        try (LogStore store = new LogStore(this.path, true)) {
+            for (int i = 0; i < 10_000; i++) {
+                store.store("key" + (i % 10), "value" + i);
+            }
+            store.compact();
+            Assert.assertTrue(Files.size(this.path) < 1_000);
+            store.store("key0", "last");
+        }
+        try (LogStore store = new LogStore(this.path)) {
+            Assert.assertEquals("last", store.load("key0"));
+            Assert.assertEquals("value9999", store.load("key9"));
+        }
+    }
+
+    /**
+     * 並行書き込み
+     * @throws Exception エラー
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (LogStore store = new LogStore(this.path)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final int n = i;
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 100; j++) {
+                        store.store("key" + n, "value" + j);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        try (LogStore store = new LogStore(this.path)) {
+            for (int i = 0; i < 8; i++) {
+                Assert.assertEquals("value99", store.load("key" + i));
+            }
+        }
+    }
+
+    /**
+     * メモリに覚える保管庫
+     * @throws Exception エラー
+     */
+    @Test
+    public void testCachingStore() throws Exception {
+        try (LogStore base = new LogStore(this.path)) {
+            final Store store = new CachingStore(base);
+            Assert.assertNull(store.load("a"));
+            base.store("a", "0");
+            // 無いことを覚えている
+            Assert.assertNull(store.load("a"));
+            store.store("a", "1");
+            Assert.assertEquals("1", store.load("a"));
+            Assert.assertEquals("1", base.load("a"));
+            store.clear("a");
+            Assert.assertNull(store.load("a"));
+            Assert.assertNull(base.load("a"));
+        }
+    }
+
+}
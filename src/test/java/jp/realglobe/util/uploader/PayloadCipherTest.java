@@ -0,0 +1,203 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class PayloadCipherTest {
+
+    private static final class MemoryStore implements Store {
+
+        private final Map<String, String> store = new HashMap<>();
+
+        @Override
+        public synchronized String load(final String key) {
+            return this.store.get(key);
+        }
+
+        @Override
+        public synchronized void clear(final String key) {
+            this.store.remove(key);
+        }
+
+        @Override
+        public synchronized void store(final String key, final String value) {
+            this.store.put(key, value);
+        }
+
+    }
+
+    private Path directory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(PayloadCipherTest.class.getSimpleName());
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] data = new byte[length];
+        (new Random(seed)).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] encrypt(final byte[] data, final byte[] key, final boolean deflate) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PayloadCipher.encrypt(Payload.of("a.jpg", data, null), key, deflate).writeTo(output);
+        return output.toByteArray();
+    }
+
+    private static byte[] decrypt(final byte[] data, final byte[] key) throws IOException {
+        return Utils.readAll(PayloadCipher.decrypt(new ByteArrayInputStream(data), key));
+    }
+
+    /**
+     * 暗号化して復号すると元に戻るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        final byte[] key = random(0, 32);
+        for (final int length : new int[] { 0, 1, PayloadCipher.CHUNK_SIZE - 1, PayloadCipher.CHUNK_SIZE, PayloadCipher.CHUNK_SIZE + 1, 3 * PayloadCipher.CHUNK_SIZE + 5 }) {
+            final byte[] data = random(length, length);
+            final byte[] encrypted = encrypt(data, key, false);
+            Assert.assertEquals(PayloadCipher.encryptedLength(length), encrypted.length);
+            Assert.assertArrayEquals(data, decrypt(encrypted, key));
+        }
+    }
+
+    /**
+     * ファイルごとに別の鍵で暗号化するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testFileKey() throws Exception {
+        final byte[] key = random(0, 32);
+        final byte[] data = random(1, 1_000);
+        final byte[] encrypted1 = encrypt(data, key, false);
+        final byte[] encrypted2 = encrypt(data, key, false);
+        // 先頭の識別子から鍵の識別子までは同じで、ソルトから先が違う
+        final int saltOffset = 4 + 1 + 1 + 4 + 8;
+        Assert.assertArrayEquals(Arrays.copyOf(encrypted1, saltOffset), Arrays.copyOf(encrypted2, saltOffset));
+        Assert.assertFalse(Arrays.equals(Arrays.copyOfRange(encrypted1, saltOffset, saltOffset + 32), Arrays.copyOfRange(encrypted2, saltOffset, saltOffset + 32)));
+        Assert.assertArrayEquals(data, decrypt(encrypted1, key));
+        Assert.assertArrayEquals(data, decrypt(encrypted2, key));
+
+        Assert.assertFalse(Arrays.equals(PayloadCipher.deriveKey(key, random(3, 32)), PayloadCipher.deriveKey(key, random(4, 32))));
+        Assert.assertEquals(32, PayloadCipher.deriveKey(key, random(3, 32)).length);
+    }
+
+    /**
+     * 圧縮してから暗号化できるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDeflate() throws Exception {
+        final byte[] key = random(0, 32);
+        final byte[] data = new byte[500_000];
+        Arrays.fill(data, (byte) 'a');
+        Assert.assertEquals(-1, PayloadCipher.encrypt(Payload.of("a.jpg", data, null), key, true).getLength());
+        final byte[] encrypted = encrypt(data, key, true);
+        Assert.assertTrue(encrypted.length < 10_000);
+        Assert.assertArrayEquals(data, decrypt(encrypted, key));
+    }
+
+    /**
+     * 改ざん、切り詰め、違う鍵を検知するか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testTamper() throws Exception {
+        final byte[] key = random(0, 32);
+        final byte[] data = random(1, 2 * PayloadCipher.CHUNK_SIZE + 100);
+        final byte[] encrypted = encrypt(data, key, false);
+
+        final byte[] tampered = encrypted.clone();
+        tampered[PayloadCipher.CHUNK_SIZE + 1_000]++;
+        assertRejected(tampered, key);
+
+        // チャンクの切れ目で切り詰める
+        final int chunk = PayloadCipher.CHUNK_SIZE + 16;
+        assertRejected(Arrays.copyOf(encrypted, encrypted.length - 100 - 16), key);
+        assertRejected(Arrays.copyOf(encrypted, encrypted.length - (100 + 16) - chunk), key);
+
+        assertRejected(encrypted, random(2, 32));
+    }
+
+    private static void assertRejected(final byte[] encrypted, final byte[] key) {
+        try {
+            decrypt(encrypted, key);
+            Assert.fail();
+        } catch (final IOException e) {
+            // 正常
+        }
+    }
+
+    /**
+     * 鍵を保管庫に残し、復号する代役サーバーに送れるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testUpload() throws Exception {
+        final MemoryStore store = new MemoryStore();
+        final byte[] key = PayloadCipher.loadKey(store);
+        Assert.assertArrayEquals(key, PayloadCipher.loadKey(store));
+
+        try (StandInServer server = new StandInServer(0, key)) {
+            final DirectoryUploader uploader = new DirectoryUploader(this.directory, 1_000L, false, null, 0, 0, server.getBaseUrl(), "user0", "test uploader", store);
+            uploader.setEncryption(true, false);
+            uploader.start();
+            try {
+                final byte[] data = random(1, 200_000);
+                final UploadResult result = uploader.submit("a.jpg", data, null).get(3_000L, TimeUnit.MILLISECONDS);
+                Assert.assertEquals(UploadResult.Status.UPLOADED, result.getStatus());
+                Assert.assertEquals(PayloadCipher.encryptedLength(data.length), result.getSentBytes());
+                Assert.assertArrayEquals(data, server.pollDecrypted());
+            } finally {
+                uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * 通信を除いた監視からアップロードまでの処理の速さを測る。
+ * 監視ディレクトリにファイルを書き込み、メモリ上の送り先に全て届くまでの時間を測る。
+ * 引数は ファイル数、ファイルの大きさ（バイト）、猶予期間（ミリ秒）、同時アップロード数
+ */
+public final class PipelineBenchmark {
+
+    private PipelineBenchmark() {}
+
+    /**
+     * @param args ファイル数、ファイルの大きさ（バイト）、猶予期間（ミリ秒）、同時アップロード数
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        final int count = (args.length > 0 ? Integer.parseInt(args[0]) : 10_000);
+        final int size = (args.length > 1 ? Integer.parseInt(args[1]) : 10_000);
+        final long delay = (args.length > 2 ? Long.parseLong(args[2]) : 100L);
+        final int concurrency = (args.length > 3 ? Integer.parseInt(args[3]) : 4);
+
+        final Path directory = Files.createTempDirectory(PipelineBenchmark.class.getSimpleName());
+        try {
+            for (int i = 0; i < 3; i++) {
+                run(directory, count, size, delay, concurrency);
+                FileUtils.cleanDirectory(directory.toFile());
+            }
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    private static void run(final Path directory, final int count, final int size, final long delay, final int concurrency) throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport(false);
+        final DirectoryUploader uploader = new DirectoryUploader(directory, delay, false, null, 0, 0, "http://localhost:1", "user0", "benchmark", "benchmark", "abcde");
+        uploader.setConcurrency(concurrency);
+        uploader.setTransport(transport);
+        uploader.start();
+        try {
+            // 監視開始待ち
+            Thread.sleep(1_000L);
+
+            final byte[] data = new byte[size];
+            final long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                Files.write(directory.resolve(i + ".bin"), data);
+            }
+            final long written = System.nanoTime();
+            while (transport.getCount() < count) {
+                if (System.nanoTime() - written > TimeUnit.SECONDS.toNanos(60)) {
+                    System.out.println("Timed out with " + transport.getCount() + " uploads");
+                    return;
+                }
+                Thread.sleep(1L);
+            }
+            final long elapsed = System.nanoTime() - start - TimeUnit.MILLISECONDS.toNanos(delay);
+            System.out.println(count + " files of " + size + " bytes in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms excluding delay ("
+                    + (count * 1_000_000_000L / Math.max(1, elapsed)) + "/s, " + (transport.getBytes() * 1_000L / Math.max(1, elapsed)) + "MB/s)");
+        } finally {
+            uploader.stop(10, TimeUnit.SECONDS);
+        }
+    }
+
+}
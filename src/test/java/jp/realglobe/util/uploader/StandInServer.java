@@ -0,0 +1,177 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 計測用の代役サーバー。
+ * 認証トークンを発行し、アップロードを数えて受け流す。
+ * 鍵を渡せば、暗号化したアップロードを復号して溜める
+ */
+final class StandInServer implements AutoCloseable {
+
+    private final long latency;
+    private final ExecutorService executor;
+    private final HttpServer server;
+
+    private final AtomicLong uploads;
+    private final AtomicLong bytes;
+    // 復号の鍵。null なら復号しない
+    private final byte[] key;
+    private final Queue<byte[]> decrypted;
+
+    /**
+     * 作成して起動する
+     * @param latency 応答までの時間（ミリ秒）
+     * @throws IOException 起動できなかった
+     */
+    StandInServer(final long latency) throws IOException {
+        this(latency, null);
+    }
+
+    /**
+     * 作成して起動する
+     * @param latency 応答までの時間（ミリ秒）
+     * @param key 復号の鍵。null なら復号しない
+     * @throws IOException 起動できなかった
+     */
+    StandInServer(final long latency, final byte[] key) throws IOException {
+        this.latency = latency;
+        this.key = key;
+        this.decrypted = new ConcurrentLinkedQueue<>();
+        this.uploads = new AtomicLong();
+        this.bytes = new AtomicLong();
+        this.executor = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(0), 0);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final byte[] body = Utils.readAll(exchange.getRequestBody());
+        if (this.latency > 0) {
+            try {
+                Thread.sleep(this.latency);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (exchange.getRequestURI().getPath().equals(Constants.URL_PATH_TOKEN)) {
+            final Map<String, Object> tokenData = new HashMap<>();
+            tokenData.put(Constants.TOKEN_RESPONSE_KEY_TOKEN, "abcde");
+            final Map<String, Object> data = new HashMap<>();
+            data.put(Constants.TOKEN_RESPONSE_KEY_DATA, tokenData);
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, 0);
+            exchange.getResponseBody().write((new JSONObject(data)).toString().getBytes());
+        } else {
+            this.uploads.incrementAndGet();
+            this.bytes.addAndGet(body.length);
+            if (this.key != null) {
+                try {
+                    final byte[] part = getPart(body, exchange.getRequestHeaders().getFirst("Content-Type"), Constants.UPLOAD_REQUEST_PART_DATA);
+                    this.decrypted.add(Utils.readAll(PayloadCipher.decrypt(new ByteArrayInputStream(part), this.key)));
+                } catch (final IOException e) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, -1);
+        }
+        exchange.close();
+    }
+
+    /**
+     * マルチパートから 1 パートの中身を取り出す
+     */
+    private static byte[] getPart(final byte[] body, final String contentType, final String name) throws IOException {
+        final int boundaryStart = (contentType == null ? -1 : contentType.indexOf("boundary="));
+        if (boundaryStart < 0) {
+            throw new IOException("Not multipart");
+        }
+        final byte[] delimiter = ("\r\n--" + contentType.substring(boundaryStart + "boundary=".length())).getBytes(Constants.UTF8);
+        final int header = indexOf(body, ("name=\"" + name + "\"").getBytes(Constants.UTF8), 0);
+        final int start = (header < 0 ? -1 : indexOf(body, "\r\n\r\n".getBytes(Constants.UTF8), header));
+        final int end = (start < 0 ? -1 : indexOf(body, delimiter, start));
+        if (end < 0) {
+            throw new IOException("No " + name + " part");
+        }
+        return Arrays.copyOfRange(body, start + 4, end);
+    }
+
+    private static int indexOf(final byte[] data, final byte[] target, final int from) {
+        loop: for (int i = from; i <= data.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue loop;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    String getBaseUrl() {
+        return "http://localhost:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * @return 受け取ったアップロード数
+     */
+    long getUploads() {
+        return this.uploads.get();
+    }
+
+    /**
+     * @return 受け取ったアップロードのリクエストボディの合計バイト数
+     */
+    long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * @return 復号したアップロードを 1 つ取り出す。無ければ null
+     */
+    byte[] pollDecrypted() {
+        return this.decrypted.poll();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,91 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * 普通のスレッドと仮想スレッドでのアップロードの比較。
+ * 応答の遅いサーバーに大量のアップロードを同時に行い、かかった時間とスレッド数を測る。
+ * 引数は 同時アップロード数、アップロード数、サーバーの応答時間（ミリ秒）
+ */
+public final class ThreadsBenchmark {
+
+    private ThreadsBenchmark() {}
+
+    /**
+     * @param args 同時アップロード数、アップロード数、サーバーの応答時間（ミリ秒）
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        final int concurrency = (args.length > 0 ? Integer.parseInt(args[0]) : 1_000);
+        final int count = (args.length > 1 ? Integer.parseInt(args[1]) : 10_000);
+        final long latency = (args.length > 2 ? Long.parseLong(args[2]) : 100L);
+
+        System.out.println("Virtual threads available: " + Threads.isVirtualAvailable());
+
+        final Path directory = Files.createTempDirectory(ThreadsBenchmark.class.getSimpleName());
+        try (StandInServer server = new StandInServer(latency)) {
+            for (final boolean virtual : new boolean[] { false, true, false, true }) {
+                run(directory, server.getBaseUrl(), concurrency, count, virtual);
+            }
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+    private static void run(final Path directory, final String urlBase, final int concurrency, final int count, final boolean virtual) throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final DirectoryUploader uploader = new DirectoryUploader(directory, 1_000L, false, null, 0, 0, urlBase, "user0", "benchmark", "benchmark", "abcde");
+        uploader.setConcurrency(concurrency);
+        uploader.setVirtualThreads(virtual);
+
+        final byte[] data = new byte[1024];
+        threads.resetPeakThreadCount();
+        final long start = System.nanoTime();
+        uploader.start();
+        final List<CompletableFuture<UploadResult>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(uploader.submit(i + ".bin", data, null));
+        }
+        int failures = 0;
+        for (final CompletableFuture<UploadResult> future : futures) {
+            try {
+                if (future.get().getStatus() != UploadResult.Status.UPLOADED) {
+                    failures++;
+                }
+            } catch (final Exception e) {
+                failures++;
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        uploader.stop(10, TimeUnit.SECONDS);
+
+        System.out.println((virtual ? "virtual " : "platform") + ": " + count + " uploads in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms ("
+                + (count * 1_000_000_000L / elapsed) + "/s), failures " + failures + ", peak platform threads " + threads.getPeakThreadCount());
+    }
+
+}
@@ -0,0 +1,72 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * 記録した監視イベントを代役サーバー相手に再生して、監視からアップロードまでを計測する。
+ * 引数は 記録ファイル、再生速度の倍率（0 以下なら待たない）、猶予期間（ミリ秒）、同時アップロード数
+ */
+public final class TraceReplayBenchmark {
+
+    private TraceReplayBenchmark() {}
+
+    /**
+     * @param args 記録ファイル、再生速度の倍率、猶予期間（ミリ秒）、同時アップロード数
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: " + TraceReplayBenchmark.class.getName() + " TRACE [SPEED] [DELAY] [CONCURRENCY]");
+            System.exit(1);
+        }
+        final Path trace = Paths.get(args[0]);
+        final double speed = (args.length > 1 ? Double.parseDouble(args[1]) : 1);
+        final long delay = (args.length > 2 ? Long.parseLong(args[2]) : 1_000L);
+        final int concurrency = (args.length > 3 ? Integer.parseInt(args[3]) : 1);
+
+        final Path directory = Files.createTempDirectory(TraceReplayBenchmark.class.getSimpleName());
+        try (StandInServer server = new StandInServer(0)) {
+            final DirectoryUploader uploader = new DirectoryUploader(directory, delay, false, null, 0, 0, server.getBaseUrl(), "user0", "benchmark", "benchmark", "abcde");
+            uploader.setConcurrency(concurrency);
+            uploader.start();
+            // 監視開始待ち
+            Thread.sleep(1_000L);
+
+            final long start = System.currentTimeMillis();
+            final long events = (new TraceReplayer(trace, directory, speed)).replay();
+            final long replayed = System.currentTimeMillis();
+            // 猶予期間の過ぎたものが全て片付くまで待つ
+            Thread.sleep(delay * 2);
+            uploader.awaitIdle(1, TimeUnit.HOURS);
+            final long end = System.currentTimeMillis() - delay * 2;
+            uploader.stop(10, TimeUnit.SECONDS);
+
+            System.out.println("Replayed " + events + " events in " + (replayed - start) + "ms");
+            System.out.println("Uploaded " + server.getUploads() + " files (" + server.getBytes() + " bytes) in " + (end - start) + "ms");
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+    }
+
+}
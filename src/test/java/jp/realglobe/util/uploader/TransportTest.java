@@ -0,0 +1,200 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * HTTP 以外の送り方のテスト
+ */
+public class TransportTest {
+
+    private static class MemoryStore implements Store {
+
+        private final Map<String, String> store = new HashMap<>();
+
+        @Override
+        public synchronized String load(final String key) {
+            return this.store.get(key);
+        }
+
+        @Override
+        public synchronized void clear(final String key) {
+            this.store.remove(key);
+        }
+
+        @Override
+        public synchronized void store(final String key, final String value) {
+            this.store.put(key, value);
+        }
+
+    }
+
+    private Path directory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(TransportTest.class.getSimpleName());
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    /**
+     * ローカルのディレクトリに置けるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLocalDirectory() throws Exception {
+        final Path spool = this.directory.resolve("spool");
+        final Transport transport = new LocalDirectoryTransport(spool);
+        Assert.assertEquals(201, transport.send("abcde", Payload.of("a.jpg", "abc".getBytes(), null), Collections.emptyMap()));
+        Assert.assertEquals(201, transport.send("abcde", Payload.of("../b.jpg", "def".getBytes(), null), Collections.emptyMap()));
+        Assert.assertArrayEquals("abc".getBytes(), Files.readAllBytes(spool.resolve("a.jpg")));
+        Assert.assertArrayEquals("def".getBytes(), Files.readAllBytes(spool.resolve("b.jpg")));
+        // 一時ファイルは残らない
+        Assert.assertEquals(2, spool.toFile().list().length);
+    }
+
+    /**
+     * 差分アップロードの差分を置いてあるファイルに当てるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testLocalDirectoryDelta() throws Exception {
+        final Path source = this.directory.resolve("a.jpg");
+        final Path spool = this.directory.resolve("spool");
+        final byte[] data = new byte[100_000];
+        (new Random(1)).nextBytes(data);
+        Files.write(source, data);
+
+        // 認証トークンを取得させない
+        final Store store = new MemoryStore();
+        store.store(Constants.STORE_KEY_TOKEN, "abcde");
+        final DirectoryUploader uploader = new DirectoryUploader(Files.createDirectory(this.directory.resolve("watch")), 1_000L, false, null, 0, 0, "http://localhost:1", "user0", "test uploader", store);
+        uploader.setTransport(new LocalDirectoryTransport(spool));
+        uploader.setDeltaUpload(true);
+        uploader.start();
+        try {
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit(source).get(10_000L, TimeUnit.MILLISECONDS).getStatus());
+            data[50_000]++;
+            Files.write(source, data);
+            final UploadResult result = uploader.submit(source).get(10_000L, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, result.getStatus());
+            Assert.assertTrue(result.getSentBytes() < 10_000);
+            Assert.assertArrayEquals(data, Files.readAllBytes(spool.resolve("a.jpg")));
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * メモリ上で受け取れるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testInMemory() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport(true);
+        final DirectoryUploader uploader = new DirectoryUploader(Files.createDirectory(this.directory.resolve("watch")), 1_000L, false, null, 0, 0, "http://localhost:1", "user0", "test uploader", "id0", "abcde");
+        uploader.setTransport(transport);
+        uploader.start();
+        try {
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit("a.jpg", "abc".getBytes(), null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertArrayEquals("abc".getBytes(), transport.get("a.jpg"));
+            Assert.assertEquals(1, transport.getCount());
+            Assert.assertEquals(3, transport.getBytes());
+
+            // 配列の途中から
+            final ByteBuffer buffer = ByteBuffer.wrap("xxdefghyy".getBytes(), 1, 7).slice();
+            buffer.position(1).limit(6);
+            Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit("b.jpg", buffer, null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertArrayEquals("defgh".getBytes(), transport.get("b.jpg"));
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 送らなかった 1 度しか読めないデータを閉じるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testDiscard() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport(true);
+        final DirectoryUploader uploader = new DirectoryUploader(Files.createDirectory(this.directory.resolve("watch")), 1_000L, false, null, 0, 0, "http://localhost:1", "user0", "test uploader", "id0", "abcde");
+        uploader.setTransport(transport);
+        uploader.start();
+        final AtomicInteger closed = new AtomicInteger();
+        try {
+            // 一時ファイルは送らない
+            final InputStream skipped = new ByteArrayInputStream("abc".getBytes()) {
+
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+
+            };
+            Assert.assertEquals(UploadResult.Status.SKIPPED, uploader.submit("a.jpg.tmp", skipped, null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertEquals(1, closed.get());
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+
+        final InputStream rejected = new ByteArrayInputStream("abc".getBytes()) {
+
+            @Override
+            public void close() {
+                closed.incrementAndGet();
+            }
+
+        };
+        try {
+            uploader.submit("b.jpg", rejected, null).get(1_000L, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(2, closed.get());
+        Assert.assertEquals(0, transport.getCount());
+    }
+
+}
@@ -0,0 +1,148 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class UploadLaneTest {
+
+    private Path directory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(UploadLaneTest.class.getSimpleName());
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    /**
+     * 拡張子と大きさで振り分けるか
+     */
+    @Test
+    public void testMatches() {
+        final UploadLane lane = new UploadLane("media", Arrays.asList("mp4", "mov"), 1_000, 0, 1, 0, null);
+        Assert.assertTrue(lane.matches("a.mp4", 1_000));
+        Assert.assertTrue(lane.matches("a.mov", 1L << 40));
+        Assert.assertFalse(lane.matches("a.mp4", 999));
+        Assert.assertFalse(lane.matches("a.jpg", 1_000));
+        // 大きさが分からなければ拡張子だけで決める
+        Assert.assertTrue(lane.matches("a.mp4", -1));
+
+        final UploadLane small = new UploadLane("small", null, 0, 100, 1, 0, null);
+        Assert.assertTrue(small.matches("a.bin", 100));
+        Assert.assertFalse(small.matches("a.bin", 101));
+    }
+
+    /**
+     * 帯域を守るか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testThrottle() throws Exception {
+        final Throttle throttle = new Throttle(1_000_000);
+        final Payload payload = throttle.wrap(Payload.of("a.bin", new byte[2_500_000], null));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final long start = System.nanoTime();
+        payload.writeTo(output);
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(2_500_000, output.size());
+        // 1 秒分は溜めてある
+        Assert.assertTrue("elapsed " + elapsed, elapsed >= 1_400);
+        Assert.assertTrue("elapsed " + elapsed, elapsed < 3_000);
+    }
+
+    /**
+     * 大きなファイルを送っている間も、別の車線のファイルは待たされないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testIsolation() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport(false);
+        final DirectoryUploader uploader = new DirectoryUploader(this.directory, 1_000L, false, null, 0, 0, "http://localhost:1", "user0", "test uploader", "id0", "abcde");
+        uploader.setConcurrency(1);
+        uploader.setTransport(transport);
+        uploader.addLane("media", Arrays.asList("mp4"), 0, 0, 1, 1_000_000, null);
+        uploader.start();
+        try {
+            final CompletableFuture<UploadResult> large = uploader.submit("a.mp4", new byte[3_000_000], null);
+            Thread.sleep(100L);
+            final long start = System.nanoTime();
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(UploadResult.Status.UPLOADED, uploader.submit(i + ".jpg", new byte[10_000], null).get(1_000L, TimeUnit.MILLISECONDS).getStatus());
+            }
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            Assert.assertFalse(large.isDone());
+            Assert.assertEquals(UploadResult.Status.UPLOADED, large.get(5_000L, TimeUnit.MILLISECONDS).getStatus());
+            Assert.assertEquals(11, transport.getCount());
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 監視で検知したファイルも、詰まった車線に待たされないか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testWatchedIsolation() throws Exception {
+        final InMemoryTransport transport = new InMemoryTransport(true);
+        final DirectoryUploader uploader = new DirectoryUploader(this.directory, 100L, false, null, 0, 0, "http://localhost:1", "user0", "test uploader", "id0", "abcde");
+        uploader.setConcurrency(1);
+        uploader.setTransport(transport);
+        uploader.addLane("media", Arrays.asList("mp4"), 0, 0, 1, 1_000_000, null);
+        uploader.start();
+        try {
+            // 2 つ目の動画は車線が空くまで待つ
+            Files.write(this.directory.resolve("a.mp4"), new byte[3_000_000]);
+            Files.write(this.directory.resolve("b.mp4"), new byte[3_000_000]);
+            Thread.sleep(500L);
+            Files.write(this.directory.resolve("c.jpg"), new byte[10_000]);
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (transport.get("c.jpg") == null && System.nanoTime() < deadline) {
+                Thread.sleep(10L);
+            }
+            Assert.assertNotNull(transport.get("c.jpg"));
+            Assert.assertNull(transport.get("b.mp4"));
+        } finally {
+            uploader.stop(1_000L, TimeUnit.MILLISECONDS);
+        }
+    }
+
+}
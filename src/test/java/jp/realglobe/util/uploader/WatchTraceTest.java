@@ -0,0 +1,122 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * テスト
+ */
+public class WatchTraceTest {
+
+    private Path directory;
+
+    /**
+     * @throws Exception エラー
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory(WatchTraceTest.class.getSimpleName());
+    }
+
+    /**
+     * @throws Exception エラー
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.directory.toFile());
+    }
+
+    /**
+     * 書いたものを読めるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testReadWrite() throws Exception {
+        final Path path = this.directory.resolve("trace");
+        final long start = System.currentTimeMillis();
+        try (WatchTrace.Writer writer = new WatchTrace.Writer(path)) {
+            writer.write(new WatchTrace.Event(WatchTrace.Kind.CREATE, "a.jpg", start + 10, 0));
+            writer.write(new WatchTrace.Event(WatchTrace.Kind.MODIFY, "a.jpg", start + 300, 1_000_000L));
+            writer.write(new WatchTrace.Event(WatchTrace.Kind.OVERFLOW, "", start + 300, -1));
+            writer.write(new WatchTrace.Event(WatchTrace.Kind.DELETE, "あ.jpg", start + 5_000, -1));
+        }
+        try (WatchTrace.Reader reader = new WatchTrace.Reader(path)) {
+            WatchTrace.Event event = reader.read();
+            Assert.assertEquals(WatchTrace.Kind.CREATE, event.getKind());
+            Assert.assertEquals("a.jpg", event.getPath());
+            Assert.assertEquals(0, event.getSize());
+            final long date = event.getDate();
+
+            event = reader.read();
+            Assert.assertEquals(WatchTrace.Kind.MODIFY, event.getKind());
+            Assert.assertEquals(1_000_000L, event.getSize());
+            Assert.assertEquals(date + 290, event.getDate());
+
+            event = reader.read();
+            Assert.assertEquals(WatchTrace.Kind.OVERFLOW, event.getKind());
+
+            event = reader.read();
+            Assert.assertEquals(WatchTrace.Kind.DELETE, event.getKind());
+            Assert.assertEquals("あ.jpg", event.getPath());
+            Assert.assertEquals(-1, event.getSize());
+            Assert.assertEquals(date + 4_990, event.getDate());
+
+            Assert.assertNull(reader.read());
+        }
+    }
+
+    /**
+     * 監視イベントを記録して再生できるか
+     * @throws Exception エラー
+     */
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        final Path source = Files.createDirectory(this.directory.resolve("source"));
+        final Path destination = Files.createDirectory(this.directory.resolve("destination"));
+        final Path trace = this.directory.resolve("trace");
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (WatchTrace.Writer writer = new WatchTrace.Writer(trace)) {
+            final DelayedWatcher watcher = new DelayedWatcher(source, 100L, false, path -> {});
+            watcher.setTraceWriter(writer);
+            executor.submit(watcher);
+            Thread.sleep(1_000L);
+
+            Files.write(source.resolve("a"), new byte[10]);
+            Files.write(source.resolve("b"), new byte[20]);
+            Thread.sleep(1_000L);
+            executor.shutdownNow();
+            Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        }
+
+        Assert.assertTrue((new TraceReplayer(trace, destination, 0)).replay() >= 2);
+        Assert.assertEquals(10, Files.size(destination.resolve("a")));
+        Assert.assertEquals(20, Files.size(destination.resolve("b")));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.util.uploader;
+
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 監視の猶予期間と latestOnly を仮想の時間で試し、イベントの処理速度を測る。
+ * カメラが一定間隔で画像を書き込む状況を、待たずに何時間分でも流す。
+ * 1 枚の書き込みは作成 1 回と変更数回のイベントになる。
+ * 引数は カメラ数、時間（時）、撮影間隔（ミリ秒）、1 枚の書き込みにかかる時間（ミリ秒）、猶予期間（ミリ秒）、報告 1 回にかかる時間（ミリ秒）、latestOnly
+ */
+public final class WatcherSimulationBenchmark {
+
+    // 1 枚あたりの変更イベント数
+    private static final int MODIFIES = 4;
+
+    private WatcherSimulationBenchmark() {}
+
+    /**
+     * @param args カメラ数、時間（時）、撮影間隔（ミリ秒）、1 枚の書き込みにかかる時間（ミリ秒）、猶予期間（ミリ秒）、報告 1 回にかかる時間（ミリ秒）、latestOnly
+     * @throws Exception エラー
+     */
+    public static void main(final String[] args) throws Exception {
+        final int cameras = (args.length > 0 ? Integer.parseInt(args[0]) : 10);
+        final long hours = (args.length > 1 ? Long.parseLong(args[1]) : 24);
+        final long interval = (args.length > 2 ? Long.parseLong(args[2]) : 1_000L);
+        final long writeTime = (args.length > 3 ? Long.parseLong(args[3]) : 200L);
+        final long delay = (args.length > 4 ? Long.parseLong(args[4]) : 1_000L);
+        final long callbackTime = (args.length > 5 ? Long.parseLong(args[5]) : 0L);
+        final boolean latestOnly = (args.length > 6 ? Boolean.parseBoolean(args[6]) : false);
+
+        for (int i = 0; i < 3; i++) {
+            run(cameras, TimeUnit.HOURS.toMillis(hours), interval, writeTime, delay, callbackTime, latestOnly);
+        }
+    }
+
+    private static void run(final int cameras, final long duration, final long interval, final long writeTime, final long delay, final long callbackTime,
+            final boolean latestOnly) {
+        final VirtualClock clock = new VirtualClock(0);
+        final long[] reports = new long[1];
+        final DelayedWatcher watcher = new DelayedWatcher(Paths.get("/watch"), delay, latestOnly, path -> {
+            reports[0]++;
+            clock.advance(callbackTime);
+        });
+        watcher.setClock(clock);
+        final long shots = duration / interval;
+        final long[] events = new long[1];
+        watcher.setEventSource(new ScriptedEventSource(clock, new Iterator<WatchTrace.Event>() {
+
+            // 撮影番号、カメラ番号、イベント番号の順に回す
+            private long shot = 0;
+            private int event = 0;
+            private int camera = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.shot < shots;
+            }
+
+            @Override
+            public WatchTrace.Event next() {
+                final long date = this.shot * interval + this.event * writeTime / MODIFIES;
+                final WatchTrace.Event next = new WatchTrace.Event((this.event == 0 ? WatchTrace.Kind.CREATE : WatchTrace.Kind.MODIFY),
+                        "camera" + this.camera + "-" + this.shot + ".jpg", date, -1);
+                events[0]++;
+                if (++this.camera == cameras) {
+                    this.camera = 0;
+                    if (++this.event > MODIFIES) {
+                        this.event = 0;
+                        this.shot++;
+                    }
+                }
+                return next;
+            }
+
+        }));
+
+        final long start = System.nanoTime();
+        watcher.run();
+        final long elapsed = System.nanoTime() - start;
+        System.out.println(events[0] + " events (" + TimeUnit.MILLISECONDS.toHours(clock.currentTimeMillis()) + " virtual hours) in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms (" + (events[0] * 1_000_000_000L / Math.max(1, elapsed)) + " events/s), " + reports[0] + " reports");
+    }
+
+}